@@ -15,14 +15,23 @@
  */
 package net.ssehub.kernel_haven.busyboot;
 
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import net.ssehub.kernel_haven.IPreparation;
 import net.ssehub.kernel_haven.SetUpException;
@@ -44,19 +53,399 @@ abstract class AbstractBusybootPreparation implements IPreparation {
             = new Setting<>("analysis.busybox.normalize", Setting.Type.BOOLEAN, true, null, "" +
             "Whether the BusyBox sources should be normalized.");
 
+    public static final @NonNull Setting<@NonNull String> BACKUP_MODE
+            = new Setting<>("preparation.busyboot.backup", Setting.Type.STRING, true, "copy", ""
+            + "How the original state of the source tree is kept. copy: a full copy of the source tree is created "
+            + "next to it (suffix UnchangedCopy). journal: only the files that are replaced or deleted are backed up "
+            + "into an undo journal next to it (suffix UndoJournal); see UndoJournal.restore().");
+
     protected static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * The content of the dummy Makefile; see {@link #makeDummyMakefile()}.
+     */
+    static final @NonNull String DUMMY_MAKEFILE = "allyesconfig:\n\nprepare:\n";
+    
     protected boolean normalizeSources = false;
+    
+    /**
+     * The number of threads to copy files with; see {@link ParallelTreeCopier#THREADS}.
+     */
+    protected int copyThreads = 0;
 
     private @NonNull File sourceTree = new File(""); // will be initialized in run()
+    
+    private boolean useJournal;
+    
+    private @Nullable UndoJournal undoJournal;
+    
+    private @Nullable PreparationCheckpoint checkpoint;
+    
+    private @Nullable FeatureIndexStage featureIndexStage;
+    
+    private FeatureIndex.@Nullable Builder featureIndex;
+    
+    private @Nullable File lineMapDir;
+    
+    private FileTransformPipeline.@NonNull Settings pipelineSettings = new FileTransformPipeline.Settings();
+    
+    private @Nullable File metricsFile;
+    
+    private @NonNull RewriteTelemetry telemetry = new RewriteTelemetry(10);
+    
+    private @NonNull PathFilter pathFilter = PathFilter.ALL;
+    
+    /**
+     * The target directories of a sparse preparation; see {@link SparseClosure#TARGETS}. Empty if the whole tree is
+     * prepared.
+     */
+    private @NonNull List<@NonNull String> sparseTargets = new ArrayList<>();
+    
+    /**
+     * The {@link OptionalStage}s that are configured, in the order they run.
+     */
+    private @NonNull List<@NonNull OptionalStage> stages = new ArrayList<>();
+    
+    private @Nullable StagingStage staging;
+    
+    private @Nullable File fileNameIndexFile;
+    
+    private @Nullable FileNameIndex fileNameIndex;
+    
+    /**
+     * The {@link FlightRecorderEvents} of the phases that are currently running.
+     */
+    private @NonNull Map<@NonNull String, FlightRecorderEvents.@NonNull Event> phaseEvents = new HashMap<>();
 
     @Override
     public void run(@NonNull Configuration config) throws SetUpException {
+        configure(config);
+        
+        for (OptionalStage stage : stages) {
+            stage.before(sourceTree);
+        }
+        StagingStage staging = this.staging;
+        if (staging != null) {
+            staging.run(this, useJournal, this::runCheckpointed);
+        } else {
+            runCheckpointed();
+        }
+        for (OptionalStage stage : stages) {
+            stage.after(sourceTree);
+        }
+        
+        try {
+            telemetry.report(metricsFile);
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't write metrics", e);
+        }
+    }
+    
+    /**
+     * Runs {@link #runImpl()} with a {@link PreparationCheckpoint} of the current source tree.
+     * 
+     * @throws SetUpException If the preparation fails.
+     */
+    private void runCheckpointed() throws SetUpException {
+        LOGGER.logInfo("Starting " + getClass().getSimpleName() + " for " + sourceTree);
+        PreparationCheckpoint checkpoint;
+        try {
+            checkpoint = new PreparationCheckpoint(sourceTree);
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't open preparation state", e);
+        }
+        if (checkpoint.isResumed()) {
+            LOGGER.logInfo("Resuming interrupted preparation of " + sourceTree);
+        }
+        
+        this.checkpoint = checkpoint;
+        FeatureIndexStage featureIndexStage = this.featureIndexStage;
+        this.featureIndex = featureIndexStage != null ? featureIndexStage.getBuilder() : null;
+        File fileNameIndexFile = this.fileNameIndexFile;
+        this.fileNameIndex = fileNameIndexFile != null ? FileNameIndex.load(sourceTree, fileNameIndexFile) : null;
+        PathFilter configuredFilter = pathFilter;
+        boolean success = false;
+        try {
+            runImpl();
+            success = true;
+        } finally {
+            if (undoJournal != null) {
+                undoJournal.close();
+                undoJournal = null;
+            }
+            if (success) {
+                checkpoint.complete();
+            } else {
+                checkpoint.close();
+            }
+            this.checkpoint = null;
+            this.pathFilter = configuredFilter;
+            saveFileNameIndex();
+        }
+    }
+    
+    /**
+     * Saves the {@link FileNameIndex} of this run, if {@link FileNameIndex#INDEX_FILE} is configured. Failures are
+     * only logged, since the index is rebuilt if it is missing.
+     */
+    private void saveFileNameIndex() {
+        FileNameIndex fileNameIndex = this.fileNameIndex;
+        File fileNameIndexFile = this.fileNameIndexFile;
+        if (fileNameIndex != null && fileNameIndexFile != null) {
+            try {
+                fileNameIndex.save(fileNameIndexFile);
+            } catch (IOException e) {
+                LOGGER.logException("Couldn't save filename index", e);
+            }
+        }
+        this.fileNameIndex = null;
+    }
+    
+    /**
+     * Returns the directory that is copied into the {@link StagingArea}. It must contain everything that the
+     * preparation reads or writes. By default, this is the source tree.
+     * 
+     * @return The directory to stage; the source tree or one of its parent directories.
+     */
+    protected @NonNull File getStagingRoot() {
+        return getSourceTree();
+    }
+    
+    /**
+     * Reads the settings of this preparation from the given configuration, without running it.
+     * <p>
+     * Package visibility for the {@link IncrementalGitPreparation}, which calls this before
+     * {@link #transformChangedFile(File)}.
+     * 
+     * @param config The configuration to read the settings from.
+     * 
+     * @throws SetUpException If the settings are invalid.
+     */
+    void configure(@NonNull Configuration config) throws SetUpException {
         this.sourceTree = config.getValue(DefaultSettings.SOURCE_TREE);
         config.registerSetting(PATH_TO_SOURCE_REPO);
         this.normalizeSources = config.getValue(PATH_TO_SOURCE_REPO);
+        config.registerSetting(ParallelTreeCopier.THREADS);
+        this.copyThreads = config.getValue(ParallelTreeCopier.THREADS);
         
-        LOGGER.logInfo("Starting " + getClass().getSimpleName() + " for " + sourceTree);
-        runImpl();
+        config.registerSetting(BACKUP_MODE);
+        String backupMode = config.getValue(BACKUP_MODE);
+        if (!backupMode.equals("copy") && !backupMode.equals("journal")) {
+            throw new SetUpException(BACKUP_MODE.getKey() + " must be either copy or journal, got " + backupMode);
+        }
+        this.useJournal = backupMode.equals("journal");
+        
+        config.registerSetting(LineMap.MAP_DIR);
+        this.lineMapDir = config.getValue(LineMap.MAP_DIR);
+        
+        this.pipelineSettings = FileTransformPipeline.Settings.read(config);
+        
+        config.registerSetting(RewriteTelemetry.METRICS_FILE);
+        this.metricsFile = config.getValue(RewriteTelemetry.METRICS_FILE);
+        config.registerSetting(RewriteTelemetry.SLOW_FILES);
+        this.telemetry = new RewriteTelemetry(config.getValue(RewriteTelemetry.SLOW_FILES));
+        
+        this.pathFilter = PathFilter.read(config);
+        
+        config.registerSetting(SparseClosure.TARGETS);
+        List<@NonNull String> sparseTargets = new ArrayList<>();
+        String targets = config.getValue(SparseClosure.TARGETS);
+        for (String target : targets != null ? targets.split(",") : new String[0]) {
+            if (!target.trim().isEmpty()) {
+                sparseTargets.add(notNull(target.trim()));
+            }
+        }
+        this.sparseTargets = sparseTargets;
+        
+        config.registerSetting(FileNameIndex.INDEX_FILE);
+        this.fileNameIndexFile = config.getValue(FileNameIndex.INDEX_FILE);
+        
+        this.staging = StagingStage.read(config, pathFilter, copyThreads);
+        this.featureIndexStage = FeatureIndexStage.read(config);
+        List<@NonNull OptionalStage> stages = new ArrayList<>();
+        addStage(stages, FingerprintStage.read(config, notNull(getClass().getSimpleName()), pathFilter, copyThreads));
+        addStage(stages, featureIndexStage);
+        addStage(stages, StoreStage.read(config));
+        this.stages = stages;
+    }
+    
+    /**
+     * Adds the given stage to the list, if it is configured.
+     * 
+     * @param stages The list of stages.
+     * @param stage The stage; <code>null</code> if it is not configured.
+     */
+    private static void addStage(@NonNull List<@NonNull OptionalStage> stages, @Nullable OptionalStage stage) {
+        if (stage != null) {
+            stages.add(stage);
+        }
+    }
+    
+    /**
+     * Returns the filter for the files of the source tree that this preparation processes.
+     * 
+     * @return The configured {@link PathFilter}.
+     */
+    protected @NonNull PathFilter getPathFilter() {
+        return pathFilter;
+    }
+    
+    /**
+     * Sets the filter for the files of the source tree that this preparation processes. This is usually read from
+     * the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param pathFilter The filter.
+     */
+    void setPathFilter(@NonNull PathFilter pathFilter) {
+        this.pathFilter = pathFilter;
+    }
+    
+    /**
+     * Sets the target directories of a sparse preparation. This is usually read from the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param sparseTargets The target directories, relative to the source tree; empty to prepare the whole tree.
+     */
+    void setSparseTargets(@NonNull List<@NonNull String> sparseTargets) {
+        this.sparseTargets = sparseTargets;
+    }
+    
+    /**
+     * Restricts the {@link PathFilter} for the rest of the current run to the {@link SparseClosure} of the configured
+     * sparse targets. Does nothing if no targets are configured. The preparations call this after make, since make
+     * generates some of the Kconfig and Kbuild files that the closure is computed from. Files outside of the closure
+     * are left untouched.
+     * 
+     * @throws SetUpException If a target is not a directory in the source tree, or reading the tree fails.
+     */
+    protected void restrictToSparseTargets() throws SetUpException {
+        if (!sparseTargets.isEmpty()) {
+            try {
+                this.pathFilter = new PathFilter(pathFilter, SparseClosure.compute(sourceTree, sparseTargets));
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't compute closure of " + SparseClosure.TARGETS.getKey(), e);
+            }
+        }
+    }
+    
+    /**
+     * Checks whether the given file or directory of the source tree (or one of its parent directories) is excluded by
+     * the {@link PathFilter}.
+     * 
+     * @param file A file or directory in the source tree.
+     * 
+     * @return Whether the file is not processed, or the directory is not walked.
+     */
+    protected boolean isExcluded(@NonNull File file) {
+        return pathFilter.isExcludedWithParents(notNull(sourceTree.toPath().relativize(file.toPath())),
+                file.isDirectory());
+    }
+    
+    /**
+     * Returns the telemetry of the rewrite rules for the current run. It is reported at the end of
+     * {@link #run(Configuration)}.
+     * 
+     * @return The telemetry.
+     */
+    protected @NonNull RewriteTelemetry getTelemetry() {
+        return telemetry;
+    }
+    
+    /**
+     * Returns the path of the given file relative to the source tree, as used in the line maps, the feature index
+     * and the metrics.
+     * 
+     * @param file A file in the source tree.
+     * 
+     * @return The relative path, with '/' as the separator.
+     */
+    protected @NonNull String getRelativePath(@NonNull File file) {
+        return notNull(sourceTree.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/'));
+    }
+    
+    /**
+     * Creates a new {@link FileTransformPipeline} with the configured number of threads. The caller must submit its
+     * files, call {@link FileTransformPipeline#finish()} and close the pipeline.
+     * 
+     * @return A new pipeline.
+     */
+    protected @NonNull FileTransformPipeline createPipeline() {
+        return new FileTransformPipeline(pipelineSettings);
+    }
+    
+    /**
+     * Returns whether line maps should be recorded and written via {@link #writeLineMap(File, LineMap.Builder)}.
+     * 
+     * @return Whether {@link LineMap#MAP_DIR} is configured.
+     */
+    protected boolean isLineMapEnabled() {
+        return lineMapDir != null;
+    }
+    
+    /**
+     * Writes the line map of a rewritten file into {@link LineMap#MAP_DIR}. Does nothing if no maps are written.
+     * 
+     * @param file The rewritten file in the source tree.
+     * @param lineMap The recorded line map of the file.
+     * 
+     * @throws IOException If writing the map fails.
+     */
+    protected void writeLineMap(@NonNull File file, LineMap.@NonNull Builder lineMap) throws IOException {
+        File lineMapDir = this.lineMapDir;
+        if (lineMapDir != null) {
+            lineMap.write(lineMapDir, getRelativePath(file));
+        }
+    }
+    
+    /**
+     * Sets the directory that line maps are written to. This is usually read from the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param lineMapDir The directory for line maps; <code>null</code> disables them.
+     */
+    void setLineMapDir(@Nullable File lineMapDir) {
+        this.lineMapDir = lineMapDir;
+    }
+    
+    /**
+     * Sets the builder that feature references are recorded in. This is usually done by {@link FeatureIndexStage}.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param featureIndex The builder to record references in; <code>null</code> disables the index.
+     */
+    void setFeatureIndex(FeatureIndex.@Nullable Builder featureIndex) {
+        this.featureIndex = featureIndex;
+    }
+    
+    /**
+     * Returns whether feature references should be recorded via
+     * {@link #addFeatureReference(String, File, int, int)}.
+     * 
+     * @return Whether a {@link FeatureIndex} is created.
+     */
+    protected boolean isFeatureIndexEnabled() {
+        return featureIndex != null;
+    }
+    
+    /**
+     * Records a reference to a feature in the prepared source tree for the {@link FeatureIndex}. Does nothing if no
+     * index is created.
+     * 
+     * @param feature The referenced feature.
+     * @param file The file in the source tree.
+     * @param startLine The first line of the reference (1-based).
+     * @param endLine The last line of the reference (inclusive).
+     */
+    protected void addFeatureReference(@NonNull String feature, @NonNull File file, int startLine, int endLine) {
+        FeatureIndex.Builder featureIndex = this.featureIndex;
+        if (featureIndex != null) {
+            featureIndex.add(feature, getRelativePath(file), startLine, endLine);
+        }
     }
     
     /**
@@ -84,36 +473,220 @@ abstract class AbstractBusybootPreparation implements IPreparation {
         return sourceTree;
     }
     
+    /**
+     * Checks whether a change to the given file requires a full re-run of this preparation (i.e. the make steps),
+     * instead of only re-transforming the changed file. By default, this is true for all Kconfig and Makefile
+     * related files.
+     * 
+     * @param relativePath The path of the changed file, relative to the root of the repository, with '/' as the
+     *      separator.
+     * @param changedLines The lines that were added or removed in this file. May be empty if unknown.
+     * 
+     * @return Whether this change affects the build system.
+     */
+    protected boolean isBuildRelevant(@NonNull String relativePath, @NonNull List<@NonNull String> changedLines) {
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        return name.startsWith("Makefile") || name.startsWith("Kconfig") || name.startsWith("Config.")
+                || name.startsWith("Kbuild") || name.endsWith(".mk");
+    }
+    
+    /**
+     * Re-applies the per-file transformations of this preparation to a single file that has been replaced by its
+     * original (unprepared) version. This is only called for files where
+     * {@link #isBuildRelevant(String, List)} returned <code>false</code>. By default, this does nothing.
+     * 
+     * @param file The file in the (already prepared) source tree to transform.
+     * 
+     * @throws IOException If transforming the file fails.
+     */
+    protected void transformChangedFile(@NonNull File file) throws IOException {
+    }
+    
+    /**
+     * Returns the directory that {@link #copyOriginal()} copies the source tree to.
+     * 
+     * @return The location of the unchanged copy.
+     */
+    protected @NonNull File getUnchangedCopyDir() {
+        return new File(getSourceTree().getParentFile(), getSourceTree().getName() + "UnchangedCopy");
+    }
+    
+    /**
+     * Keeps the original state of the source tree, according to {@link #BACKUP_MODE}: either creates a full copy
+     * (see {@link #copyOriginal()}), or starts an {@link UndoJournal}. In the latter case, {@link #backup(File)} must
+     * be called before each file in the source tree is replaced or deleted.
+     * 
+     * @throws IOException If the copy or the journal already exists, or creating it fails.
+     */
+    protected void backupOriginal() throws IOException {
+        boolean resumed = checkpoint != null && notNull(checkpoint).isResumed();
+        boolean done = isPhaseDone("backup");
+        
+        File partial = useJournal ? UndoJournal.getJournalDir(getSourceTree()) : getUnchangedCopyDir();
+        if (resumed && !done && partial.exists()) {
+            LOGGER.logInfo("Deleting incomplete " + partial.getName());
+            Util.deleteFolder(partial);
+        }
+        
+        if (useJournal) {
+            undoJournal = new UndoJournal(getSourceTree(), done);
+        } else if (!done) {
+            copyOriginal();
+        }
+        markPhaseDone("backup");
+    }
+    
+    /**
+     * Checks whether the given phase has already been completed by an earlier, interrupted run of this preparation.
+     * If not, the phase is considered to be running until {@link #markPhaseDone(String)}, for the
+     * {@link FlightRecorderEvents}.
+     * 
+     * @param phase The name of the phase.
+     * 
+     * @return Whether the phase can be skipped.
+     */
+    protected boolean isPhaseDone(@NonNull String phase) {
+        boolean result = checkpoint != null && notNull(checkpoint).isPhaseDone(phase);
+        if (result) {
+            LOGGER.logDebug("Skipping completed phase " + phase);
+        } else {
+            phaseEvents.putIfAbsent(phase, FlightRecorderEvents.beginPhase());
+        }
+        return result;
+    }
+    
+    /**
+     * Marks the given phase as completed, so that it is skipped if this preparation is resumed later.
+     * 
+     * @param phase The name of the phase.
+     */
+    protected void markPhaseDone(@NonNull String phase) {
+        FlightRecorderEvents.Event event = phaseEvents.remove(phase);
+        if (event != null) {
+            FlightRecorderEvents.commitPhase(event, notNull(getClass().getSimpleName()), phase);
+        }
+        if (checkpoint != null) {
+            notNull(checkpoint).markPhaseDone(phase);
+        }
+    }
+    
+    /**
+     * Checks whether the given file has already been transformed in the given phase by an earlier, interrupted run
+     * of this preparation.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     * 
+     * @return Whether the file can be skipped.
+     * 
+     * @throws IOException If finishing an interrupted transformation fails.
+     */
+    protected boolean isFileDone(@NonNull String phase, @NonNull File file) throws IOException {
+        return checkpoint != null && notNull(checkpoint).isFileDone(phase, file);
+    }
+    
+    /**
+     * Marks the given file as completed in the given phase, so that it is skipped if this preparation is resumed
+     * later. Only use this for transformations that are safe to repeat, if the preparation is interrupted right
+     * before this call; otherwise use {@link #commitFile(String, File)}.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     */
+    protected void markFileDone(@NonNull String phase, @NonNull File file) {
+        if (checkpoint != null) {
+            notNull(checkpoint).markFileDone(phase, file);
+        }
+    }
+    
+    /**
+     * Replaces the given file with its transformed content, which has been written to
+     * {@link PreparationCheckpoint#getTempFile(File)}. The file is marked as completed in the given phase, so that it
+     * is not transformed again if this preparation is resumed later.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     * 
+     * @throws IOException If replacing the file fails.
+     */
+    protected void commitFile(@NonNull String phase, @NonNull File file) throws IOException {
+        if (checkpoint != null) {
+            notNull(checkpoint).commit(phase, file);
+        } else {
+            Files.move(PreparationCheckpoint.getTempFile(file).toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Backs up the given file before it is replaced or deleted, if an {@link UndoJournal} is used. Does nothing
+     * if a full copy of the source tree is kept instead.
+     * 
+     * @param file The file in the source tree that is about to be changed.
+     * 
+     * @throws IOException If writing the backup fails.
+     */
+    protected void backup(@NonNull File file) throws IOException {
+        UndoJournal journal = this.undoJournal;
+        if (journal != null) {
+            journal.backup(file);
+        }
+    }
+    
+    /**
+     * Backs up all files in the given directory, if an {@link UndoJournal} is used; e.g. before make rewrites
+     * generated files in it. Does nothing if a full copy of the source tree is kept instead.
+     * 
+     * @param directory The directory in the source tree. Ignored if it doesn't exist.
+     * 
+     * @throws IOException If writing the backups fails.
+     */
+    protected void backupTree(@NonNull File directory) throws IOException {
+        UndoJournal journal = this.undoJournal;
+        if (journal != null) {
+            journal.backupTree(directory);
+        }
+    }
+    
     /**
      * Copies the source tree so that we keep an unmodified version.
      * 
      * @throws IOException If copying the directory fails.
      */
     protected void copyOriginal() throws IOException {
-        File cpDir = new File(getSourceTree().getParentFile(), getSourceTree().getName() + "UnchangedCopy");
+        File cpDir = getUnchangedCopyDir();
         if (cpDir.exists()) {
             throw new IOException("Copy directory already exists");
         }
         cpDir.mkdir();
-        Util.copyFolder(getSourceTree(), cpDir);
+        // excluded paths are never modified, so the copy doesn't need them
+        new ParallelTreeCopier(copyThreads, pathFilter).copy(getSourceTree(), cpDir);
     }
     
     /**
      * Creates a dummy Makefile with the targets 'allyesconfig' and 'prepare', so that extractors that call these
-     * targets again will not fail.
+     * targets again will not fail. The Makefile is replaced instead of written into, since it may be a hard link
+     * into a {@link ContentAddressedStore}.
      * 
      * @throws IOException If writing the file fails.
      */
     protected void makeDummyMakefile() throws IOException {
-        try (PrintWriter writer = new PrintWriter(new File(getSourceTree(), "Makefile"))) {
-            writer.print("allyesconfig:\n\nprepare:\n");
+        File makefile = new File(getSourceTree(), "Makefile");
+        backup(makefile);
+        File tmp = PreparationCheckpoint.getTempFile(makefile);
+        try (PrintWriter writer = new PrintWriter(tmp)) {
+            writer.print(DUMMY_MAKEFILE);
         }
+        Files.move(tmp.toPath(), makefile.toPath(), StandardCopyOption.REPLACE_EXISTING);
     }
     
     /**
-     * Reads the contents of source, does string-based replacements, and writes the result as target.
+     * Reads the contents of source, does string-based replacements, and writes the result as target. If
+     * <code>from</code> does not occur, the file is not written again (but still moved, if target is a different
+     * file).
      * 
-     * @param source The source file to read the content from. This file will be delete after reading.
+     * @param source The source file to read the content from. This file will be deleted after the target is
+     *      written.
      * @param target The target file to write the replaced content to. This may be the same as source.
      * @param from The string to replace in the content.
      * @param to The string to replace occurrences of <code>from</code> with.
@@ -127,13 +700,170 @@ abstract class AbstractBusybootPreparation implements IPreparation {
         try (FileInputStream in = new FileInputStream(source)) {
             content = Util.readStream(in);
         }
-        source.delete();
+        
+        if (!content.contains(from)) {
+            // nothing to replace: don't rewrite the file; a rename becomes a plain move
+            if (!source.equals(target)) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
 
         content = content.replace(from, to);
         
-        try (FileOutputStream out = new FileOutputStream(target)) {
+        // write to a temporary file first, so that a crash never leaves a half-written or missing file
+        File tmp = PreparationCheckpoint.getTempFile(target);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
             out.write(content.getBytes(StandardCharsets.UTF_8));
         }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!source.equals(target)) {
+            source.delete();
+        }
+    }
+    
+    /**
+     * The transformation of a single file in {@link #transformFiles(String, Collection, String, Function)}.
+     */
+    protected interface FileTransform extends FileTransformPipeline.Transform {
+        
+        /**
+         * Called (in a writer thread) after the transformed content has been written to a temporary file, right
+         * before it replaces the target file. Does nothing by default.
+         * 
+         * @param source The source file.
+         * @param target The target file in the source tree, which is replaced next.
+         * 
+         * @throws IOException If finishing fails; the target file is not replaced in this case.
+         */
+        public default void beforeCommit(@NonNull File source, @NonNull File target) throws IOException {
+        }
+        
+    }
+    
+    /**
+     * Transforms the given files in parallel on a {@link FileTransformPipeline}. Each file is backed up, its
+     * transformed content is written to a temporary file, and then the target file is replaced and marked as done in
+     * the given phase. Files that are already done in this phase (because an interrupted preparation is resumed) are
+     * skipped. Files where the transformation doesn't change the content are not written again (but still moved, if
+     * a target name is given). A failing file does not stop the others.
+     * 
+     * @param phase The name of the phase, for the checkpoint.
+     * @param files The files to transform.
+     * @param targetName The name of the target file, in the same directory as the source file; the source file is
+     *      deleted after the target is written. <code>null</code> to transform the files in place.
+     * @param transform Creates the transformation for each file.
+     * 
+     * @throws SetUpException If any of the files could not be transformed. Contains the failures of all files.
+     */
+    protected void transformFiles(@NonNull String phase, @NonNull Collection<@NonNull File> files,
+            @Nullable String targetName, @NonNull Function<@NonNull File, @NonNull FileTransform> transform)
+            throws SetUpException {
+        
+        try (FileTransformPipeline pipeline = createPipeline()) {
+            for (File source : files) {
+                File target = targetName != null ? new File(source.getParentFile(), targetName) : source;
+                if (isFileDone(phase, target)) {
+                    if (!source.equals(target)) {
+                        source.delete();
+                    }
+                    continue;
+                }
+                
+                backup(source);
+                if (!source.equals(target)) {
+                    backup(target);
+                }
+                
+                FileTransform fileTransform = notNull(transform.apply(source));
+                pipeline.submit(source, PreparationCheckpoint.getTempFile(target), fileTransform,
+                    new FileTransformPipeline.Completion() {
+                        
+                        @Override
+                        public void completed(@NonNull File file, @NonNull File tmp) throws IOException {
+                            fileTransform.beforeCommit(file, target);
+                            commitFile(phase, target);
+                            if (!file.equals(target)) {
+                                file.delete();
+                            }
+                        }
+                        
+                        @Override
+                        public boolean unchanged(@NonNull File file, @NonNull File tmp) throws IOException {
+                            // don't rewrite a file with the same content; a rename becomes a plain move
+                            fileTransform.beforeCommit(file, target);
+                            if (!file.equals(target)) {
+                                Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                            }
+                            markFileDone(phase, target);
+                            return true;
+                        }
+                        
+                    });
+            }
+            pipeline.finish();
+            
+        } catch (IOException e) {
+            int numFailures = 1 + e.getSuppressed().length;
+            StringBuilder message = new StringBuilder("Couldn't transform " + numFailures + " file(s) in phase "
+                    + phase + ":");
+            message.append("\n").append(e.getMessage());
+            for (Throwable suppressed : e.getSuppressed()) {
+                message.append("\n").append(suppressed.getMessage());
+            }
+            throw new SetUpException(message.toString(), e);
+        }
+    }
+    
+    /**
+     * Creates a {@link FileTransform} that does string-based replacements in UTF-8 content.
+     * 
+     * @param from The string to replace in the content.
+     * @param to The string to replace occurrences of <code>from</code> with.
+     * 
+     * @return The transformation.
+     */
+    protected static @NonNull FileTransform replacing(@NonNull String from, @NonNull String to) {
+        return (file, content) -> {
+            String string = new String(content, StandardCharsets.UTF_8);
+            // return the same content if nothing is replaced, so that the file is not written again
+            return string.contains(from) ? notNull(string.replace(from, to).getBytes(StandardCharsets.UTF_8))
+                    : content;
+        };
+    }
+    
+    /**
+     * Finds all files in the source tree that have exactly the given filename and are not excluded by the
+     * {@link PathFilter}. If {@link FileNameIndex#INDEX_FILE} is configured, only the directories that changed since
+     * the last lookup (or run) are listed; otherwise, the whole source tree is walked.
+     * 
+     * @param filename The filename to search for.
+     * 
+     * @return A list of all files that have the given filename.
+     */
+    protected @NonNull List<@NonNull File> findFilesInSourceTree(@NonNull String filename) {
+        FileNameIndex fileNameIndex = this.fileNameIndex;
+        if (fileNameIndex != null) {
+            try {
+                return fileNameIndex.find(filename, pathFilter);
+            } catch (IOException e) {
+                LOGGER.logException("Couldn't update filename index, walking the source tree instead", e);
+                this.fileNameIndex = null;
+            }
+        }
+        return findFilesByName(sourceTree, filename, pathFilter);
+    }
+    
+    /**
+     * Sets the index that is used by {@link #findFilesInSourceTree(String)}. This is usually done by
+     * {@link #run(Configuration)}.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param fileNameIndex The index of the source tree; <code>null</code> to walk the source tree.
+     */
+    void setFileNameIndex(@Nullable FileNameIndex fileNameIndex) {
+        this.fileNameIndex = fileNameIndex;
     }
     
     /**
@@ -145,31 +875,52 @@ abstract class AbstractBusybootPreparation implements IPreparation {
      * @return A list of all files that have the given filename.
      */
     protected static @NonNull List<@NonNull File> findFilesByName(@NonNull File directory, @NonNull String filename) {
+        return findFilesByName(directory, filename, PathFilter.ALL);
+    }
+    
+    /**
+     * Finds all files in the given directory (recursively) that have exactly the given filename and are not
+     * excluded by the given filter. Excluded directories are not searched.
+     * 
+     * @param directory The directory to search in.
+     * @param filename The filename to search for.
+     * @param filter The filter for the files and directories, relative to the given directory.
+     * 
+     * @return A list of all files that have the given filename.
+     */
+    protected static @NonNull List<@NonNull File> findFilesByName(@NonNull File directory, @NonNull String filename,
+            @NonNull PathFilter filter) {
         List<@NonNull File> matchingFiles = new ArrayList<>();
         if (directory.isDirectory()) {
-            findFilesHelper(directory, filename, matchingFiles);
+            findFilesHelper(directory.toPath(), directory, filename, filter, matchingFiles);
         }
         return matchingFiles;
     }
 
     /**
-     * Helper method for {@link #findFilesByName(File, String)}. Recursively walks through the given directory and
-     * all sub-directories and finds all files that have exactly the given filename.
+     * Helper method for {@link #findFilesByName(File, String, PathFilter)}. Recursively walks through the given
+     * directory and all sub-directories and finds all files that have exactly the given filename.
      *
+     * @param root The directory that the search started in.
      * @param directory The directory to search in.
      * @param filename The filename to search for.
+     * @param filter The filter for the files and directories, relative to the root.
      * @param result The list to add the matching files to.
      */
-    private static void findFilesHelper(@NonNull File directory, @NonNull String filename,
-            @NonNull List<@NonNull File> result) {
+    private static void findFilesHelper(@NonNull Path root, @NonNull File directory, @NonNull String filename,
+            @NonNull PathFilter filter, @NonNull List<@NonNull File> result) {
         
         // get all the files from a directory
         File[] fList = directory.listFiles();
         for (File file : fList) {
+            boolean isDirectory = file.isDirectory();
+            if (filter.isExcluded(notNull(root.relativize(file.toPath())), isDirectory)) {
+                continue;
+            }
             if (file.isFile() && file.getName().equals(filename)) {
                 result.add(file);
-            } else if (file.isDirectory()) {
-                findFilesHelper(file, filename, result);
+            } else if (isDirectory) {
+                findFilesHelper(root, file, filename, filter, result);
             }
         }
     }
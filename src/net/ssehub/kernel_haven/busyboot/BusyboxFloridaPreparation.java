@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A preparation that combines {@link PrepareBusybox} and {@link FloridaPreparation} in a single copy pass: the
+ * Busybox source tree is copied to {@link FloridaPreparation#DESTINATION_DIR}, and each file is read once and
+ * written once, with all replacements of both preparations applied:
+ * <ul>
+ *  <li>Config.in files are written as Kconfig files</li>
+ *  <li>lib- is replaced by obj- in Kbuild files</li>
+ *  <li>the top-level Makefile is replaced by a dummy Makefile</li>
+ *  <li>source files are normalized (if analysis.busybox.normalize is set), and then the FLOrIDA conditions are
+ *      replaced</li>
+ * </ul>
+ * Like {@link PrepareBusybox}, 'make allyesconfig prepare' is executed in the original source tree first, since it
+ * generates the Config.in and Kbuild files. Apart from the files generated by make, the original source tree is
+ * not modified, so no UnchangedCopy is needed.
+ *
+ * @author Adam
+ */
+public class BusyboxFloridaPreparation extends FloridaPreparation {
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull PrepareBusybox busybox = new PrepareBusybox();
+    
+    private boolean executeMake = true;
+    
+    @Override
+    public void run(@NonNull Configuration config) throws SetUpException {
+        busybox.configure(config);
+        super.run(config);
+    }
+    
+    @Override
+    void prepare(@NonNull File originalSourceTree, @NonNull File copiedSourceTree)
+            throws IOException, SetUpException {
+        
+        busybox.setSourceTree(originalSourceTree);
+        busybox.setFeatureIndex(getFeatureIndex());
+        
+        if (executeMake) {
+            LOGGER.logDebug("Execute make allyesconfig prepare");
+            busybox.executeMake();
+        }
+        
+        super.prepare(originalSourceTree, copiedSourceTree);
+    }
+    
+    @Override
+    protected boolean isTransformedFile(@NonNull File file) {
+        String name = file.getName();
+        return isSourceFile(file) || name.equals("Config.in") || name.equals("Kbuild")
+                || (name.equals("Kconfig") && new File(file.getParentFile(), "Config.in").isFile())
+                || file.getAbsoluteFile().equals(new File(busybox.getSourceTree(), "Makefile").getAbsoluteFile());
+    }
+    
+    @Override
+    protected void submitFile(@NonNull FileTransformPipeline pipeline, @NonNull File source, @NonNull File target)
+            throws IOException {
+        
+        String name = source.getName();
+        if (name.equals("Config.in")) {
+            pipeline.submit(source, new File(target.getParentFile(), "Kconfig"),
+                (file, content) -> replace(content, "Config.in", "Kconfig"), null);
+        
+        } else if (name.equals("Kbuild")) {
+            pipeline.submit(source, target, (file, content) -> replace(content, "lib-", "obj-"), null);
+        
+        } else if (name.equals("Kconfig")) {
+            // replaced by the renamed Config.in next to it
+        
+        } else if (name.equals("Makefile")) {
+            byte[] dummy = notNull(AbstractBusybootPreparation.DUMMY_MAKEFILE.getBytes(StandardCharsets.UTF_8));
+            pipeline.submit(source, target, (file, content) -> dummy, null);
+        
+        } else if (busybox.normalizeSources && !PrepareBusybox.isExcludedFromNormalization(source)
+                && !name.endsWith(".cpp")) {
+            NormalizedReplacement replacement = new NormalizedReplacement(source, target);
+            pipeline.submit(source, target, replacement, replacement);
+        
+        } else {
+            super.submitFile(pipeline, source, target);
+        }
+    }
+    
+    /**
+     * Does a string-based replacement in the given content.
+     * 
+     * @param content The UTF-8 encoded content.
+     * @param from The string to replace in the content.
+     * @param to The string to replace occurrences of <code>from</code> with.
+     * 
+     * @return The replaced content, UTF-8 encoded.
+     */
+    private static byte @NonNull [] replace(byte @NonNull [] content, @NonNull String from, @NonNull String to) {
+        return notNull(new String(content, StandardCharsets.UTF_8).replace(from, to).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Sets whether 'make allyesconfig prepare' is executed before the copy. This is done by default.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param executeMake Whether make is executed.
+     */
+    void setExecuteMake(boolean executeMake) {
+        this.executeMake = executeMake;
+    }
+    
+    /**
+     * Sets whether the source files are normalized. This is usually read from the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param normalizeSources Whether the source files are normalized.
+     */
+    void setNormalizeSources(boolean normalizeSources) {
+        busybox.normalizeSources = normalizeSources;
+    }
+    
+    /**
+     * Normalizes a source file in style of Busyfix, and then does the FLOrIDA replacements on the normalized
+     * content. The line map of the result refers to the original file, and the feature index contains both the
+     * CONFIG_ and the FLOrIDA feature references.
+     */
+    private class NormalizedReplacement implements FileTransformPipeline.Transform, FileTransformPipeline.Completion {
+        
+        private @NonNull File source;
+        
+        private @NonNull File target;
+        
+        private @Nullable SourceFileReplacement replacement;
+        
+        /**
+         * Creates a new {@link NormalizedReplacement}.
+         * 
+         * @param source The file in the original source tree.
+         * @param target The location of the file in the copied source tree.
+         */
+        public NormalizedReplacement(@NonNull File source, @NonNull File target) {
+            this.source = source;
+            this.target = target;
+        }
+        
+        @Override
+        public byte @NonNull [] transform(@NonNull File file, byte @NonNull [] content) throws IOException {
+            LineMap.Builder normalizedLines = new LineMap.Builder();
+            String normalized = PrepareBusybox.normalizeContent(new String(content, StandardCharsets.UTF_8),
+                    normalizedLines, new ArrayList<>());
+            
+            SourceFileReplacement replacement = new SourceFileReplacement(source, target, normalizedLines.build());
+            this.replacement = replacement;
+            byte[] result = replacement.transform(file, notNull(normalized.getBytes(Charset.defaultCharset())));
+            
+            if (busybox.isFeatureIndexEnabled()) {
+                List<@NonNull String> lines = notNull(Arrays.asList(
+                        new String(result, Charset.defaultCharset()).split("\n")));
+                busybox.indexFeatures(source, lines);
+            }
+            return result;
+        }
+        
+        @Override
+        public void completed(@NonNull File file, @NonNull File written) throws IOException {
+            SourceFileReplacement replacement = this.replacement;
+            if (replacement != null) {
+                replacement.completed(file, written);
+            }
+        }
+    
+    }
+
+}
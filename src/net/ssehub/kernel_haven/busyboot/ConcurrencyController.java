@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+/**
+ * Decides how many file tasks may run at the same time, based on the measured throughput and latency. The best
+ * number depends on the storage: local SSDs profit from many concurrent requests, network file systems from some,
+ * and tmpfs only from as many as there are processors.
+ * <p>
+ * The controller climbs the throughput curve: after each measurement window, the limit is moved one step in the
+ * current direction as long as the throughput improves, and the direction is reversed when it drops. If the
+ * throughput stays the same, the limit is lowered, since the additional tasks only hold resources. If the latency
+ * per unit of work grows far beyond the lowest latency seen so far, the storage is queueing requests and the limit
+ * is lowered regardless of the throughput.
+ *
+ * @author Adam
+ */
+public class ConcurrencyController {
+    
+    /**
+     * Relative throughput changes smaller than this are considered noise.
+     */
+    private static final double TOLERANCE = 0.05;
+    
+    /**
+     * The factor by which the latency may exceed the lowest latency seen, before the limit is lowered.
+     */
+    private static final double LATENCY_LIMIT = 4.0;
+    
+    private int minLimit;
+    
+    private int maxLimit;
+    
+    private int limit;
+    
+    private int direction = 1;
+    
+    private double lastThroughput;
+    
+    private double minLatency;
+    
+    private int windowTasks;
+    
+    private long windowWork;
+    
+    private double windowLatency;
+    
+    private long windowStart = System.nanoTime();
+    
+    /**
+     * Creates a new {@link ConcurrencyController}. If the minimum and maximum limit are equal, the limit is fixed.
+     * 
+     * @param minLimit The lowest number of concurrent tasks. At least 1.
+     * @param initialLimit The number of concurrent tasks to start with.
+     * @param maxLimit The highest number of concurrent tasks. At least <code>minLimit</code>.
+     * 
+     * @throws IllegalArgumentException If the limits are invalid.
+     */
+    public ConcurrencyController(int minLimit, int initialLimit, int maxLimit) throws IllegalArgumentException {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + " to " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+    
+    /**
+     * Returns the number of tasks that may currently run at the same time.
+     * 
+     * @return The current limit, between the minimum and maximum limit.
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+    
+    /**
+     * Returns the highest number of tasks that may ever run at the same time.
+     * 
+     * @return The maximum limit.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+    
+    /**
+     * Adjusts the limit after a measurement window.
+     * 
+     * @param throughput The units of work completed per second in the window.
+     * @param latency The mean time that a task took per unit of work in the window (in any time unit, as long as
+     *      it is the same for all windows).
+     * 
+     * @return The new limit.
+     */
+    public synchronized int update(double throughput, double latency) {
+        if (minLatency <= 0 || latency < minLatency) {
+            minLatency = latency;
+        }
+        
+        if (latency > minLatency * LATENCY_LIMIT) {
+            direction = -1;
+        } else if (throughput < lastThroughput * (1 - TOLERANCE)) {
+            direction = -direction;
+        } else if (throughput <= lastThroughput * (1 + TOLERANCE)) {
+            direction = -1;
+        }
+        lastThroughput = throughput;
+        
+        int step = Math.max(1, limit / 4);
+        limit = Math.max(minLimit, Math.min(limit + direction * step, maxLimit));
+        if (limit == minLimit) {
+            // the next change of the throughput can only be explored upwards
+            direction = 1;
+        }
+        return limit;
+    }
+    
+    /**
+     * Records a finished task, and calls {@link #update(double, double)} at the end of a measurement window. A window
+     * spans enough tasks that every slot finished about twice.
+     * 
+     * @param work The units of work of the task, e.g. the bytes of its file.
+     * @param duration The duration of the task in nanoseconds.
+     * 
+     * @return The limit after this task.
+     */
+    public synchronized int record(long work, long duration) {
+        windowTasks++;
+        windowWork += work;
+        windowLatency += (double) duration / Math.max(work, 1);
+        
+        if (windowTasks >= Math.max(8, 2 * limit)) {
+            double seconds = Math.max(System.nanoTime() - windowStart, 1) / 1e9;
+            update(windowWork / seconds, windowLatency / windowTasks);
+            startWindow();
+        }
+        return limit;
+    }
+    
+    /**
+     * Starts a new measurement window for {@link #record(long, long)}, e.g. after a pause in which no tasks ran.
+     */
+    public synchronized void startWindow() {
+        windowTasks = 0;
+        windowWork = 0;
+        windowLatency = 0;
+        windowStart = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A content-addressed store for prepared source trees. Each distinct file content and mode is stored exactly once as
+ * a blob (named by the SHA-256 hash of the content and the mode without write permissions); each stored tree is
+ * recorded as a manifest that maps paths to blobs, records the mode of each file, and the targets of symbolic links.
+ * Stored trees can be materialized anywhere on the same file system via hard links.
+ * <p>
+ * Storing a tree leaves the tree itself untouched and writable; it can be deleted once it is stored. Each file is
+ * read once, and only contents that are not in the store yet are written, so storing the next version of a tree
+ * writes only its changed files.
+ * <p>
+ * The blobs are made read-only, since all materialized trees that contain the same content share them. Writing into
+ * a file of a materialized tree thus fails (unless the process may ignore permissions), instead of modifying all
+ * trees that share the blob. Tools that write into existing files, such as make in some cases, should run on a
+ * fresh copy of a tree, not on a materialized one.
+ *
+ * @author Adam
+ */
+public class ContentAddressedStore {
+    
+    public static final @NonNull Setting<@Nullable File> STORE_DIR
+        = new Setting<>("preparation.store.directory", Type.DIRECTORY, false, null, "If set, the prepared source "
+            + "tree is also recorded in the content-addressed store in this directory. Identical files are only "
+            + "stored once, and stored trees can be materialized as hard links into the store.");
+    
+    public static final @NonNull Setting<@Nullable String> STORE_NAME
+        = new Setting<>("preparation.store.name", Type.STRING, false, null, "The name under which the prepared "
+            + "tree is recorded in " + STORE_DIR.getKey() + ". Defaults to the name of the prepared source tree.");
+    
+    /**
+     * Files up to this size are read into memory once, for both the hash and a new blob.
+     */
+    private static final long MAX_BUFFERED_SIZE = 1024 * 1024;
+    
+    private @NonNull File blobDir;
+    
+    private @NonNull File manifestDir;
+    
+    /**
+     * Creates a new {@link ContentAddressedStore}.
+     * 
+     * @param storeDir The directory of the store. Created if it doesn't exist.
+     */
+    public ContentAddressedStore(@NonNull File storeDir) {
+        this.blobDir = new File(storeDir, "blobs");
+        this.manifestDir = new File(storeDir, "manifests");
+        blobDir.mkdirs();
+        manifestDir.mkdirs();
+    }
+    
+    /**
+     * Stores the given prepared tree, if {@link #STORE_DIR} is configured.
+     * 
+     * @param config The configuration.
+     * @param tree The prepared source tree.
+     * 
+     * @throws SetUpException If storing the tree fails.
+     */
+    public static void storeIfConfigured(@NonNull Configuration config, @NonNull File tree) throws SetUpException {
+        StoreStage stage = StoreStage.read(config);
+        if (stage != null) {
+            stage.after(tree);
+        }
+    }
+    
+    /**
+     * Writes all files of the given tree into the store and records the tree as a manifest. The tree is not
+     * modified.
+     * 
+     * @param tree The tree to store.
+     * @param name The name to record the tree as. An existing manifest with this name is overwritten.
+     * 
+     * @throws IOException If reading the tree or writing the store fails.
+     */
+    public void store(@NonNull File tree, @NonNull String name) throws IOException {
+        Path root = tree.toPath();
+        
+        try (PrintWriter manifest = new PrintWriter(new OutputStreamWriter(
+                Files.newOutputStream(getManifest(name).toPath()), StandardCharsets.UTF_8))) {
+            
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root)) {
+                        manifest.print("D\t\t\t" + toManifestPath(root, notNull(dir)) + "\n");
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        int mode = getMode(notNull(file));
+                        String key = storeBlob(notNull(file), mode, attrs.size());
+                        manifest.print("F\t" + key + "\t" + (mode >= 0 ? Integer.toOctalString(mode) : "") + "\t"
+                                + toManifestPath(root, notNull(file)) + "\n");
+                    } else if (attrs.isSymbolicLink()) {
+                        manifest.print("L\t" + Files.readSymbolicLink(file) + "\t\t"
+                                + toManifestPath(root, notNull(file)) + "\n");
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            
+            });
+        }
+    }
+    
+    /**
+     * Re-creates a stored tree at the given location, using hard links into the store. Symbolic links are
+     * re-created with their recorded targets. Files that have to be copied, because the target is on another file
+     * system, get their recorded mode; linked files share the mode of their blob, i.e. without write permissions.
+     * 
+     * @param name The name of the tree in the store.
+     * @param target The directory to create the tree in. Must not contain any of the files of the tree yet.
+     * 
+     * @throws IOException If the tree is not in the store, or creating the links fails.
+     */
+    public void materialize(@NonNull String name, @NonNull File target) throws IOException {
+        File manifest = getManifest(name);
+        if (!manifest.isFile()) {
+            throw new FileNotFoundException("No tree named " + name + " in store");
+        }
+        
+        target.mkdirs();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) {
+                    throw new IOException("Invalid line in manifest " + manifest + ": " + line);
+                }
+                File file = new File(target, parts[3]);
+                if (parts[0].equals("D")) {
+                    file.mkdirs();
+                } else if (parts[0].equals("L")) {
+                    Files.createSymbolicLink(file.toPath(), Paths.get(parts[1]));
+                } else {
+                    int mode = parts[2].isEmpty() ? -1 : Integer.parseInt(parts[2], 8);
+                    link(getBlob(notNull(parts[1])).toPath(), file.toPath(), mode);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the given file into the store, if its content and mode are not yet stored.
+     * 
+     * @param file The file to store.
+     * @param mode The mode of the file; see {@link #getMode(Path)}.
+     * @param size The size of the file.
+     * 
+     * @return The key of the blob: the hash of the content, and the mode of the blob, if known.
+     * 
+     * @throws IOException If reading the file or writing the blob fails.
+     */
+    private @NonNull String storeBlob(@NonNull Path file, int mode, long size) throws IOException {
+        byte[] content = size <= MAX_BUFFERED_SIZE ? Files.readAllBytes(file) : null;
+        String hash = content != null ? hash(content) : hash(file);
+        int blobMode = mode >= 0 ? mode & ~0222 : -1;
+        String key = blobMode >= 0 ? hash + "-" + Integer.toOctalString(blobMode) : hash;
+        Path blob = getBlob(key).toPath();
+        
+        if (!Files.exists(blob)) {
+            Files.createDirectories(blob.getParent());
+            Path tmp = notNull(Files.createTempFile(blob.getParent(), hash, ".tmp"));
+            if (content != null) {
+                Files.write(tmp, content);
+            } else {
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (blobMode >= 0) {
+                setMode(tmp, blobMode);
+            } else {
+                tmp.toFile().setReadOnly();
+            }
+            try {
+                Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // another preparation stored the same content at the same time
+                Files.delete(tmp);
+            }
+        }
+        return key;
+    }
+    
+    /**
+     * Creates a hard link to the given blob. Falls back to copying, if the target is on another file system.
+     * 
+     * @param blob The blob to link to.
+     * @param target The link to create.
+     * @param mode The mode to give a copy; -1 if unknown, in which case the copy is only made writable.
+     * 
+     * @throws IOException If neither linking nor copying works.
+     */
+    private static void link(@NonNull Path blob, @NonNull Path target, int mode) throws IOException {
+        try {
+            Files.createLink(target, blob);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(blob, target);
+            if (mode >= 0) {
+                setMode(target, mode);
+            } else {
+                target.toFile().setWritable(true);
+            }
+        }
+    }
+    
+    /**
+     * Reads the POSIX permissions of the given file.
+     * 
+     * @param file The file.
+     * 
+     * @return The permissions as a number, e.g. 0755; -1 if the file system doesn't support POSIX permissions.
+     * 
+     * @throws IOException If reading the permissions fails.
+     */
+    private static int getMode(@NonNull Path file) throws IOException {
+        int result = 0;
+        try {
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS)) {
+                // the constants are ordered from OWNER_READ (0400) to OTHERS_EXECUTE (0001)
+                result |= 1 << (8 - permission.ordinal());
+            }
+        } catch (UnsupportedOperationException e) {
+            result = -1;
+        }
+        return result;
+    }
+    
+    /**
+     * Sets the POSIX permissions of the given file.
+     * 
+     * @param file The file.
+     * @param mode The permissions as a number, e.g. 0755.
+     * 
+     * @throws IOException If setting the permissions fails.
+     */
+    private static void setMode(@NonNull Path file, int mode) throws IOException {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & 1 << (8 - permission.ordinal())) != 0) {
+                permissions.add(permission);
+            }
+        }
+        Files.setPosixFilePermissions(file, permissions);
+    }
+    
+    /**
+     * Calculates the SHA-256 hash of the given file.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param file The file to hash.
+     * 
+     * @return The hash as a lower-case hex string.
+     * 
+     * @throws IOException If reading the file fails.
+     */
+    static @NonNull String hash(@NonNull Path file) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest);
+    }
+    
+    /**
+     * Calculates the SHA-256 hash of the given content.
+     * 
+     * @param content The content to hash.
+     * 
+     * @return The hash as a lower-case hex string.
+     * 
+     * @throws IOException If SHA-256 is not available.
+     */
+    private static @NonNull String hash(byte @NonNull [] content) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update(content);
+        return toHex(digest);
+    }
+    
+    /**
+     * Creates a SHA-256 digest.
+     * 
+     * @return The digest.
+     * 
+     * @throws IOException If SHA-256 is not available.
+     */
+    private static @NonNull MessageDigest createDigest() throws IOException {
+        try {
+            return notNull(MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Completes the given digest.
+     * 
+     * @param digest The digest of the content.
+     * 
+     * @return The hash as a lower-case hex string.
+     */
+    private static @NonNull String toHex(@NonNull MessageDigest digest) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            result.append(String.format("%02x", b & 0xFF));
+        }
+        return notNull(result.toString());
+    }
+    
+    /**
+     * Returns the location of the blob with the given key.
+     * 
+     * @param key The key of the blob; see {@link #storeBlob(Path, int, long)}.
+     * 
+     * @return The blob file.
+     */
+    private @NonNull File getBlob(@NonNull String key) {
+        return new File(new File(blobDir, key.substring(0, 2)), key.substring(2));
+    }
+    
+    /**
+     * Returns the location of the manifest for the given tree name.
+     * 
+     * @param name The name of the tree.
+     * 
+     * @return The manifest file.
+     */
+    private @NonNull File getManifest(@NonNull String name) {
+        return new File(manifestDir, name + ".manifest");
+    }
+    
+    /**
+     * Converts the given path to a relative, '/' separated path for the manifest.
+     * 
+     * @param root The root of the tree.
+     * @param path The path inside the tree.
+     * 
+     * @return The relative path.
+     */
+    private static @NonNull String toManifestPath(@NonNull Path root, @NonNull Path path) {
+        return notNull(root.relativize(path).toString().replace(File.separatorChar, '/'));
+    }
+
+}
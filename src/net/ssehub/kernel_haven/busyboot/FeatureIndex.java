@@ -0,0 +1,364 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * An index that maps features to the locations (file and line range) in a prepared source tree where they are
+ * referenced. The preparations create this index as a by-product (see {@link Builder}), so that analyses can look up
+ * feature locations without reading the source tree again.
+ * <p>
+ * The index is stored in a binary format that is read via a memory-mapped buffer. All strings (feature names and
+ * file paths) are interned: each distinct string is stored once and referenced by its number. The format (all
+ * integers are 4 byte big-endian) is:
+ * <ol>
+ *  <li>Header: magic number, version, number of strings, number of features, number of references</li>
+ *  <li>String table: offset and length of each string in the string data</li>
+ *  <li>Feature table, sorted by feature name: string number, index of the first reference, number of references
+ *      </li>
+ *  <li>Reference table, grouped by feature: string number of the file, first line, last line</li>
+ *  <li>String data: all strings, UTF-8 encoded</li>
+ * </ol>
+ *
+ * @author Adam
+ */
+public class FeatureIndex {
+    
+    public static final @NonNull Setting<@Nullable File> INDEX_FILE
+        = new Setting<>("preparation.feature_index", Type.PATH, false, null, "If set, the preparation writes an "
+            + "index of all feature references (feature -> file and line range) in the prepared source tree to this "
+            + "file.");
+    
+    private static final int MAGIC = 0x4B484649; // "KHFI"
+    
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 5 * 4;
+    
+    /**
+     * A referenced location of a feature.
+     */
+    public static class Location {
+        
+        private @NonNull String file;
+        
+        private int startLine;
+        
+        private int endLine;
+        
+        /**
+         * Creates a new {@link Location}.
+         * 
+         * @param file The path of the file, relative to the prepared source tree, with '/' as the separator.
+         * @param startLine The first line of the reference (1-based).
+         * @param endLine The last line of the reference (inclusive).
+         */
+        public Location(@NonNull String file, int startLine, int endLine) {
+            this.file = file;
+            this.startLine = startLine;
+            this.endLine = endLine;
+        }
+        
+        /**
+         * Returns the path of the file, relative to the prepared source tree, with '/' as the separator.
+         * 
+         * @return The file path.
+         */
+        public @NonNull String getFile() {
+            return file;
+        }
+        
+        /**
+         * Returns the first line of the reference.
+         * 
+         * @return The first line (1-based).
+         */
+        public int getStartLine() {
+            return startLine;
+        }
+        
+        /**
+         * Returns the last line of the reference.
+         * 
+         * @return The last line (inclusive).
+         */
+        public int getEndLine() {
+            return endLine;
+        }
+        
+        @Override
+        public @NonNull String toString() {
+            return file + ":" + startLine + "-" + endLine;
+        }
+    
+    }
+    
+    /**
+     * Collects feature references during a preparation, and writes them as a {@link FeatureIndex}. This class is
+     * thread-safe.
+     */
+    public static class Builder {
+        
+        private @NonNull Map<@NonNull String, @NonNull List<@NonNull Location>> references = new TreeMap<>();
+        
+        private @NonNull Map<@NonNull String, @NonNull String> interned = new HashMap<>();
+        
+        /**
+         * Records a reference to a feature.
+         * 
+         * @param feature The referenced feature.
+         * @param file The path of the file, relative to the prepared source tree, with '/' as the separator.
+         * @param startLine The first line of the reference (1-based).
+         * @param endLine The last line of the reference (inclusive).
+         */
+        public synchronized void add(@NonNull String feature, @NonNull String file, int startLine, int endLine) {
+            references.computeIfAbsent(intern(feature), (key) -> new ArrayList<>())
+                    .add(new Location(intern(file), startLine, endLine));
+        }
+        
+        /**
+         * Returns the canonical instance of the given string, so that repeated file paths are only held once.
+         * 
+         * @param string The string.
+         * 
+         * @return The canonical instance.
+         */
+        private @NonNull String intern(@NonNull String string) {
+            return notNull(interned.computeIfAbsent(string, (key) -> key));
+        }
+        
+        /**
+         * Writes the collected references to the given file. An existing file is overwritten.
+         * 
+         * @param file The file to write the index to.
+         * 
+         * @throws IOException If writing the file fails.
+         */
+        public synchronized void write(@NonNull File file) throws IOException {
+            Map<@NonNull String, Integer> stringIds = new HashMap<>();
+            List<byte @NonNull []> strings = new ArrayList<>();
+            int numRefs = 0;
+            for (Map.Entry<@NonNull String, @NonNull List<@NonNull Location>> entry : references.entrySet()) {
+                getStringId(entry.getKey(), stringIds, strings);
+                for (Location location : entry.getValue()) {
+                    getStringId(location.file, stringIds, strings);
+                    numRefs++;
+                }
+            }
+            
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(strings.size());
+                out.writeInt(references.size());
+                out.writeInt(numRefs);
+                
+                int offset = 0;
+                for (byte[] string : strings) {
+                    out.writeInt(offset);
+                    out.writeInt(string.length);
+                    offset += string.length;
+                }
+                
+                int firstRef = 0;
+                for (Map.Entry<@NonNull String, @NonNull List<@NonNull Location>> entry : references.entrySet()) {
+                    out.writeInt(stringIds.get(entry.getKey()));
+                    out.writeInt(firstRef);
+                    out.writeInt(entry.getValue().size());
+                    firstRef += entry.getValue().size();
+                }
+                
+                for (List<@NonNull Location> locations : references.values()) {
+                    for (Location location : locations) {
+                        out.writeInt(stringIds.get(location.file));
+                        out.writeInt(location.startLine);
+                        out.writeInt(location.endLine);
+                    }
+                }
+                
+                for (byte[] string : strings) {
+                    out.write(string);
+                }
+            }
+        }
+        
+        /**
+         * Returns the number of the given string in the string table, adding it if necessary.
+         * 
+         * @param string The string.
+         * @param stringIds The numbers of the strings added so far.
+         * @param strings The string table.
+         * 
+         * @return The number of the string.
+         */
+        private static int getStringId(@NonNull String string, @NonNull Map<@NonNull String, Integer> stringIds,
+                @NonNull List<byte @NonNull []> strings) {
+            Integer id = stringIds.get(string);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(string, id);
+                strings.add(string.getBytes(StandardCharsets.UTF_8));
+            }
+            return id;
+        }
+    
+    }
+    
+    private @NonNull ByteBuffer buffer;
+    
+    private int numStrings;
+    
+    private int numFeatures;
+    
+    private int featureTable;
+    
+    private int referenceTable;
+    
+    private int stringData;
+    
+    /**
+     * Opens the given index file. The file is memory-mapped; it must not be modified while this index is used.
+     * 
+     * @param file The index file to read.
+     * 
+     * @throws IOException If the file can't be read, or is not a valid index.
+     */
+    public FeatureIndex(@NonNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.buffer = notNull(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a feature index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported feature index version " + buffer.getInt(4) + " in " + file);
+        }
+        
+        this.numStrings = buffer.getInt(8);
+        this.numFeatures = buffer.getInt(12);
+        int numRefs = buffer.getInt(16);
+        this.featureTable = HEADER_SIZE + numStrings * 8;
+        this.referenceTable = featureTable + numFeatures * 12;
+        this.stringData = referenceTable + numRefs * 12;
+        
+        if (stringData > buffer.limit()) {
+            throw new IOException(file + " is truncated");
+        }
+    }
+    
+    /**
+     * Returns all features in this index.
+     * 
+     * @return The features, sorted by name.
+     */
+    public @NonNull List<@NonNull String> getFeatures() {
+        List<@NonNull String> result = new ArrayList<>(numFeatures);
+        for (int i = 0; i < numFeatures; i++) {
+            result.add(getFeatureName(i));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns all locations where the given feature is referenced.
+     * 
+     * @param feature The feature to look up.
+     * 
+     * @return The locations; empty if the feature is not referenced anywhere.
+     */
+    public @NonNull List<@NonNull Location> getLocations(@NonNull String feature) {
+        List<@NonNull Location> result = new ArrayList<>();
+        
+        // binary search in the sorted feature table
+        int low = 0;
+        int high = numFeatures - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getFeatureName(mid).compareTo(feature);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                int firstRef = buffer.getInt(featureTable + mid * 12 + 4);
+                int count = buffer.getInt(featureTable + mid * 12 + 8);
+                for (int i = firstRef; i < firstRef + count; i++) {
+                    int pos = referenceTable + i * 12;
+                    result.add(new Location(getString(buffer.getInt(pos)), buffer.getInt(pos + 4),
+                            buffer.getInt(pos + 8)));
+                }
+                break;
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the name of the feature at the given position in the feature table.
+     * 
+     * @param index The position in the feature table.
+     * 
+     * @return The name of the feature.
+     */
+    private @NonNull String getFeatureName(int index) {
+        return getString(buffer.getInt(featureTable + index * 12));
+    }
+    
+    /**
+     * Reads a string from the string table.
+     * 
+     * @param id The number of the string.
+     * 
+     * @return The string.
+     */
+    private @NonNull String getString(int id) {
+        if (id < 0 || id >= numStrings) {
+            throw new IndexOutOfBoundsException("Invalid string number " + id + " in feature index");
+        }
+        int offset = buffer.getInt(HEADER_SIZE + id * 8);
+        int length = buffer.getInt(HEADER_SIZE + id * 8 + 4);
+        
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringData + offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Collects the feature references that the preparation records, and writes them to {@link FeatureIndex#INDEX_FILE}.
+ *
+ * @author Adam
+ */
+class FeatureIndexStage implements OptionalStage {
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File indexFile;
+    
+    private FeatureIndex.@Nullable Builder builder;
+    
+    /**
+     * Creates a new stage.
+     * 
+     * @param indexFile The file to write the index to.
+     */
+    private FeatureIndexStage(@NonNull File indexFile) {
+        this.indexFile = indexFile;
+    }
+    
+    /**
+     * Creates the stage, if {@link FeatureIndex#INDEX_FILE} is configured.
+     * 
+     * @param config The configuration.
+     * 
+     * @return The stage; <code>null</code> if no index is written.
+     * 
+     * @throws SetUpException If the setting is invalid.
+     */
+    static @Nullable FeatureIndexStage read(@NonNull Configuration config) throws SetUpException {
+        config.registerSetting(FeatureIndex.INDEX_FILE);
+        File indexFile = config.getValue(FeatureIndex.INDEX_FILE);
+        return indexFile != null ? new FeatureIndexStage(indexFile) : null;
+    }
+    
+    /**
+     * Starts a new, empty index.
+     */
+    @Override
+    public void before(@NonNull File sourceTree) {
+        builder = new FeatureIndex.Builder();
+    }
+    
+    /**
+     * Returns the builder that the preparation records its feature references in.
+     * 
+     * @return The builder; <code>null</code> if the preparation is not running.
+     */
+    FeatureIndex.@Nullable Builder getBuilder() {
+        return builder;
+    }
+    
+    /**
+     * Writes the recorded feature references.
+     */
+    @Override
+    public void after(@NonNull File sourceTree) throws SetUpException {
+        FeatureIndex.Builder builder = this.builder;
+        if (builder != null) {
+            LOGGER.logDebug("Writing feature index to " + indexFile);
+            try {
+                builder.write(indexFile);
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't write feature index", e);
+            }
+            this.builder = null;
+        }
+    }
+    
+}
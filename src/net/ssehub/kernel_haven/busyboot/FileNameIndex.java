@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A persistent index of the file names in a source tree, for fast lookups of files by name (e.g. all Kbuild files).
+ * The index stores the listing of each directory together with its modification time. Since the modification time
+ * of a directory changes whenever an entry is added, removed or renamed in it, only the directories with a changed
+ * modification time have to be listed again; all others only need a single stat call.
+ * <p>
+ * Directories that were modified shortly before (or during) the last scan are always listed again, since a change
+ * within the resolution of the file system timestamps would not change their modification time.
+ *
+ * @author Adam
+ */
+public class FileNameIndex {
+    
+    public static final @NonNull Setting<@Nullable File> INDEX_FILE
+        = new Setting<>("preparation.filename_index", Type.PATH, false, null, "If set, the preparations keep an index "
+            + "of the file names in the source tree in this file, and only list the directories that changed since "
+            + "the last run when looking up files by name. Use one index file per source tree.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private static final @NonNull String HEADER = "filename index 1";
+    
+    /**
+     * Directories modified less than this before the last scan are always listed again.
+     */
+    private static final long RACY_MILLIS = 2000;
+    
+    /**
+     * The listing of a directory.
+     */
+    private static class Dir {
+        
+        private long lastModified;
+        
+        private @NonNull List<@NonNull String> subdirs;
+        
+        private @NonNull List<@NonNull String> files;
+        
+        /**
+         * Creates a new {@link Dir}.
+         * 
+         * @param lastModified The modification time of the directory when it was listed.
+         * @param subdirs The names of the sub-directories.
+         * @param files The names of the regular files.
+         */
+        public Dir(long lastModified, @NonNull List<@NonNull String> subdirs, @NonNull List<@NonNull String> files) {
+            this.lastModified = lastModified;
+            this.subdirs = subdirs;
+            this.files = files;
+        }
+    
+    }
+    
+    private @NonNull Path root;
+    
+    /**
+     * The listings of all directories, by their path relative to the root ('/' separated; the root is the empty
+     * path).
+     */
+    private @NonNull Map<@NonNull String, @NonNull Dir> dirs = new HashMap<>();
+    
+    /**
+     * The time when the last scan started; 0 if there was none.
+     */
+    private long scanTime;
+    
+    /**
+     * The directories that contain a file with a given name; built lazily after each scan.
+     */
+    private @Nullable Map<@NonNull String, @NonNull List<@NonNull String>> byName;
+    
+    private int relisted;
+    
+    /**
+     * Creates a new, empty {@link FileNameIndex}.
+     * 
+     * @param root The root directory of the source tree.
+     */
+    public FileNameIndex(@NonNull File root) {
+        this.root = root.toPath();
+    }
+    
+    /**
+     * Loads the index of the given source tree from the given file. If the file doesn't exist or can't be read, an
+     * empty index is returned.
+     * 
+     * @param root The root directory of the source tree.
+     * @param indexFile The file that the index was saved in; see {@link #save(File)}.
+     * 
+     * @return The loaded index.
+     */
+    public static @NonNull FileNameIndex load(@NonNull File root, @NonNull File indexFile) {
+        FileNameIndex result = new FileNameIndex(root);
+        if (!indexFile.isFile()) {
+            return result;
+        }
+        
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                StandardCharsets.UTF_8))) {
+            String headerLine = in.readLine();
+            String[] header = headerLine != null ? headerLine.split("\t") : new String[0];
+            if (header.length != 2 || !header[0].equals(HEADER)) {
+                throw new IOException("Invalid header");
+            }
+            long scanTime = Long.parseLong(header[1]);
+            
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 4) {
+                    throw new IOException("Invalid line: " + line);
+                }
+                String path = parts[0].equals(".") ? "" : parts[0];
+                result.dirs.put(notNull(path), new Dir(Long.parseLong(parts[1]), split(notNull(parts[2])),
+                        split(notNull(parts[3]))));
+            }
+            result.scanTime = scanTime;
+        
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.logWarning("Can't read filename index " + indexFile + ", creating a new one: " + e);
+            result.dirs.clear();
+        }
+        return result;
+    }
+    
+    /**
+     * Saves this index into the given file, as of the last {@link #refresh(PathFilter)}.
+     * 
+     * @param indexFile The file to write. Overwritten if it exists.
+     * 
+     * @throws IOException If writing the file fails.
+     */
+    public void save(@NonNull File indexFile) throws IOException {
+        List<@NonNull String> paths = new ArrayList<>(dirs.keySet());
+        Collections.sort(paths);
+        
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile),
+                StandardCharsets.UTF_8))) {
+            out.print(HEADER + "\t" + scanTime + "\n");
+            for (String path : paths) {
+                Dir dir = notNull(dirs.get(path));
+                out.print((path.isEmpty() ? "." : path) + "\t" + dir.lastModified + "\t"
+                        + String.join("/", dir.subdirs) + "\t" + String.join("/", dir.files) + "\n");
+            }
+        }
+    }
+    
+    /**
+     * Brings this index up to date with the whole source tree; see {@link #refresh(PathFilter)}.
+     * 
+     * @throws IOException If listing a directory fails.
+     */
+    public void refresh() throws IOException {
+        refresh(PathFilter.ALL);
+    }
+    
+    /**
+     * Brings this index up to date with the source tree: each directory is checked via its modification time, and
+     * listed again if it changed. Directories that don't exist anymore are removed. Directories excluded by the given
+     * filter are pruned, i.e. neither checked nor kept in the index. Symbolic links to directories are not followed.
+     * 
+     * @param filter The filter for the directories, relative to the source tree.
+     * 
+     * @throws IOException If listing a directory fails.
+     */
+    public void refresh(@NonNull PathFilter filter) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<@NonNull String, @NonNull Dir> fresh = new HashMap<>();
+        relisted = 0;
+        
+        Deque<@NonNull String> todo = new ArrayDeque<>();
+        todo.push("");
+        while (!todo.isEmpty()) {
+            String path = todo.pop();
+            Path dir = root.resolve(path);
+            long lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(dir).toMillis();
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            
+            Dir entry = dirs.get(path);
+            if (entry == null || entry.lastModified != lastModified || lastModified >= scanTime - RACY_MILLIS) {
+                entry = list(notNull(dir), lastModified);
+                relisted++;
+            }
+            fresh.put(path, entry);
+            for (String subdir : entry.subdirs) {
+                String subpath = path.isEmpty() ? subdir : path + "/" + subdir;
+                if (!filter.isExcluded(notNull(root.getFileSystem().getPath(subpath)), true)) {
+                    todo.push(subpath);
+                }
+            }
+        }
+        
+        this.dirs = fresh;
+        this.scanTime = start;
+        this.byName = null;
+        LOGGER.logDebug("Filename index of " + root + ": listed " + relisted + " of " + dirs.size()
+                + " directories");
+    }
+    
+    /**
+     * Finds all files in the source tree that have exactly the given name, and are not excluded by the given
+     * filter. The index is refreshed first, without walking the excluded directories.
+     * 
+     * @param filename The name to search for.
+     * @param filter The filter for the files and directories, relative to the source tree.
+     * 
+     * @return All matching files, sorted by path.
+     * 
+     * @throws IOException If refreshing the index fails.
+     */
+    public @NonNull List<@NonNull File> find(@NonNull String filename, @NonNull PathFilter filter)
+            throws IOException {
+        refresh(filter);
+        
+        Map<@NonNull String, @NonNull List<@NonNull String>> byName = this.byName;
+        if (byName == null) {
+            byName = new HashMap<>();
+            for (Map.Entry<@NonNull String, @NonNull Dir> dir : dirs.entrySet()) {
+                for (String file : dir.getValue().files) {
+                    byName.computeIfAbsent(file, (name) -> new ArrayList<>()).add(dir.getKey());
+                }
+            }
+            this.byName = byName;
+        }
+        
+        List<@NonNull String> paths = new ArrayList<>();
+        for (String dir : byName.getOrDefault(filename, Collections.emptyList())) {
+            String path = dir.isEmpty() ? filename : dir + "/" + filename;
+            if (!filter.isExcludedWithParents(notNull(root.getFileSystem().getPath(path)), false)) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        
+        List<@NonNull File> result = new ArrayList<>();
+        for (String path : paths) {
+            result.add(notNull(root.resolve(path).toFile()));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of directories that were listed by the last {@link #refresh()}, because they were new or
+     * changed.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @return The number of listed directories.
+     */
+    int getRelisted() {
+        return relisted;
+    }
+    
+    /**
+     * Lists a directory.
+     * 
+     * @param dir The directory to list.
+     * @param lastModified The modification time of the directory, as read before listing it.
+     * 
+     * @return The listing.
+     * 
+     * @throws IOException If listing the directory fails.
+     */
+    private static @NonNull Dir list(@NonNull Path dir, long lastModified) throws IOException {
+        List<@NonNull String> subdirs = new ArrayList<>();
+        List<@NonNull String> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = notNull(entry.getFileName().toString());
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    subdirs.add(name);
+                } else if (Files.isRegularFile(entry)) {
+                    files.add(name);
+                }
+            }
+        }
+        return new Dir(lastModified, subdirs, files);
+    }
+    
+    /**
+     * Splits a '/' separated list of names.
+     * 
+     * @param names The names, as written by {@link #save(File)}.
+     * 
+     * @return The names.
+     */
+    private static @NonNull List<@NonNull String> split(@NonNull String names) {
+        return names.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(names.split("/")));
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Runs tasks that each process one file, with an adaptive number of concurrent tasks. The tasks are collected first
+ * and then dispatched by decreasing file size (longest processing time first), so that a single large file doesn't
+ * run alone at the end while all other threads are idle. The number of concurrent tasks is decided by a
+ * {@link ConcurrencyController}, and is additionally capped by the number of free file handles and by the size of
+ * the files in flight compared to the heap.
+ *
+ * @author Adam
+ */
+public class FileTaskScheduler {
+    
+    /**
+     * A task that processes one file.
+     */
+    public interface FileTask {
+        
+        /**
+         * Processes the file.
+         * 
+         * @throws IOException If processing the file fails.
+         */
+        public void run() throws IOException;
+    
+    }
+    
+    /**
+     * A {@link FileTask} together with the size of its file.
+     */
+    private static class SizedTask {
+        
+        private long size;
+        
+        private @NonNull FileTask task;
+        
+        /**
+         * Creates a new {@link SizedTask}.
+         * 
+         * @param size The size of the file in bytes.
+         * @param task The task.
+         */
+        public SizedTask(long size, @NonNull FileTask task) {
+            this.size = size;
+            this.task = task;
+        }
+    
+    }
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * The cost of opening, reading the attributes of and closing a file, in bytes of content. Added to the size of
+     * each file, so that throughput and latency stay comparable between small and large files.
+     * <p>
+     * Package visibility for the {@link FileTransformPipeline}.
+     */
+    static final long FILE_COST = 64 * 1024;
+    
+    /**
+     * The number of file handles that a task may hold at the same time (e.g. the source and target of a copy).
+     */
+    private static final int HANDLES_PER_TASK = 2;
+    
+    /**
+     * The number of file handles to use when the limit of the process can't be determined.
+     */
+    private static final long DEFAULT_FREE_HANDLES = 256;
+    
+    /**
+     * The number of concurrent tasks per processor, if the number of tasks is adaptive.
+     */
+    private static final int MAX_TASKS_PER_PROCESSOR = 8;
+    
+    private @NonNull ConcurrencyController controller;
+    
+    private long maxBytesInFlight;
+    
+    private @NonNull List<@NonNull SizedTask> tasks = new ArrayList<>();
+    
+    private final @NonNull Object lock = new Object();
+    
+    private int inFlight;
+    
+    private long bytesInFlight;
+    
+    private boolean failed;
+    
+    private int highestLimit;
+    
+    /**
+     * Creates a new {@link FileTaskScheduler}.
+     * 
+     * @param numThreads The number of concurrent tasks. Values less than 1 mean that the number is adapted to the
+     *      measured throughput, between 1 and a multiple of the available processors. In both cases, the number is
+     *      capped by the free file handles of the process.
+     */
+    public FileTaskScheduler(int numThreads) {
+        this.controller = createController(numThreads, HANDLES_PER_TASK);
+        this.maxBytesInFlight = Runtime.getRuntime().maxMemory() / 4;
+    }
+    
+    /**
+     * Creates the {@link ConcurrencyController} for the given number of threads.
+     * <p>
+     * Package visibility for the {@link FileTransformPipeline}.
+     * 
+     * @param numThreads The number of concurrent tasks. Values less than 1 mean that the number is adapted to the
+     *      measured throughput, between 1 and a multiple of the available processors. In both cases, the number is
+     *      capped by the free file handles of the process.
+     * @param handlesPerTask The number of file handles that a task may hold at the same time.
+     * 
+     * @return The controller.
+     */
+    static @NonNull ConcurrencyController createController(int numThreads, int handlesPerTask) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int handleLimit = (int) Math.max(1, Math.min(getFreeFileHandles() / handlesPerTask, Integer.MAX_VALUE));
+        ConcurrencyController result;
+        if (numThreads > 0) {
+            int limit = Math.min(numThreads, handleLimit);
+            result = new ConcurrencyController(limit, limit, limit);
+        } else {
+            int maxLimit = Math.min(processors * MAX_TASKS_PER_PROCESSOR, handleLimit);
+            result = new ConcurrencyController(1, processors, maxLimit);
+        }
+        return result;
+    }
+    
+    /**
+     * Creates a new {@link FileTaskScheduler} with the given controller and memory limit.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param controller The controller for the number of concurrent tasks.
+     * @param maxBytesInFlight The maximum total size of the files of concurrent tasks. A single file larger than
+     *      this runs alone.
+     */
+    FileTaskScheduler(@NonNull ConcurrencyController controller, long maxBytesInFlight) {
+        this.controller = controller;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+    
+    /**
+     * Adds a task. The tasks are only run by {@link #run()}.
+     * 
+     * @param size The size of the file that the task processes, in bytes.
+     * @param task The task.
+     */
+    public void add(long size, @NonNull FileTask task) {
+        tasks.add(new SizedTask(size, task));
+    }
+    
+    /**
+     * Runs all added tasks, largest file first, and waits for them to finish. After a task failed, no further tasks
+     * are started. The added tasks are removed, so this scheduler can be reused.
+     * 
+     * @throws IOException If any of the tasks failed. Further failures are added as suppressed exceptions.
+     */
+    public void run() throws IOException {
+        List<@NonNull SizedTask> sorted = tasks;
+        this.tasks = new ArrayList<>();
+        // stable, so files of equal size keep the order in which they were added
+        sorted.sort((t1, t2) -> Long.compare(t2.size, t1.size));
+        
+        List<@NonNull Future<?>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(controller.getMaxLimit());
+        try {
+            synchronized (lock) {
+                failed = false;
+                highestLimit = controller.getLimit();
+                controller.startWindow();
+            }
+            for (SizedTask task : sorted) {
+                if (!acquire(task.size)) {
+                    break;
+                }
+                futures.add(executor.submit(() -> {
+                    execute(task);
+                    return null;
+                }));
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scheduling " + sorted.size() + " tasks", e);
+        } finally {
+            executor.shutdown();
+        }
+        
+        ParallelTreeCopier.waitFor(futures);
+        LOGGER.logDebug("Ran " + futures.size() + " file tasks with up to " + highestLimit + " at a time");
+    }
+    
+    /**
+     * Waits until a task of the given size may be started, and reserves its slot.
+     * 
+     * @param size The size of the file of the task.
+     * 
+     * @return Whether the task may be started; <code>false</code> if a previous task failed.
+     * 
+     * @throws InterruptedException If waiting is interrupted.
+     */
+    private boolean acquire(long size) throws InterruptedException {
+        synchronized (lock) {
+            while (!failed && (inFlight >= controller.getLimit()
+                    || inFlight > 0 && bytesInFlight + size > maxBytesInFlight)) {
+                lock.wait();
+            }
+            if (!failed) {
+                inFlight++;
+                bytesInFlight += size;
+            }
+            return !failed;
+        }
+    }
+    
+    /**
+     * Runs a task in a worker thread, and records its duration for the controller.
+     * 
+     * @param task The task to run.
+     * 
+     * @throws IOException If the task fails.
+     */
+    private void execute(@NonNull SizedTask task) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            task.task.run();
+            success = true;
+        } finally {
+            long duration = System.nanoTime() - start;
+            synchronized (lock) {
+                inFlight--;
+                bytesInFlight -= task.size;
+                if (success) {
+                    highestLimit = Math.max(highestLimit, controller.record(task.size + FILE_COST, duration));
+                } else {
+                    failed = true;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Determines how many more files this process may open.
+     * 
+     * @return The number of free file handles.
+     */
+    private static long getFreeFileHandles() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        long result = DEFAULT_FREE_HANDLES;
+        if (os instanceof UnixOperatingSystemMXBean) {
+            UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+            // leave half of the free handles to the rest of the process
+            result = (unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount()) / 2;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,773 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A pipeline that transforms files in three stages: reader threads read the content of the source files, transform
+ * threads compute the new content, and writer threads write it to the target files. The stages are connected by
+ * bounded queues, so that a slow stage blocks the previous ones instead of buffering the whole tree in memory.
+ * <p>
+ * The submitted files are collected and dispatched by {@link #finish()}, largest file first, so that a single large
+ * file doesn't stretch the end of the run. The number of concurrently reading and writing threads is decided by a
+ * {@link ConcurrencyController} per stage, unless it is fixed by the settings. Threads are only started when the
+ * limit of their stage grows, the reader and writer stages share the free file handles of the process, and the
+ * files in flight may take at most a quarter of the heap (a single larger file passes alone).
+ * <p>
+ * Usage:
+ * <pre>
+ * try (FileTransformPipeline pipeline = new FileTransformPipeline(settings)) {
+ *     for (...) {
+ *         pipeline.submit(source, target, transform, completion);
+ *     }
+ *     pipeline.finish();
+ * }
+ * </pre>
+ * A failing file does not stop the other files; all failures are reported by {@link #finish()}.
+ * <p>
+ * A {@link FlightRecorderEvents#FILE_EVENT} is recorded for each file that takes longer than the threshold from the
+ * start of reading until it is written.
+ *
+ * @author Adam
+ */
+public class FileTransformPipeline implements AutoCloseable {
+    
+    public static final @NonNull Setting<@NonNull Integer> READERS
+        = new Setting<>("preparation.pipeline.readers", Type.INTEGER, true, "0", "The number of threads that read "
+            + "files for the file transformations of the preparations. 0 means that the number adapts to the measured "
+            + "throughput.");
+    
+    public static final @NonNull Setting<@NonNull Integer> TRANSFORMERS
+        = new Setting<>("preparation.pipeline.transformers", Type.INTEGER, true, "0", "The number of threads that "
+            + "transform file contents in the preparations. 0 means the number of available processors.");
+    
+    public static final @NonNull Setting<@NonNull Integer> WRITERS
+        = new Setting<>("preparation.pipeline.writers", Type.INTEGER, true, "0", "The number of threads that write "
+            + "transformed files in the preparations. 0 means that the number adapts to the measured throughput.");
+    
+    public static final @NonNull Setting<@NonNull Integer> QUEUE_SIZE
+        = new Setting<>("preparation.pipeline.queue_size", Type.INTEGER, true, "64", "The maximum number of files "
+            + "that wait between two stages of the file transformation pipeline.");
+    
+    /**
+     * The time to wait on a queue before checking whether the pipeline was aborted, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 100;
+    
+    /**
+     * Computes the new content of a file. Called in a transform thread.
+     */
+    public interface Transform {
+        
+        /**
+         * Transforms the content of a file.
+         * 
+         * @param source The file that the content was read from.
+         * @param content The content of the source file.
+         * 
+         * @return The new content to write to the target file.
+         * 
+         * @throws IOException If the content can't be transformed.
+         */
+        public byte @NonNull [] transform(@NonNull File source, byte @NonNull [] content) throws IOException;
+        
+        /**
+         * Returns the applications of the rewrite rules in the last call of {@link #transform(File, byte[])}, for the
+         * {@link FlightRecorderEvents#FILE_EVENT} of the file. Called in the same transform thread. By default, no
+         * rule applications are reported, e.g. for transformations that are shared between files.
+         * 
+         * @return The measurements of the rewrite rules.
+         */
+        public default RewriteTelemetry.@NonNull FileStats getStats() {
+            return RewriteTelemetry.FileStats.NONE;
+        }
+    
+    }
+    
+    /**
+     * Called in a writer thread after the target file has been written.
+     */
+    public interface Completion {
+        
+        /**
+         * Finishes the transformation of a file, e.g. by moving a temporary target file to its final location.
+         * 
+         * @param source The source file.
+         * @param target The target file that has been written.
+         * 
+         * @throws IOException If finishing fails.
+         */
+        public void completed(@NonNull File source, @NonNull File target) throws IOException;
+        
+        /**
+         * Called instead of writing the target file, if the transformation did not change the content. This allows
+         * to skip writes that would not change anything. By default, the target file is written anyway.
+         * 
+         * @param source The source file.
+         * @param target The target file, which has not been written.
+         * 
+         * @return Whether the unchanged file has been handled; if <code>false</code>, the target file is written and
+         *      {@link #completed(File, File)} is called as usual.
+         * 
+         * @throws IOException If handling the unchanged file fails.
+         */
+        public default boolean unchanged(@NonNull File source, @NonNull File target) throws IOException {
+            return false;
+        }
+    
+    }
+    
+    /**
+     * The number of threads and the queue size of a {@link FileTransformPipeline}.
+     */
+    public static class Settings {
+        
+        private int readers = 0;
+        
+        private int transformers = 0;
+        
+        private int writers = 0;
+        
+        private int queueSize = 64;
+        
+        private long maxBytesInFlight = Runtime.getRuntime().maxMemory() / 4;
+        
+        /**
+         * Creates the default settings.
+         */
+        public Settings() {
+        }
+        
+        /**
+         * Creates the given settings.
+         * <p>
+         * Package visibility for test cases.
+         * 
+         * @param readers The number of reader threads; 0 means that the number adapts to the throughput.
+         * @param transformers The number of transform threads; 0 means the number of available processors.
+         * @param writers The number of writer threads; 0 means that the number adapts to the throughput.
+         * @param queueSize The capacity of each queue.
+         */
+        Settings(int readers, int transformers, int writers, int queueSize) {
+            this.readers = readers;
+            this.transformers = transformers;
+            this.writers = writers;
+            this.queueSize = queueSize;
+        }
+        
+        /**
+         * Creates the given settings with a memory limit.
+         * <p>
+         * Package visibility for test cases.
+         * 
+         * @param readers The number of reader threads; 0 means that the number adapts to the throughput.
+         * @param transformers The number of transform threads; 0 means the number of available processors.
+         * @param writers The number of writer threads; 0 means that the number adapts to the throughput.
+         * @param queueSize The capacity of each queue.
+         * @param maxBytesInFlight The maximum total size of the source files between reading and writing.
+         */
+        Settings(int readers, int transformers, int writers, int queueSize, long maxBytesInFlight) {
+            this(readers, transformers, writers, queueSize);
+            this.maxBytesInFlight = maxBytesInFlight;
+        }
+        
+        /**
+         * Reads the settings from the given configuration.
+         * 
+         * @param config The configuration.
+         * 
+         * @return The pipeline settings.
+         * 
+         * @throws SetUpException If a setting is invalid.
+         */
+        public static @NonNull Settings read(@NonNull Configuration config) throws SetUpException {
+            config.registerSetting(READERS);
+            config.registerSetting(TRANSFORMERS);
+            config.registerSetting(WRITERS);
+            config.registerSetting(QUEUE_SIZE);
+            
+            Settings result = new Settings();
+            result.readers = config.getValue(READERS);
+            result.transformers = config.getValue(TRANSFORMERS);
+            result.writers = config.getValue(WRITERS);
+            result.queueSize = config.getValue(QUEUE_SIZE);
+            
+            if (result.readers < 0 || result.transformers < 0 || result.writers < 0 || result.queueSize < 1) {
+                throw new SetUpException("Invalid pipeline settings: queue size must be at least 1, the numbers of "
+                        + "threads must not be negative");
+            }
+            return result;
+        }
+    
+    }
+    
+    /**
+     * The work that a stage does for each job.
+     */
+    private interface StageWork {
+        
+        /**
+         * Processes a job.
+         * 
+         * @param job The job.
+         * 
+         * @return The units of work done, for the {@link ConcurrencyController} of the stage.
+         * 
+         * @throws IOException If processing fails; the job is dropped.
+         */
+        public long process(@NonNull Job job) throws IOException;
+    
+    }
+    
+    /**
+     * A stage of the pipeline. Its threads take jobs from the input queue, and only as many of them as the current
+     * limit of the controller process a job at the same time. Threads are started when the limit grows beyond the
+     * number of threads, so that a stage which never reaches its maximum limit doesn't hold idle threads.
+     */
+    private class Stage {
+        
+        private @NonNull String name;
+        
+        private @NonNull ConcurrencyController controller;
+        
+        private @NonNull BlockingQueue<@NonNull Job> input;
+        
+        private @Nullable BlockingQueue<@NonNull Job> output;
+        
+        private @NonNull StageWork work;
+        
+        private int numThreads;
+        
+        private int numStarted;
+        
+        private int running;
+        
+        /**
+         * Creates a new {@link Stage} and starts threads for the initial limit of the controller.
+         * 
+         * @param name The name of the stage, for the thread names.
+         * @param controller The controller for the number of threads that process a job at the same time.
+         * @param input The queue to take jobs from.
+         * @param output The queue to put processed jobs in; <code>null</code> for the last stage.
+         * @param work The work to do for each job.
+         */
+        public Stage(@NonNull String name, @NonNull ConcurrencyController controller,
+                @NonNull BlockingQueue<@NonNull Job> input, @Nullable BlockingQueue<@NonNull Job> output,
+                @NonNull StageWork work) {
+            this.name = name;
+            this.controller = controller;
+            this.input = input;
+            this.output = output;
+            this.work = work;
+            startThreads();
+        }
+        
+        /**
+         * Starts threads until there are as many as the current limit.
+         */
+        private synchronized void startThreads() {
+            while (!aborted && numThreads < controller.getLimit()) {
+                Thread thread = new Thread(this::run, "FileTransformPipeline-" + name + "-" + numStarted++);
+                thread.setDaemon(true);
+                thread.setUncaughtExceptionHandler((t, e) -> {
+                    addFailure(new IOException("Unexpected error in " + t.getName(), e));
+                    aborted = true;
+                });
+                numThreads++;
+                addThread(thread);
+                thread.start();
+            }
+        }
+        
+        /**
+         * The loop of a stage thread: takes jobs from the input queue until {@link #END} is found. The last thread
+         * of the stage passes {@link #END} on to the next stage.
+         */
+        private void run() {
+            try {
+                runStage(input, output, this, work);
+            } finally {
+                boolean last;
+                synchronized (this) {
+                    last = --numThreads == 0;
+                }
+                if (last && output != null) {
+                    put(output, END);
+                }
+            }
+        }
+        
+        /**
+         * Waits until another thread may process a job.
+         * 
+         * @return Whether the job may be processed; <code>false</code> if the pipeline was aborted.
+         */
+        public synchronized boolean acquire() {
+            try {
+                while (!aborted && running >= controller.getLimit()) {
+                    wait(POLL_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+            }
+            if (!aborted) {
+                running++;
+            }
+            return !aborted;
+        }
+        
+        /**
+         * Releases the slot of a processed job, and starts more threads if the limit grew.
+         * 
+         * @param work The units of work done; negative if processing failed.
+         * @param duration The time it took in nanoseconds.
+         */
+        public synchronized void release(long work, long duration) {
+            running--;
+            if (work >= 0) {
+                controller.record(work, duration);
+            }
+            startThreads();
+            notifyAll();
+        }
+    
+    }
+    
+    /**
+     * A file that passes through the pipeline.
+     */
+    private static class Job {
+        
+        private @NonNull File source;
+        
+        private @NonNull File target;
+        
+        private @NonNull Transform transform;
+        
+        private @Nullable Completion completion;
+        
+        private long size;
+        
+        private FlightRecorderEvents.@NonNull Event event = FlightRecorderEvents.NONE;
+        
+        private RewriteTelemetry.@NonNull FileStats stats = RewriteTelemetry.FileStats.NONE;
+        
+        private byte @Nullable [] content;
+        
+        /**
+         * The content of the source file, while the transformed content waits to be written.
+         */
+        private byte @Nullable [] original;
+        
+        /**
+         * Creates a new {@link Job}.
+         * 
+         * @param source The file to read.
+         * @param target The file to write.
+         * @param transform The transformation of the content.
+         * @param completion Called after the target is written; may be <code>null</code>.
+         */
+        public Job(@NonNull File source, @NonNull File target, @NonNull Transform transform,
+                @Nullable Completion completion) {
+            this.source = source;
+            this.target = target;
+            this.transform = transform;
+            this.completion = completion;
+            this.size = source.length();
+        }
+    
+    }
+    
+    /**
+     * Marks the end of the jobs in a queue.
+     */
+    private static final @NonNull Job END = new Job(new File(""), new File(""), (file, content) -> content, null);
+    
+    private @NonNull BlockingQueue<@NonNull Job> readQueue;
+    
+    private @NonNull BlockingQueue<@NonNull Job> transformQueue;
+    
+    private @NonNull BlockingQueue<@NonNull Job> writeQueue;
+    
+    private @NonNull List<@NonNull Job> submitted = new ArrayList<>();
+    
+    private @NonNull List<@NonNull Thread> threads = new ArrayList<>();
+    
+    private @NonNull List<@NonNull IOException> failures = new ArrayList<>();
+    
+    private long maxBytesInFlight;
+    
+    private long bytesInFlight;
+    
+    private final @NonNull Object memoryLock = new Object();
+    
+    private volatile boolean aborted;
+    
+    private boolean finished;
+    
+    /**
+     * Creates a new pipeline with the default settings, and starts its threads.
+     */
+    public FileTransformPipeline() {
+        this(new Settings());
+    }
+    
+    /**
+     * Creates a new pipeline and starts its threads.
+     * 
+     * @param settings The number of threads and the queue size.
+     */
+    public FileTransformPipeline(@NonNull Settings settings) {
+        int queueSize = Math.max(1, settings.queueSize);
+        this.readQueue = new ArrayBlockingQueue<>(queueSize);
+        this.transformQueue = new ArrayBlockingQueue<>(queueSize);
+        this.writeQueue = new ArrayBlockingQueue<>(queueSize);
+        this.maxBytesInFlight = settings.maxBytesInFlight;
+        
+        // readers and writers each hold one file handle while they process a job; counting two handles per thread
+        // gives each of the two stages half of the free handles, so that together they stay within the budget
+        ConcurrencyController readers = FileTaskScheduler.createController(settings.readers, 2);
+        int numTransformers = settings.transformers > 0 ? settings.transformers
+                : Runtime.getRuntime().availableProcessors();
+        ConcurrencyController transformers = new ConcurrencyController(numTransformers, numTransformers,
+                numTransformers);
+        ConcurrencyController writers = FileTaskScheduler.createController(settings.writers, 2);
+        
+        new Stage("reader", readers, readQueue, transformQueue, this::read);
+        new Stage("transformer", transformers, transformQueue, writeQueue, this::transform);
+        new Stage("writer", writers, writeQueue, null, this::write);
+    }
+    
+    /**
+     * The loop of a stage thread: takes jobs from the input queue until {@link #END} is found. {@link #END} is put
+     * back, so that the other threads of the stage find it too.
+     * 
+     * @param input The queue to take jobs from.
+     * @param output The queue to put processed jobs in; <code>null</code> for the last stage.
+     * @param stage The stage that limits how many of its threads process a job at the same time.
+     * @param work The work to do for each job.
+     */
+    private void runStage(@NonNull BlockingQueue<@NonNull Job> input, @Nullable BlockingQueue<@NonNull Job> output,
+            @NonNull Stage stage, @NonNull StageWork work) {
+        
+        Job job;
+        while ((job = take(input)) != null && job != END && stage.acquire()) {
+            long start = System.nanoTime();
+            long done = -1;
+            try {
+                done = work.process(job);
+            } catch (IOException e) {
+                addFailure(new IOException("Couldn't transform " + job.source, e));
+            } finally {
+                stage.release(done, System.nanoTime() - start);
+            }
+            if (done < 0 || output == null) {
+                // the job is dropped or written
+                freeMemory(job.size);
+            } else {
+                put(output, job);
+            }
+        }
+        if (job == END) {
+            put(input, END);
+        }
+    }
+    
+    /**
+     * Reads the content of the source file of the given job.
+     * 
+     * @param job The job.
+     * 
+     * @return The number of bytes read, plus the cost of opening the file.
+     * 
+     * @throws IOException If reading fails.
+     */
+    private long read(@NonNull Job job) throws IOException {
+        job.event = FlightRecorderEvents.beginFileTransform();
+        byte[] content = Files.readAllBytes(job.source.toPath());
+        job.content = content;
+        return content.length + FileTaskScheduler.FILE_COST;
+    }
+    
+    /**
+     * Transforms the content of the given job.
+     * 
+     * @param job The job.
+     * 
+     * @return The number of bytes transformed.
+     * 
+     * @throws IOException If the transformation fails.
+     */
+    private long transform(@NonNull Job job) throws IOException {
+        byte[] content = job.content;
+        if (content != null) {
+            job.original = content;
+            job.content = job.transform.transform(job.source, content);
+            job.stats = job.transform.getStats();
+        }
+        return content != null ? content.length : 0;
+    }
+    
+    /**
+     * Writes the content of the given job to its target file, calls its completion, and commits the event of the
+     * job.
+     * 
+     * @param job The job.
+     * 
+     * @return The number of bytes written, plus the cost of opening the file.
+     * 
+     * @throws IOException If writing or the completion fails.
+     */
+    private long write(@NonNull Job job) throws IOException {
+        byte[] content = job.content;
+        byte[] original = job.original;
+        job.content = null;
+        job.original = null;
+        long result = 0;
+        if (content != null) {
+            Completion completion = job.completion;
+            if (completion == null || (content != original && !Arrays.equals(content, original))
+                    || !completion.unchanged(job.source, job.target)) {
+                
+                Files.write(job.target.toPath(), content);
+                if (completion != null) {
+                    completion.completed(job.source, job.target);
+                }
+                result = content.length + FileTaskScheduler.FILE_COST;
+            }
+            FlightRecorderEvents.commitFileTransform(job.event, notNull(job.source.getPath()),
+                    original != null ? original.length : 0, content.length, job.stats);
+        }
+        return result;
+    }
+    
+    /**
+     * Adds a file to transform. The files are only read once {@link #finish()} is called.
+     * 
+     * @param source The file to read.
+     * @param target The file to write the transformed content to. Its parent directory must exist. May be the same
+     *      as the source file.
+     * @param transform The transformation of the content.
+     * @param completion Called after the target file has been written; may be <code>null</code>.
+     */
+    public void submit(@NonNull File source, @NonNull File target, @NonNull Transform transform,
+            @Nullable Completion completion) {
+        if (finished) {
+            throw new IllegalStateException("Pipeline is already finished");
+        }
+        submitted.add(new Job(source, target, transform, completion));
+    }
+    
+    /**
+     * Transforms all submitted files, largest file first, waits until they are written, and stops the threads.
+     * 
+     * @throws IOException If transforming any of the files failed, or the pipeline was aborted by an unexpected
+     *      error. Further failures are added as suppressed exceptions.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            List<@NonNull Job> jobs = submitted;
+            this.submitted = new ArrayList<>();
+            // stable, so files of equal size keep the order in which they were submitted
+            jobs.sort((j1, j2) -> Long.compare(j2.size, j1.size));
+            for (Job job : jobs) {
+                if (!reserveMemory(job.size) || !put(readQueue, job)) {
+                    break;
+                }
+            }
+            put(readQueue, END);
+            // threads are added while the pipeline runs, but only by threads that are not joined yet
+            Thread thread;
+            for (int i = 0; (thread = getThread(i)) != null; i++) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    aborted = true;
+                    throw new IOException("Interrupted while waiting for file transformations", e);
+                }
+            }
+        }
+        
+        IOException failure = getFailure();
+        if (failure != null) {
+            throw failure;
+        }
+        if (aborted) {
+            throw new IOException("File transformation pipeline was aborted");
+        }
+    }
+    
+    /**
+     * Stops the threads without waiting for the submitted files. Does nothing if {@link #finish()} was called
+     * before.
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            aborted = true;
+            finished = true;
+        }
+    }
+    
+    /**
+     * Waits until the files in flight leave room for a file of the given size, and reserves it. A file larger than
+     * the limit passes when no other file is in flight.
+     * 
+     * @param size The size of the source file.
+     * 
+     * @return Whether the room was reserved; <code>false</code> if the pipeline was aborted.
+     */
+    private boolean reserveMemory(long size) {
+        synchronized (memoryLock) {
+            try {
+                while (!aborted && bytesInFlight > 0 && bytesInFlight + size > maxBytesInFlight) {
+                    memoryLock.wait(POLL_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+            }
+            if (!aborted) {
+                bytesInFlight += size;
+            }
+            return !aborted;
+        }
+    }
+    
+    /**
+     * Frees the room reserved by {@link #reserveMemory(long)} for a file that was written or dropped.
+     * 
+     * @param size The size of the source file.
+     */
+    private void freeMemory(long size) {
+        synchronized (memoryLock) {
+            bytesInFlight -= size;
+            memoryLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Adds a started thread, so that {@link #finish()} waits for it.
+     * 
+     * @param thread The thread.
+     */
+    private synchronized void addThread(@NonNull Thread thread) {
+        threads.add(thread);
+    }
+    
+    /**
+     * Returns a started thread.
+     * 
+     * @param index The index of the thread, in the order in which they were started.
+     * 
+     * @return The thread, or <code>null</code> if fewer threads were started.
+     */
+    private synchronized @Nullable Thread getThread(int index) {
+        return index < threads.size() ? threads.get(index) : null;
+    }
+    
+    /**
+     * Records a failure.
+     * 
+     * @param failure The failure.
+     */
+    private synchronized void addFailure(@NonNull IOException failure) {
+        failures.add(failure);
+    }
+    
+    /**
+     * Returns the first failure, with all others added as suppressed exceptions.
+     * 
+     * @return The failure, or <code>null</code> if no file failed.
+     */
+    private synchronized @Nullable IOException getFailure() {
+        IOException result = null;
+        if (!failures.isEmpty()) {
+            result = failures.get(0);
+            for (IOException failure : failures.subList(1, failures.size())) {
+                if (result != failure) {
+                    result.addSuppressed(failure);
+                }
+            }
+            failures.clear();
+            failures.add(result);
+        }
+        return result;
+    }
+    
+    /**
+     * Puts a job in a queue, waiting while the queue is full.
+     * 
+     * @param queue The queue.
+     * @param job The job.
+     * 
+     * @return Whether the job was added; <code>false</code> if the pipeline was aborted.
+     */
+    private boolean put(@NonNull BlockingQueue<@NonNull Job> queue, @NonNull Job job) {
+        boolean added = false;
+        try {
+            while (!added && !aborted) {
+                added = queue.offer(job, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aborted = true;
+        }
+        return added;
+    }
+    
+    /**
+     * Takes a job from a queue, waiting while the queue is empty.
+     * 
+     * @param queue The queue.
+     * 
+     * @return The job, or <code>null</code> if the pipeline was aborted.
+     */
+    private @Nullable Job take(@NonNull BlockingQueue<@NonNull Job> queue) {
+        Job job = null;
+        try {
+            while (job == null && !aborted) {
+                job = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aborted = true;
+        }
+        return job;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Writes the {@link MerkleTree}s of the source tree before and after the preparation into
+ * {@link MerkleTree#FINGERPRINT_FILE}. The file starts with the preparation and the version of this plugin, followed
+ * by the trees named <code>source</code> and <code>prepared</code>.
+ *
+ * @author Adam
+ */
+class FingerprintStage implements OptionalStage {
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File fingerprintFile;
+    
+    private @NonNull String preparation;
+    
+    private @NonNull PathFilter filter;
+    
+    private int numThreads;
+    
+    private @Nullable MerkleTree sourceFingerprint;
+    
+    /**
+     * Creates a new stage.
+     * 
+     * @param fingerprintFile The file to write the fingerprints to.
+     * @param preparation The name of the preparation, for the header of the file.
+     * @param filter The filter for the files that are fingerprinted.
+     * @param numThreads The number of threads to hash files with.
+     */
+    private FingerprintStage(@NonNull File fingerprintFile, @NonNull String preparation, @NonNull PathFilter filter,
+            int numThreads) {
+        this.fingerprintFile = fingerprintFile;
+        this.preparation = preparation;
+        this.filter = filter;
+        this.numThreads = numThreads;
+    }
+    
+    /**
+     * Creates the stage, if {@link MerkleTree#FINGERPRINT_FILE} is configured.
+     * 
+     * @param config The configuration.
+     * @param preparation The name of the preparation, for the header of the file.
+     * @param filter The filter for the files that are fingerprinted.
+     * @param numThreads The number of threads to hash files with.
+     * 
+     * @return The stage; <code>null</code> if no fingerprints are written.
+     * 
+     * @throws SetUpException If the setting is invalid.
+     */
+    static @Nullable FingerprintStage read(@NonNull Configuration config, @NonNull String preparation,
+            @NonNull PathFilter filter, int numThreads) throws SetUpException {
+        
+        config.registerSetting(MerkleTree.FINGERPRINT_FILE);
+        File fingerprintFile = config.getValue(MerkleTree.FINGERPRINT_FILE);
+        return fingerprintFile != null ? new FingerprintStage(fingerprintFile, preparation, filter, numThreads) : null;
+    }
+    
+    /**
+     * Calculates the {@link MerkleTree} of the source tree before the preparation. This is not possible when an
+     * interrupted preparation is resumed, since the source tree is already partially prepared.
+     */
+    @Override
+    public void before(@NonNull File sourceTree) throws SetUpException {
+        sourceFingerprint = null;
+        if (PreparationCheckpoint.getStateFile(sourceTree).exists()) {
+            LOGGER.logWarning("Resuming an interrupted preparation, can't fingerprint the original " + sourceTree);
+            return;
+        }
+        
+        MerkleTree result;
+        try {
+            result = MerkleTree.compute(sourceTree, filter, numThreads);
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't fingerprint source tree", e);
+        }
+        LOGGER.logInfo("Source tree fingerprint: " + result.getRootHash());
+        sourceFingerprint = result;
+    }
+    
+    /**
+     * Calculates the {@link MerkleTree} of the prepared source tree, and writes it and the one of the original
+     * source tree, if available.
+     */
+    @Override
+    public void after(@NonNull File sourceTree) throws SetUpException {
+        String version = FingerprintStage.class.getPackage().getImplementationVersion();
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fingerprintFile),
+                StandardCharsets.UTF_8))) {
+            MerkleTree prepared = MerkleTree.compute(sourceTree, filter, numThreads);
+            LOGGER.logInfo("Prepared tree fingerprint: " + prepared.getRootHash());
+            
+            out.print("preparation\t" + preparation + "\n");
+            out.print("version\t" + (version != null ? version : "unknown") + "\n");
+            MerkleTree sourceFingerprint = this.sourceFingerprint;
+            if (sourceFingerprint != null) {
+                sourceFingerprint.write(out, "source");
+            }
+            prepared.write(out, "prepared");
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't write fingerprints", e);
+        }
+    }
+    
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Emits JDK Flight Recorder events for the preparation phases, the make invocations and the file transformations,
+ * so that stalls of a preparation can be correlated with GC and I/O in the same recording.
+ * <p>
+ * This plugin targets Java 8, where the <code>jdk.jfr</code> API is not available at compile time. So the event
+ * types are created at runtime with <code>jdk.jfr.EventFactory</code>, accessed via reflection. If JFR is not
+ * available, all events are no-ops. Events are only recorded if a recording enables them (all events are in the
+ * category KernelHaven / Preparation); file transformations have a default threshold of
+ * {@value #FILE_THRESHOLD}, so that only slow files are recorded.
+ *
+ * @author Adam
+ */
+public class FlightRecorderEvents {
+    
+    public static final @NonNull String PHASE_EVENT = "net.ssehub.kernel_haven.busyboot.Phase";
+    
+    public static final @NonNull String MAKE_EVENT = "net.ssehub.kernel_haven.busyboot.Make";
+    
+    public static final @NonNull String FILE_EVENT = "net.ssehub.kernel_haven.busyboot.FileTransform";
+    
+    static final @NonNull String FILE_THRESHOLD = "20 ms";
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    static final @NonNull Event NONE = new Event(null);
+    
+    private static @Nullable Method newEventMethod;
+    
+    private static @Nullable Method beginMethod;
+    
+    private static @Nullable Method endMethod;
+    
+    private static @Nullable Method shouldCommitMethod;
+    
+    private static @Nullable Method commitMethod;
+    
+    private static @Nullable Method setMethod;
+    
+    private static @Nullable Object phaseFactory;
+    
+    private static @Nullable Object makeFactory;
+    
+    private static @Nullable Object fileFactory;
+    
+    static {
+        try {
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            
+            phaseFactory = createFactory(eventFactory, PHASE_EVENT, "Preparation Phase", null,
+                    String.class, "preparation", String.class, "phase");
+            makeFactory = createFactory(eventFactory, MAKE_EVENT, "Make Invocation", null,
+                    String.class, "directory", String.class, "command", boolean.class, "success");
+            
+            List<Object> fileFields = new ArrayList<>(Arrays.asList(
+                    String.class, "path", long.class, "bytesIn", long.class, "bytesOut"));
+            for (RewriteTelemetry.Rule rule : RewriteTelemetry.Rule.values()) {
+                fileFields.add(long.class);
+                fileFields.add(rule.name());
+            }
+            fileFactory = createFactory(eventFactory, FILE_EVENT, "File Transformation", FILE_THRESHOLD,
+                    fileFields.toArray());
+            
+            newEventMethod = eventFactory.getMethod("newEvent");
+            beginMethod = event.getMethod("begin");
+            endMethod = event.getMethod("end");
+            shouldCommitMethod = event.getMethod("shouldCommit");
+            commitMethod = event.getMethod("commit");
+            setMethod = event.getMethod("set", int.class, Object.class);
+        
+        } catch (ReflectiveOperationException e) {
+            LOGGER.logDebug("JDK Flight Recorder is not available, no events are recorded: " + e);
+            newEventMethod = null;
+        }
+    }
+    
+    /**
+     * A started event. Not thread-safe.
+     */
+    public static class Event {
+        
+        private @Nullable Object event;
+        
+        /**
+         * Creates a new {@link Event}.
+         * 
+         * @param event The JFR event; <code>null</code> if nothing is recorded.
+         */
+        private Event(@Nullable Object event) {
+            this.event = event;
+        }
+        
+        /**
+         * Ends this event, and checks whether it will be recorded. If not, the caller can skip computing the values
+         * of the event.
+         * 
+         * @return Whether the event is enabled and above its threshold.
+         */
+        private boolean end() {
+            Object event = this.event;
+            if (event == null) {
+                return false;
+            }
+            
+            boolean result = false;
+            try {
+                checkInitialized(endMethod).invoke(event);
+                result = (Boolean) checkInitialized(shouldCommitMethod).invoke(event);
+            } catch (ReflectiveOperationException e) {
+                this.event = null;
+            }
+            return result;
+        }
+        
+        /**
+         * Sets a field of this event.
+         * 
+         * @param index The index of the field, in the order of the event type.
+         * @param value The value of the field.
+         */
+        private void set(int index, @Nullable Object value) {
+            Object event = this.event;
+            if (event != null) {
+                try {
+                    checkInitialized(setMethod).invoke(event, index, value);
+                } catch (ReflectiveOperationException e) {
+                    this.event = null;
+                }
+            }
+        }
+        
+        /**
+         * Commits this event into the recording.
+         */
+        private void commit() {
+            Object event = this.event;
+            if (event != null) {
+                try {
+                    checkInitialized(commitMethod).invoke(event);
+                } catch (ReflectiveOperationException e) {
+                    // nothing is recorded
+                }
+                this.event = null;
+            }
+        }
+    
+    }
+    
+    /**
+     * No instances.
+     */
+    private FlightRecorderEvents() {
+    }
+    
+    /**
+     * Returns whether the events are recorded, i.e. JFR is available in this JVM.
+     * 
+     * @return Whether the event types were created.
+     */
+    public static boolean isAvailable() {
+        return newEventMethod != null;
+    }
+    
+    /**
+     * Starts the event of a preparation phase.
+     * 
+     * @return The started event; finish it with {@link #commitPhase(Event, String, String)}.
+     */
+    public static @NonNull Event beginPhase() {
+        return begin(phaseFactory);
+    }
+    
+    /**
+     * Finishes the event of a preparation phase.
+     * 
+     * @param event The event; see {@link #beginPhase()}.
+     * @param preparation The name of the preparation.
+     * @param phase The name of the phase.
+     */
+    public static void commitPhase(@NonNull Event event, @NonNull String preparation, @NonNull String phase) {
+        if (event.end()) {
+            event.set(0, preparation);
+            event.set(1, phase);
+            event.commit();
+        }
+    }
+    
+    /**
+     * Starts the event of a make invocation.
+     * 
+     * @return The started event; finish it with {@link #commitMake(Event, ProcessBuilder, boolean)}.
+     */
+    public static @NonNull Event beginMake() {
+        return begin(makeFactory);
+    }
+    
+    /**
+     * Finishes the event of a make invocation.
+     * 
+     * @param event The event; see {@link #beginMake()}.
+     * @param make The process that was executed.
+     * @param success Whether make returned 0.
+     */
+    public static void commitMake(@NonNull Event event, @NonNull ProcessBuilder make, boolean success) {
+        if (event.end()) {
+            File directory = make.directory();
+            event.set(0, directory != null ? directory.getPath() : "");
+            event.set(1, String.join(" ", make.command()));
+            event.set(2, success);
+            event.commit();
+        }
+    }
+    
+    /**
+     * Starts the event of a file transformation.
+     * 
+     * @return The started event; finish it with
+     *      {@link #commitFileTransform(Event, String, long, long, RewriteTelemetry.FileStats)}.
+     */
+    public static @NonNull Event beginFileTransform() {
+        return begin(fileFactory);
+    }
+    
+    /**
+     * Finishes the event of a file transformation. It is only recorded if it took longer than the threshold.
+     * 
+     * @param event The event; see {@link #beginFileTransform()}.
+     * @param path The path of the source file.
+     * @param bytesIn The size of the original content.
+     * @param bytesOut The size of the transformed content.
+     * @param stats The applications of the rewrite rules in the file.
+     */
+    public static void commitFileTransform(@NonNull Event event, @NonNull String path, long bytesIn, long bytesOut,
+            RewriteTelemetry.@NonNull FileStats stats) {
+        if (event.end()) {
+            event.set(0, path);
+            event.set(1, bytesIn);
+            event.set(2, bytesOut);
+            for (RewriteTelemetry.Rule rule : RewriteTelemetry.Rule.values()) {
+                event.set(3 + rule.ordinal(), stats.getCount(rule));
+            }
+            event.commit();
+        }
+    }
+    
+    /**
+     * Creates and begins a new event.
+     * 
+     * @param factory The <code>jdk.jfr.EventFactory</code> of the event type; <code>null</code> if JFR is not
+     *      available.
+     * 
+     * @return The started event.
+     */
+    private static @NonNull Event begin(@Nullable Object factory) {
+        Method newEvent = newEventMethod;
+        if (factory == null || newEvent == null) {
+            return NONE;
+        }
+        
+        try {
+            Object event = newEvent.invoke(factory);
+            checkInitialized(beginMethod).invoke(event);
+            return new Event(event);
+        } catch (ReflectiveOperationException e) {
+            return NONE;
+        }
+    }
+    
+    /**
+     * Creates a new event type via <code>jdk.jfr.EventFactory.create()</code>.
+     * 
+     * @param eventFactory The class <code>jdk.jfr.EventFactory</code>.
+     * @param name The name of the event type.
+     * @param label The human-readable label of the event type.
+     * @param threshold The default threshold of the event type, e.g. "20 ms"; <code>null</code> for none.
+     * @param fields Pairs of type and name of the fields of the event type.
+     * 
+     * @return The factory for events of the new type.
+     * 
+     * @throws ReflectiveOperationException If the JFR API is not available.
+     */
+    private static @NonNull Object createFactory(@NonNull Class<?> eventFactory, @NonNull String name,
+            @NonNull String label, @Nullable String threshold, @NonNull Object... fields)
+            throws ReflectiveOperationException {
+        
+        Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+        Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+        Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class);
+        
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+        annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+        annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"),
+                new String[] {"KernelHaven", "Preparation"}));
+        if (threshold != null) {
+            annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Threshold"), threshold));
+        }
+        
+        List<Object> descriptors = new ArrayList<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            descriptors.add(newField.newInstance(fields[i], fields[i + 1]));
+        }
+        
+        return checkInitialized(eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations,
+                descriptors));
+    }
+    
+    /**
+     * Checks that a reflectively obtained value is not <code>null</code>.
+     * 
+     * @param <T> The type of the value.
+     * @param value The value.
+     * 
+     * @return The value.
+     * 
+     * @throws ReflectiveOperationException If the value is <code>null</code>.
+     */
+    private static <T> @NonNull T checkInitialized(@Nullable T value) throws ReflectiveOperationException {
+        if (value == null) {
+            throw new ReflectiveOperationException("JFR API is not initialized");
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * A violation of the FLOrIDA annotation structure in a source file, as found by the {@link FloridaPreparation}.
+ *
+ * @author Adam
+ */
+public class FloridaDiagnostic {
+    
+    /**
+     * The kinds of violations.
+     */
+    public enum Kind {
+        
+        /**
+         * A C preprocessor block contains a different number of opening and closing FLOrIDA statements.
+         */
+        UNBALANCED_CPP_BLOCK,
+        
+        /**
+         * A C preprocessor block contains a closing FLOrIDA statement before the opening one.
+         */
+        CLOSING_BEFORE_OPENING,
+        
+        /**
+         * The feature of an //&amp;end[] doesn't match the feature of the corresponding //&amp;begin[].
+         */
+        MISMATCHED_FEATURE,
+        
+        /**
+         * An //&amp;end[] without a prior //&amp;begin[].
+         */
+        END_WITHOUT_BEGIN,
+        
+        /**
+         * A //&amp;begin[] that is not closed until the end of the file.
+         */
+        UNCLOSED_BEGIN,
+        
+        /**
+         * A //&amp; comment that is not a known FLOrIDA condition.
+         */
+        UNKNOWN_CONDITION;
+    
+    }
+    
+    private @NonNull String path;
+    
+    private int line;
+    
+    private @NonNull Kind kind;
+    
+    private @NonNull String message;
+    
+    /**
+     * Creates a new {@link FloridaDiagnostic}.
+     * 
+     * @param path The path of the source file, relative to the source tree, with '/' as the separator.
+     * @param line The line of the violation in the source file (1-based).
+     * @param kind The kind of the violation.
+     * @param message A human-readable description of the violation.
+     */
+    public FloridaDiagnostic(@NonNull String path, int line, @NonNull Kind kind, @NonNull String message) {
+        this.path = path;
+        this.line = line;
+        this.kind = kind;
+        this.message = message;
+    }
+    
+    /**
+     * Returns the source file of this violation.
+     * 
+     * @return The path relative to the source tree, with '/' as the separator.
+     */
+    public @NonNull String getPath() {
+        return path;
+    }
+    
+    /**
+     * Returns the line of this violation.
+     * 
+     * @return The line in the source file (1-based).
+     */
+    public int getLine() {
+        return line;
+    }
+    
+    /**
+     * Returns the kind of this violation.
+     * 
+     * @return The kind.
+     */
+    public @NonNull Kind getKind() {
+        return kind;
+    }
+    
+    /**
+     * Returns the description of this violation.
+     * 
+     * @return The human-readable description.
+     */
+    public @NonNull String getMessage() {
+        return message;
+    }
+    
+    @Override
+    public @NonNull String toString() {
+        return path + ":" + line + ": " + kind + ": " + message;
+    }
+
+}
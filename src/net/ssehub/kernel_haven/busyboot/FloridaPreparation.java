@@ -18,15 +18,21 @@ package net.ssehub.kernel_haven.busyboot;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.maybeNull;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +62,11 @@ public class FloridaPreparation implements IPreparation {
             + "where a temporary copy of the source tree with the FLOrIDA replacements should be placed. "
             + "All contents of this will be overwritten.");
     
+    public static final @NonNull Setting<@NonNull Boolean> LINT
+        = new Setting<>("preparation.florida.lint", Type.BOOLEAN, true, "false", "If true, the FLOrIDA annotations "
+            + "of the source tree are only checked, in parallel and without writing anything ("
+            + DESTINATION_DIR.getKey() + " is not needed). The preparation fails if any violations are found.");
+    
     private static final @NonNull Logger LOGGER = Logger.get();
     
     private static final @NonNull Pattern BEGIN_PATTERN
@@ -67,23 +78,35 @@ public class FloridaPreparation implements IPreparation {
     private static final @NonNull Pattern LINE_PATTERN
         = notNull(Pattern.compile(Pattern.quote("Line[") + "(\\w+)" + Pattern.quote("]"), Pattern.CASE_INSENSITIVE));
     
-    private File currentFile;
+    private int copyThreads = 0;
     
-    private int currentLineNumber;
+    private FileTransformPipeline.@NonNull Settings pipelineSettings = new FileTransformPipeline.Settings();
     
-    /**
-     * The stack of features in //&begin[] and //&end[] blocks (//&Line[] is NOT considered).
-     */
-    private @NonNull Deque<@NonNull String> featureStack = new LinkedList<>();
+    private @NonNull PathFilter pathFilter = PathFilter.ALL;
     
-    /**
-     * If a //&Line[] directive is found, this is set to the feature that needs to be closed.
-     */
-    private @Nullable String closeLine;
+    private @NonNull File destination = new File(".");
+    
+    private FeatureIndex.@Nullable Builder featureIndex;
+    
+    private @Nullable File lineMapDir;
     
     @Override
     public void run(@NonNull Configuration config) throws SetUpException {
+        config.registerSetting(ParallelTreeCopier.THREADS);
+        this.copyThreads = config.getValue(ParallelTreeCopier.THREADS);
+        this.pathFilter = PathFilter.read(config);
+        config.registerSetting(LINT);
+        if (config.getValue(LINT)) {
+            runLint(config.getValue(DefaultSettings.SOURCE_TREE));
+            return;
+        }
+        
         config.registerSetting(DESTINATION_DIR);
+        config.registerSetting(FeatureIndex.INDEX_FILE);
+        File featureIndexFile = config.getValue(FeatureIndex.INDEX_FILE);
+        config.registerSetting(LineMap.MAP_DIR);
+        this.lineMapDir = config.getValue(LineMap.MAP_DIR);
+        this.pipelineSettings = FileTransformPipeline.Settings.read(config);
         
         File copiedSourceTree = config.getValue(DESTINATION_DIR);
         File originalSourceTree = config.getValue(DefaultSettings.SOURCE_TREE);
@@ -98,11 +121,20 @@ public class FloridaPreparation implements IPreparation {
         }
         
         try {
+            this.featureIndex = featureIndexFile != null ? new FeatureIndex.Builder() : null;
             prepare(originalSourceTree, copiedSourceTree);
+            if (featureIndex != null && featureIndexFile != null) {
+                LOGGER.logDebug("Writing feature index to " + featureIndexFile);
+                featureIndex.write(featureIndexFile);
+            }
         } catch (IOException e) {
             throw new SetUpException(e);
+        } finally {
+            this.featureIndex = null;
         }
         
+        ContentAddressedStore.storeIfConfigured(config, copiedSourceTree);
+        
         config.setValue(DefaultSettings.SOURCE_TREE, copiedSourceTree);
         CodeModelProvider cmProvider = PipelineConfigurator.instance().getCmProvider();
         if (cmProvider != null) {
@@ -110,6 +142,107 @@ public class FloridaPreparation implements IPreparation {
         }
     }
     
+    /**
+     * Checks the FLOrIDA annotations of the source tree, and fails if there are any violations.
+     * 
+     * @param sourceTree The source tree to check.
+     * 
+     * @throws SetUpException If reading the source tree fails, or violations are found.
+     */
+    private void runLint(@NonNull File sourceTree) throws SetUpException {
+        List<@NonNull FloridaDiagnostic> diagnostics;
+        try {
+            diagnostics = lint(sourceTree);
+        } catch (IOException e) {
+            throw new SetUpException(e);
+        }
+        
+        if (!diagnostics.isEmpty()) {
+            List<@NonNull String> lines = new ArrayList<>();
+            lines.add("FLOrIDA lint found " + diagnostics.size() + " violations in " + sourceTree + ":");
+            for (FloridaDiagnostic diagnostic : diagnostics) {
+                lines.add(diagnostic.toString());
+            }
+            LOGGER.logError(lines.toArray(new String[0]));
+            throw new SetUpException("FLOrIDA lint found " + diagnostics.size() + " violations");
+        }
+        LOGGER.logInfo("FLOrIDA lint found no violations in " + sourceTree);
+    }
+    
+    /**
+     * Checks the FLOrIDA annotations of all source files in the given tree, without writing anything. The files are
+     * read via memory mapping and checked in parallel. Files excluded by the {@link PathFilter} are skipped.
+     * 
+     * @param sourceTree The source tree to check.
+     * 
+     * @return The violations, ordered by file (in the order of the walk) and line. Empty if there are none.
+     * 
+     * @throws IOException If reading a file fails.
+     */
+    public @NonNull List<@NonNull FloridaDiagnostic> lint(@NonNull File sourceTree) throws IOException {
+        Path root = sourceTree.toPath();
+        // one list per file, in the order of the walk
+        List<@NonNull List<@NonNull FloridaDiagnostic>> perFile = new ArrayList<>();
+        FileTaskScheduler checks = new FileTaskScheduler(copyThreads);
+        
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return pathFilter.isExcluded(notNull(root.relativize(dir)), true)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relative = notNull(root.relativize(file));
+                if (attrs.isRegularFile() && isSourceFile(notNull(file.toFile()))
+                        && !pathFilter.isExcluded(relative, false)) {
+                    String path = notNull(relative.toString().replace(File.separatorChar, '/'));
+                    List<@NonNull FloridaDiagnostic> diagnostics = new ArrayList<>();
+                    perFile.add(diagnostics);
+                    checks.add(attrs.size(), () -> diagnostics.addAll(lintFile(notNull(file), path)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+        });
+        
+        checks.run();
+        
+        List<@NonNull FloridaDiagnostic> result = new ArrayList<>();
+        for (List<@NonNull FloridaDiagnostic> diagnostics : perFile) {
+            result.addAll(diagnostics);
+        }
+        return result;
+    }
+    
+    /**
+     * Checks the FLOrIDA annotations of a single source file, which is read via memory mapping.
+     * 
+     * @param file The source file.
+     * @param path The path of the file relative to the source tree, for the diagnostics.
+     * 
+     * @return The violations in the file.
+     * 
+     * @throws IOException If reading the file fails.
+     */
+    private @NonNull List<@NonNull FloridaDiagnostic> lintFile(@NonNull Path file, @NonNull String path)
+            throws IOException {
+        String content;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            content = notNull(Charset.defaultCharset().decode(buffer).toString());
+        }
+        
+        List<@NonNull FloridaDiagnostic> result = new ArrayList<>();
+        SourceFileReplacement replacement = new SourceFileReplacement(notNull(file.toFile()),
+                notNull(file.toFile()), null);
+        replacement.collectDiagnostics(path, result);
+        replacement.replace(content);
+        return result;
+    }
+    
     /**
      * Does the actual work of this preparation.
      * <p>
@@ -135,7 +268,7 @@ public class FloridaPreparation implements IPreparation {
             throw e;
         }
         
-        this.featureStack.clear();
+        this.destination = copiedSourceTree;
         
         // copy the source_tree to destination, while replacing all FLOrIDA conditions
         LOGGER.logDebug("Copying from " + originalSourceTree.getAbsolutePath() + " to "
@@ -144,32 +277,63 @@ public class FloridaPreparation implements IPreparation {
     }
     
     /**
-     * Copies the given file. If the file is a .c or .h file, then replacements are done. If from is a directory
-     * then this recursively copies the files inside it.
+     * Recursively copies the files inside the given directory. For .c, .cpp and .h files, replacements are done on
+     * a {@link FileTransformPipeline}; all other files are copied in parallel by a {@link ParallelTreeCopier}. Files
+     * excluded by the {@link PathFilter} are skipped or linked.
      * 
-     * @param from The file to copy.
+     * @param from The directory to copy.
      * @param to The destination.
      * 
-     * @throws IOException If copying the file fails.
+     * @throws IOException If copying the files fails.
      */
     private void copy(@NonNull File from, @NonNull File to) throws IOException {
-        for (File f : from.listFiles()) {
-            
-            File newF = new File(to, f.getName());
-            
-            if (f.isDirectory()) {
-                newF.mkdir();
-                copy(f, newF);
-            } else {
-                if (f.getName().endsWith(".c") || f.getName().endsWith(".cpp") || f.getName().endsWith(".h")) {
-                    copySourceFile(f, newF);
-                } else {
-                    Util.copyFile(f, newF);
-                }
-            }
+        try (FileTransformPipeline pipeline = new FileTransformPipeline(pipelineSettings)) {
+            new ParallelTreeCopier(copyThreads, pathFilter).copy(from, to, this::isTransformedFile,
+                (source, target) -> submitFile(pipeline, source, target));
+            pipeline.finish();
         }
     }
     
+    /**
+     * Checks whether the given file is transformed by {@link #submitFile(FileTransformPipeline, File, File)}
+     * instead of being copied.
+     * 
+     * @param file The file in the original source tree.
+     * 
+     * @return Whether the file is transformed; by default, this is true for source files.
+     */
+    protected boolean isTransformedFile(@NonNull File file) {
+        return isSourceFile(file);
+    }
+    
+    /**
+     * Submits the transformation of a file to the pipeline. By default, the FLOrIDA replacements are done.
+     * 
+     * @param pipeline The pipeline to submit the transformation to.
+     * @param source The file in the original source tree.
+     * @param target The location of the file in the copied source tree.
+     * 
+     * @throws IOException If the pipeline was aborted.
+     */
+    protected void submitFile(@NonNull FileTransformPipeline pipeline, @NonNull File source, @NonNull File target)
+            throws IOException {
+        SourceFileReplacement replacement = new SourceFileReplacement(source, target, null);
+        pipeline.submit(source, target, replacement, replacement);
+    }
+    
+    /**
+     * Checks whether the given file is a source file, that FLOrIDA replacements should be done in.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}.
+     * 
+     * @param file The file to check.
+     * 
+     * @return Whether the file is a .c, .cpp or .h file.
+     */
+    static boolean isSourceFile(@NonNull File file) {
+        return file.getName().endsWith(".c") || file.getName().endsWith(".cpp") || file.getName().endsWith(".h");
+    }
+    
     /**
      * Data structure to store the C preprocessor block structure of the file we are replacing in.
      */
@@ -193,160 +357,401 @@ public class FloridaPreparation implements IPreparation {
     }
     
     /**
-     * Pops the current block from the stack. Prints a warning if number of opening and closing FLOrIDA blocks
-     * don't match.
+     * Records a reference to a feature in the copied source tree, if a {@link FeatureIndex} is created.
      * 
-     * @param blockStructure The block structure to pop from.
+     * @param feature The referenced feature.
+     * @param file The file in the copied source tree.
+     * @param startLine The first line of the reference (1-based).
+     * @param endLine The last line of the reference (inclusive).
      */
-    private void popBlock(@NonNull Deque<@NonNull CppBlock> blockStructure) {
-        if (!blockStructure.isEmpty()) {
-            
-            CppBlock block = notNull(blockStructure.pop());
-            
-            if (block.numOpeningFlorida != block.numClosingFlorida) {
-                LOGGER.logWarning("CppBlock in " + currentFile + " in line " + block.lineStart + " has "
-                        + block.numOpeningFlorida + " opening and " + block.numClosingFlorida + " closing "
-                                + "FLOrIDA statements");
-            }
-            
+    private void addFeatureReference(@NonNull String feature, @NonNull File file, int startLine, int endLine) {
+        FeatureIndex.Builder featureIndex = this.featureIndex;
+        if (featureIndex != null) {
+            String path = destination.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            featureIndex.add(feature, notNull(path), startLine, endLine);
         }
     }
     
     /**
-     * Called each time a FLOrIDA replacement is created. Checks if the nesting with the block structure is correct.
+     * Sets the builder that feature references are recorded in. This is usually done by {@link #run(Configuration)}.
+     * <p>
+     * Package visibility for test cases.
      * 
-     * @param blockStructure The C preprocessor block structure.
-     * @param floridaReplacement The FLOrIDA replacement line (i.e. C preprocessor).
+     * @param featureIndex The builder to record references in; <code>null</code> disables the index.
      */
-    private void onFloridaBlock(@NonNull Deque<@NonNull CppBlock> blockStructure, @NonNull String floridaReplacement) {
-        CppBlock block = maybeNull(blockStructure.peek());
-        if (block != null) {
-            if (floridaReplacement.startsWith("#if")) {
-                block.numOpeningFlorida++;
-            } else if (floridaReplacement.startsWith("#endif")) {
-                block.numClosingFlorida++;
-                
-                if (block.numClosingFlorida > block.numOpeningFlorida) {
-                    LOGGER.logWarning("CppBlock in " + currentFile + " in line " + block.lineStart
-                            + " has a closing FLOrIDA statement without a prior opening one");
-                }
-            }
+    void setFeatureIndex(FeatureIndex.@Nullable Builder featureIndex) {
+        this.featureIndex = featureIndex;
+    }
+    
+    /**
+     * Returns the builder that feature references are recorded in.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}.
+     * 
+     * @return The builder, or <code>null</code> if no index is created.
+     */
+    FeatureIndex.@Nullable Builder getFeatureIndex() {
+        return featureIndex;
+    }
+    
+    /**
+     * Writes the line map of a copied source file, if {@link LineMap#MAP_DIR} is configured.
+     * 
+     * @param file The file in the copied source tree.
+     * @param lineMap The recorded line map of the file.
+     * 
+     * @throws IOException If writing the map fails.
+     */
+    private void writeLineMap(@NonNull File file, LineMap.@NonNull Builder lineMap) throws IOException {
+        File lineMapDir = this.lineMapDir;
+        if (lineMapDir != null) {
+            String path = destination.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            lineMap.write(lineMapDir, notNull(path));
         }
     }
     
     /**
-     * Copies a source file (.c or .h) while doing replacements.
+     * Sets the directory that line maps are written to. This is usually read from the configuration.
+     * <p>
+     * Package visibility for test cases.
      * 
-     * @param from The file to copy.
-     * @param to The destination.
+     * @param lineMapDir The directory for line maps; <code>null</code> disables them.
+     */
+    void setLineMapDir(@Nullable File lineMapDir) {
+        this.lineMapDir = lineMapDir;
+    }
+    
+    /**
+     * Sets the filter for the files of the source tree that are copied. This is usually read from the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param pathFilter The filter.
+     */
+    void setPathFilter(@NonNull PathFilter pathFilter) {
+        this.pathFilter = pathFilter;
+    }
+    
+    /**
+     * Creates a standalone FLOrIDA translation that is not tied to a preparation run, for
+     * {@link TextTransformer#floridaTranslation(String, List)}.
+     * 
+     * @param file The file that is translated, for the log messages.
+     * @param diagnostics The list to add violations to; <code>null</code> to only log them.
      * 
-     * @throws IOException If copying the file fails.
+     * @return A new translation.
      */
-    private void copySourceFile(@NonNull File from, @NonNull File to) throws IOException {
-        currentFile = from;
+    static @NonNull TextTransformer createTranslation(@NonNull File file,
+            @Nullable List<@NonNull FloridaDiagnostic> diagnostics) {
+        SourceFileReplacement replacement = new FloridaPreparation().new SourceFileReplacement(file, file, null);
+        if (diagnostics != null) {
+            replacement.collectDiagnostics(notNull(file.getPath().replace(File.separatorChar, '/')), diagnostics);
+        }
+        return replacement;
+    }
+    
+    /**
+     * The replacements in a single source file. The replacement runs in a transform thread of the
+     * {@link FileTransformPipeline}, so all state of the current file is kept here. The replacement itself is
+     * streaming, line by line, as a {@link TextTransformer}.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}, which runs it on already transformed content.
+     */
+    class SourceFileReplacement implements FileTransformPipeline.Transform, FileTransformPipeline.Completion,
+            TextTransformer {
+        
+        private @NonNull File currentFile;
+        
+        private @NonNull File currentTarget;
+        
+        private int currentLineNumber;
+        
+        /**
+         * The number of lines written to the output so far.
+         */
+        private int currentOutputLine;
+        
+        /**
+         * The stack of features in //&begin[] and //&end[] blocks (//&Line[] is NOT considered).
+         */
+        private @NonNull Deque<@NonNull String> featureStack = new LinkedList<>();
+        
+        /**
+         * The output lines of the //&begin[] directives in {@link #featureStack}.
+         */
+        private @NonNull Deque<Integer> featureStartLines = new LinkedList<>();
+        
+        /**
+         * If a //&Line[] directive is found, this is set to the feature that needs to be closed.
+         */
+        private @Nullable String closeLine;
+        
+        /**
+         * The C preprocessor blocks that are open at the current line.
+         */
+        private @NonNull Deque<@NonNull CppBlock> blockStructure = new LinkedList<>();
+        
+        private LineMap.@NonNull Builder lineMap = new LineMap.Builder();
+        
+        private @Nullable LineMap inputLines;
+        
+        /**
+         * The original line of each input line, as passed to {@link #line(String, int, LineSink)}. Only used if
+         * {@link #inputLines} is <code>null</code>.
+         */
+        private @NonNull List<Integer> originalLines = new ArrayList<>();
+        
+        /**
+         * The path of the file for the {@link #diagnostics}.
+         */
+        private @NonNull String diagnosticPath = "";
         
-        try (LineNumberReader in = new LineNumberReader(new FileReader(from))) {
+        private @Nullable List<@NonNull FloridaDiagnostic> diagnostics;
+        
+        /**
+         * Creates a new {@link SourceFileReplacement}.
+         * 
+         * @param from The source file to copy.
+         * @param to The destination.
+         * @param inputLines If the content passed to {@link #transform(File, byte[])} is not the original content of
+         *      the source file, this maps its lines to the lines of the source file. <code>null</code> otherwise.
+         */
+        public SourceFileReplacement(@NonNull File from, @NonNull File to, @Nullable LineMap inputLines) {
+            this.currentFile = from;
+            this.currentTarget = to;
+            this.inputLines = inputLines;
+        }
+        
+        /**
+         * Adds all violations of the FLOrIDA structure that are found in this file to the given list, in addition to
+         * logging them.
+         * 
+         * @param path The path of the file relative to the source tree, for the diagnostics.
+         * @param diagnostics The list to add the violations to.
+         */
+        public void collectDiagnostics(@NonNull String path, @NonNull List<@NonNull FloridaDiagnostic> diagnostics) {
+            this.diagnosticPath = path;
+            this.diagnostics = diagnostics;
+        }
+        
+        @Override
+        public byte @NonNull [] transform(@NonNull File source, byte @NonNull [] content) throws IOException {
+            return notNull(replace(new String(content, Charset.defaultCharset())).getBytes(Charset.defaultCharset()));
+        }
+        
+        /**
+         * Does the FLOrIDA replacements in the given content.
+         * 
+         * @param content The content of the source file.
+         * 
+         * @return The content with the replacements.
+         */
+        public @NonNull String replace(@NonNull String content) {
+            return transform(content);
+        }
+        
+        @Override
+        public void line(@NonNull String line, int originalLine, @NonNull LineSink out) {
+            currentLineNumber++;
+            originalLines.add(originalLine);
             
-            try (Writer out = new BufferedWriter(new FileWriter(to))) {
+            String closeLineAfterThis = closeLine;
+            closeLine = null;
+            
+            String result = line;
+            String trimmed = line.trim();
+            
+            if (trimmed.startsWith("//&")) {
+                result = getReplacement(notNull(trimmed.substring("//&".length())));
+                onFloridaBlock(blockStructure, result);
                 
-                Deque<CppBlock> blockStructure = new LinkedList<>();
+            } else if (trimmed.startsWith("#")) {
                 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    currentLineNumber = in.getLineNumber();
-                    
-                    String closeLineAfterThis = closeLine;
-                    closeLine = null;
+                trimmed = trimmed.replace(" ", "");
+                if (trimmed.startsWith("#if")) {
+                    // #if, #ifdef, #ifndef -> start new block
+                    blockStructure.push(new CppBlock(currentLineNumber));
                     
-                    String trimmed = line.trim();
+                } else if (trimmed.startsWith("#el")) {
+                    // #elif, #else -> pop current and start new block
+                    popBlock(blockStructure);
+                    blockStructure.push(new CppBlock(currentLineNumber));
                     
-                    if (trimmed.startsWith("//&")) {
-                        line = getReplacement(notNull(trimmed.substring("//&".length())));
-                        onFloridaBlock(blockStructure, line);
-                        
-                    } else if (trimmed.startsWith("#")) {
-                        
-                        trimmed = trimmed.replace(" ", "");
-                        if (trimmed.startsWith("#if")) {
-                            // #if, #ifdef, #ifndef -> start new block
-                            blockStructure.push(new CppBlock(currentLineNumber));
-                            
-                        } else if (trimmed.startsWith("#el")) {
-                            // #elif, #else -> pop current and start new block
-                            popBlock(blockStructure);
-                            blockStructure.push(new CppBlock(currentLineNumber));
-                            
-                        } else if (trimmed.startsWith("#endif")) {
-                            // #endif -> pop current block
-                            popBlock(blockStructure);
-                        }
-                        
-                    }
-                    
-                    out.write(line);
-                    out.write("\n");
+                } else if (trimmed.startsWith("#endif")) {
+                    // #endif -> pop current block
+                    popBlock(blockStructure);
+                }
+                
+            }
+            
+            int original = getOriginalLine(currentLineNumber);
+            out.line(result, original);
+            currentOutputLine++;
+            lineMap.add(original);
+            
+            if (closeLineAfterThis != null) {
+                String endLine = "#endif // " + closeLineAfterThis; 
+                onFloridaBlock(blockStructure, endLine);
+                out.line(endLine, original);
+                currentOutputLine++;
+                lineMap.add(original);
+                // the //&Line[] block spans the #if, the annotated line and the #endif
+                addFeatureReference(closeLineAfterThis, currentTarget, currentOutputLine - 2, currentOutputLine);
+            }
+        }
+        
+        @Override
+        public void end(@NonNull LineSink out) {
+            for (String feature : featureStack) {
+                report(FloridaDiagnostic.Kind.UNCLOSED_BEGIN, currentLineNumber, "begin[" + feature + "] in "
+                        + currentFile + " is not closed until the end of the file");
+            }
+        }
+        
+        @Override
+        public void completed(@NonNull File source, @NonNull File target) throws IOException {
+            writeLineMap(target, lineMap);
+        }
+        
+        /**
+         * Returns the line in the source file that the given input line comes from.
+         * 
+         * @param line The input line (1-based), i.e. the line of the content passed to
+         *      {@link #transform(File, byte[])}.
+         * 
+         * @return The line in the source file.
+         */
+        private int getOriginalLine(int line) {
+            LineMap inputLines = this.inputLines;
+            int result = line;
+            if (inputLines != null) {
+                result = inputLines.getOriginalLine(line);
+            } else if (line >= 1 && line <= originalLines.size()) {
+                result = originalLines.get(line - 1);
+            }
+            return result;
+        }
+        
+        /**
+         * Pops the current block from the stack. Prints a warning if number of opening and closing FLOrIDA blocks
+         * don't match.
+         * 
+         * @param blockStructure The block structure to pop from.
+         */
+        private void popBlock(@NonNull Deque<@NonNull CppBlock> blockStructure) {
+            if (!blockStructure.isEmpty()) {
+                
+                CppBlock block = notNull(blockStructure.pop());
+                
+                if (block.numOpeningFlorida != block.numClosingFlorida) {
+                    report(FloridaDiagnostic.Kind.UNBALANCED_CPP_BLOCK, block.lineStart, "CppBlock in " + currentFile
+                            + " in line " + block.lineStart + " has " + block.numOpeningFlorida + " opening and "
+                            + block.numClosingFlorida + " closing FLOrIDA statements");
+                }
+                
+            }
+        }
+        
+        /**
+         * Called each time a FLOrIDA replacement is created. Checks if the nesting with the block structure is
+         * correct.
+         * 
+         * @param blockStructure The C preprocessor block structure.
+         * @param floridaReplacement The FLOrIDA replacement line (i.e. C preprocessor).
+         */
+        private void onFloridaBlock(@NonNull Deque<@NonNull CppBlock> blockStructure,
+                @NonNull String floridaReplacement) {
+            CppBlock block = maybeNull(blockStructure.peek());
+            if (block != null) {
+                if (floridaReplacement.startsWith("#if")) {
+                    block.numOpeningFlorida++;
+                } else if (floridaReplacement.startsWith("#endif")) {
+                    block.numClosingFlorida++;
                     
-                    if (closeLineAfterThis != null) {
-                        String endLine = "#endif // " + closeLineAfterThis; 
-                        onFloridaBlock(blockStructure, endLine);
-                        out.write(endLine);
-                        out.write("\n");
+                    if (block.numClosingFlorida > block.numOpeningFlorida) {
+                        report(FloridaDiagnostic.Kind.CLOSING_BEFORE_OPENING, block.lineStart, "CppBlock in "
+                                + currentFile + " in line " + block.lineStart
+                                + " has a closing FLOrIDA statement without a prior opening one");
                     }
                 }
-                
             }
-        } finally {
-            currentFile = null;
-            currentLineNumber = -1;
         }
-    }
-    
-    /**
-     * Creates a replacement CPP expression for the given FLOrIDA condition.
-     * 
-     * @param condition The condition (the part after the "//&").
-     * 
-     * @return A replacement line.
-     */
-    private @NonNull String getReplacement(@NonNull String condition) {
-        String result = "// Error replacing FLOrIDA condition: //&" + condition;
-        
-        Matcher ifMatcher = BEGIN_PATTERN.matcher(condition);
-        Matcher endMatcher = END_PATTERN.matcher(condition);
-        Matcher lineMatcher = LINE_PATTERN.matcher(condition);
-        
-        if (endMatcher.matches()) {
-            String feature = endMatcher.group(1);
-            if (!featureStack.isEmpty()) {
-                String expectedFeature = notNull(featureStack.pop());
-                if (!feature.equals(expectedFeature)) {
-                    LOGGER.logWarning("begin[] and end[] block features don't match in " + currentFile
-                            + " in line " + currentLineNumber,
-                            "Got //&end[" + feature + "], expected //&end[" + expectedFeature + "]");
+        
+        /**
+         * Creates a replacement CPP expression for the given FLOrIDA condition.
+         * 
+         * @param condition The condition (the part after the "//&").
+         * 
+         * @return A replacement line.
+         */
+        private @NonNull String getReplacement(@NonNull String condition) {
+            String result = "// Error replacing FLOrIDA condition: //&" + condition;
+            
+            Matcher ifMatcher = BEGIN_PATTERN.matcher(condition);
+            Matcher endMatcher = END_PATTERN.matcher(condition);
+            Matcher lineMatcher = LINE_PATTERN.matcher(condition);
+            
+            if (endMatcher.matches()) {
+                String feature = endMatcher.group(1);
+                if (!featureStack.isEmpty()) {
+                    String expectedFeature = notNull(featureStack.pop());
+                    // the #endif is the next line that is written
+                    addFeatureReference(expectedFeature, currentTarget, featureStartLines.pop(),
+                            currentOutputLine + 1);
+                    if (!feature.equals(expectedFeature)) {
+                        report(FloridaDiagnostic.Kind.MISMATCHED_FEATURE, currentLineNumber,
+                                "begin[] and end[] block features don't match in " + currentFile
+                                + " in line " + currentLineNumber,
+                                "Got //&end[" + feature + "], expected //&end[" + expectedFeature + "]");
+                    }
+                    
+                } else {
+                    report(FloridaDiagnostic.Kind.END_WITHOUT_BEGIN, currentLineNumber, currentFile + " in line "
+                            + currentLineNumber + " has a closing FLOrIDA statement without a prior opening one");
                 }
+                result = "#endif // " + feature;
+                
+            } else if (ifMatcher.matches()) {
+                String feature = notNull(ifMatcher.group(1));
+                featureStack.push(feature);
+                featureStartLines.push(currentOutputLine + 1);
+                result = "#if defined(" + feature + ")";
+                
+            } else if (lineMatcher.matches()) {
+                String feature = lineMatcher.group(1);
+                closeLine = feature;
+                result = "#if defined(" + feature + ")";
                 
             } else {
-                LOGGER.logWarning(currentFile + " in line " + currentLineNumber
-                        + " has a closing FLOrIDA statement without a prior opening one");
+                report(FloridaDiagnostic.Kind.UNKNOWN_CONDITION, currentLineNumber, "Unknown FLOrIDA condition in "
+                        + currentFile + " in line " + currentLineNumber + ":", condition);
             }
-            result = "#endif // " + feature;
             
-        } else if (ifMatcher.matches()) {
-            String feature = notNull(ifMatcher.group(1));
-            featureStack.push(feature);
-            result = "#if defined(" + feature + ")";
-            
-        } else if (lineMatcher.matches()) {
-            String feature = lineMatcher.group(1);
-            closeLine = feature;
-            result = "#if defined(" + feature + ")";
+            return result;
+        }
+        
+        /**
+         * Reports a violation of the FLOrIDA structure: logs it as a warning (or as an error, for unknown
+         * conditions), and adds it to the diagnostics, if they are collected.
+         * 
+         * @param kind The kind of the violation.
+         * @param line The line of the violation in the content passed to {@link #replace(String)}.
+         * @param message The lines of the log message.
+         */
+        private void report(FloridaDiagnostic.@NonNull Kind kind, int line, @NonNull String... message) {
+            if (kind == FloridaDiagnostic.Kind.UNKNOWN_CONDITION) {
+                LOGGER.logError(message);
+            } else {
+                LOGGER.logWarning(message);
+            }
             
-        } else {
-            LOGGER.logError("Unknown FLOrIDA condition in " + currentFile + " in line " + currentLineNumber + ":",
-                    condition);
+            List<@NonNull FloridaDiagnostic> diagnostics = this.diagnostics;
+            if (diagnostics != null) {
+                diagnostics.add(new FloridaDiagnostic(diagnosticPath, getOriginalLine(line), kind,
+                        notNull(String.join(" ", message))));
+            }
         }
         
-        return result;
     }
 
 }
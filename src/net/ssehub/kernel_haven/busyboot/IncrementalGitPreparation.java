@@ -0,0 +1,666 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ssehub.kernel_haven.IPreparation;
+import net.ssehub.kernel_haven.PipelineConfigurator;
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.code_model.CodeModelProvider;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.DefaultSettings;
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * An {@link IPreparation} that prepares a range of revisions of a local git repository with a Busybox or Coreboot
+ * preparation. The first revision is prepared fully. Each later revision is derived from the prepared tree of the
+ * previous one, by re-transforming only the files that changed between the two revisions. If a change affects the
+ * build system (Kconfig or Makefiles), the revision is prepared fully instead. Settings that need a full preparation
+ * of each revision, like the {@link FeatureIndex} or the {@link UndoJournal}, are rejected.
+ * <p>
+ * Each revision is placed in its own folder (named by the commit hash) inside {@link #DESTINATION_DIR}. The
+ * unchanged files of an incrementally prepared revision are hard links to the files of the previous revision, so
+ * the prepared trees must not be modified in place. After this preparation, {@link DefaultSettings#SOURCE_TREE}
+ * points to the prepared tree of the last revision.
+ *
+ * @author Adam
+ */
+public class IncrementalGitPreparation implements IPreparation {
+    
+    public static final @NonNull Setting<@NonNull File> REPOSITORY
+        = new Setting<>("preparation.git.repository", Type.DIRECTORY, true, null, "The local git repository to "
+            + "prepare the revisions of.");
+    
+    public static final @NonNull Setting<@NonNull String> REVISIONS
+        = new Setting<>("preparation.git.revisions", Type.STRING, true, null, "The range of revisions to prepare, "
+            + "in the form <first>..<last>. Both the first and the last revision are prepared. A single revision "
+            + "is also allowed.");
+    
+    public static final @NonNull Setting<@NonNull String> PREPARATION
+        = new Setting<>("preparation.git.preparation", Type.STRING, true, null, "The fully qualified class name of "
+            + "the preparation to run on each revision, e.g. " + PrepareBusybox.class.getName() + ".");
+    
+    public static final @NonNull Setting<@NonNull File> DESTINATION_DIR
+        = new Setting<>("preparation.git.destination", Type.DIRECTORY, true, null, "The directory where the "
+            + "prepared trees of the revisions are placed. Each revision gets a sub-folder named by its commit hash.");
+    
+    public static final @NonNull Setting<@NonNull String> SOURCE_SUBDIR
+        = new Setting<>("preparation.git.source_subdir", Type.STRING, false, "", "The path of the source tree "
+            + "inside the repository, e.g. src for Coreboot. Empty if the source tree is the repository root.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * A single entry of <code>git diff --raw</code>.
+     */
+    static class Change {
+        
+        private char status;
+        
+        private @NonNull String path;
+        
+        private @Nullable String oldPath;
+        
+        private @NonNull String newMode;
+        
+        /**
+         * Creates a new {@link Change}.
+         * 
+         * @param status The first letter of the status (e.g. A, M, D, R).
+         * @param path The path of the changed file.
+         * @param oldPath The previous path of the file, if it was renamed or copied. <code>null</code> otherwise.
+         * @param newMode The octal git mode of the file in the new revision, e.g. 100644, 100755 or 120000 for a
+         *      symbolic link. 000000 if the file was deleted.
+         */
+        Change(char status, @NonNull String path, @Nullable String oldPath, @NonNull String newMode) {
+            this.status = status;
+            this.path = path;
+            this.oldPath = oldPath;
+            this.newMode = newMode;
+        }
+        
+        /**
+         * Returns the status letter of this change.
+         * 
+         * @return The status.
+         */
+        char getStatus() {
+            return status;
+        }
+        
+        /**
+         * Returns the (new) path of the changed file.
+         * 
+         * @return The path, relative to the repository root.
+         */
+        @NonNull String getPath() {
+            return path;
+        }
+        
+        /**
+         * Returns the old path of the changed file, if this is a rename or copy.
+         * 
+         * @return The old path, or <code>null</code>.
+         */
+        @Nullable String getOldPath() {
+            return oldPath;
+        }
+        
+        /**
+         * Returns whether the file is a symbolic link in the new revision.
+         * 
+         * @return Whether the new mode is 120000.
+         */
+        boolean isSymbolicLink() {
+            return newMode.equals("120000");
+        }
+        
+        /**
+         * Returns whether the file is executable in the new revision.
+         * 
+         * @return Whether the new mode is 100755.
+         */
+        boolean isExecutable() {
+            return newMode.equals("100755");
+        }
+        
+        /**
+         * Returns whether the path is a submodule (a gitlink) in the new revision.
+         * 
+         * @return Whether the new mode is 160000.
+         */
+        boolean isSubmodule() {
+            return newMode.equals("160000");
+        }
+    
+    }
+    
+    private @NonNull File repository = new File(""); // will be initialized in run()
+    
+    @Override
+    public void run(@NonNull Configuration config) throws SetUpException {
+        config.registerSetting(REPOSITORY);
+        config.registerSetting(REVISIONS);
+        config.registerSetting(PREPARATION);
+        config.registerSetting(DESTINATION_DIR);
+        config.registerSetting(SOURCE_SUBDIR);
+        checkSupportedSettings(config);
+        
+        this.repository = config.getValue(REPOSITORY);
+        File destination = config.getValue(DESTINATION_DIR);
+        String subdir = config.getValue(SOURCE_SUBDIR);
+        AbstractBusybootPreparation preparation = createPreparation(config.getValue(PREPARATION));
+        
+        File lastTree = null;
+        try {
+            List<@NonNull String> revisions = getRevisions(config.getValue(REVISIONS));
+            LOGGER.logInfo("Preparing " + revisions.size() + " revisions of " + repository);
+            
+            String previous = null;
+            for (String revision : revisions) {
+                File root = new File(destination, revision);
+                File tree = subdir.isEmpty() ? root : new File(root, subdir);
+                config.setValue(DefaultSettings.SOURCE_TREE, tree);
+                
+                if (previous == null || !tryIncremental(preparation, config, previous, revision)) {
+                    LOGGER.logDebug("Full preparation of revision " + revision);
+                    exportRevision(revision, root);
+                    for (File old : new File[] {
+                        new File(tree.getParentFile(), tree.getName() + "UnchangedCopy"),
+                        UndoJournal.getJournalDir(tree)}) {
+                        
+                        if (old.exists()) {
+                            Util.deleteFolder(old);
+                        }
+                    }
+                    preparation.run(config);
+                }
+                previous = revision;
+                lastTree = tree;
+            }
+        } catch (IOException e) {
+            throw new SetUpException(e);
+        }
+        
+        if (lastTree != null) {
+            config.setValue(DefaultSettings.SOURCE_TREE, lastTree);
+            CodeModelProvider cmProvider = PipelineConfigurator.instance().getCmProvider();
+            if (cmProvider != null) {
+                cmProvider.setConfig(config);
+            }
+        }
+    }
+    
+    /**
+     * Checks that none of the settings are set that only work with a full preparation of the whole tree. The
+     * incrementally prepared revisions only re-transform the changed files, so the feature index, line maps, metrics
+     * and fingerprints would be missing or incomplete for them, and there is no undo journal to restore them from.
+     * 
+     * @param config The configuration.
+     * 
+     * @throws SetUpException If one of these settings is set.
+     */
+    private static void checkSupportedSettings(@NonNull Configuration config) throws SetUpException {
+        for (Setting<?> setting : Arrays.asList(FeatureIndex.INDEX_FILE, LineMap.MAP_DIR,
+                RewriteTelemetry.METRICS_FILE, MerkleTree.FINGERPRINT_FILE)) {
+            
+            config.registerSetting(setting);
+            if (config.getValue(setting) != null) {
+                throw new SetUpException(setting.getKey() + " is not supported by "
+                        + IncrementalGitPreparation.class.getSimpleName() + ", since only the changed files of "
+                        + "later revisions are prepared");
+            }
+        }
+        
+        config.registerSetting(AbstractBusybootPreparation.BACKUP_MODE);
+        if (config.getValue(AbstractBusybootPreparation.BACKUP_MODE).equals("journal")) {
+            throw new SetUpException(AbstractBusybootPreparation.BACKUP_MODE.getKey() + "=journal is not supported by "
+                    + IncrementalGitPreparation.class.getSimpleName() + ", since the journal is not carried over to "
+                    + "later revisions");
+        }
+    }
+    
+    /**
+     * Creates the preparation to run on each revision.
+     * 
+     * @param className The fully qualified class name of the preparation.
+     * 
+     * @return The preparation.
+     * 
+     * @throws SetUpException If the class can not be instantiated or is not a Busybox or Coreboot preparation.
+     */
+    private static @NonNull AbstractBusybootPreparation createPreparation(@NonNull String className)
+            throws SetUpException {
+        
+        Object instance;
+        try {
+            instance = Class.forName(className).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new SetUpException("Can't instantiate preparation " + className, e);
+        }
+        if (!(instance instanceof AbstractBusybootPreparation)) {
+            throw new SetUpException(className + " is not a Busybox or Coreboot preparation");
+        }
+        return (AbstractBusybootPreparation) instance;
+    }
+    
+    /**
+     * Derives the prepared tree of the given revision from the prepared tree of the previous revision, if none of
+     * the changes between the two revisions are relevant for the build system.
+     * 
+     * @param preparation The preparation that is run on each revision.
+     * @param config The configuration. {@link DefaultSettings#SOURCE_TREE} points to the tree of the new revision.
+     * @param previous The previous revision, which has already been prepared.
+     * @param revision The revision to prepare.
+     * 
+     * @return Whether the revision was prepared incrementally; <code>false</code> if a full preparation is needed.
+     * 
+     * @throws IOException If reading the changes or writing the files fails.
+     * @throws SetUpException If configuring the preparation fails.
+     */
+    private boolean tryIncremental(@NonNull AbstractBusybootPreparation preparation, @NonNull Configuration config,
+            @NonNull String previous, @NonNull String revision) throws IOException, SetUpException {
+        
+        File destination = config.getValue(DESTINATION_DIR);
+        String subdir = config.getValue(SOURCE_SUBDIR);
+        
+        List<@NonNull Change> changes = getChanges(previous, revision);
+        Map<@NonNull String, @NonNull List<@NonNull String>> changedLines = getChangedLines(previous, revision);
+        
+        boolean buildRelevant = false;
+        for (int i = 0; !buildRelevant && i < changes.size(); i++) {
+            Change change = notNull(changes.get(i));
+            buildRelevant = isBuildRelevant(preparation, change.getPath(), changedLines)
+                    || (change.getOldPath() != null
+                    && isBuildRelevant(preparation, notNull(change.getOldPath()), changedLines));
+        }
+        
+        boolean result = !buildRelevant;
+        if (result) {
+            LOGGER.logDebug("Incremental preparation of revision " + revision + " (" + changes.size()
+                    + " changed files)");
+            
+            config.registerSetting(ParallelTreeCopier.THREADS);
+            ParallelTreeCopier copier = new ParallelTreeCopier(config.getValue(ParallelTreeCopier.THREADS));
+            
+            File previousRoot = new File(destination, previous);
+            File root = new File(destination, revision);
+            Util.clearFolder(root);
+            linkTree(copier, previousRoot, root);
+            File previousCopy = new File(destination, previous + "UnchangedCopy");
+            if (subdir.isEmpty() && previousCopy.isDirectory()) {
+                File copy = new File(destination, revision + "UnchangedCopy");
+                Util.clearFolder(copy);
+                linkTree(copier, previousCopy, copy);
+            }
+            
+            preparation.configure(config);
+            applyChanges(preparation, revision, root, subdir, changes);
+            ContentAddressedStore.storeIfConfigured(config, config.getValue(DefaultSettings.SOURCE_TREE));
+        }
+        return result;
+    }
+    
+    /**
+     * Fills the given directory with the content of the given tree, where all regular files are hard links to the
+     * files of the tree. This is safe, since the changed files are never written in place, but replaced (see
+     * {@link #writeFileAtRevision(String, String, File)}). Files are copied if hard links are not possible, e.g.
+     * across file systems.
+     * 
+     * @param copier The copier that creates the directories and copies the symbolic links.
+     * @param from The tree to link to.
+     * @param to The directory to fill.
+     * 
+     * @throws IOException If linking or copying fails.
+     */
+    private static void linkTree(@NonNull ParallelTreeCopier copier, @NonNull File from, @NonNull File to)
+            throws IOException {
+        
+        copier.copy(from, to, (file) -> Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS),
+            (source, target) -> {
+                try {
+                    Files.createLink(target.toPath(), source.toPath());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            });
+    }
+    
+    /**
+     * Checks if a change to the given path is relevant for the build system.
+     * 
+     * @param preparation The preparation that decides this.
+     * @param path The path of the changed file.
+     * @param changedLines The changed lines per file.
+     * 
+     * @return Whether a full preparation is required.
+     */
+    private static boolean isBuildRelevant(@NonNull AbstractBusybootPreparation preparation, @NonNull String path,
+            @NonNull Map<@NonNull String, @NonNull List<@NonNull String>> changedLines) {
+        
+        List<@NonNull String> lines = changedLines.get(path);
+        if (lines == null) {
+            lines = notNull(Collections.emptyList());
+        }
+        return preparation.isBuildRelevant(path, lines);
+    }
+    
+    /**
+     * Applies the given (not build relevant) changes to a copy of the prepared tree of the previous revision.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param preparation The preparation to re-transform the changed files with. Must already be configured for the
+     *      new source tree.
+     * @param revision The revision to take the new file contents from.
+     * @param root The copy of the prepared previous revision.
+     * @param subdir The path of the source tree inside the repository; empty if it is the root.
+     * @param changes The changes between the previous and the new revision.
+     * 
+     * @throws IOException If reading or writing the files fails.
+     */
+    void applyChanges(@NonNull AbstractBusybootPreparation preparation, @NonNull String revision,
+            @NonNull File root, @NonNull String subdir, @NonNull List<@NonNull Change> changes) throws IOException {
+        
+        File unchangedCopy = preparation.getUnchangedCopyDir();
+        String treePrefix = subdir.isEmpty() ? "" : subdir + "/";
+        
+        for (Change change : changes) {
+            // the old entry is always removed first, so that a changed symbolic link is not written through
+            List<@NonNull String> removed = new ArrayList<>();
+            removed.add(change.getPath());
+            if (change.getStatus() == 'R' && change.getOldPath() != null) {
+                removed.add(notNull(change.getOldPath()));
+            }
+            for (String path : removed) {
+                new File(root, path).delete();
+                if (path.startsWith(treePrefix) && unchangedCopy.isDirectory()) {
+                    new File(unchangedCopy, path.substring(treePrefix.length())).delete();
+                }
+            }
+            
+            if (change.isSubmodule()) {
+                // git archive has no content for submodules, only an empty directory; there is nothing to show
+                new File(root, change.getPath()).mkdirs();
+                
+            } else if (change.getStatus() != 'D') {
+                String path = change.getPath();
+                File file = new File(root, path);
+                writeEntryAtRevision(revision, change, file);
+                
+                if (path.startsWith(treePrefix)) {
+                    if (unchangedCopy.isDirectory()) {
+                        File copy = new File(unchangedCopy, path.substring(treePrefix.length()));
+                        copy.getParentFile().mkdirs();
+                        // replaces the file instead of writing into it, like writeFileAtRevision()
+                        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                    }
+                    if (!change.isSymbolicLink()) {
+                        preparation.transformChangedFile(file);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Parses the range of revisions and resolves them to full commit hashes, oldest first.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param range The range in the form <code>first..last</code>, or a single revision.
+     * 
+     * @return The list of commit hashes in the range, including the first one.
+     * 
+     * @throws IOException If calling git fails.
+     */
+    @NonNull List<@NonNull String> getRevisions(@NonNull String range) throws IOException {
+        List<@NonNull String> result = new ArrayList<>();
+        
+        int separator = range.indexOf("..");
+        if (separator == -1) {
+            result.add(git("rev-parse", range).trim());
+        } else {
+            result.add(git("rev-parse", notNull(range.substring(0, separator))).trim());
+            for (String line : git("rev-list", "--reverse", "--first-parent", range).split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    result.add(notNull(line.trim()));
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Lists the files that changed between the two revisions (<code>git diff --raw</code>).
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param from The old revision.
+     * @param to The new revision.
+     * 
+     * @return The list of changes.
+     * 
+     * @throws IOException If calling git fails.
+     */
+    @NonNull List<@NonNull Change> getChanges(@NonNull String from, @NonNull String to) throws IOException {
+        List<@NonNull Change> result = new ArrayList<>();
+        
+        // each entry is ":<old mode> <new mode> <old hash> <new hash> <status>", followed by its path (or the old
+        // and the new path for renames and copies), all terminated by NUL
+        String[] fields = git("diff", "--raw", "-z", "-M", from, to).split("\0");
+        for (int i = 0; i + 1 < fields.length; i++) {
+            String[] meta = fields[i].split(" ");
+            if (meta.length == 5 && fields[i].startsWith(":")) {
+                char status = meta[4].charAt(0);
+                if ((status == 'R' || status == 'C') && i + 2 < fields.length) {
+                    result.add(new Change(status, notNull(fields[i + 2]), fields[i + 1], notNull(meta[1])));
+                    i += 2;
+                } else {
+                    result.add(new Change(status, notNull(fields[i + 1]), null, notNull(meta[1])));
+                    i++;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Collects the lines that were added or removed between the two revisions, per file. The files are tracked by
+     * the <code>diff --git</code> headers; <code>---</code> and <code>+++</code> lines are only file names in the
+     * header that follows such a line, so that changed content lines like <code>-- x</code> are not mistaken for
+     * them.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param from The old revision.
+     * @param to The new revision.
+     * 
+     * @return A map from file path to the changed lines (without the leading + or -).
+     * 
+     * @throws IOException If calling git fails.
+     */
+    @NonNull Map<@NonNull String, @NonNull List<@NonNull String>> getChangedLines(@NonNull String from,
+            @NonNull String to) throws IOException {
+        
+        Map<@NonNull String, @NonNull List<@NonNull String>> result = new HashMap<>();
+        List<@NonNull String> current = new ArrayList<>();
+        boolean inHeader = false;
+        
+        for (String line : git("diff", "-U0", "--no-color", "--no-ext-diff", from, to).split("\n")) {
+            if (line.startsWith("diff --git ")) {
+                inHeader = true;
+                current = new ArrayList<>();
+            } else if (line.startsWith("@@")) {
+                inHeader = false;
+            } else if (inHeader) {
+                if ((line.startsWith("+++ ") || line.startsWith("--- "))
+                        && line.length() > 6 && line.charAt(5) == '/') {
+                    // "+++ b/path" or "--- a/path"
+                    current = notNull(result.computeIfAbsent(notNull(line.substring(6)), k -> new ArrayList<>()));
+                }
+            } else if (line.startsWith("+") || line.startsWith("-")) {
+                current.add(notNull(line.substring(1)));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Writes the full tree of the given revision into the given directory, without touching the working copy of the
+     * repository.
+     * 
+     * @param revision The revision to export.
+     * @param destination The directory to write the tree to. Will be created or cleared.
+     * 
+     * @throws IOException If calling git or tar fails.
+     */
+    private void exportRevision(@NonNull String revision, @NonNull File destination) throws IOException {
+        Util.clearFolder(destination);
+        
+        File archive = new File(destination.getParentFile(), destination.getName() + ".tar");
+        try {
+            git("archive", "--format=tar", "-o", archive.getAbsolutePath(), revision);
+            
+            ProcessBuilder processBuilder = new ProcessBuilder("tar", "-xf", archive.getAbsolutePath());
+            processBuilder.directory(destination);
+            if (!Util.executeProcess(processBuilder, "tar")) {
+                throw new IOException("Couldn't extract revision " + revision);
+            }
+        } finally {
+            archive.delete();
+        }
+    }
+    
+    /**
+     * Creates the entry of a changed file at the given revision: a symbolic link, or a file with the executable bit
+     * of the new revision. The old entry must already be deleted.
+     * 
+     * @param revision The revision.
+     * @param change The change of the file.
+     * @param destination The location of the entry.
+     * 
+     * @throws IOException If calling git or writing the entry fails.
+     */
+    private void writeEntryAtRevision(@NonNull String revision, @NonNull Change change, @NonNull File destination)
+            throws IOException {
+        
+        if (change.isSymbolicLink()) {
+            // the content of a link is its target
+            destination.getParentFile().mkdirs();
+            Files.createSymbolicLink(destination.toPath(), Paths.get(git("show", revision + ":" + change.getPath())));
+        } else {
+            writeFileAtRevision(revision, change.getPath(), destination);
+            if (change.isExecutable()) {
+                destination.setExecutable(true, false);
+            }
+        }
+    }
+    
+    /**
+     * Writes the content of a file at the given revision. The content is written to a temporary file, which then
+     * replaces the destination, since the destination may be a hard link to the file of the previous revision.
+     * 
+     * @param revision The revision.
+     * @param path The path of the file in the repository.
+     * @param destination The file to write the content to.
+     * 
+     * @throws IOException If calling git or writing the file fails.
+     */
+    private void writeFileAtRevision(@NonNull String revision, @NonNull String path, @NonNull File destination)
+            throws IOException {
+        
+        destination.getParentFile().mkdirs();
+        File tmp = PreparationCheckpoint.getTempFile(destination);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            git(out, "show", revision + ":" + path);
+        }
+        Files.move(tmp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Executes git in the repository and returns the standard output.
+     * 
+     * @param args The arguments to git.
+     * 
+     * @return The standard output of git.
+     * 
+     * @throws IOException If git fails.
+     */
+    private @NonNull String git(@NonNull String... args) throws IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        git(stdout, args);
+        return new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Executes git in the repository and writes the standard output to the given stream.
+     * 
+     * @param stdout The stream to write the output to.
+     * @param args The arguments to git.
+     * 
+     * @throws IOException If git fails.
+     */
+    private void git(@NonNull OutputStream stdout, @NonNull String... args) throws IOException {
+        List<@NonNull String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(repository);
+        
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        if (!Util.executeProcess(processBuilder, "git", stdout, stderr, 0)) {
+            throw new IOException("git " + String.join(" ", args) + " failed: " + stderr.toString());
+        }
+    }
+    
+    /**
+     * Sets the repository to run git commands in.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param repository The local git repository.
+     */
+    void setRepository(@NonNull File repository) {
+        this.repository = repository;
+    }
+
+}
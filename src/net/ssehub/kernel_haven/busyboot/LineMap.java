@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Maps the line numbers of a rewritten (prepared) file back to the line numbers of the original file. Preparations
+ * insert lines (e.g. <code>#if</code> and <code>#endif</code> around inline feature checks) and join lines (line
+ * continuations), so the line numbers of both files drift apart.
+ * <p>
+ * The map is stored run-length encoded in a text file: after the header line, each line describes a run of
+ * consecutive output lines as <code>length\toriginalStart\tstep</code>. A step of 1 means that the run maps to
+ * consecutive original lines; a step of 0 means that all lines of the run come from the same original line. When
+ * read, the runs are expanded, so that each lookup takes constant time.
+ * <p>
+ * Maps are only written for files where the line numbers changed; see {@link #read(File, String)}.
+ *
+ * @author Adam
+ */
+public class LineMap {
+    
+    public static final @NonNull Setting<@Nullable File> MAP_DIR
+        = new Setting<>("preparation.line_maps", Type.PATH, false, null, "If set, the preparations write a line map "
+            + "for each rewritten file into this directory (same relative path as in the prepared source tree, with "
+            + "the suffix .linemap). The maps translate line numbers of the prepared files back to the original "
+            + "files.");
+    
+    private static final @NonNull String HEADER = "linemap 1";
+    
+    private static final @NonNull String SUFFIX = ".linemap";
+    
+    /**
+     * Records the original line of each output line while a file is rewritten, and writes the result as a
+     * {@link LineMap}.
+     */
+    public static class Builder {
+        
+        /**
+         * The runs, as triples of length, original start line and step.
+         */
+        private @NonNull List<int @NonNull []> runs = new ArrayList<>();
+        
+        private int numLines;
+        
+        /**
+         * Records the next line of the output.
+         * 
+         * @param originalLine The line in the original file that this output line comes from (1-based).
+         */
+        public void add(int originalLine) {
+            numLines++;
+            if (!runs.isEmpty()) {
+                int[] run = runs.get(runs.size() - 1);
+                int last = run[1] + (run[0] - 1) * run[2];
+                if (run[0] == 1 && (originalLine == last || originalLine == last + 1)) {
+                    run[2] = originalLine - last;
+                    run[0]++;
+                    return;
+                }
+                if (run[0] > 1 && originalLine == last + run[2]) {
+                    run[0]++;
+                    return;
+                }
+            }
+            runs.add(new int[] {1, originalLine, 1});
+        }
+        
+        /**
+         * Checks whether each output line maps to the same original line, i.e. no lines were inserted or joined.
+         * 
+         * @return Whether this map is the identity.
+         */
+        public boolean isIdentity() {
+            return runs.isEmpty() || runs.size() == 1 && runs.get(0)[1] == 1 && runs.get(0)[2] == 1;
+        }
+        
+        /**
+         * Writes the map for the given file into the map directory. If the map is the identity, no map is written
+         * (and an old map is deleted).
+         * 
+         * @param mapDir The directory to write maps into.
+         * @param relativePath The path of the rewritten file, relative to the prepared source tree, with '/' as the
+         *      separator.
+         * 
+         * @throws IOException If writing the map fails.
+         */
+        public void write(@NonNull File mapDir, @NonNull String relativePath) throws IOException {
+            File mapFile = getMapFile(mapDir, relativePath);
+            if (isIdentity()) {
+                mapFile.delete();
+                return;
+            }
+            
+            mapFile.getParentFile().mkdirs();
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(mapFile),
+                    StandardCharsets.UTF_8))) {
+                out.print(HEADER + "\n");
+                for (int[] run : runs) {
+                    out.print(run[0] + "\t" + run[1] + "\t" + run[2] + "\n");
+                }
+            }
+        }
+        
+        /**
+         * Creates the {@link LineMap} for the lines recorded so far, without writing it.
+         * 
+         * @return The line map.
+         */
+        public @NonNull LineMap build() {
+            int[] originalLines = new int[numLines];
+            int pos = 0;
+            for (int[] run : runs) {
+                for (int i = 0; i < run[0]; i++) {
+                    originalLines[pos++] = run[1] + i * run[2];
+                }
+            }
+            return new LineMap(originalLines);
+        }
+    
+    }
+    
+    private int @NonNull [] originalLines;
+    
+    /**
+     * Creates a new {@link LineMap}.
+     * 
+     * @param originalLines The original line of each output line.
+     */
+    private LineMap(int @NonNull [] originalLines) {
+        this.originalLines = originalLines;
+    }
+    
+    /**
+     * Reads the map for the given file from the map directory.
+     * 
+     * @param mapDir The directory that the maps were written to.
+     * @param relativePath The path of the prepared file, relative to the prepared source tree, with '/' as the
+     *      separator.
+     * 
+     * @return The map, or <code>null</code> if there is no map for this file, i.e. the line numbers did not change.
+     * 
+     * @throws IOException If reading the map fails, or the map is malformed.
+     */
+    public static @Nullable LineMap read(@NonNull File mapDir, @NonNull String relativePath) throws IOException {
+        File mapFile = getMapFile(mapDir, relativePath);
+        if (!mapFile.isFile()) {
+            return null;
+        }
+        
+        Builder builder = new Builder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mapFile),
+                StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                throw new IOException(mapFile + " is not a line map");
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    builder.runs.add(new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2])});
+                    builder.numLines += Integer.parseInt(parts[0]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Malformed run in " + mapFile + ": " + line, e);
+                }
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Returns the line in the original file that the given line of the prepared file comes from.
+     * 
+     * @param line The line in the prepared file (1-based).
+     * 
+     * @return The line in the original file (1-based).
+     * 
+     * @throws IndexOutOfBoundsException If the prepared file doesn't have this line.
+     */
+    public int getOriginalLine(int line) throws IndexOutOfBoundsException {
+        if (line < 1 || line > originalLines.length) {
+            throw new IndexOutOfBoundsException("Line " + line + " is not in the prepared file");
+        }
+        return originalLines[line - 1];
+    }
+    
+    /**
+     * Creates a {@link Builder} that contains the lines of this map, e.g. to write this map for another file.
+     * 
+     * @return A new builder with the lines of this map.
+     */
+    public @NonNull Builder toBuilder() {
+        Builder builder = new Builder();
+        for (int originalLine : originalLines) {
+            builder.add(originalLine);
+        }
+        return builder;
+    }
+    
+    /**
+     * Returns the number of lines in the prepared file.
+     * 
+     * @return The number of lines.
+     */
+    public int getNumLines() {
+        return originalLines.length;
+    }
+    
+    /**
+     * Returns the location of the map for the given file.
+     * 
+     * @param mapDir The directory of the maps.
+     * @param relativePath The path of the prepared file, relative to the prepared source tree.
+     * 
+     * @return The map file (may not exist).
+     */
+    private static @NonNull File getMapFile(@NonNull File mapDir, @NonNull String relativePath) {
+        return new File(mapDir, relativePath + SUFFIX);
+    }
+
+}
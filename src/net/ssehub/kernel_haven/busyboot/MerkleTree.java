@@ -0,0 +1,374 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A Merkle tree of a directory: each file is identified by the SHA-256 hash of its content, and each directory by the
+ * hash of the names, types and hashes of its children. So the hash of the root identifies the whole tree, and two
+ * trees can be compared by descending only into the directories whose hashes differ.
+ * <p>
+ * The files are hashed in parallel. Symbolic links are not followed, but hashed by their target.
+ *
+ * @author Adam
+ */
+public class MerkleTree {
+    
+    public static final @NonNull Setting<@Nullable File> FINGERPRINT_FILE
+        = new Setting<>("preparation.fingerprint_file", Type.PATH, false, null, "If set, the preparations write the "
+            + "Merkle tree hashes of the source tree (before the preparation) and of the prepared tree (after it) "
+            + "into this file: one line per file and directory, the root hashes first.");
+    
+    /**
+     * The type of a directory entry.
+     */
+    private static final char DIRECTORY = 'D';
+    
+    /**
+     * The type of a regular file.
+     */
+    private static final char FILE = 'F';
+    
+    /**
+     * The type of a symbolic link.
+     */
+    private static final char LINK = 'L';
+    
+    /**
+     * A file or directory in the tree.
+     */
+    private static class Entry {
+        
+        private char type;
+        
+        private @Nullable String hash;
+        
+        private @NonNull Set<@NonNull String> children = new TreeSet<>();
+        
+        /**
+         * Creates a new {@link Entry}.
+         * 
+         * @param type The type of the entry; {@link MerkleTree#DIRECTORY}, {@link MerkleTree#FILE} or
+         *      {@link MerkleTree#LINK}.
+         * @param hash The hash of the entry; <code>null</code> if not yet calculated.
+         */
+        public Entry(char type, @Nullable String hash) {
+            this.type = type;
+            this.hash = hash;
+        }
+    
+    }
+    
+    /**
+     * All entries, by their path relative to the root ('/' separated; the root is the empty path).
+     */
+    private @NonNull Map<@NonNull String, @NonNull Entry> entries = new HashMap<>();
+    
+    /**
+     * Creates an empty {@link MerkleTree}; see {@link #compute(File, PathFilter, int)} and
+     * {@link #read(File, String)}.
+     */
+    private MerkleTree() {
+    }
+    
+    /**
+     * Calculates the Merkle tree of the given directory.
+     * 
+     * @param root The directory.
+     * @param filter The filter of the files and directories to leave out, relative to the directory.
+     * @param numThreads The number of threads to hash files with. Values less than 1 mean that the number is
+     *      adapted to the measured throughput; see {@link FileTaskScheduler}.
+     * 
+     * @return The Merkle tree.
+     * 
+     * @throws IOException If reading the directory fails.
+     */
+    public static @NonNull MerkleTree compute(@NonNull File root, @NonNull PathFilter filter, int numThreads)
+            throws IOException {
+        
+        MerkleTree result = new MerkleTree();
+        Path rootPath = root.toPath();
+        // in pre-order, i.e. each directory before its content
+        List<@NonNull String> dirs = new ArrayList<>();
+        FileTaskScheduler hashes = new FileTaskScheduler(numThreads);
+        
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path relative = notNull(rootPath.relativize(dir));
+                if (filter.isExcluded(relative, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                String path = toTreePath(relative);
+                result.add(path, new Entry(DIRECTORY, null));
+                dirs.add(path);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = notNull(rootPath.relativize(file));
+                String path = toTreePath(relative);
+                boolean excluded = filter.isExcluded(relative, false);
+                if (!excluded && attrs.isSymbolicLink()) {
+                    result.add(path, new Entry(LINK, hash(notNull(Files.readSymbolicLink(file).toString()))));
+                } else if (!excluded && attrs.isRegularFile()) {
+                    Entry entry = new Entry(FILE, null);
+                    result.add(path, entry);
+                    hashes.add(attrs.size(), () -> entry.hash = ContentAddressedStore.hash(notNull(file)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+        
+        hashes.run();
+        
+        // the content of each directory is after it in pre-order, so it is hashed before the directory itself
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            Entry dir = notNull(result.entries.get(dirs.get(i)));
+            dir.hash = result.hashDirectory(notNull(dirs.get(i)), dir);
+        }
+        return result;
+    }
+    
+    /**
+     * Reads a Merkle tree that has been written with {@link #write(PrintWriter, String)}.
+     * 
+     * @param file The file to read.
+     * @param name The name of the tree in the file.
+     * 
+     * @return The Merkle tree.
+     * 
+     * @throws IOException If reading the file fails, or it contains no tree with the given name.
+     */
+    public static @NonNull MerkleTree read(@NonNull File file, @NonNull String name) throws IOException {
+        MerkleTree result = new MerkleTree();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4 && parts[0].equals(name)) {
+                    String path = parts[3].equals(".") ? "" : parts[3];
+                    result.add(notNull(path), new Entry(parts[1].charAt(0), parts[2]));
+                }
+            }
+        }
+        if (!result.entries.containsKey("")) {
+            throw new IOException("No Merkle tree " + name + " in " + file);
+        }
+        return result;
+    }
+    
+    /**
+     * Writes this tree as lines of name, type (D, F or L), hash and path (the root is '.'), separated by tabs. The
+     * directories come first, so the root hash is in the first line.
+     * 
+     * @param out The writer to write to.
+     * @param name The name of this tree in the output, e.g. <code>source</code>.
+     */
+    public void write(@NonNull PrintWriter out, @NonNull String name) {
+        List<@NonNull String> paths = new ArrayList<>(entries.keySet());
+        paths.sort(Comparator.comparing((String path) -> notNull(entries.get(path)).type != DIRECTORY)
+                .thenComparing(Comparator.naturalOrder()));
+        
+        for (String path : paths) {
+            Entry entry = notNull(entries.get(path));
+            out.print(name + "\t" + entry.type + "\t" + entry.hash + "\t" + (path.isEmpty() ? "." : path) + "\n");
+        }
+    }
+    
+    /**
+     * Returns the hash of the whole tree.
+     * 
+     * @return The hash of the root directory.
+     */
+    public @NonNull String getRootHash() {
+        return notNull(getHash(""));
+    }
+    
+    /**
+     * Returns the hash of the given file or directory.
+     * 
+     * @param path The path relative to the root, with '/' as the separator; the empty path for the root.
+     * 
+     * @return The hash; <code>null</code> if the path is not in this tree.
+     */
+    public @Nullable String getHash(@NonNull String path) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.hash : null;
+    }
+    
+    /**
+     * Compares this tree with another one. Only directories with different hashes are descended into, so the time is
+     * proportional to the number of differences (times the size of the directories that contain them), not to the
+     * size of the trees.
+     * 
+     * @param other The tree to compare with.
+     * 
+     * @return The topmost paths that differ, i.e. files and directories that were added, removed or changed (but not
+     *      the directories that contain them, and not the content of added or removed directories). Empty if the
+     *      trees are equal.
+     */
+    public @NonNull List<@NonNull String> diff(@NonNull MerkleTree other) {
+        List<@NonNull String> result = new ArrayList<>();
+        diff(other, "", result);
+        return result;
+    }
+    
+    /**
+     * Calculates the Merkle tree of the given directory, and compares it with this tree.
+     * 
+     * @param root The directory to verify.
+     * @param filter The filter that this tree was computed with.
+     * @param numThreads The number of threads to hash files with. Values less than 1 mean that the number is
+     *      adapted to the measured throughput; see {@link FileTaskScheduler}.
+     * 
+     * @return The topmost paths that differ; see {@link #diff(MerkleTree)}. Empty if the directory matches this tree.
+     * 
+     * @throws IOException If reading the directory fails.
+     */
+    public @NonNull List<@NonNull String> verify(@NonNull File root, @NonNull PathFilter filter, int numThreads)
+            throws IOException {
+        return diff(compute(root, filter, numThreads));
+    }
+    
+    /**
+     * Compares the given path of this tree with the same path in another tree.
+     * 
+     * @param other The tree to compare with.
+     * @param path The path to compare.
+     * @param result The list to add the differing paths to.
+     */
+    private void diff(@NonNull MerkleTree other, @NonNull String path, @NonNull List<@NonNull String> result) {
+        Entry mine = entries.get(path);
+        Entry theirs = other.entries.get(path);
+        if (mine == null || theirs == null || mine.type != theirs.type) {
+            result.add(path);
+        
+        } else if (!notNull(mine.hash).equals(theirs.hash)) {
+            if (mine.type == DIRECTORY) {
+                Set<@NonNull String> children = new TreeSet<>(mine.children);
+                children.addAll(theirs.children);
+                for (String child : children) {
+                    diff(other, path.isEmpty() ? child : path + "/" + child, result);
+                }
+            } else {
+                result.add(path);
+            }
+        }
+    }
+    
+    /**
+     * Adds an entry to this tree, and registers it as a child of its parent directory.
+     * 
+     * @param path The path of the entry.
+     * @param entry The entry.
+     */
+    private void add(@NonNull String path, @NonNull Entry entry) {
+        entries.put(path, entry);
+        if (!path.isEmpty()) {
+            int slash = path.lastIndexOf('/');
+            Entry parent = entries.get(slash >= 0 ? path.substring(0, slash) : "");
+            if (parent != null) {
+                parent.children.add(notNull(path.substring(slash + 1)));
+            }
+        }
+    }
+    
+    /**
+     * Calculates the hash of a directory from the names, types and hashes of its children.
+     * 
+     * @param path The path of the directory.
+     * @param dir The directory; the hashes of its children must already be calculated.
+     * 
+     * @return The hash of the directory.
+     */
+    private @NonNull String hashDirectory(@NonNull String path, @NonNull Entry dir) {
+        StringBuilder content = new StringBuilder();
+        for (String child : dir.children) {
+            Entry entry = notNull(entries.get(path.isEmpty() ? child : path + "/" + child));
+            content.append(entry.type).append(' ').append(entry.hash).append(' ').append(child).append('\n');
+        }
+        return hash(notNull(content.toString()));
+    }
+    
+    /**
+     * Calculates the SHA-256 hash of the given string.
+     * 
+     * @param content The string to hash.
+     * 
+     * @return The hash as a lower-case hex string.
+     */
+    private static @NonNull String hash(@NonNull String content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest(content.getBytes(StandardCharsets.UTF_8))) {
+            result.append(String.format("%02x", b & 0xFF));
+        }
+        return notNull(result.toString());
+    }
+    
+    /**
+     * Converts the given relative path to a '/' separated path in the tree.
+     * 
+     * @param relative The path relative to the root.
+     * 
+     * @return The path in the tree.
+     */
+    private static @NonNull String toTreePath(@NonNull Path relative) {
+        return notNull(relative.toString().replace(File.separatorChar, '/'));
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A persistent cache for the results of the Busybox normalization. The normalized content of a file only depends on
+ * its original content and the version of the normalizer, so the results are stored under a hash of both. Most
+ * source files don't change between two releases, so normalizing a new release only has to run the normalizer on
+ * the changed files.
+ * <p>
+ * Each entry consists of the normalized content (file <code>&lt;dir&gt;/&lt;xx&gt;/&lt;hash&gt;</code>) and its
+ * {@link LineMap} (same name with suffix .linemap, absent if the line numbers didn't change). The entries are
+ * copied into the source tree, not linked, since the prepared tree may be modified later. The size of the cache is
+ * limited; the least recently used entries are deleted by {@link #trim()}.
+ *
+ * @author Adam
+ */
+public class NormalizationCache {
+    
+    public static final @NonNull Setting<@Nullable File> CACHE_DIR
+        = new Setting<>("preparation.busybox.normalize_cache", Type.PATH, false, null, "If set, the results of the "
+            + "Busybox normalization are cached in this directory, and reused for files with the same content in "
+            + "later preparations.");
+    
+    public static final @NonNull Setting<@NonNull Integer> MAX_SIZE
+        = new Setting<>("preparation.busybox.normalize_cache_size", Type.INTEGER, true, "1024", "The maximum size "
+            + "of the normalization cache in MiB. The least recently used entries are deleted if it grows larger.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private static final @NonNull String MAP_SUFFIX = ".linemap";
+    
+    /**
+     * A cached normalization result.
+     */
+    public static class Entry {
+        
+        private byte @NonNull [] content;
+        
+        private LineMap.@NonNull Builder lineMap;
+        
+        /**
+         * Creates a new {@link Entry}.
+         * 
+         * @param content The normalized content.
+         * @param lineMap The line map of the normalized content.
+         */
+        private Entry(byte @NonNull [] content, LineMap.@NonNull Builder lineMap) {
+            this.content = content;
+            this.lineMap = lineMap;
+        }
+        
+        /**
+         * Returns the normalized content.
+         * 
+         * @return The normalized content.
+         */
+        public byte @NonNull [] getContent() {
+            return content;
+        }
+        
+        /**
+         * Returns the line map of the normalized content.
+         * 
+         * @return The line map, which maps to the lines of the original content.
+         */
+        public LineMap.@NonNull Builder getLineMap() {
+            return lineMap;
+        }
+    
+    }
+    
+    private @NonNull File dir;
+    
+    private long maxBytes;
+    
+    private @NonNull String version;
+    
+    private @NonNull AtomicInteger hits = new AtomicInteger();
+    
+    private @NonNull AtomicInteger misses = new AtomicInteger();
+    
+    /**
+     * Creates a new {@link NormalizationCache}.
+     * 
+     * @param dir The directory of the cache. Created if it doesn't exist.
+     * @param maxBytes The maximum size of the cache, in bytes.
+     * @param version The version of the normalizer. Entries of other versions are never returned.
+     */
+    public NormalizationCache(@NonNull File dir, long maxBytes, @NonNull String version) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.version = version;
+    }
+    
+    /**
+     * Computes the key of the given original content.
+     * 
+     * @param content The original content of a file.
+     * 
+     * @return The key, a hex string.
+     * 
+     * @throws IOException If the hash algorithm is not available.
+     */
+    public @NonNull String getKey(byte @NonNull [] content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            result.append(String.format("%02x", b));
+        }
+        return notNull(result.toString());
+    }
+    
+    /**
+     * Looks up a cached result, and marks it as recently used.
+     * 
+     * @param key The key of the original content; see {@link #getKey(byte[])}.
+     * 
+     * @return The cached result, or <code>null</code> if there is none (or it can't be read).
+     */
+    public @Nullable Entry get(@NonNull String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        byte[] content;
+        LineMap lineMap;
+        try {
+            content = notNull(Files.readAllBytes(file.toPath()));
+            lineMap = LineMap.read(dir, getRelativePath(key));
+        } catch (IOException e) {
+            // deleted by a concurrent trim(), or broken; normalize again
+            LOGGER.logException("Ignoring broken normalization cache entry " + key, e);
+            misses.incrementAndGet();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        
+        return new Entry(content, lineMap != null ? lineMap.toBuilder() : new LineMap.Builder());
+    }
+    
+    /**
+     * Stores a normalization result. Concurrent calls for the same key are allowed.
+     * 
+     * @param key The key of the original content; see {@link #getKey(byte[])}.
+     * @param content The normalized content.
+     * @param lineMap The line map of the normalized content.
+     * 
+     * @throws IOException If writing the cache entry fails.
+     */
+    public void put(@NonNull String key, byte @NonNull [] content, LineMap.@NonNull Builder lineMap)
+            throws IOException {
+        File file = getFile(key);
+        file.getParentFile().mkdirs();
+        
+        // the line map is written first, so that the content only becomes visible with its line map
+        lineMap.write(dir, getRelativePath(key));
+        File tmp = new File(file.getParentFile(), key + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(tmp.toPath(), content);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Deletes the least recently used entries until the cache is smaller than its maximum size, and logs the hit
+     * rate.
+     * 
+     * @throws IOException If listing the cache directory fails.
+     */
+    public void trim() throws IOException {
+        LOGGER.logInfo("Normalization cache: " + hits.get() + " hits, " + misses.get() + " misses");
+        
+        List<@NonNull File> entries = new ArrayList<>();
+        long size = 0;
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        size += file.length();
+                        if (!file.getName().endsWith(MAP_SUFFIX) && !file.getName().endsWith(".tmp")) {
+                            entries.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for (int i = 0; size > maxBytes && i < entries.size(); i++) {
+            File entry = notNull(entries.get(i));
+            File map = new File(entry.getParentFile(), entry.getName() + MAP_SUFFIX);
+            size -= entry.length() + map.length();
+            Files.deleteIfExists(entry.toPath());
+            Files.deleteIfExists(map.toPath());
+        }
+    }
+    
+    /**
+     * Returns the file of the normalized content for the given key.
+     * 
+     * @param key The key.
+     * 
+     * @return The cache file (may not exist).
+     */
+    private @NonNull File getFile(@NonNull String key) {
+        return new File(dir, getRelativePath(key));
+    }
+    
+    /**
+     * Returns the path of the normalized content for the given key, relative to the cache directory.
+     * 
+     * @param key The key.
+     * 
+     * @return The relative path, with '/' as the separator.
+     */
+    private static @NonNull String getRelativePath(@NonNull String key) {
+        return key.substring(0, 2) + "/" + key;
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * An optional stage of {@link AbstractBusybootPreparation#run(Configuration)}, which is only created if its setting
+ * is configured. It runs before and after the preparation itself.
+ *
+ * @author Adam
+ */
+interface OptionalStage {
+    
+    /**
+     * Called before the preparation runs. Does nothing by default.
+     * 
+     * @param sourceTree The original source tree.
+     * 
+     * @throws SetUpException If the stage fails; the preparation is not run in this case.
+     */
+    public default void before(@NonNull File sourceTree) throws SetUpException {
+    }
+    
+    /**
+     * Called after the preparation succeeded. Does nothing by default.
+     * 
+     * @param sourceTree The prepared source tree.
+     * 
+     * @throws SetUpException If the stage fails.
+     */
+    public default void after(@NonNull File sourceTree) throws SetUpException {
+    }
+    
+}
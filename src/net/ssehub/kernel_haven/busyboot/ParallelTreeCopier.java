@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Copies directory trees with multiple threads. The directory skeleton is created first (while walking the source
+ * tree), and the file contents are copied concurrently afterwards by a {@link FileTaskScheduler}, largest file
+ * first. Permissions and timestamps of files and directories are preserved. Files and directories excluded by a
+ * {@link PathFilter} are either left out (excluded directories are not walked), or linked to the original.
+ *
+ * @author Adam
+ */
+public class ParallelTreeCopier {
+    
+    public static final @NonNull Setting<@NonNull Integer> THREADS
+        = new Setting<>("preparation.copy.threads", Type.INTEGER, true, "0", "The number of threads used to copy "
+            + "and hash source trees. 0 means that the number is adapted to the measured throughput.");
+    
+    /**
+     * Handles the files that are not copied by the {@link ParallelTreeCopier} itself.
+     */
+    public interface FileHandler {
+        
+        /**
+         * Creates the target file from the source file.
+         * 
+         * @param source The file in the source tree.
+         * @param target The file to create in the target tree. The parent directory already exists.
+         * 
+         * @throws IOException If creating the target file fails.
+         */
+        public void handle(@NonNull File source, @NonNull File target) throws IOException;
+    
+    }
+    
+    /**
+     * A directory in the target tree, together with the attributes of the source directory.
+     */
+    private static class CopiedDir {
+        
+        private @NonNull Path target;
+        
+        private @NonNull FileTime lastModified;
+        
+        private @Nullable Set<@NonNull PosixFilePermission> permissions;
+        
+        /**
+         * Creates a new {@link CopiedDir}.
+         * 
+         * @param source The directory in the source tree.
+         * @param target The directory in the target tree.
+         * @param attributes The attributes of the source directory.
+         * 
+         * @throws IOException If reading the permissions of the source directory fails.
+         */
+        public CopiedDir(@NonNull Path source, @NonNull Path target, @NonNull BasicFileAttributes attributes)
+                throws IOException {
+            this.target = target;
+            this.lastModified = notNull(attributes.lastModifiedTime());
+            if (Files.getFileAttributeView(source, PosixFileAttributeView.class) != null) {
+                this.permissions = Files.getPosixFilePermissions(source);
+            }
+        }
+    
+    }
+    
+    private int numThreads;
+    
+    private @NonNull PathFilter filter;
+    
+    /**
+     * Creates a new {@link ParallelTreeCopier} that copies all files.
+     * 
+     * @param numThreads The number of threads to copy with. Values less than 1 mean that the number is adapted to
+     *      the measured throughput; see {@link FileTaskScheduler}.
+     */
+    public ParallelTreeCopier(int numThreads) {
+        this(numThreads, PathFilter.ALL);
+    }
+    
+    /**
+     * Creates a new {@link ParallelTreeCopier}.
+     * 
+     * @param numThreads The number of threads to copy with. Values less than 1 mean that the number is adapted to
+     *      the measured throughput; see {@link FileTaskScheduler}.
+     * @param filter The filter for the files and directories to copy, relative to the copied directory.
+     */
+    public ParallelTreeCopier(int numThreads, @NonNull PathFilter filter) {
+        this.numThreads = numThreads;
+        this.filter = filter;
+    }
+    
+    /**
+     * Copies all files and folders inside the given directory into the target directory.
+     * 
+     * @param from The directory to copy the content of.
+     * @param to The target directory. Created if it doesn't exist.
+     * 
+     * @throws IOException If copying fails.
+     */
+    public void copy(@NonNull File from, @NonNull File to) throws IOException {
+        copy(from, to, (file) -> false, null);
+    }
+    
+    /**
+     * Copies all files and folders inside the given directory into the target directory. Files that match the given
+     * predicate are not copied, but passed to the given handler instead. The handler is called in the calling thread,
+     * in the order in which the files are found, before the other files are copied.
+     * 
+     * @param from The directory to copy the content of.
+     * @param to The target directory. Created if it doesn't exist.
+     * @param handledSeparately Whether a file should be passed to the handler instead of being copied.
+     * @param handler The handler for the files that are not copied. May be <code>null</code> if the predicate never
+     *      matches.
+     * 
+     * @throws IOException If copying fails, or the handler throws an exception.
+     */
+    public void copy(@NonNull File from, @NonNull File to, @NonNull Predicate<@NonNull File> handledSeparately,
+            @Nullable FileHandler handler) throws IOException {
+        
+        Path sourceRoot = from.toPath();
+        Path targetRoot = to.toPath();
+        List<@NonNull CopiedDir> dirs = new ArrayList<>();
+        FileTaskScheduler copies = new FileTaskScheduler(numThreads);
+        
+        Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path target = notNull(targetRoot.resolve(sourceRoot.relativize(dir)));
+                if (filter.isExcluded(notNull(sourceRoot.relativize(dir)), true)) {
+                    linkExcluded(notNull(dir), target);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target);
+                dirs.add(new CopiedDir(notNull(dir), target, notNull(attrs)));
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path target = notNull(targetRoot.resolve(sourceRoot.relativize(file)));
+                if (filter.isExcluded(notNull(sourceRoot.relativize(file)), false)) {
+                    linkExcluded(notNull(file), target);
+                } else if (handler != null && handledSeparately.test(notNull(file.toFile()))) {
+                    handler.handle(notNull(file.toFile()), notNull(target.toFile()));
+                } else {
+                    copies.add(attrs.size(), () -> Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+        
+        copies.run();
+        
+        // writing into the directories changed their timestamps; restore them (deepest first)
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            copyAttributes(notNull(dirs.get(i)));
+        }
+    }
+    
+    /**
+     * Creates a symbolic link to an excluded file or directory, if the filter links excluded paths. Otherwise, the
+     * path is left out of the copy. If the excluded path is a link itself, the new link points to its real location.
+     * 
+     * @param source The excluded file or directory in the source tree.
+     * @param target The location in the target tree.
+     * 
+     * @throws IOException If creating the link fails.
+     */
+    private void linkExcluded(@NonNull Path source, @NonNull Path target) throws IOException {
+        if (filter.isLinkExcluded()) {
+            Files.deleteIfExists(target);
+            Files.createSymbolicLink(target, source.toRealPath());
+        }
+    }
+    
+    /**
+     * Waits for all given copy tasks to finish.
+     * <p>
+     * Package visibility for the other parallel steps of the preparations.
+     * 
+     * @param copies The copy tasks.
+     * 
+     * @throws IOException If any of the tasks failed. Further failures are added as suppressed exceptions.
+     */
+    static void waitFor(@NonNull List<@NonNull Future<?>> copies) throws IOException {
+        IOException exception = null;
+        for (Future<?> copy : copies) {
+            try {
+                copy.get();
+            } catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause() : new IOException(e.getCause());
+                if (exception == null) {
+                    exception = cause;
+                } else {
+                    exception.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + copies.size() + " tasks", e);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+    
+    /**
+     * Copies the permissions and timestamps of a source directory to its copy.
+     * 
+     * @param dir The copied directory.
+     * 
+     * @throws IOException If setting the attributes fails.
+     */
+    private static void copyAttributes(@NonNull CopiedDir dir) throws IOException {
+        if (dir.permissions != null) {
+            Files.setPosixFilePermissions(dir.target, dir.permissions);
+        }
+        Files.setLastModifiedTime(dir.target, dir.lastModified);
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Decides which parts of a source tree the preparations process, based on include and exclude globs. The globs are
+ * matched against the path relative to the root of the tree, with '/' as the separator (see
+ * {@link java.nio.file.FileSystem#getPathMatcher(String)}). Globs without a '/' are matched against the name of each
+ * file and directory, at any depth, like in a .gitignore (e.g. <code>.git</code>).
+ * <p>
+ * Excluded directories are pruned while walking a tree, i.e. their content is never visited. Includes only apply to
+ * files, since a directory may contain included files even if it doesn't match an include glob itself.
+ * <p>
+ * A filter can additionally be restricted to a {@link SparseClosure}; everything outside of it is then excluded,
+ * including directories.
+ *
+ * @author Adam
+ */
+public class PathFilter {
+    
+    public static final @NonNull Setting<@Nullable String> INCLUDE
+        = new Setting<>("preparation.include", Type.STRING, false, null, "Comma-separated globs of the files that "
+            + "the preparations process (copy or transform), relative to the source tree. If not set, all files that "
+            + "are not excluded are processed.");
+    
+    public static final @NonNull Setting<@Nullable String> EXCLUDE
+        = new Setting<>("preparation.exclude", Type.STRING, false, null, "Comma-separated globs of the files and "
+            + "directories that the preparations don't process, relative to the source tree; globs without a / "
+            + "match names at any depth (e.g. .git, 3rdparty, docs/**). Excluded directories are not walked at all.");
+    
+    public static final @NonNull Setting<@NonNull String> EXCLUDE_MODE
+        = new Setting<>("preparation.exclude_mode", Type.STRING, true, "skip", "How excluded files and directories "
+            + "are handled when a source tree is copied: skip leaves them out of the copy, link creates symbolic "
+            + "links to the unmodified originals.");
+    
+    /**
+     * A filter that doesn't exclude anything.
+     */
+    public static final @NonNull PathFilter ALL = new PathFilter(new ArrayList<>(), new ArrayList<>(), false);
+    
+    /**
+     * A compiled glob.
+     */
+    private static class Glob {
+        
+        private @NonNull PathMatcher matcher;
+        
+        private boolean nameOnly;
+        
+        /**
+         * Compiles a glob.
+         * 
+         * @param glob The glob.
+         * 
+         * @throws PatternSyntaxException If the glob is invalid.
+         */
+        public Glob(@NonNull String glob) throws PatternSyntaxException {
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            this.nameOnly = !glob.contains("/");
+        }
+        
+        /**
+         * Checks whether the given path matches this glob.
+         * 
+         * @param relativePath The path relative to the root of the tree. Must not be empty.
+         * 
+         * @return Whether the path matches.
+         */
+        public boolean matches(@NonNull Path relativePath) {
+            if (relativePath.getFileName() == null) {
+                return false;
+            }
+            return matcher.matches(nameOnly ? relativePath.getFileName() : relativePath);
+        }
+    
+    }
+    
+    private @NonNull List<@NonNull Glob> includes = new ArrayList<>();
+    
+    private @NonNull List<@NonNull Glob> excludes = new ArrayList<>();
+    
+    private boolean linkExcluded;
+    
+    /**
+     * The location of the tree that the globs refer to, relative to the root of the walked tree; <code>null</code> if
+     * the globs refer to the walked tree itself.
+     */
+    private @Nullable Path base;
+    
+    /**
+     * The closure of the sparse targets that everything outside of is excluded; <code>null</code> if the whole tree
+     * is processed.
+     */
+    private @Nullable SparseClosure closure;
+    
+    /**
+     * Creates a new {@link PathFilter}.
+     * 
+     * @param includes The include globs. If empty, all files that are not excluded are included.
+     * @param excludes The exclude globs.
+     * @param linkExcluded Whether excluded files and directories are linked (instead of skipped) in copies.
+     * 
+     * @throws PatternSyntaxException If a glob is invalid.
+     */
+    public PathFilter(@NonNull List<@NonNull String> includes, @NonNull List<@NonNull String> excludes,
+            boolean linkExcluded) throws PatternSyntaxException {
+        for (String include : includes) {
+            this.includes.add(new Glob(include));
+        }
+        for (String exclude : excludes) {
+            this.excludes.add(new Glob(exclude));
+        }
+        this.linkExcluded = linkExcluded;
+    }
+    
+    /**
+     * Creates a copy of the given {@link PathFilter} for walking a parent directory of the tree that its globs refer
+     * to. Inside that tree, the globs are matched as before. Outside of it, only the exclude globs without a '/' are
+     * matched.
+     * 
+     * @param filter The filter to copy.
+     * @param base The location of the tree that the globs refer to, relative to the walked directory.
+     * @param linkExcluded Whether excluded files and directories are linked (instead of skipped) in copies.
+     */
+    public PathFilter(@NonNull PathFilter filter, @NonNull Path base, boolean linkExcluded) {
+        this.includes = filter.includes;
+        this.excludes = filter.excludes;
+        this.base = base.toString().isEmpty() ? null : base;
+        this.closure = filter.closure;
+        this.linkExcluded = linkExcluded;
+    }
+    
+    /**
+     * Creates a copy of the given {@link PathFilter} that additionally excludes all files and directories outside of
+     * the given {@link SparseClosure}.
+     * 
+     * @param filter The filter to copy.
+     * @param closure The closure of the sparse targets.
+     */
+    public PathFilter(@NonNull PathFilter filter, @NonNull SparseClosure closure) {
+        this.includes = filter.includes;
+        this.excludes = filter.excludes;
+        this.base = filter.base;
+        this.closure = closure;
+        this.linkExcluded = filter.linkExcluded;
+    }
+    
+    /**
+     * Reads the filter from the given configuration.
+     * 
+     * @param config The configuration.
+     * 
+     * @return The configured filter.
+     * 
+     * @throws SetUpException If the settings are invalid.
+     */
+    public static @NonNull PathFilter read(@NonNull Configuration config) throws SetUpException {
+        config.registerSetting(INCLUDE);
+        config.registerSetting(EXCLUDE);
+        config.registerSetting(EXCLUDE_MODE);
+        
+        String mode = config.getValue(EXCLUDE_MODE);
+        if (!mode.equals("skip") && !mode.equals("link")) {
+            throw new SetUpException(EXCLUDE_MODE.getKey() + " must be either skip or link, got " + mode);
+        }
+        
+        try {
+            return new PathFilter(splitGlobs(config.getValue(INCLUDE)), splitGlobs(config.getValue(EXCLUDE)),
+                    mode.equals("link"));
+        } catch (PatternSyntaxException e) {
+            throw new SetUpException("Invalid glob in " + INCLUDE.getKey() + " or " + EXCLUDE.getKey(), e);
+        }
+    }
+    
+    /**
+     * Splits a comma-separated list of globs. Commas inside braces (e.g. <code>*.{c,h}</code>) don't separate.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param value The value of the setting; may be <code>null</code>.
+     * 
+     * @return The globs, trimmed; empty ones are left out.
+     */
+    static @NonNull List<@NonNull String> splitGlobs(@Nullable String value) {
+        List<@NonNull String> result = new ArrayList<>();
+        if (value == null) {
+            return result;
+        }
+        
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? value.charAt(i) : ',';
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            } else if (c == ',' && depth <= 0) {
+                String glob = value.substring(start, i).trim();
+                if (!glob.isEmpty()) {
+                    result.add(glob);
+                }
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Checks whether the given file or directory is excluded. Its parent directories are not checked, since they are
+     * already pruned while walking the tree. The root of the tree is never excluded.
+     * 
+     * @param relativePath The path relative to the root of the tree.
+     * @param directory Whether the path is a directory.
+     * 
+     * @return Whether the file is not processed, or the directory is not walked.
+     */
+    public boolean isExcluded(@NonNull Path relativePath, boolean directory) {
+        boolean inTree = true;
+        Path path = relativePath;
+        Path base = this.base;
+        if (base != null) {
+            inTree = relativePath.startsWith(base);
+            path = inTree ? notNull(base.relativize(relativePath)) : relativePath;
+        }
+        if (path.toString().isEmpty()) {
+            return false;
+        }
+        
+        for (Glob exclude : excludes) {
+            if ((inTree || exclude.nameOnly) && exclude.matches(path)) {
+                return true;
+            }
+        }
+        
+        boolean result = false;
+        if (inTree && !directory && !includes.isEmpty()) {
+            result = true;
+            for (int i = 0; result && i < includes.size(); i++) {
+                result = !includes.get(i).matches(path);
+            }
+        }
+        
+        SparseClosure closure = this.closure;
+        if (!result && inTree && closure != null) {
+            result = !closure.contains(path, directory);
+        }
+        return result;
+    }
+    
+    /**
+     * Checks whether the given file or directory is excluded, either itself or because one of its parent directories
+     * is excluded. Walkers that prune excluded directories only need {@link #isExcluded(Path, boolean)}.
+     * 
+     * @param relativePath The path relative to the root of the tree.
+     * @param directory Whether the path is a directory.
+     * 
+     * @return Whether the file or directory is not processed.
+     */
+    public boolean isExcludedWithParents(@NonNull Path relativePath, boolean directory) {
+        boolean result = isExcluded(relativePath, directory);
+        for (Path parent = relativePath.getParent(); !result && parent != null; parent = parent.getParent()) {
+            result = isExcluded(parent, true);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns whether excluded files and directories are linked in copies of the tree, or left out.
+     * 
+     * @return Whether excluded paths are linked.
+     */
+    public boolean isLinkExcluded() {
+        return linkExcluded;
+    }
+
+}
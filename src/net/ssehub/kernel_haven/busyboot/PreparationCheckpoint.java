@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Records which phases (and which files inside a phase) of a preparation are completed, so that a preparation that
+ * was killed can resume where it stopped. The state is stored in a file next to the source tree, with the suffix
+ * <code>PreparationState</code>. Each completed unit of work is appended as a single line and flushed immediately;
+ * an incomplete last line (from a crash while writing it) is ignored.
+ * <p>
+ * File transformations that are not idempotent should write their result to {@link #getTempFile(File)} first, and
+ * then call {@link #commit(String, File)}: the file is marked as done <i>before</i> the result is moved over the
+ * original, and {@link #isFileDone(String, File)} finishes an interrupted move. This way, no file is ever
+ * transformed twice.
+ *
+ * @author Adam
+ */
+public class PreparationCheckpoint {
+    
+    private @NonNull File sourceTree;
+    
+    private @NonNull File stateFile;
+    
+    private @NonNull Set<@NonNull String> done = new HashSet<>();
+    
+    private boolean resumed;
+    
+    private PrintWriter out;
+    
+    /**
+     * Opens the checkpoint state for the given source tree. If a state file exists, the previously completed units
+     * of work are read from it.
+     * 
+     * @param sourceTree The source tree that is prepared.
+     * 
+     * @throws IOException If reading or creating the state file fails.
+     */
+    public PreparationCheckpoint(@NonNull File sourceTree) throws IOException {
+        this.sourceTree = sourceTree;
+        this.stateFile = getStateFile(sourceTree);
+        this.resumed = stateFile.isFile();
+        
+        if (resumed) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(stateFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.endsWith("\t")) {
+                        done.add(notNull(line.substring(0, line.length() - 1)));
+                    }
+                }
+            }
+        }
+        
+        this.out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(stateFile, true),
+                StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Returns the location of the state file for the given source tree.
+     * 
+     * @param sourceTree The source tree.
+     * 
+     * @return The state file (may not exist).
+     */
+    public static @NonNull File getStateFile(@NonNull File sourceTree) {
+        return new File(sourceTree.getParentFile(), sourceTree.getName() + "PreparationState");
+    }
+    
+    /**
+     * Returns whether a state file from a previous (interrupted) run existed.
+     * 
+     * @return Whether this run resumes a previous one.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+    
+    /**
+     * Checks whether the given phase has been completed.
+     * 
+     * @param phase The name of the phase.
+     * 
+     * @return Whether the phase is done.
+     */
+    public synchronized boolean isPhaseDone(@NonNull String phase) {
+        return done.contains("P\t" + phase);
+    }
+    
+    /**
+     * Marks the given phase as completed.
+     * 
+     * @param phase The name of the phase.
+     */
+    public synchronized void markPhaseDone(@NonNull String phase) {
+        mark("P\t" + phase);
+    }
+    
+    /**
+     * Checks whether the given file has been completed in the given phase. If the file was committed, but the move
+     * of the temporary file was interrupted, the move is finished first.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     * 
+     * @return Whether the file is done.
+     * 
+     * @throws IOException If finishing an interrupted move fails.
+     */
+    public synchronized boolean isFileDone(@NonNull String phase, @NonNull File file) throws IOException {
+        boolean result = done.contains(fileEntry(phase, file));
+        File tmp = getTempFile(file);
+        if (tmp.exists()) {
+            if (result) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                tmp.delete();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Marks the given file as completed in the given phase.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     */
+    public synchronized void markFileDone(@NonNull String phase, @NonNull File file) {
+        mark(fileEntry(phase, file));
+    }
+    
+    /**
+     * Marks the given file as completed in the given phase, and then replaces it with its
+     * {@link #getTempFile(File) temporary file}.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     * 
+     * @throws IOException If moving the temporary file fails.
+     */
+    public void commit(@NonNull String phase, @NonNull File file) throws IOException {
+        markFileDone(phase, file);
+        Files.move(getTempFile(file).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Returns the temporary file that the transformed content of the given file should be written to, before
+     * {@link #commit(String, File)} is called.
+     * 
+     * @param file The file in the source tree.
+     * 
+     * @return The temporary file in the same folder.
+     */
+    public static @NonNull File getTempFile(@NonNull File file) {
+        return new File(file.getParentFile(), file.getName() + ".kh_tmp");
+    }
+    
+    /**
+     * Deletes the state file, after the preparation completed successfully.
+     */
+    public synchronized void complete() {
+        out.close();
+        stateFile.delete();
+    }
+    
+    /**
+     * Closes the state file, but keeps it so that a later run can resume.
+     */
+    public synchronized void close() {
+        out.close();
+    }
+    
+    /**
+     * Appends the given entry to the state file.
+     * 
+     * @param entry The entry (without trailing tab or line break).
+     */
+    private void mark(@NonNull String entry) {
+        done.add(entry);
+        // the trailing tab marks the line as complete
+        out.print(entry + "\t\n");
+        out.flush();
+    }
+    
+    /**
+     * Creates the state entry for a file.
+     * 
+     * @param phase The name of the phase.
+     * @param file The file in the source tree.
+     * 
+     * @return The entry.
+     */
+    private @NonNull String fileEntry(@NonNull String phase, @NonNull File file) {
+        return "F\t" + phase + "\t" + sourceTree.toPath().relativize(file.toPath()).toString();
+    }
+
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.ssehub.kernel_haven.IPreparation;
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.DefaultSettings;
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * A long-running process that keeps the preparations of this plugin loaded and JIT-compiled, and runs them on
+ * request. This avoids the JVM startup and warm-up for each of many short preparation runs.
+ * <p>
+ * The daemon listens on a TCP port of the loopback interface (Java 8 has no Unix domain sockets). On startup, it
+ * writes the port and a random token into an info file that only the owner can read; each request has to contain
+ * this token. A request is a single line of tab-separated fields, and so is the reply:
+ * <ul>
+ *     <li><code>token prepare class properties</code> runs the preparation with the given fully qualified class
+ *     name (from this package) on the given configuration file, exactly like an in-process run. The reply is
+ *     <code>exit 0</code>, or <code>exit 1 message</code> if the preparation failed.</li>
+ *     <li><code>token shutdown</code> stops the daemon after the running preparations. The reply is
+ *     <code>exit 0</code>.</li>
+ * </ul>
+ * Relative paths in the configuration files are resolved against the directory of the configuration file, not
+ * against the working directory of the daemon. The log messages of the preparations go to the log of the daemon.
+ * <p>
+ * Requests are read and authenticated by the thread that accepts the connections, and shutdown requests are
+ * answered there, too. Only preparations run on the worker threads, so that neither a shutdown nor a rejected
+ * connection waits for the running preparations.
+ *
+ * @author Adam
+ */
+public class PreparationDaemon {
+    
+    /**
+     * The exit code of a successful preparation.
+     */
+    public static final int EXIT_SUCCESS = 0;
+    
+    /**
+     * The exit code of a failed preparation.
+     */
+    public static final int EXIT_FAILURE = 1;
+    
+    /**
+     * The exit code if the request couldn't be sent or was rejected by the daemon.
+     */
+    public static final int EXIT_NOT_RUN = 2;
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * How long the daemon waits for the request line after a client connected, in milliseconds. Other connections
+     * wait meanwhile, so this is short; clients send their request right after connecting.
+     */
+    private static final int REQUEST_TIMEOUT = 2000;
+    
+    private @NonNull ServerSocket server;
+    
+    private @NonNull String token;
+    
+    private @NonNull ExecutorService workers;
+    
+    private volatile boolean stopped;
+    
+    /**
+     * A configuration that resolves relative paths against the directory of its properties file, instead of the
+     * working directory. The values are rewritten when their setting is registered, since only then their type is
+     * known.
+     */
+    private static class RelativeConfiguration extends Configuration {
+        
+        private @NonNull Properties properties;
+        
+        private @NonNull File baseDir;
+        
+        /**
+         * Reads the given configuration file.
+         * 
+         * @param propertiesFile The configuration file.
+         * 
+         * @throws SetUpException If reading the file fails.
+         */
+        public RelativeConfiguration(@NonNull File propertiesFile) throws SetUpException {
+            this(readProperties(propertiesFile), notNull(propertiesFile.getAbsoluteFile().getParentFile()));
+        }
+        
+        /**
+         * Creates a configuration with the given properties.
+         * 
+         * @param properties The properties. Relative paths in them are made absolute on registration.
+         * @param baseDir The directory to resolve relative paths against.
+         */
+        private RelativeConfiguration(@NonNull Properties properties, @NonNull File baseDir) {
+            super(properties);
+            this.properties = properties;
+            this.baseDir = baseDir;
+        }
+        
+        @Override
+        public void registerSetting(@NonNull Setting<?> setting) throws SetUpException {
+            Type type = setting.getType();
+            String value = properties.getProperty(setting.getKey());
+            if (value != null && !value.isEmpty() && (type == Type.FILE || type == Type.DIRECTORY
+                    || type == Type.PATH) && !new File(value).isAbsolute()) {
+                properties.setProperty(setting.getKey(), new File(baseDir, value).getPath());
+            }
+            super.registerSetting(setting);
+        }
+        
+        /**
+         * Reads a properties file.
+         * 
+         * @param propertiesFile The file to read.
+         * 
+         * @return The properties.
+         * 
+         * @throws SetUpException If reading the file fails.
+         */
+        private static @NonNull Properties readProperties(@NonNull File propertiesFile) throws SetUpException {
+            Properties result = new Properties();
+            try (Reader in = Files.newBufferedReader(propertiesFile.toPath(), StandardCharsets.UTF_8)) {
+                result.load(in);
+            } catch (IOException e) {
+                throw new SetUpException("Can't read configuration " + propertiesFile, e);
+            }
+            return result;
+        }
+    
+    }
+    
+    /**
+     * Creates a new daemon, and opens its port. Requests are only accepted by {@link #serve()}.
+     * 
+     * @param port The port to listen on; 0 for any free port.
+     * @param numWorkers The number of preparations that may run at the same time.
+     * 
+     * @throws IOException If opening the port fails.
+     */
+    public PreparationDaemon(int port, int numWorkers) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(Math.max(1, numWorkers));
+        
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        this.token = notNull(hex.toString());
+    }
+    
+    /**
+     * Returns the port that this daemon listens on.
+     * 
+     * @return The local port.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+    
+    /**
+     * Writes the port and token of this daemon into the given file, which is created with permissions for the owner
+     * only (if the file system supports POSIX permissions).
+     * 
+     * @param infoFile The file to write. Overwritten if it exists.
+     * 
+     * @throws IOException If writing the file fails.
+     */
+    public void writeInfoFile(@NonNull File infoFile) throws IOException {
+        Path path = infoFile.toPath();
+        Files.deleteIfExists(path);
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null && Files.getFileAttributeView(parent, PosixFileAttributeView.class) != null) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write(getPort() + "\t" + token + "\n");
+        }
+    }
+    
+    /**
+     * Accepts requests until the daemon is shut down, either by a <code>shutdown</code> request or by
+     * {@link #close()}. Waits for the running preparations before returning.
+     * 
+     * @throws IOException If accepting a connection fails.
+     */
+    public void serve() throws IOException {
+        LOGGER.logInfo("Preparation daemon listening on " + server.getLocalSocketAddress());
+        try {
+            while (!stopped) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (stopped) {
+                        break;
+                    }
+                    throw e;
+                }
+                if (stopped) {
+                    // shut down while this connection was accepted
+                    socket.close();
+                    break;
+                }
+                handle(notNull(socket));
+            }
+        } finally {
+            close();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.logInfo("Preparation daemon stopped");
+    }
+    
+    /**
+     * Stops accepting requests. The preparations that are already running are finished.
+     */
+    public void close() {
+        stopped = true;
+        workers.shutdown();
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOGGER.logExceptionWarning("Can't close server socket", e);
+        }
+    }
+    
+    /**
+     * Handles a single connection in the accepting thread: reads and authenticates the request, and either answers
+     * it directly or hands a preparation over to a worker, which writes the reply.
+     * 
+     * @param socket The connection to the client.
+     */
+    private void handle(@NonNull Socket socket) {
+        String reply = null;
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String line = in.readLine();
+            String[] request = line != null ? line.split("\t", -1) : new String[0];
+            
+            if (request.length < 2 || !MessageDigest.isEqual(notNull(request[0]).getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                LOGGER.logWarning("Rejected request with invalid token from " + socket.getRemoteSocketAddress());
+                reply = "rejected\tinvalid token";
+            
+            } else if (request[1].equals("prepare") && request.length == 4) {
+                String className = notNull(request[2]);
+                File propertiesFile = new File(request[3]);
+                workers.execute(() -> reply(socket, prepare(className, propertiesFile)));
+            
+            } else if (request[1].equals("shutdown") && request.length == 2) {
+                LOGGER.logInfo("Shutting down preparation daemon on request");
+                close();
+                reply = "exit\t" + EXIT_SUCCESS;
+            
+            } else {
+                reply = "rejected\tinvalid request";
+            }
+        
+        } catch (IOException e) {
+            LOGGER.logExceptionWarning("Can't read request", e);
+            reply = "rejected\tcan't read request";
+        
+        } catch (RejectedExecutionException e) {
+            reply = "rejected\tshutting down";
+        }
+        
+        if (reply != null) {
+            reply(socket, reply);
+        }
+    }
+    
+    /**
+     * Writes the reply to a request, and closes the connection.
+     * 
+     * @param socket The connection to the client.
+     * @param reply The reply line, without the line break.
+     */
+    private static void reply(@NonNull Socket socket, @NonNull String reply) {
+        try (Socket s = socket;
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(),
+                        StandardCharsets.UTF_8))) {
+            
+            out.print(reply.replace('\n', ' ') + "\n");
+        
+        } catch (IOException e) {
+            LOGGER.logExceptionWarning("Can't send reply", e);
+        }
+    }
+    
+    /**
+     * Runs a preparation like an in-process run would: with a fresh instance and a configuration read from the
+     * given file.
+     * 
+     * @param className The fully qualified name of the preparation class. Must be in the package of this class.
+     * @param propertiesFile The configuration file.
+     * 
+     * @return The reply to the client.
+     */
+    private @NonNull String prepare(@NonNull String className, @NonNull File propertiesFile) {
+        LOGGER.logInfo("Running " + className + " on " + propertiesFile);
+        long start = System.currentTimeMillis();
+        String reply;
+        try {
+            IPreparation preparation = createPreparation(className);
+            Configuration config = new RelativeConfiguration(propertiesFile);
+            DefaultSettings.registerAllSettings(config);
+            preparation.run(config);
+            reply = "exit\t" + EXIT_SUCCESS;
+        
+        } catch (SetUpException e) {
+            LOGGER.logException("Preparation " + className + " failed", e);
+            reply = "exit\t" + EXIT_FAILURE + "\t" + e.getMessage();
+        
+        // checkstyle: stop exception type check
+        } catch (RuntimeException e) {
+            // an in-process run would crash on these; the daemon has to survive for the next request
+            LOGGER.logException("Preparation " + className + " failed", e);
+            reply = "exit\t" + EXIT_FAILURE + "\t" + e;
+        }
+        // checkstyle: resume exception type check
+        
+        LOGGER.logInfo(className + " finished after " + (System.currentTimeMillis() - start) + " ms");
+        return reply;
+    }
+    
+    /**
+     * Creates a new instance of the given preparation class.
+     * 
+     * @param className The fully qualified name of the preparation class.
+     * 
+     * @return The new preparation.
+     * 
+     * @throws SetUpException If the class is not a preparation of this plugin, or can't be instantiated.
+     */
+    private static @NonNull IPreparation createPreparation(@NonNull String className) throws SetUpException {
+        Class<?> preparationClass;
+        try {
+            preparationClass = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new SetUpException("Unknown preparation " + className, e);
+        }
+        if (!IPreparation.class.isAssignableFrom(preparationClass)
+                || preparationClass.getPackage() != PreparationDaemon.class.getPackage()) {
+            throw new SetUpException(className + " is not a preparation of this plugin");
+        }
+        
+        try {
+            return (IPreparation) preparationClass.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new SetUpException("Can't instantiate preparation " + className, e);
+        }
+    }
+    
+    /**
+     * Sends a request to a running daemon, and waits for the reply.
+     * 
+     * @param infoFile The info file written by the daemon; see {@link #writeInfoFile(File)}.
+     * @param request The fields of the request, without the token.
+     * 
+     * @return The fields of the reply. The first field is either <code>exit</code> (followed by the exit code and
+     *      an optional message) or <code>rejected</code> (followed by the reason).
+     * 
+     * @throws IOException If reading the info file or talking to the daemon fails.
+     */
+    public static @NonNull String[] send(@NonNull File infoFile, @NonNull String... request) throws IOException {
+        List<String> lines = Files.readAllLines(infoFile.toPath(), StandardCharsets.UTF_8);
+        String[] info = lines.isEmpty() ? new String[0] : notNull(lines.get(0)).split("\t");
+        if (info.length != 2) {
+            throw new IOException("Invalid daemon info file " + infoFile);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(info[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid port in daemon info file " + infoFile, e);
+        }
+        
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8))) {
+            
+            out.print(info[1] + "\t" + String.join("\t", request) + "\n");
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Daemon closed the connection without a reply");
+            }
+            return notNull(reply.split("\t", 3));
+        }
+    }
+    
+    /**
+     * Sends a preparation request to a running daemon, and waits for the preparation to finish.
+     * 
+     * @param infoFile The info file written by the daemon; see {@link #writeInfoFile(File)}.
+     * @param className The fully qualified name of the preparation class.
+     * @param propertiesFile The configuration file. Made absolute before sending it.
+     * 
+     * @return The exit code: {@link #EXIT_SUCCESS}, {@link #EXIT_FAILURE} or {@link #EXIT_NOT_RUN}.
+     */
+    public static int prepare(@NonNull File infoFile, @NonNull String className, @NonNull File propertiesFile) {
+        int result;
+        try {
+            String[] reply = send(infoFile, "prepare", className, propertiesFile.getAbsolutePath());
+            if (reply[0].equals("exit") && reply.length >= 2) {
+                result = Integer.parseInt(reply[1]);
+                if (reply.length > 2) {
+                    System.err.println(reply[2]);
+                }
+            } else {
+                System.err.println("Request rejected: " + (reply.length > 1 ? reply[1] : reply[0]));
+                result = EXIT_NOT_RUN;
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Can't reach preparation daemon: " + e.getMessage());
+            result = EXIT_NOT_RUN;
+        }
+        return result;
+    }
+    
+    /**
+     * Starts a daemon, or sends a request to a running one. Usage:
+     * <ul>
+     *     <li><code>serve infoFile [port [workers]]</code> starts a daemon and writes its info file.</li>
+     *     <li><code>prepare infoFile class propertiesFile</code> runs a preparation in the daemon, and exits with
+     *     its exit code.</li>
+     *     <li><code>shutdown infoFile</code> stops the daemon.</li>
+     * </ul>
+     * 
+     * @param args The command line arguments.
+     * 
+     * @throws IOException If starting the daemon fails.
+     */
+    public static void main(@NonNull String[] args) throws IOException {
+        int exitCode = EXIT_NOT_RUN;
+        if (args.length >= 2 && args.length <= 4 && args[0].equals("serve")) {
+            File infoFile = new File(args[1]);
+            PreparationDaemon daemon = new PreparationDaemon(args.length > 2 ? Integer.parseInt(args[2]) : 0,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 1);
+            daemon.writeInfoFile(infoFile);
+            try {
+                daemon.serve();
+            } finally {
+                Files.deleteIfExists(infoFile.toPath());
+            }
+            exitCode = EXIT_SUCCESS;
+        
+        } else if (args.length == 4 && args[0].equals("prepare")) {
+            exitCode = prepare(new File(args[1]), notNull(args[2]), new File(args[3]));
+        
+        } else if (args.length == 2 && args[0].equals("shutdown")) {
+            String[] reply = send(new File(args[1]), "shutdown");
+            exitCode = reply[0].equals("exit") ? EXIT_SUCCESS : EXIT_NOT_RUN;
+        
+        } else {
+            System.err.println("Usage: " + PreparationDaemon.class.getName() + " serve <info file> [<port> "
+                    + "[<workers>]] | prepare <info file> <class> <properties file> | shutdown <info file>");
+        }
+        System.exit(exitCode);
+    }
+
+}
@@ -21,21 +21,26 @@ package net.ssehub.kernel_haven.busyboot;
 import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
 import net.ssehub.kernel_haven.util.Util;
 import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
 
 /**
  * A preparation for Busybox source trees. This modifies the source tree in a way that the normal Linux extractors
@@ -47,53 +52,76 @@ import net.ssehub.kernel_haven.util.null_checks.NonNull;
  */
 public class PrepareBusybox extends AbstractBusybootPreparation {
     
+    private static final @NonNull Pattern FEATURE_PATTERN = notNull(Pattern.compile("CONFIG_\\w+"));
+    
+    /**
+     * The version of the normalization, for the {@link NormalizationCache}. Increase this whenever the normalization
+     * produces different results.
+     */
+    private static final @NonNull String NORMALIZER_VERSION = "1";
+    
+    private @Nullable NormalizationCache normalizationCache;
+    
+    @Override
+    void configure(@NonNull Configuration config) throws SetUpException {
+        super.configure(config);
+        
+        config.registerSetting(NormalizationCache.CACHE_DIR);
+        config.registerSetting(NormalizationCache.MAX_SIZE);
+        File cacheDir = config.getValue(NormalizationCache.CACHE_DIR);
+        this.normalizationCache = cacheDir != null ? new NormalizationCache(cacheDir,
+                config.getValue(NormalizationCache.MAX_SIZE) * 1024L * 1024L,
+                // the output is written in the default charset
+                NORMALIZER_VERSION + "-" + Charset.defaultCharset().name()) : null;
+    }
+    
+    /**
+     * Sets the cache for normalization results. This is usually created from the configuration.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param normalizationCache The cache; <code>null</code> disables caching.
+     */
+    void setNormalizationCache(@Nullable NormalizationCache normalizationCache) {
+        this.normalizationCache = normalizationCache;
+    }
+    
     @Override
     protected void runImpl() throws SetUpException {
         String logPrefix = "Busybox Preparation: ";
         
         LOGGER.logDebug(logPrefix + "Copy Source Tree");
         try {
-            copyOriginal();
+            backupOriginal();
         } catch (IOException e) {
             throw new SetUpException("Couldn't copy source tree", e);
         }
         
-        LOGGER.logDebug(logPrefix + "Execute make allyesconfig prepare");
-        try {
-            if (!executeMakeAllyesconfigPrepare(getSourceTree())) {
-                if (!executeMakeAllyesconfig(getSourceTree())) {
-                    File subdir = new File(getSourceTree(), "busybox");
-                    if (subdir.exists()) {
-                        if(!executeMakeAllyesconfigPrepare(new File(getSourceTree(), "busybox"))) {
-                            if(!executeMakeAllyesconfig(new File(getSourceTree(), "busybox"))) {
-                                throw new IOException("");
-                            }
-                        }
-                    } else {
-                        throw new IOException("");
-                    }
-                }
+        if (!isPhaseDone("make")) {
+            LOGGER.logDebug(logPrefix + "Execute make allyesconfig prepare");
+            try {
+                executeMake();
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't execute 'make allyesconfig prepare'", e);
             }
-        } catch (IOException e) {
-            throw new SetUpException("Couldn't execute 'make allyesconfig prepare'", e);
+            markPhaseDone("make");
         }
+        restrictToSparseTargets();
         
-        LOGGER.logDebug(logPrefix + "Renaming Conig.in to Kconfig");
-        try {
-            for (File file : findFilesByName(getSourceTree(), "Config.in")) {
-                replaceInFile(file, new File(file.getParentFile(), "Kconfig"), "Config.in", "Kconfig");
-            }
-        } catch (IOException exc) {
-            throw new SetUpException("Couldn't replace in Config.in files", exc);
+        if (!isPhaseDone("kconfig")) {
+            LOGGER.logDebug(logPrefix + "Renaming Conig.in to Kconfig");
+            FileTransform transform = replacing("Config.in", "Kconfig");
+            List<@NonNull File> files = findFilesInSourceTree("Config.in");
+            transformFiles("kconfig", files, "Kconfig", (file) -> transform);
+            markPhaseDone("kconfig");
         }
         
-        LOGGER.logDebug(logPrefix + "Renaming obj- list");
-        try {
-            for (File file : findFilesByName(getSourceTree(), "Kbuild")) {
-                replaceInFile(file, file, "lib-", "obj-");
-            }
-        } catch (IOException exc) {
-            throw new SetUpException("Couldn't replace in Kbuild files", exc);
+        if (!isPhaseDone("kbuild")) {
+            LOGGER.logDebug(logPrefix + "Renaming obj- list");
+            FileTransform transform = replacing("lib-", "obj-");
+            List<@NonNull File> files = findFilesInSourceTree("Kbuild");
+            transformFiles("kbuild", files, null, (file) -> transform);
+            markPhaseDone("kbuild");
         }
         
         LOGGER.logDebug(logPrefix + "Making Makefile with dummy targets");
@@ -103,18 +131,83 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
             throw new SetUpException("Couldn't write Makefile", e);
         }
 
-        if (super.normalizeSources) {
+        if (super.normalizeSources && !isPhaseDone("normalize")) {
             LOGGER.logDebug(logPrefix + "Normalizing sourcecode");
+            List<@NonNull File> files = new ArrayList<>();
             try {
-                normalizeDir(getSourceTree());
+                findFilesToNormalize(getSourceTree(), files);
             } catch (IOException e) {
                 throw new SetUpException("Couldn't normalize file contents", e);
             }
+            transformFiles("normalize", files, null, NormalizeJob::new);
+            markPhaseDone("normalize");
+            
+            NormalizationCache cache = this.normalizationCache;
+            if (cache != null) {
+                try {
+                    cache.trim();
+                } catch (IOException e) {
+                    LOGGER.logException("Couldn't trim normalization cache", e);
+                }
+            }
         }
         
         LOGGER.logDebug(logPrefix + "Done");
     }
     
+    /**
+     * Executes 'make allyesconfig prepare' (or only 'make allyesconfig', if that fails) in the source tree, or in
+     * the busybox sub-directory of it.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}.
+     * 
+     * @throws IOException If all attempts to execute make fail.
+     */
+    void executeMake() throws IOException {
+        // make rewrites the configuration and the generated headers of an earlier build in place
+        for (File directory : new File[] {getSourceTree(), new File(getSourceTree(), "busybox")}) {
+            backup(new File(directory, ".config"));
+            backup(new File(directory, ".config.old"));
+            backupTree(new File(directory, "include"));
+        }
+        
+        if (!executeMakeAllyesconfigPrepare(getSourceTree())) {
+            if (!executeMakeAllyesconfig(getSourceTree())) {
+                File subdir = new File(getSourceTree(), "busybox");
+                if (subdir.exists()) {
+                    if (!executeMakeAllyesconfigPrepare(new File(getSourceTree(), "busybox"))) {
+                        if (!executeMakeAllyesconfig(new File(getSourceTree(), "busybox"))) {
+                            throw new IOException("");
+                        }
+                    }
+                } else {
+                    throw new IOException("");
+                }
+            }
+        }
+    }
+    
+    @Override
+    protected boolean isBuildRelevant(@NonNull String relativePath, @NonNull List<@NonNull String> changedLines) {
+        boolean result = super.isBuildRelevant(relativePath, changedLines) || relativePath.endsWith(".src");
+        
+        // Config.in and Kbuild files are generated from special comments in the source files
+        for (int i = 0; !result && i < changedLines.size(); i++) {
+            String line = notNull(changedLines.get(i)).trim();
+            result = line.startsWith("//config:") || line.startsWith("//kbuild:")
+                    || line.startsWith("//applet:") || line.startsWith("//usage:");
+        }
+        return result;
+    }
+    
+    @Override
+    protected void transformChangedFile(@NonNull File file) throws IOException {
+        if (super.normalizeSources && (file.getName().endsWith(".h") || file.getName().endsWith(".c"))
+                && !isExcluded(file)) {
+            normalizeFile(file);
+        }
+    }
+    
     /**
      * Executes 'make allyesconfig prepare' to prepare the busybox tree for analysis.
      * 
@@ -127,7 +220,9 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
         ByteArrayOutputStream stdout = new ByteArrayOutputStream();
         ByteArrayOutputStream stderr = new ByteArrayOutputStream();
         File prepareFailedFlag = new File(getSourceTree(), "PREPARE_FAILED");
+        FlightRecorderEvents.Event event = FlightRecorderEvents.beginMake();
         boolean success = Util.executeProcess(processBuilder, "make", stdout, stderr, 0);
+        FlightRecorderEvents.commitMake(event, processBuilder, success);
         if (success) {
             if (prepareFailedFlag.exists()) {
                 processBuilder = new ProcessBuilder("rm", "PREPARE_FAILED");
@@ -158,7 +253,9 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
         ByteArrayOutputStream stdout = new ByteArrayOutputStream();
         ByteArrayOutputStream stderr = new ByteArrayOutputStream();
 
+        FlightRecorderEvents.Event event = FlightRecorderEvents.beginMake();
         boolean success = Util.executeProcess(processBuilder, "make", stdout, stderr, 0);
+        FlightRecorderEvents.commitMake(event, processBuilder, success);
         if (!success) {
             LOGGER.logWarning("Couldn't execute 'make allyesconfig", "stdout:", stdout.toString(),
                     "stderr:", stderr.toString());
@@ -167,61 +264,376 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
     }
     
     /**
-     * Starting point for modifying the c preprocessor source files based on Manuel Zerpies Busyfix.
+     * Starting point for modifying the c preprocessor source files based on Manuel Zerpies Busyfix: finds all
+     * source files that need to be normalized.
      *
-     * @param dir The directory to normalize all source files in.
+     * @param dir The directory to find the source files in.
+     * @param result The list to add the files to normalize to.
      * 
-     * @throws IOException If writing the replaced files fails.
+     * @throws IOException If reading an already normalized file for the {@link FeatureIndex} fails.
      */
-    private static void normalizeDir(@NonNull File dir) throws IOException {
+    private void findFilesToNormalize(@NonNull File dir, @NonNull List<@NonNull File> result) throws IOException {
         File[] files = dir.listFiles();
         if (files != null) {
             for (File file : files) {
+                if (isExcluded(file)) {
+                    continue;
+                }
                 if (file.isDirectory()) {
-                    normalizeDir(file);
-                } else if (file.getName().endsWith(".h") || file.getName().endsWith(".c")) {
-                    normalizeFile(file);
+                    findFilesToNormalize(file, result);
+                } else if ((file.getName().endsWith(".h") || file.getName().endsWith(".c"))
+                        && !isExcludedFromNormalization(file)) {
+                    if (!isFileDone("normalize", file)) {
+                        result.add(file);
+                    } else if (isFeatureIndexEnabled()) {
+                        indexNormalizedFile(file);
+                    }
                 }
             }
         }
     }
     
     /**
-     * Normalizes a single file in style of Busyfix.
+     * Records the feature references of a file that was already normalized by an earlier, interrupted run. The file
+     * is decoded leniently like the normalized content, since files that don't need normalization are left
+     * untouched, whatever their encoding.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param file The normalized file.
+     * 
+     * @throws IOException If reading the file fails.
+     */
+    void indexNormalizedFile(@NonNull File file) throws IOException {
+        indexFeatures(file, splitLines(notNull(Files.readAllBytes(file.toPath()))));
+    }
+    
+    /**
+     * Normalizes a single file in style of Busyfix, in the calling thread.
      *
      * @param file The file to normalize.
      * 
      * @throws IOException If writing the replaced file fails.
      */
-    private static void normalizeFile(@NonNull File file) throws IOException {
-        File tempFile;
-        FileOutputStream fos = null;
-        if (file.getName().contains("unicode") || file.getName().contains(".fnt")) {
+    private void normalizeFile(@NonNull File file) throws IOException {
+        if (isExcludedFromNormalization(file)) {
             return;
         }
-
+        backup(file);
+        
+        NormalizeJob job = new NormalizeJob(file);
+        byte[] content = notNull(Files.readAllBytes(file.toPath()));
+        byte[] normalized = job.transform(file, content);
+        if (normalized == content || Arrays.equals(normalized, content)) {
+            // don't rewrite an unchanged file
+            job.beforeCommit(file, file);
+            markFileDone("normalize", file);
+        } else {
+            Files.write(PreparationCheckpoint.getTempFile(file).toPath(), normalized);
+            job.beforeCommit(file, file);
+            commitFile("normalize", file);
+        }
+    }
+    
+    /**
+     * Checks whether the given source file must not be normalized.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}.
+     * 
+     * @param file The source file.
+     * 
+     * @return Whether the file is skipped by the normalization.
+     */
+    static boolean isExcludedFromNormalization(@NonNull File file) {
+        return file.getName().contains("unicode") || file.getName().contains(".fnt");
+    }
+    
+    /**
+     * The normalization of a single file. The content is normalized in a transform thread of the
+     * {@link FileTransformPipeline}; before the normalized file is committed, its line map and feature references
+     * are recorded.
+     */
+    private class NormalizeJob implements FileTransform {
+        
+        private @NonNull File file;
+        
+        private @NonNull List<@NonNull String> outputFile = new ArrayList<>();
+        
+        private LineMap.@NonNull Builder lineMap = new LineMap.Builder();
+        
+        private RewriteTelemetry.@NonNull FileStats stats = RewriteTelemetry.FileStats.NONE;
+        
+        /**
+         * Creates a new {@link NormalizeJob}.
+         * 
+         * @param file The file in the source tree to normalize.
+         */
+        public NormalizeJob(@NonNull File file) {
+            this.file = file;
+        }
+        
+        @Override
+        public byte @NonNull [] transform(@NonNull File source, byte @NonNull [] content) throws IOException {
+            RewriteTelemetry.FileStats stats = getTelemetry().startFile();
+            byte[] result = normalize(content, stats);
+            getTelemetry().finishFile(stats, getRelativePath(file), content.length, result.length);
+            this.stats = stats;
+            return result;
+        }
+        
+        @Override
+        public RewriteTelemetry.@NonNull FileStats getStats() {
+            return stats;
+        }
+        
+        /**
+         * Normalizes the content of the file, or takes it from the {@link NormalizationCache}.
+         * 
+         * @param content The original content of the file.
+         * @param stats The stats to record the rule applications in.
+         * 
+         * @return The normalized content.
+         * 
+         * @throws IOException If splitting the content into lines or accessing the cache fails.
+         */
+        private byte @NonNull [] normalize(byte @NonNull [] content, RewriteTelemetry.@NonNull FileStats stats)
+                throws IOException {
+            if (isAlreadyNormalized(content)) {
+                if (isFeatureIndexEnabled()) {
+                    outputFile = splitLines(content);
+                }
+                return content;
+            }
+            
+            NormalizationCache cache = normalizationCache;
+            String key = null;
+            if (cache != null) {
+                key = cache.getKey(content);
+                NormalizationCache.Entry entry = cache.get(key);
+                if (entry != null) {
+                    lineMap = entry.getLineMap();
+                    if (isFeatureIndexEnabled()) {
+                        outputFile = splitLines(entry.getContent());
+                    }
+                    return entry.getContent();
+                }
+            }
+            
+            String normalized = normalizeContent(new String(content, StandardCharsets.UTF_8), lineMap, outputFile,
+                    stats);
+            if (!isFeatureIndexEnabled()) {
+                outputFile.clear();
+            }
+            byte[] result = notNull(normalized.getBytes(Charset.defaultCharset()));
+            
+            if (cache != null && key != null) {
+                cache.put(key, result, lineMap);
+            }
+            return result;
+        }
+        
+        @Override
+        public void beforeCommit(@NonNull File source, @NonNull File target) throws IOException {
+            writeLineMap(file, lineMap);
+            
+            if (isFeatureIndexEnabled()) {
+                indexFeatures(file, outputFile);
+            }
+        }
+        
+    }
+    
+    /**
+     * Checks cheaply whether the normalization would not change the given content: it contains no ENABLE_ or IF_
+     * macros and no line continuations, only \n line breaks, and a line break at the end.
+     * 
+     * @param content The content of a source file.
+     * 
+     * @return Whether the normalized content would be the same.
+     */
+    private static boolean isAlreadyNormalized(byte @NonNull [] content) {
+        if (!Charset.defaultCharset().equals(StandardCharsets.UTF_8)) {
+            // the normalized content is encoded in the default charset
+            return false;
+        }
+        if (content.length > 0 && content[content.length - 1] != '\n') {
+            return false;
+        }
+        
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            if (b == '\r' || b == '\\' && i + 1 < content.length && content[i + 1] == '\n') {
+                return false;
+            }
+            if (b == '_' && (endsAt(content, i, "IF_") || endsAt(content, i, "ENABLE_"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Checks whether the given ASCII string occurs in the content, ending at the given position.
+     * 
+     * @param content The content to search in.
+     * @param end The position of the last character of the string.
+     * @param string The ASCII string to search.
+     * 
+     * @return Whether the string ends at the given position.
+     */
+    private static boolean endsAt(byte @NonNull [] content, int end, @NonNull String string) {
+        int start = end - string.length() + 1;
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (content[start + i] != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Splits the given normalized content into its lines.
+     * 
+     * @param content The normalized content, with a line break at the end of each line.
+     * 
+     * @return The lines, without line breaks.
+     */
+    private static @NonNull List<@NonNull String> splitLines(byte @NonNull [] content) {
+        List<@NonNull String> result = new ArrayList<>(Arrays.asList(
+                new String(content, Charset.defaultCharset()).split("\n", -1)));
+        result.remove(result.size() - 1); // after the line break of the last line
+        return result;
+    }
+    
+    /**
+     * Normalizes the content of a source file in style of Busyfix.
+     * <p>
+     * Package visibility for the {@link BusyboxFloridaPreparation}.
+     * 
+     * @param content The content of the source file.
+     * @param lineMap The builder to record the original line of each output line in.
+     * @param outputLines The list to add the lines of the normalized content to.
+     * 
+     * @return The normalized content.
+     * 
+     * @throws IOException If splitting the content into lines fails.
+     */
+    static @NonNull String normalizeContent(@NonNull String content, LineMap.@NonNull Builder lineMap,
+            @NonNull List<@NonNull String> outputLines) throws IOException {
+        return normalizeContent(content, lineMap, outputLines, RewriteTelemetry.FileStats.NONE);
+    }
+    
+    /**
+     * Normalizes the content of a source file in style of Busyfix, and records the applied rules.
+     * 
+     * @param content The content of the source file.
+     * @param lineMap The builder to record the original line of each output line in.
+     * @param outputLines The list to add the lines of the normalized content to.
+     * @param stats The stats to record the rule applications in.
+     * 
+     * @return The normalized content.
+     * 
+     * @throws IOException If splitting the content into lines fails.
+     */
+    private static @NonNull String normalizeContent(@NonNull String content, LineMap.@NonNull Builder lineMap,
+            @NonNull List<@NonNull String> outputLines, RewriteTelemetry.@NonNull FileStats stats)
+            throws IOException {
+        
         List<@NonNull String> inputFile = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                new FileInputStream(file.getPath()), StandardCharsets.UTF_8))) {
+        List<@NonNull Integer> originalLines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new StringReader(content))) {
             String line;
             while ((line = br.readLine()) != null) {
                 inputFile.add(line);
             }
-            file.delete();
-            tempFile = file;
-            fos = new FileOutputStream(tempFile);
         }
         
-        inputFile = substituteLineContinuation(inputFile);
+        long start = stats.start();
+        int numLines = inputFile.size();
+        inputFile = substituteLineContinuation(inputFile, originalLines);
+        stats.record(RewriteTelemetry.Rule.LINE_CONTINUATION, start, numLines - inputFile.size());
+        
+        StringBuilder result = new StringBuilder(content.length() + content.length() / 8);
+        for (int i = 0; i < inputFile.size(); i++) {
+            String normalized = normalizeLine(notNull(inputFile.get(i)), stats);
+            result.append(normalized).append('\n');
+            
+            // normalization may insert line breaks; the index and the line map refer to lines of the output
+            for (String outputLine : normalized.split("\n", -1)) {
+                outputLines.add(notNull(outputLine));
+                lineMap.add(originalLines.get(i));
+            }
+        }
+        return notNull(result.toString());
+    }
+    
+    /**
+     * Records all CONFIG_ references in the given normalized file for the {@link FeatureIndex}. A reference in an
+     * #if or #elif spans the whole conditional block, up to the matching #elif, #else or #endif; all other references
+     * span only their line.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param file The normalized file.
+     * @param lines The lines of the normalized file.
+     */
+    void indexFeatures(@NonNull File file, @NonNull List<@NonNull String> lines) {
+        // each entry holds the start line and the features of an open conditional block
+        Deque<@NonNull List<@NonNull String>> features = new ArrayDeque<>();
+        Deque<Integer> starts = new ArrayDeque<>();
+        
+        for (int i = 0; i < lines.size(); i++) {
+            int lineNumber = i + 1;
+            String line = notNull(lines.get(i));
+            String directive = line.trim().startsWith("#") ? line.trim().substring(1).trim() : "";
+            
+            if (directive.startsWith("el") || directive.startsWith("endif")) {
+                if (!starts.isEmpty()) {
+                    int start = starts.pop();
+                    for (String feature : features.pop()) {
+                        addFeatureReference(feature, file, start, lineNumber);
+                    }
+                }
+            }
+            
+            if (directive.startsWith("if") || directive.startsWith("el")) {
+                starts.push(lineNumber);
+                features.push(findFeatures(line));
+            } else if (!directive.startsWith("endif")) {
+                for (String feature : findFeatures(line)) {
+                    addFeatureReference(feature, file, lineNumber, lineNumber);
+                }
+            }
+        }
         
-        try (BufferedWriter bwr = new BufferedWriter(new OutputStreamWriter(fos))) {
-            for (String line : inputFile) {
-                bwr.write(normalizeLine(line));
-                bwr.write('\n');
+        // unclosed blocks span until the end of the file
+        while (!starts.isEmpty()) {
+            int start = starts.pop();
+            for (String feature : features.pop()) {
+                addFeatureReference(feature, file, start, lines.size());
             }
         }
     }
     
+    /**
+     * Finds all CONFIG_ features referenced in the given line.
+     * 
+     * @param line The line to search in.
+     * 
+     * @return The referenced features, in order of appearance.
+     */
+    private static @NonNull List<@NonNull String> findFeatures(@NonNull String line) {
+        List<@NonNull String> result = new ArrayList<>();
+        Matcher matcher = FEATURE_PATTERN.matcher(line);
+        while (matcher.find()) {
+            result.add(notNull(matcher.group()));
+        }
+        return result;
+    }
+    
     /**
      * Substitutes line continuation in Busybox for easier transformation.
      * <p>
@@ -232,61 +644,108 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
      * @return The list of lines with substituted line continuation
      */
     static @NonNull List<@NonNull String> substituteLineContinuation(@NonNull List<@NonNull String> inputFile) {
-        int start = -1;
-        int end = -1;
+        return substituteLineContinuation(inputFile, new ArrayList<>());
+    }
+    
+    /**
+     * Substitutes line continuation in Busybox for easier transformation, and records which original line each
+     * resulting line starts at.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param inputFile The input file as a list of lines.
+     * @param originalLines The list to add the original (1-based) line number of each resulting line to.
+     * 
+     * @return The list of lines with substituted line continuation
+     */
+    static @NonNull List<@NonNull String> substituteLineContinuation(@NonNull List<@NonNull String> inputFile,
+            @NonNull List<@NonNull Integer> originalLines) {
         List<@NonNull String> toReturn = new ArrayList<>(inputFile.size());
-
+        TextTransformer.LineSink sink = (line, originalLine) -> {
+            toReturn.add(line);
+            originalLines.add(originalLine);
+        };
+        
+        LineContinuation continuation = new LineContinuation();
         for (int i = 0; i < inputFile.size(); i++) {
-            if (notNull(inputFile.get(i)).endsWith("\\")) {
-                if (start == -1) {
-                    start = i;
-                }
-                end = i;
-                continue;
-            } else {
-                end = i;
-            }
-            if (start != -1) {
-                String toAdd = "";
-                for (int j = start; j <= end; j++) {
-                    String line = notNull(inputFile.get(j));
-                    if (j != end) {
-                        line = line.substring(0, line.length() - 1); // remove trailing \
-                    }
-                    toAdd += line;
+            continuation.line(notNull(inputFile.get(i)), i + 1, sink);
+        }
+        continuation.end(sink);
+        return toReturn;
+    }
+    
+    /**
+     * Joins lines that are continued with a trailing backslash into a single line, which is attributed to the first
+     * of the joined lines. A backslash at the end of the last line is removed.
+     * <p>
+     * Package visibility for {@link TextTransformer#lineContinuation()}.
+     */
+    static class LineContinuation implements TextTransformer {
+        
+        /**
+         * The joined content of the continued lines so far; <code>null</code> if the previous line was not continued.
+         */
+        private @Nullable StringBuilder pending;
+        
+        private int pendingStart;
+        
+        @Override
+        public void line(@NonNull String line, int originalLine, @NonNull LineSink out) {
+            StringBuilder pending = this.pending;
+            if (line.endsWith("\\")) {
+                if (pending == null) {
+                    pending = new StringBuilder();
+                    this.pending = pending;
+                    pendingStart = originalLine;
                 }
-                toReturn.add(toAdd);
-                start = -1;
-                end = -1;
+                pending.append(line, 0, line.length() - 1); // remove trailing \
+                
+            } else if (pending != null) {
+                out.line(notNull(pending.append(line).toString()), pendingStart);
+                this.pending = null;
+                
             } else {
-                toReturn.add(inputFile.get(i));
-                start = -1;
-                end = -1;
+                out.line(line, originalLine);
             }
         }
         
-        // we found a \ at the last line of the file
-        if (start != -1) {
-            String toAdd = "";
-            for (int j = start; j <= end; j++) {
-                String line = notNull(inputFile.get(j));
-                line = line.substring(0, line.length() - 1); // remove trailing \
-                toAdd += line;
+        @Override
+        public void end(@NonNull LineSink out) {
+            // we found a \ at the last line of the file
+            StringBuilder pending = this.pending;
+            if (pending != null) {
+                out.line(notNull(pending.toString()), pendingStart);
+                this.pending = null;
             }
-            toReturn.add(toAdd);
         }
-
-        return toReturn;
+        
     }
-
+    
+    /**
+     * Normalizes a single line in style of Busyfix, as a {@link TextTransformer}. Normalization may insert line
+     * breaks; all resulting lines are attributed to the original line of the input line.
+     * <p>
+     * Package visibility for {@link TextTransformer#busyboxNormalization()}.
+     * 
+     * @param line The line to normalize, with line continuations already joined.
+     * @param originalLine The original line of the line.
+     * @param out The sink for the normalized lines.
+     */
+    static void normalizeLine(@NonNull String line, int originalLine, TextTransformer.@NonNull LineSink out) {
+        for (String normalized : normalizeLine(line, RewriteTelemetry.FileStats.NONE).split("\n", -1)) {
+            out.line(notNull(normalized), originalLine);
+        }
+    }
+    
     /**
      * Normalizes a single line in style of Busyfix.
      *
      * @param line The line to normalize
+     * @param stats The stats to record the rule applications in.
      * 
      * @return The normalized line.
      */
-    private static @NonNull String normalizeLine(@NonNull String line) {
+    private static @NonNull String normalizeLine(@NonNull String line, RewriteTelemetry.@NonNull FileStats stats) {
         int index;
         String temp;
         if (line.length() == 0) {
@@ -298,24 +757,29 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
         }
 
         // don't normalize comments
+        long start = stats.start();
         if (line.contains("//")) {
             index = line.indexOf("//");
-            return normalizeLine(notNull(line.substring(0, index))) + line.substring(index);
+            stats.record(RewriteTelemetry.Rule.COMMENT_SPLIT, start, 1);
+            return normalizeLine(notNull(line.substring(0, index)), stats) + line.substring(index);
         }
         if (line.contains("/*") || line.contains("*/") || line.replace("\\t", " ").trim().startsWith("*")) {
             // lines that start with or are block comments
             if (line.replace("\\t", " ").trim().startsWith("/*") || line.replace("\\t", " ").trim().startsWith("*")) {
                 // fully comment
                 if (!line.contains("*/")) {
+                    stats.record(RewriteTelemetry.Rule.COMMENT_SPLIT, start, 0);
                     return line;
 
                 } else {
+                    stats.record(RewriteTelemetry.Rule.COMMENT_SPLIT, start, 1);
                     return line.substring(0, line.indexOf("*/") + 2)
-                            + normalizeLine(notNull(line.substring(line.indexOf("*/") + 2)));
+                            + normalizeLine(notNull(line.substring(line.indexOf("*/") + 2)), stats);
                 }
 
             } else if (line.contains("/*")) {
-                return normalizeLine(notNull(line.substring(0, line.indexOf("/*"))))
+                stats.record(RewriteTelemetry.Rule.COMMENT_SPLIT, start, 1);
+                return normalizeLine(notNull(line.substring(0, line.indexOf("/*"))), stats)
                         + line.substring(line.indexOf("/*"));
 
             }
@@ -325,13 +789,31 @@ public class PrepareBusybox extends AbstractBusybootPreparation {
                 || line.contains("/*if (!memcmp(p, \"IF_\", 3)) ...*/")) {
             return line;
         }
-        temp = normalizeDefinedEnableMacro(line);
-        temp = normalizeEnableMacro(temp);
+        start = stats.record(RewriteTelemetry.Rule.COMMENT_SPLIT, start, 0);
+        
+        temp = normalizeEnableMacro(normalizeDefinedEnableMacro(line));
+        start = stats.record(RewriteTelemetry.Rule.ENABLE_MACRO, start, changed(line, temp));
+        String before = temp;
         temp = normalizeEnableInline(temp);
+        start = stats.record(RewriteTelemetry.Rule.ENABLE_INLINE, start, changed(before, temp));
+        before = temp;
         temp = normalizeIf(temp);
+        stats.record(RewriteTelemetry.Rule.IF_EXPANSION, start, changed(before, temp));
         return temp;
     }
     
+    /**
+     * Checks whether a rule changed a line, for the {@link RewriteTelemetry}.
+     * 
+     * @param before The line before the rule was applied.
+     * @param after The line after the rule was applied.
+     * 
+     * @return 1 if the line was changed, 0 otherwise.
+     */
+    private static int changed(@NonNull String before, @NonNull String after) {
+        return before.equals(after) ? 0 : 1;
+    }
+    
     /**
      * Checks whether the given line is a #define or #undef line.
      *
@@ -15,16 +15,36 @@
  */
 package net.ssehub.kernel_haven.busyboot;
 
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.config.Setting;
 import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
 
 /**
  * The Class PrepareCoreboot implements the Interface IPreparetion and
@@ -35,22 +55,124 @@ import net.ssehub.kernel_haven.util.Util;
  */
 public class PrepareCoreboot extends AbstractBusybootPreparation {
 
+    public static final @NonNull Setting<@NonNull String> KCONFIG_COLLECTION
+            = new Setting<>("preparation.coreboot.kconfig_collection", Setting.Type.STRING, true, "copy", ""
+            + "How util/kconfig and build/util/kconfig are collected into src/scripts/kconfig. copy: both folders "
+            + "are copied (build/util/kconfig overwrites util/kconfig). symlink or hardlink: the merged folder is "
+            + "built from links in one pass, with the same precedence; files that are modified later are copied.");
+    
+    public static final @NonNull Setting<@Nullable String> BOARDS
+            = new Setting<>("preparation.coreboot.boards", Setting.Type.STRING, false, null, ""
+            + "Comma-separated defconfig files of mainboards, relative to the Coreboot root (e.g. "
+            + "configs/config.emulation_qemu_x86_i440fx). For each, 'make defconfig' runs in parallel in its own build "
+            + "directory, and the files that differ from the allyesconfig build are kept as an overlay over the "
+            + "Coreboot root in <source tree>Boards/<board>.");
+    
+    public static final @NonNull Setting<@NonNull Integer> BOARD_THREADS
+            = new Setting<>("preparation.coreboot.board_threads", Setting.Type.INTEGER, true, "0", ""
+            + "The number of boards that are configured in parallel. 0 means the number of available processors.");
+    
+    /**
+     * The files in scripts/kconfig that are modified by this preparation, and thus must not be links.
+     */
+    private static final @NonNull Set<@NonNull String> MODIFIED_KCONFIG_FILES = new HashSet<>(Arrays.asList("lkc.h"));
+    
+    private @NonNull String kconfigCollection = "copy";
+    
+    /**
+     * The defconfig files of the boards to configure, relative to the Coreboot root.
+     */
+    private @NonNull List<@NonNull String> boards = new ArrayList<>();
+    
+    private int boardThreads = 1;
+    
+    @Override
+    void configure(@NonNull Configuration config) throws SetUpException {
+        super.configure(config);
+        
+        config.registerSetting(KCONFIG_COLLECTION);
+        String mode = config.getValue(KCONFIG_COLLECTION);
+        if (!mode.equals("copy") && !mode.equals("symlink") && !mode.equals("hardlink")) {
+            throw new SetUpException(KCONFIG_COLLECTION.getKey() + " must be either copy, symlink or hardlink, got "
+                    + mode);
+        }
+        this.kconfigCollection = mode;
+        
+        config.registerSetting(BOARDS);
+        config.registerSetting(BOARD_THREADS);
+        List<@NonNull String> boards = new ArrayList<>();
+        String value = config.getValue(BOARDS);
+        for (String board : value != null ? value.split(",") : new String[0]) {
+            if (!board.trim().isEmpty()) {
+                boards.add(notNull(board.trim()));
+            }
+        }
+        setBoards(boards, config.getValue(BOARD_THREADS));
+    }
+    
+    /**
+     * Changes how the Kconfig infos are collected; see {@link #KCONFIG_COLLECTION}.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param kconfigCollection Either copy, symlink or hardlink.
+     */
+    void setKconfigCollection(@NonNull String kconfigCollection) {
+        this.kconfigCollection = kconfigCollection;
+    }
+    
+    /**
+     * Changes the boards that are configured; see {@link #BOARDS}.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param boards The defconfig files of the boards, relative to the Coreboot root.
+     * @param boardThreads The number of boards to configure in parallel; values less than 1 mean the number of
+     *      available processors.
+     * 
+     * @throws SetUpException If two defconfig files have the same board name.
+     */
+    void setBoards(@NonNull List<@NonNull String> boards, int boardThreads) throws SetUpException {
+        Set<@NonNull String> names = new HashSet<>();
+        for (String board : boards) {
+            if (!names.add(getBoardName(board))) {
+                throw new SetUpException("Duplicate board " + getBoardName(board) + " in " + BOARDS.getKey());
+            }
+        }
+        this.boards = boards;
+        this.boardThreads = boardThreads > 0 ? boardThreads : Runtime.getRuntime().availableProcessors();
+    }
+    
     @Override
     protected void runImpl() throws SetUpException {
         String logPrefix = "Coreboot Preparation: ";
         
         LOGGER.logDebug(logPrefix + "Copy Source Tree");
         try {
-            copyOriginal();
+            backupOriginal();
         } catch (IOException e) {
             throw new SetUpException("Couldn't copy source tree", e);
         }
         
-        LOGGER.logDebug(logPrefix + "Execute make allyesconfig");
-        try {
-            executeMakeAllyesconfig();
-        } catch (IOException e) {
-            throw new SetUpException("Couldn't execute 'make allyesconfig'", e);
+        if (!isPhaseDone("make")) {
+            LOGGER.logDebug(logPrefix + "Execute make allyesconfig");
+            try {
+                executeMakeAllyesconfig();
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't execute 'make allyesconfig'", e);
+            }
+            markPhaseDone("make");
+        }
+        restrictToSparseTargets();
+        
+        if (!boards.isEmpty() && !isPhaseDone("boards")) {
+            LOGGER.logDebug(logPrefix + "Execute make defconfig for " + boards.size() + " boards");
+            try {
+                configureBoards();
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't configure boards", e);
+            }
+            markPhaseDone("boards");
         }
         
         LOGGER.logDebug(logPrefix + "Making Makefile with dummy targets");
@@ -60,43 +182,48 @@ public class PrepareCoreboot extends AbstractBusybootPreparation {
             throw new SetUpException("Couldn't write Makefile", e);
         }
         
-        LOGGER.logDebug(logPrefix + "Rename Makefile.inc to Kbuild and rename lists");
-        List<File> matchingFiles = findFilesByName(getSourceTree(), "Makefile.inc");
-        try {
-            for (File source : matchingFiles) {
-                File target = new File(source.getParentFile(), "Kbuild");
-                
-                String content;
-                try (FileInputStream in = new FileInputStream(source)) {
-                    content = Util.readStream(in);
-                }
-                source.delete();
-
-                content = replaceStuff(content);
-                
-                try (FileOutputStream out = new FileOutputStream(target)) {
-                    out.write(content.getBytes(StandardCharsets.UTF_8));
-                }
-            }
-        } catch (IOException e) {
-            throw new SetUpException("Couldn't replace in Makefiles", e);
+        if (!isPhaseDone("kbuild")) {
+            LOGGER.logDebug(logPrefix + "Rename Makefile.inc to Kbuild and rename lists");
+            List<@NonNull File> files = findFilesInSourceTree("Makefile.inc");
+            transformFiles("kbuild", files, "Kbuild", (file) -> new MakefileConversion());
+            markPhaseDone("kbuild");
         }
         
-        LOGGER.logDebug(logPrefix + "Copying Kconfig information");
-        try {
-            collectKconfigInfos();
-        } catch (IOException e) {
-            throw new SetUpException("Couldn't copy Kconfig information", e);
+        if (!isPhaseDone("kconfig")) {
+            LOGGER.logDebug(logPrefix + "Copying Kconfig information");
+            try {
+                collectKconfigInfos();
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't copy Kconfig information", e);
+            }
+            markPhaseDone("kconfig");
         }
         
-        LOGGER.logDebug(logPrefix + "initialize extern int");
-        try {
-            initializeExternInt();
-        } catch (IOException e) {
-            throw new SetUpException("Couldn't replace in variable initialization", e);
+        if (!isPhaseDone("extern")) {
+            LOGGER.logDebug(logPrefix + "initialize extern int");
+            try {
+                initializeExternInt();
+            } catch (IOException e) {
+                throw new SetUpException("Couldn't replace in variable initialization", e);
+            }
+            markPhaseDone("extern");
         }
     }
     
+    @Override
+    protected boolean isBuildRelevant(@NonNull String relativePath, @NonNull List<@NonNull String> changedLines) {
+        return super.isBuildRelevant(relativePath, changedLines) || relativePath.startsWith("util/kconfig/")
+                || relativePath.startsWith("configs/");
+    }
+    
+    /**
+     * Stages the parent directory of the source tree, since make and util/kconfig are run there.
+     */
+    @Override
+    protected @NonNull File getStagingRoot() {
+        return notNull(getSourceTree().getParentFile());
+    }
+    
     /**
      * Executes 'make allyesconfig' to prepare the coreboot tree for analysis.
      * 
@@ -105,26 +232,193 @@ public class PrepareCoreboot extends AbstractBusybootPreparation {
     private void executeMakeAllyesconfig() throws IOException {
         ProcessBuilder processBuilder = new ProcessBuilder("make", "allyesconfig");
         processBuilder.directory(getSourceTree().getParentFile());
-        
+        executeMake(processBuilder);
+    }
+    
+    /**
+     * Executes make, and logs its output if it fails.
+     * 
+     * @param processBuilder The make process to execute.
+     * 
+     * @throws IOException If execution of make fails.
+     */
+    private static void executeMake(@NonNull ProcessBuilder processBuilder) throws IOException {
         ByteArrayOutputStream stdout = new ByteArrayOutputStream();
         ByteArrayOutputStream stderr = new ByteArrayOutputStream();
         
+        FlightRecorderEvents.Event event = FlightRecorderEvents.beginMake();
         boolean success = Util.executeProcess(processBuilder, "make", stdout, stderr, 0);
+        FlightRecorderEvents.commitMake(event, processBuilder, success);
         if (!success) {
-            LOGGER.logError("Couldn't execute 'make allyesconfig'", "stdout:", stdout.toString(),
-                    "stderr:", stderr.toString());
+            LOGGER.logError("Couldn't execute '" + String.join(" ", processBuilder.command()) + "'",
+                    "stdout:", stdout.toString(), "stderr:", stderr.toString());
             throw new IOException("make returned failure");
         }
     }
     
+    /**
+     * Runs 'make defconfig' for all {@link #BOARDS} in parallel. Each board gets its own .config and build directory
+     * in {@link #getBoardsDir()}, via the DOTCONFIG and obj variables of the Coreboot Makefile. Afterwards, all files
+     * that are equal to the ones of the allyesconfig build are removed, so that only an overlay over the shared tree
+     * remains. This must run before the Makefile.inc files are converted.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @throws IOException If make fails for any of the boards.
+     */
+    void configureBoards() throws IOException {
+        File root = notNull(getSourceTree().getParentFile());
+        File boardsDir = getBoardsDir();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(boardThreads);
+        List<@NonNull Future<?>> builds = new ArrayList<>();
+        try {
+            for (String board : boards) {
+                builds.add(executor.submit(() -> {
+                    configureBoard(root, board, new File(boardsDir, getBoardName(board)));
+                    return null;
+                }));
+            }
+            ParallelTreeCopier.waitFor(builds);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs 'make defconfig' for a single board, and reduces its output to an overlay.
+     * 
+     * @param root The Coreboot root, which contains the Makefile.
+     * @param board The defconfig file of the board, relative to the Coreboot root.
+     * @param overlay The directory for the .config and the build directory of the board. Replaced if it exists.
+     * 
+     * @throws IOException If the defconfig file doesn't exist, or make fails.
+     */
+    private static void configureBoard(@NonNull File root, @NonNull String board, @NonNull File overlay)
+            throws IOException {
+        File defconfig = new File(root, board);
+        if (!defconfig.isFile()) {
+            throw new FileNotFoundException("Board configuration " + defconfig + " doesn't exist");
+        }
+        if (overlay.exists()) {
+            Util.deleteFolder(overlay);
+        }
+        File obj = new File(overlay, "build");
+        obj.mkdirs();
+        
+        ProcessBuilder processBuilder = new ProcessBuilder("make", "obj=" + obj.getAbsolutePath(),
+                "DOTCONFIG=" + new File(overlay, ".config").getAbsolutePath(),
+                "KBUILD_DEFCONFIG=" + defconfig.getAbsolutePath(), "defconfig");
+        processBuilder.directory(root);
+        executeMake(processBuilder);
+        
+        removeShared(notNull(new File(root, "build").toPath()), notNull(obj.toPath()));
+    }
+    
+    /**
+     * Removes all files from the build directory of a board that are equal to the ones in the shared build
+     * directory, and the directories that become empty.
+     * 
+     * @param shared The shared build directory of the allyesconfig build.
+     * @param obj The build directory of the board.
+     * 
+     * @throws IOException If reading or deleting files fails.
+     */
+    private static void removeShared(@NonNull Path shared, @NonNull Path obj) throws IOException {
+        Files.walkFileTree(obj, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path sharedFile = shared.resolve(obj.relativize(file));
+                if (attrs.isRegularFile() && Files.isRegularFile(sharedFile) && Files.size(sharedFile) == attrs.size()
+                        && Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(sharedFile))) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                try (DirectoryStream<Path> content = Files.newDirectoryStream(dir)) {
+                    if (!content.iterator().hasNext()) {
+                        Files.delete(dir);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+        });
+    }
+    
+    /**
+     * Returns the directory that contains the overlays of the {@link #BOARDS}.
+     * 
+     * @return The directory next to the source tree, with suffix Boards.
+     */
+    protected @NonNull File getBoardsDir() {
+        return new File(getSourceTree().getParentFile(), getSourceTree().getName() + "Boards");
+    }
+    
+    /**
+     * Returns the name of a board, as used for its overlay directory.
+     * 
+     * @param board The defconfig file of the board, e.g. configs/config.emulation_qemu_x86_i440fx.
+     * 
+     * @return The file name without the config. prefix, e.g. emulation_qemu_x86_i440fx.
+     */
+    static @NonNull String getBoardName(@NonNull String board) {
+        String name = notNull(new File(board).getName());
+        return name.startsWith("config.") ? notNull(name.substring("config.".length())) : name;
+    }
+    
+    /**
+     * The conversion of a single Makefile.inc for the Kbuild file, which records the conversion in the
+     * {@link RewriteTelemetry}.
+     */
+    private class MakefileConversion implements FileTransform {
+        
+        private RewriteTelemetry.@NonNull FileStats stats = RewriteTelemetry.FileStats.NONE;
+        
+        /**
+         * Converts the content of a Makefile.inc.
+         * 
+         * @param file The Makefile.inc in the source tree.
+         * @param content The UTF-8 encoded content of the Makefile.inc.
+         * 
+         * @return The converted content, UTF-8 encoded.
+         */
+        @Override
+        public byte @NonNull [] transform(@NonNull File file, byte @NonNull [] content) {
+            stats = getTelemetry().startFile();
+            String original = new String(content, StandardCharsets.UTF_8);
+            long start = stats.start();
+            String converted = replaceStuff(original);
+            stats.record(RewriteTelemetry.Rule.COREBOOT_STAGE_PREFIX, start, converted.equals(original) ? 0 : 1);
+            byte[] result = notNull(converted.getBytes(StandardCharsets.UTF_8));
+            getTelemetry().finishFile(stats, getRelativePath(file), content.length, result.length);
+            return result;
+        }
+        
+        @Override
+        public RewriteTelemetry.@NonNull FileStats getStats() {
+            return stats;
+        }
+        
+    }
+    
     /**
      * Replaces the Name of the Makefile.inc and the list of files to be compiled.
+     * <p>
+     * Package visibility for {@link TextTransformer#corebootKbuild()}, which applies it line by line.
      *
      * @param content
      *            the original string
      * @return the changed string
      */
-    private String replaceStuff(String content) {
+    static @NonNull String replaceStuff(@NonNull String content) {
         content = content.replaceAll("Makefile.inc", "Kbuild");
         content = content.replaceAll("ramstage-", "obj-");
         content = content.replaceAll("romstage-", "obj-");
@@ -134,27 +428,122 @@ public class PrepareCoreboot extends AbstractBusybootPreparation {
         content = content.replaceAll("cpu_microcode-", "obj-");
         content = content.replaceAll("verstage-", "obj-");
         content = content.replaceAll("subdirs-y", "obj-y");
-        return content;
+        return notNull(content);
     }
 
     /**
      * Collects the kconfig infos from build/util/kconfig and util/kconfig and
      * pastes it at scripts/kconfig.
+     * <p>
+     * Package visibility for test cases.
      *
      * @param pathToSource
      *            the path to source
      *            
      * @throws IOException If copying the folders fails.
      */
-    private void collectKconfigInfos() throws IOException {
+    void collectKconfigInfos() throws IOException {
         File source0 = new File(getSourceTree().getParentFile(), "util/kconfig");
         File source1 = new File(getSourceTree().getParentFile(), "build/util/kconfig");
 
         File destination = new File(getSourceTree(), "scripts/kconfig");
         destination.mkdirs();
+        backupOverwritten(source0, destination);
+        backupOverwritten(source1, destination);
+        
+        if (kconfigCollection.equals("copy")) {
+            Util.copyFolder(source0, destination);
+            Util.copyFolder(source1, destination);
+        } else {
+            // build/util/kconfig takes precedence, like it does when it is copied last
+            Map<@NonNull String, @NonNull Path> merged = new LinkedHashMap<>();
+            collectFiles(source1, merged);
+            collectFiles(source0, merged);
+            linkFiles(merged, destination);
+        }
+    }
+    
+    /**
+     * Adds all files in the given folder to the merged view, unless a file with the same relative path has already
+     * been added by a source with higher precedence.
+     * 
+     * @param source The folder to collect files from. Ignored if it doesn't exist.
+     * @param merged The merged view, mapping relative paths to the source files.
+     * 
+     * @throws IOException If walking the folder fails.
+     */
+    private static void collectFiles(@NonNull File source, @NonNull Map<@NonNull String, @NonNull Path> merged)
+            throws IOException {
+        if (!source.isDirectory()) {
+            return;
+        }
+        Path root = source.toPath().toAbsolutePath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                merged.putIfAbsent(notNull(root.relativize(file).toString()), notNull(file));
+                return FileVisitResult.CONTINUE;
+            }
         
-        Util.copyFolder(source0, destination);
-        Util.copyFolder(source1, destination);
+        });
+    }
+    
+    /**
+     * Creates the merged view in the destination folder, as relative symbolic links or hard links (depending on
+     * {@link #KCONFIG_COLLECTION}). Files that are modified later by this preparation are copied instead. Existing
+     * files in the destination folder are replaced.
+     * 
+     * @param merged The merged view, mapping relative paths to the source files.
+     * @param destination The folder to create the links in.
+     * 
+     * @throws IOException If creating a link or copying a file fails.
+     */
+    private void linkFiles(@NonNull Map<@NonNull String, @NonNull Path> merged, @NonNull File destination)
+            throws IOException {
+        for (Map.Entry<@NonNull String, @NonNull Path> entry : merged.entrySet()) {
+            Path source = entry.getValue();
+            Path target = new File(destination, entry.getKey()).toPath().toAbsolutePath();
+            Files.createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+            
+            if (MODIFIED_KCONFIG_FILES.contains(entry.getKey())) {
+                Files.copy(source, target);
+            } else if (kconfigCollection.equals("symlink")) {
+                // relative, so that the links survive moving the tree, e.g. writing back a staged copy
+                Files.createSymbolicLink(target, target.getParent().relativize(source));
+            } else {
+                try {
+                    Files.createLink(target, source);
+                } catch (UnsupportedOperationException | IOException e) {
+                    // hard links don't work across file systems
+                    LOGGER.logDebug("Can't create hard link " + target + ", copying instead: " + e.getMessage());
+                    Files.copy(source, target);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Backs up all files in the destination folder that will be overwritten by copying the source folder into it.
+     * 
+     * @param source The folder that will be copied.
+     * @param destination The folder that the source will be copied into.
+     * 
+     * @throws IOException If writing the backups fails.
+     */
+    private void backupOverwritten(File source, File destination) throws IOException {
+        File[] files = source.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                File target = new File(destination, file.getName());
+                if (file.isDirectory()) {
+                    backupOverwritten(file, target);
+                } else {
+                    backup(target);
+                }
+            }
+        }
     }
     
     /**
@@ -171,6 +560,7 @@ public class PrepareCoreboot extends AbstractBusybootPreparation {
      */
     void initializeExternInt() throws IOException {
         File lkcH = new File(getSourceTree(), "scripts/kconfig/lkc.h");
+        backup(lkcH);
         
         replaceInFile(lkcH, lkcH, "extern int kconfig_warnings", "extern int kconfig_warnings = 0");
     }
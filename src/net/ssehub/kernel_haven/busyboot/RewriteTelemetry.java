@@ -0,0 +1,392 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Counts how often each rewrite rule of the preparations fires, and how much time is spent in it. The counters are
+ * aggregated over the whole run, and kept for the slowest files.
+ * <p>
+ * Each transformed file records into its own {@link FileStats} (which is not thread-safe, but only used by one
+ * thread), which are added to the {@link LongAdder}s of the run by
+ * {@link #finishFile(FileStats, String, long, long)}. So the overhead per rule application is one
+ * {@link System#nanoTime()} call.
+ *
+ * @author Adam
+ */
+public class RewriteTelemetry {
+    
+    public static final @NonNull Setting<@Nullable File> METRICS_FILE
+        = new Setting<>("preparation.metrics_file", Type.PATH, false, null, "If set, the preparations write the "
+            + "number of applications and the time spent for each rewrite rule, and the slowest files, to this "
+            + "file. A summary is always logged.");
+    
+    public static final @NonNull Setting<@NonNull Integer> SLOW_FILES
+        = new Setting<>("preparation.metrics_slow_files", Type.INTEGER, true, "10", "The number of slowest files "
+            + "that are listed in the metrics of the preparations.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * The rewrite rules that are measured.
+     */
+    public enum Rule {
+        
+        /**
+         * Joining of lines with a line continuation (Busybox normalization). Counts the joined lines.
+         */
+        LINE_CONTINUATION,
+        
+        /**
+         * Splitting of lines with comments, so that only the code part is normalized (Busybox normalization).
+         */
+        COMMENT_SPLIT,
+        
+        /**
+         * Rewriting of ENABLE_ macros in conditions to defined CONFIG_ (Busybox normalization).
+         */
+        ENABLE_MACRO,
+        
+        /**
+         * Rewriting of inline ENABLE_ macros in code to #if blocks (Busybox normalization).
+         */
+        ENABLE_INLINE,
+        
+        /**
+         * Expansion of IF_ macros to #if blocks (Busybox normalization).
+         */
+        IF_EXPANSION,
+        
+        /**
+         * Replacement of the stage prefixes (ramstage-, romstage-, ...) in Coreboot Makefiles.
+         */
+        COREBOOT_STAGE_PREFIX;
+    
+    }
+    
+    /**
+     * The measurements for a single file. Not thread-safe.
+     */
+    public static class FileStats {
+        
+        /**
+         * Stats that measure nothing, for callers that don't record telemetry.
+         */
+        public static final @NonNull FileStats NONE = new FileStats(false);
+        
+        private boolean enabled;
+        
+        private long startTime;
+        
+        private long @NonNull [] counts = new long[Rule.values().length];
+        
+        private long @NonNull [] nanos = new long[Rule.values().length];
+        
+        /**
+         * Creates new {@link FileStats}.
+         * 
+         * @param enabled Whether anything is measured.
+         */
+        private FileStats(boolean enabled) {
+            this.enabled = enabled;
+            this.startTime = enabled ? System.nanoTime() : 0;
+        }
+        
+        /**
+         * Returns the current time, as the start time of a rule application.
+         * 
+         * @return The current time in nanoseconds, or 0 if nothing is measured.
+         */
+        public long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+        
+        /**
+         * Records an application of a rule.
+         * 
+         * @param rule The rule that was applied.
+         * @param start The start time of the rule application; see {@link #start()}.
+         * @param fired How often the rule changed something (usually 0 or 1).
+         * 
+         * @return The current time, to be used as the start time of the next rule application.
+         */
+        public long record(@NonNull Rule rule, long start, int fired) {
+            if (!enabled) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            counts[rule.ordinal()] += fired;
+            nanos[rule.ordinal()] += now - start;
+            return now;
+        }
+        
+        /**
+         * Returns how often the given rule fired for this file.
+         * 
+         * @param rule The rule.
+         * 
+         * @return The number of times the rule changed something.
+         */
+        public long getCount(@NonNull Rule rule) {
+            return counts[rule.ordinal()];
+        }
+        
+        /**
+         * Returns the time spent in the given rule for this file.
+         * 
+         * @param rule The rule.
+         * 
+         * @return The time in nanoseconds.
+         */
+        public long getNanos(@NonNull Rule rule) {
+            return nanos[rule.ordinal()];
+        }
+    
+    }
+    
+    /**
+     * A file in the list of the slowest files.
+     */
+    public static class SlowFile {
+        
+        private @NonNull String path;
+        
+        private long nanos;
+        
+        private @NonNull FileStats stats;
+        
+        /**
+         * Creates a new {@link SlowFile}.
+         * 
+         * @param path The path of the file, relative to the source tree.
+         * @param nanos The total time spent for the file.
+         * @param stats The measurements of the file.
+         */
+        private SlowFile(@NonNull String path, long nanos, @NonNull FileStats stats) {
+            this.path = path;
+            this.nanos = nanos;
+            this.stats = stats;
+        }
+        
+        /**
+         * Returns the path of the file.
+         * 
+         * @return The path, relative to the source tree.
+         */
+        public @NonNull String getPath() {
+            return path;
+        }
+        
+        /**
+         * Returns the total time spent for the file.
+         * 
+         * @return The time in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+        
+        /**
+         * Returns the measurements of the rules for this file.
+         * 
+         * @return The measurements.
+         */
+        public @NonNull FileStats getStats() {
+            return stats;
+        }
+    
+    }
+    
+    private @NonNull LongAdder @NonNull [] counts = new LongAdder[Rule.values().length];
+    
+    private @NonNull LongAdder @NonNull [] nanos = new LongAdder[Rule.values().length];
+    
+    private @NonNull LongAdder files = new LongAdder();
+    
+    private @NonNull LongAdder fileNanos = new LongAdder();
+    
+    private int numSlowFiles;
+    
+    /**
+     * The slowest files, with the fastest of them at the head.
+     */
+    private @NonNull PriorityQueue<@NonNull SlowFile> slowFiles
+            = new PriorityQueue<>(Comparator.comparingLong(SlowFile::getNanos));
+    
+    /**
+     * Creates a new {@link RewriteTelemetry}.
+     * 
+     * @param numSlowFiles The number of slowest files to keep.
+     */
+    public RewriteTelemetry(int numSlowFiles) {
+        this.numSlowFiles = numSlowFiles;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * Starts measuring the transformation of a file.
+     * 
+     * @return The stats to record the rule applications of the file in.
+     */
+    public @NonNull FileStats startFile() {
+        return new FileStats(true);
+    }
+    
+    /**
+     * Finishes measuring the transformation of a file, and adds its measurements to this run. The rule counts of
+     * slow files are recorded in the {@link FlightRecorderEvents#FILE_EVENT} of the {@link FileTransformPipeline},
+     * if the transformation reports them (see {@link FileTransformPipeline.Transform#getStats()}).
+     * 
+     * @param stats The stats of the file; see {@link #startFile()}.
+     * @param path The path of the file, relative to the source tree.
+     * @param bytesIn The size of the original content.
+     * @param bytesOut The size of the transformed content.
+     */
+    public void finishFile(@NonNull FileStats stats, @NonNull String path, long bytesIn, long bytesOut) {
+        long total = System.nanoTime() - stats.startTime;
+        for (Rule rule : Rule.values()) {
+            counts[rule.ordinal()].add(stats.counts[rule.ordinal()]);
+            nanos[rule.ordinal()].add(stats.nanos[rule.ordinal()]);
+        }
+        files.increment();
+        fileNanos.add(total);
+        
+        if (numSlowFiles > 0) {
+            synchronized (slowFiles) {
+                if (slowFiles.size() < numSlowFiles) {
+                    slowFiles.add(new SlowFile(path, total, stats));
+                } else if (slowFiles.peek().nanos < total) {
+                    slowFiles.poll();
+                    slowFiles.add(new SlowFile(path, total, stats));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns how often the given rule fired in this run.
+     * 
+     * @param rule The rule.
+     * 
+     * @return The number of times the rule changed something.
+     */
+    public long getCount(@NonNull Rule rule) {
+        return counts[rule.ordinal()].sum();
+    }
+    
+    /**
+     * Returns the time spent in the given rule in this run.
+     * 
+     * @param rule The rule.
+     * 
+     * @return The time in nanoseconds.
+     */
+    public long getNanos(@NonNull Rule rule) {
+        return nanos[rule.ordinal()].sum();
+    }
+    
+    /**
+     * Returns the number of files measured in this run.
+     * 
+     * @return The number of files.
+     */
+    public long getNumFiles() {
+        return files.sum();
+    }
+    
+    /**
+     * Returns the slowest files of this run.
+     * 
+     * @return The slowest files, the slowest first.
+     */
+    public @NonNull List<@NonNull SlowFile> getSlowestFiles() {
+        List<@NonNull SlowFile> result;
+        synchronized (slowFiles) {
+            result = new ArrayList<>(slowFiles);
+        }
+        result.sort(Comparator.comparingLong(SlowFile::getNanos).reversed());
+        return result;
+    }
+    
+    /**
+     * Logs a summary of the measurements, and writes them to the given file.
+     * 
+     * @param metricsFile The file to write the metrics to (tab-separated lines); <code>null</code> to only log
+     *      them.
+     * 
+     * @throws IOException If writing the file fails.
+     */
+    public void report(@Nullable File metricsFile) throws IOException {
+        if (getNumFiles() == 0) {
+            return;
+        }
+        
+        List<@NonNull String> summary = new ArrayList<>();
+        summary.add("Rewrite telemetry for " + getNumFiles() + " files ("
+                + TimeUnit.NANOSECONDS.toMillis(fileNanos.sum()) + " ms):");
+        for (Rule rule : Rule.values()) {
+            if (getNanos(rule) > 0) {
+                summary.add(rule + ": fired " + getCount(rule) + " times, "
+                        + TimeUnit.NANOSECONDS.toMillis(getNanos(rule)) + " ms");
+            }
+        }
+        for (SlowFile file : getSlowestFiles()) {
+            summary.add("slow file " + file.path + ": " + TimeUnit.NANOSECONDS.toMillis(file.nanos) + " ms");
+        }
+        LOGGER.logInfo(summary.toArray(new String[0]));
+        
+        if (metricsFile != null) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(metricsFile),
+                    StandardCharsets.UTF_8))) {
+                out.print("files\t" + getNumFiles() + "\t" + fileNanos.sum() + "\n");
+                for (Rule rule : Rule.values()) {
+                    out.print("rule\t" + rule + "\t" + getCount(rule) + "\t" + getNanos(rule) + "\n");
+                }
+                for (SlowFile file : getSlowestFiles()) {
+                    out.print("file\t" + file.path + "\t" + file.nanos);
+                    for (Rule rule : Rule.values()) {
+                        if (file.stats.getCount(rule) > 0) {
+                            out.print("\t" + rule + "=" + file.stats.getCount(rule));
+                        }
+                    }
+                    out.print("\n");
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * The part of a source tree that is needed to analyze some target sub-directories. Besides the target directories
+ * themselves, this contains:
+ * <ul>
+ *   <li>The build files (Makefile, Makefile.inc, Kbuild, Config.in, Kconfig and their templates) of all parent
+ *      directories of the targets, since the build and variability models are read from the root downwards.</li>
+ *   <li>The Kconfig files that are (transitively) included with <code>source</code> statements, including the
+ *      relative (<code>rsource</code>) and optional variants and simple globs. Paths with variables are skipped.</li>
+ *   <li>The headers that are (transitively) included by the C files of the closure. They are searched next to the
+ *      including file, and in the <code>include</code> directories of the targets and their parents.</li>
+ * </ul>
+ * Files outside of the closure are not read; the closure is a best-effort approximation, e.g. includes that depend on
+ * compiler flags are not resolved.
+ *
+ * @author Adam
+ */
+public class SparseClosure {
+    
+    public static final @NonNull Setting<@Nullable String> TARGETS
+        = new Setting<>("preparation.sparse_targets", Type.STRING, false, null, "Comma-separated list of "
+            + "sub-directories of the source tree (e.g. archival, coreutils or src/lib). If set, the Busybox and "
+            + "Coreboot preparations only transform these directories and the files they need: the Kconfig files "
+            + "they source, the build files of their parent directories and the headers they include. All other "
+            + "files are left untouched.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    /**
+     * The names of the build files that are part of the closure in each parent directory of a target.
+     */
+    private static final @NonNull List<@NonNull String> BUILD_FILES = notNull(Arrays.asList("Makefile",
+            "Makefile.inc", "Kbuild", "Kbuild.src", "Config.in", "Config.src", "Kconfig"));
+    
+    private static final @NonNull Pattern SOURCE_PATTERN
+        = notNull(Pattern.compile("^\\s*(o?)(r?)source\\s+\"?([^\"\\s]+)\"?"));
+    
+    private static final @NonNull Pattern INCLUDE_PATTERN
+        = notNull(Pattern.compile("^\\s*#\\s*include\\s*[<\"]([^>\"]+)[>\"]"));
+    
+    private @NonNull Path root;
+    
+    /**
+     * The target directories, relative to the root ('/' separated).
+     */
+    private @NonNull Set<@NonNull String> targets = new TreeSet<>();
+    
+    /**
+     * The files outside of the targets that are part of the closure, relative to the root ('/' separated).
+     */
+    private @NonNull Set<@NonNull String> files = new TreeSet<>();
+    
+    /**
+     * The directories that contain files of the closure, relative to the root ('/' separated; the root is the empty
+     * path).
+     */
+    private @NonNull Set<@NonNull String> directories = new HashSet<>();
+    
+    /**
+     * The <code>include</code> directories that headers are searched in, relative to the root.
+     */
+    private @NonNull List<@NonNull String> includeDirs = new ArrayList<>();
+    
+    /**
+     * The files that still have to be read for further includes.
+     */
+    private @NonNull Deque<@NonNull String> queue = new ArrayDeque<>();
+    
+    /**
+     * Creates an empty {@link SparseClosure}; see {@link #compute(File, List)}.
+     * 
+     * @param root The root of the source tree.
+     */
+    private SparseClosure(@NonNull Path root) {
+        this.root = root;
+    }
+    
+    /**
+     * Computes the closure of the given target directories.
+     * 
+     * @param root The root of the source tree.
+     * @param targets The target directories, relative to the root.
+     * 
+     * @return The closure.
+     * 
+     * @throws IOException If a target is not a directory in the source tree, or reading the tree fails.
+     */
+    public static @NonNull SparseClosure compute(@NonNull File root, @NonNull List<@NonNull String> targets)
+            throws IOException {
+        
+        SparseClosure result = new SparseClosure(notNull(root.toPath().toAbsolutePath().normalize()));
+        for (String target : targets) {
+            String relative = result.relativize(notNull(result.root.resolve(target.trim())));
+            if (relative == null || relative.isEmpty() || !Files.isDirectory(result.root.resolve(relative))) {
+                throw new IOException("Sparse target " + target + " is not a sub-directory of " + root);
+            }
+            result.targets.add(relative);
+        }
+        
+        for (String target : result.targets) {
+            for (String dir = target; dir != null; dir = parentOf(dir)) {
+                String includeDir = dir.isEmpty() ? "include" : dir + "/include";
+                if (Files.isDirectory(result.root.resolve(includeDir)) && !result.includeDirs.contains(includeDir)) {
+                    result.includeDirs.add(includeDir);
+                }
+            }
+        }
+        
+        for (String target : result.targets) {
+            result.addDirectory(target);
+            for (String dir = parentOf(target); dir != null; dir = parentOf(dir)) {
+                result.addBuildFiles(dir);
+            }
+            try (Stream<Path> walk = Files.walk(result.root.resolve(target))) {
+                walk.filter(Files::isRegularFile).forEach((file) -> result.queue.add(notNull(result.relativize(
+                        notNull(file)))));
+            }
+        }
+        
+        while (!result.queue.isEmpty()) {
+            result.read(notNull(result.queue.poll()));
+        }
+        
+        LOGGER.logDebug("Sparse closure of " + result.targets + ": " + result.files.size()
+                + " files outside of the targets in " + result.directories.size() + " directories");
+        return result;
+    }
+    
+    /**
+     * Checks whether the given file or directory is part of the closure. Directories are part of it if they are
+     * inside a target, or contain files of the closure.
+     * 
+     * @param relativePath The path relative to the root of the source tree.
+     * @param directory Whether the path is a directory.
+     * 
+     * @return Whether the path is part of the closure.
+     */
+    public boolean contains(@NonNull Path relativePath, boolean directory) {
+        String path = notNull(relativePath.toString().replace(File.separatorChar, '/'));
+        boolean result = path.isEmpty() || isInTarget(path);
+        if (!result) {
+            result = directory ? directories.contains(path) : files.contains(path);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the files outside of the target directories that are part of the closure.
+     * 
+     * @return The files relative to the root of the source tree ('/' separated), sorted.
+     */
+    public @NonNull Set<@NonNull String> getFiles() {
+        return notNull(Collections.unmodifiableSet(files));
+    }
+    
+    /**
+     * Checks whether the given path is one of the targets, or inside one.
+     * 
+     * @param path The path relative to the root ('/' separated).
+     * 
+     * @return Whether the path is inside a target.
+     */
+    private boolean isInTarget(@NonNull String path) {
+        boolean result = false;
+        for (String target : targets) {
+            if (path.equals(target) || path.startsWith(target + "/")) {
+                result = true;
+                break;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Adds a directory with all its parents to the closure, so that they are walked.
+     * 
+     * @param dir The directory relative to the root.
+     */
+    private void addDirectory(@NonNull String dir) {
+        if (directories.add(dir)) {
+            String parent = parentOf(dir);
+            if (parent != null) {
+                addDirectory(parent);
+            }
+        }
+    }
+    
+    /**
+     * Adds the build files in a parent directory of a target to the closure.
+     * 
+     * @param dir The directory relative to the root.
+     */
+    private void addBuildFiles(@NonNull String dir) {
+        for (String name : BUILD_FILES) {
+            String file = dir.isEmpty() ? name : dir + "/" + name;
+            if (Files.isRegularFile(root.resolve(file))) {
+                addFile(file);
+            }
+        }
+    }
+    
+    /**
+     * Adds a file and its parent directories to the closure. Files inside the targets are already added.
+     * 
+     * @param file The file relative to the root.
+     */
+    private void addFile(@NonNull String file) {
+        if (!isInTarget(file) && files.add(file)) {
+            String parent = parentOf(file);
+            if (parent != null) {
+                addDirectory(parent);
+            }
+            queue.add(file);
+        }
+    }
+    
+    /**
+     * Reads the includes of a Kconfig or C file of the closure, and adds the included files.
+     * 
+     * @param file The file relative to the root.
+     * 
+     * @throws IOException If reading the file fails.
+     */
+    private void read(@NonNull String file) throws IOException {
+        String name = notNull(root.resolve(file).getFileName()).toString();
+        boolean kconfig = name.startsWith("Kconfig") || name.equals("Config.in") || name.equals("Config.src");
+        boolean c = name.endsWith(".c") || name.endsWith(".h");
+        if (!kconfig && !c) {
+            return;
+        }
+        
+        String dir = notNull(parentOf(file));
+        try (BufferedReader in = Files.newBufferedReader(root.resolve(file), StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = (kconfig ? SOURCE_PATTERN : INCLUDE_PATTERN).matcher(line);
+                if (!m.find()) {
+                    continue;
+                }
+                
+                if (kconfig) {
+                    String path = notNull(m.group(3));
+                    if (!path.contains("$")) {
+                        for (String resolved : resolve(m.group(2).isEmpty() ? "" : dir, path)) {
+                            addFile(resolved);
+                        }
+                    }
+                } else {
+                    addHeader(dir, notNull(m.group(1)));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds an included header to the closure. It is searched next to the including file first, and then in the
+     * include directories.
+     * 
+     * @param dir The directory of the including file, relative to the root.
+     * @param header The included path.
+     * 
+     * @throws IOException If listing a directory fails.
+     */
+    private void addHeader(@NonNull String dir, @NonNull String header) throws IOException {
+        List<@NonNull String> resolved = resolve(dir, header);
+        for (int i = 0; resolved.isEmpty() && i < includeDirs.size(); i++) {
+            resolved = resolve(notNull(includeDirs.get(i)), header);
+        }
+        for (String file : resolved) {
+            addFile(file);
+        }
+    }
+    
+    /**
+     * Resolves a path, which may contain glob segments, to the existing files in the source tree.
+     * 
+     * @param base The directory that the path is relative to, relative to the root.
+     * @param path The path.
+     * 
+     * @return The matching regular files relative to the root; empty if there are none, or they are outside of the
+     *      source tree.
+     * 
+     * @throws IOException If listing a directory for a glob fails.
+     */
+    private @NonNull List<@NonNull String> resolve(@NonNull String base, @NonNull String path) throws IOException {
+        List<@NonNull Path> candidates = new ArrayList<>();
+        candidates.add(notNull(root.resolve(base)));
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            List<@NonNull Path> next = new ArrayList<>();
+            if (segment.contains("*") || segment.contains("?") || segment.contains("[")) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + segment);
+                for (Path candidate : candidates) {
+                    if (Files.isDirectory(candidate)) {
+                        try (DirectoryStream<Path> entries = Files.newDirectoryStream(candidate)) {
+                            for (Path entry : entries) {
+                                if (matcher.matches(entry.getFileName())) {
+                                    next.add(notNull(entry));
+                                }
+                            }
+                        }
+                    }
+                }
+                Collections.sort(next);
+            } else {
+                for (Path candidate : candidates) {
+                    next.add(notNull(candidate.resolve(segment)));
+                }
+            }
+            candidates = next;
+        }
+        
+        List<@NonNull String> result = new ArrayList<>();
+        for (Path candidate : candidates) {
+            String relative = relativize(candidate);
+            if (relative != null && Files.isRegularFile(candidate)) {
+                result.add(relative);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Converts a path in the source tree to a path relative to the root.
+     * 
+     * @param path The path.
+     * 
+     * @return The path relative to the root ('/' separated); <code>null</code> if it is outside of the source tree.
+     */
+    private @Nullable String relativize(@NonNull Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        String result = null;
+        if (normalized.startsWith(root)) {
+            result = root.relativize(normalized).toString().replace(File.separatorChar, '/');
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the parent of a path relative to the root.
+     * 
+     * @param path The path relative to the root ('/' separated).
+     * 
+     * @return The parent directory; the empty path for files in the root, <code>null</code> for the root itself.
+     */
+    private static @Nullable String parentOf(@NonNull String path) {
+        String result = null;
+        if (!path.isEmpty()) {
+            int index = path.lastIndexOf('/');
+            result = index >= 0 ? path.substring(0, index) : "";
+        }
+        return result;
+    }
+
+}
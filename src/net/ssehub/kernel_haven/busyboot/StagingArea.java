@@ -0,0 +1,377 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ssehub.kernel_haven.config.Setting;
+import net.ssehub.kernel_haven.config.Setting.Type;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A copy of a source tree in a fast (usually RAM-backed) directory, e.g. <code>/dev/shm</code>. The preparations
+ * run on the staged copy, so that their many small read-modify-write cycles (and make) don't wait for disk seeks.
+ * At the end, the prepared tree is written back in a single sequential pass, which only writes the files that
+ * changed and deletes the files that were removed. Until then, the original tree is not modified, so an interrupted
+ * preparation leaves it untouched.
+ * <p>
+ * Files and directories excluded by the {@link PathFilter} are not copied, but linked to the originals, since the
+ * preparations never modify them. Other entries next to the staged tree (e.g. the UnchangedCopy or the
+ * UndoJournal of the preparation) are copied next to the original tree, too.
+ *
+ * @author Adam
+ */
+public class StagingArea implements Closeable {
+    
+    public static final @NonNull Setting<@Nullable File> STAGING_DIR
+        = new Setting<>("preparation.staging_dir", Type.PATH, false, null, "If set, the preparations run on a copy "
+            + "of the source tree in this directory (e.g. the RAM-backed /dev/shm), and the prepared tree is written "
+            + "back at the end. If the tree doesn't fit into the free space of this directory (and the available "
+            + "memory, if it is a tmpfs), the preparation runs on disk.");
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File root;
+    
+    private @NonNull File stagingDir;
+    
+    private @NonNull File stagedRoot;
+    
+    private @NonNull PathFilter filter;
+    
+    /**
+     * Creates a new {@link StagingArea}.
+     * 
+     * @param root The original directory.
+     * @param stagingDir The temporary directory that contains the staged copy.
+     * @param filter The filter of the paths that are linked instead of copied, relative to the root.
+     */
+    private StagingArea(@NonNull File root, @NonNull File stagingDir, @NonNull PathFilter filter) {
+        this.root = notNull(root.getAbsoluteFile());
+        this.stagingDir = stagingDir;
+        this.stagedRoot = new File(stagingDir, root.getName());
+        this.filter = filter;
+    }
+    
+    /**
+     * Copies the given directory into a new temporary directory in the staging location, if there is enough space.
+     * 
+     * @param location The staging location, e.g. <code>/dev/shm</code>.
+     * @param root The directory to stage.
+     * @param filter The filter of the paths that are linked instead of copied, relative to the root.
+     * @param spaceFactor The space needed for the preparation, as a multiple of the size of the copied files.
+     * @param copyThreads The number of threads to copy with.
+     * 
+     * @return The staging area, or <code>null</code> if the directory doesn't fit.
+     * 
+     * @throws IOException If copying the directory fails.
+     */
+    public static @Nullable StagingArea create(@NonNull File location, @NonNull File root, @NonNull PathFilter filter,
+            double spaceFactor, int copyThreads) throws IOException {
+        
+        long needed = (long) (measure(root.toPath(), filter) * spaceFactor);
+        long available = getAvailableSpace(location);
+        if (needed > available) {
+            LOGGER.logInfo("Not staging " + root + " in " + location + ": needs " + (needed >> 20) + " MiB, only "
+                    + (available >> 20) + " MiB available; preparing on disk");
+            return null;
+        }
+        
+        LOGGER.logInfo("Staging " + root + " in " + location);
+        StagingArea result = new StagingArea(root,
+                notNull(Files.createTempDirectory(location.toPath(), "kh_staging").toFile()), filter);
+        boolean success = false;
+        try {
+            new ParallelTreeCopier(copyThreads, filter).copy(root, result.stagedRoot);
+            success = true;
+        } finally {
+            if (!success) {
+                result.close();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the location of the given file in the staged copy.
+     * 
+     * @param file A file inside the original directory (or the directory itself).
+     * 
+     * @return The corresponding file in the staged copy.
+     */
+    public @NonNull File getStagedFile(@NonNull File file) {
+        return notNull(stagedRoot.toPath().resolve(root.toPath().relativize(file.getAbsoluteFile().toPath())).toFile());
+    }
+    
+    /**
+     * Writes the staged copy back to the original directory: deletes the files that don't exist in the copy anymore,
+     * and writes the new and changed files (all in the calling thread, in the order of the walk). Other entries next
+     * to the staged copy are copied next to the original directory.
+     * 
+     * @throws IOException If writing back fails, or an entry next to the original directory already exists.
+     */
+    public void writeBack() throws IOException {
+        Path original = root.toPath();
+        Path staged = stagedRoot.toPath();
+        
+        deleteRemoved(original, staged);
+        AtomicLong written = new AtomicLong();
+        Files.walkFileTree(staged, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(original.resolve(staged.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = notNull(staged.relativize(file));
+                Path target = original.resolve(relative);
+                if (!filter.isExcluded(relative, false) && !isUnchanged(attrs, notNull(target))) {
+                    Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES,
+                            LinkOption.NOFOLLOW_LINKS);
+                    written.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+        LOGGER.logInfo("Wrote " + written.get() + " changed files back to " + root);
+        
+        File[] siblings = stagingDir.listFiles();
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (!sibling.equals(stagedRoot)) {
+                    copySibling(sibling, new File(root.getParentFile(), sibling.getName()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes the staged copy.
+     * 
+     * @throws IOException If deleting the staged copy fails.
+     */
+    @Override
+    public void close() throws IOException {
+        deleteTree(stagingDir.toPath());
+    }
+    
+    /**
+     * Deletes all files and directories of the original directory that don't exist in the staged copy. Excluded
+     * paths are skipped.
+     * 
+     * @param original The original directory.
+     * @param staged The staged copy.
+     * 
+     * @throws IOException If deleting fails.
+     */
+    private void deleteRemoved(@NonNull Path original, @NonNull Path staged) throws IOException {
+        Files.walkFileTree(original, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = notNull(original.relativize(dir));
+                FileVisitResult result = FileVisitResult.CONTINUE;
+                if (filter.isExcluded(relative, true)) {
+                    result = FileVisitResult.SKIP_SUBTREE;
+                } else if (!Files.exists(staged.resolve(relative), LinkOption.NOFOLLOW_LINKS)) {
+                    deleteTree(notNull(dir));
+                    result = FileVisitResult.SKIP_SUBTREE;
+                }
+                return result;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = notNull(original.relativize(file));
+                if (!filter.isExcluded(relative, false)
+                        && !Files.exists(staged.resolve(relative), LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+    }
+    
+    /**
+     * Checks whether a staged file is unchanged, compared to the original file. Copies keep the size and the
+     * modification time, and rewritten files get a new modification time.
+     * 
+     * @param staged The attributes of the staged file.
+     * @param original The original file.
+     * 
+     * @return Whether the original has the same size and modification time.
+     * 
+     * @throws IOException If reading the attributes of the original fails.
+     */
+    private static boolean isUnchanged(@NonNull BasicFileAttributes staged, @NonNull Path original)
+            throws IOException {
+        boolean result = false;
+        if (Files.exists(original, LinkOption.NOFOLLOW_LINKS)) {
+            BasicFileAttributes attrs = Files.readAttributes(original, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            result = attrs.isRegularFile() == staged.isRegularFile() && attrs.size() == staged.size()
+                    && attrs.lastModifiedTime().equals(staged.lastModifiedTime());
+        }
+        return result;
+    }
+    
+    /**
+     * Copies an entry next to the staged copy to the original location.
+     * 
+     * @param sibling The entry next to the staged copy.
+     * @param target The location next to the original directory.
+     * 
+     * @throws IOException If the target already exists, or copying fails.
+     */
+    private static void copySibling(@NonNull File sibling, @NonNull File target) throws IOException {
+        if (target.exists()) {
+            throw new IOException("Can't write back " + sibling.getName() + ", " + target + " already exists");
+        }
+        if (sibling.isDirectory()) {
+            new ParallelTreeCopier(1).copy(sibling, target);
+        } else {
+            Files.copy(sibling.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+    
+    /**
+     * Sums up the sizes of all files that are copied into the staging area.
+     * <p>
+     * Package visibility for test cases.
+     * 
+     * @param root The directory to stage.
+     * @param filter The filter of the paths that are linked instead of copied, relative to the root.
+     * 
+     * @return The size of the copied files in bytes.
+     * 
+     * @throws IOException If walking the directory fails.
+     */
+    static long measure(@NonNull Path root, @NonNull PathFilter filter) throws IOException {
+        AtomicLong size = new AtomicLong();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return filter.isExcluded(notNull(root.relativize(dir)), true)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!filter.isExcluded(notNull(root.relativize(file)), false)) {
+                    size.addAndGet(attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+        return size.get();
+    }
+    
+    /**
+     * Returns the space available in the staging location. For a tmpfs, this is also limited by the available
+     * memory (from /proc/meminfo), since a tmpfs may be larger than the memory.
+     * 
+     * @param location The staging location.
+     * 
+     * @return The available space in bytes.
+     * 
+     * @throws IOException If the location doesn't exist.
+     */
+    private static long getAvailableSpace(@NonNull File location) throws IOException {
+        FileStore store = Files.getFileStore(location.toPath());
+        long result = store.getUsableSpace();
+        if (store.type().equals("tmpfs")) {
+            result = Math.min(result, getAvailableMemory());
+        }
+        return result;
+    }
+    
+    /**
+     * Reads the available memory from /proc/meminfo.
+     * 
+     * @return The available memory in bytes; {@link Long#MAX_VALUE} if it is unknown.
+     */
+    private static long getAvailableMemory() {
+        long result = Long.MAX_VALUE;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/meminfo"),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("MemAvailable:")) {
+                    // e.g. "MemAvailable:   12345678 kB"
+                    result = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.logDebug("Can't read available memory: " + e);
+        }
+        return result;
+    }
+    
+    /**
+     * Deletes a directory tree. Symbolic links are deleted, not followed.
+     * 
+     * @param dir The directory to delete.
+     * 
+     * @throws IOException If deleting fails.
+     */
+    private static void deleteTree(@NonNull Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Runs a preparation in a {@link StagingArea} at {@link StagingArea#STAGING_DIR}, and writes the prepared tree back.
+ *
+ * @author Adam
+ */
+class StagingStage {
+    
+    /**
+     * The part of the preparation that runs on the staged source tree.
+     */
+    interface StagedTask {
+        
+        /**
+         * Runs the task.
+         * 
+         * @throws SetUpException If the task fails; nothing is written back in this case.
+         */
+        public void run() throws SetUpException;
+        
+    }
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File stagingDir;
+    
+    private @NonNull PathFilter filter;
+    
+    private int numThreads;
+    
+    /**
+     * Creates a new stage.
+     * 
+     * @param stagingDir The directory to create the staging area in.
+     * @param filter The filter for the files of the source tree that are staged.
+     * @param numThreads The number of threads to copy files with.
+     */
+    private StagingStage(@NonNull File stagingDir, @NonNull PathFilter filter, int numThreads) {
+        this.stagingDir = stagingDir;
+        this.filter = filter;
+        this.numThreads = numThreads;
+    }
+    
+    /**
+     * Creates the stage, if {@link StagingArea#STAGING_DIR} is configured.
+     * 
+     * @param config The configuration.
+     * @param filter The filter for the files of the source tree that are staged.
+     * @param numThreads The number of threads to copy files with.
+     * 
+     * @return The stage; <code>null</code> if the preparation runs on disk.
+     * 
+     * @throws SetUpException If the setting is invalid.
+     */
+    static @Nullable StagingStage read(@NonNull Configuration config, @NonNull PathFilter filter, int numThreads)
+            throws SetUpException {
+        
+        config.registerSetting(StagingArea.STAGING_DIR);
+        File stagingDir = config.getValue(StagingArea.STAGING_DIR);
+        return stagingDir != null ? new StagingStage(stagingDir, filter, numThreads) : null;
+    }
+    
+    /**
+     * Copies the {@link AbstractBusybootPreparation#getStagingRoot()} of the given preparation into the staging area,
+     * runs the task with the staged source tree, and writes the prepared tree back. The source tree of the
+     * preparation is restored afterwards.
+     * 
+     * @param preparation The preparation, with its original source tree.
+     * @param journal Whether the preparation keeps an {@link UndoJournal} instead of a full copy of the tree.
+     * @param task The task that prepares the (staged) source tree of the preparation.
+     * 
+     * @throws SetUpException If copying the tree, the task, or writing the tree back fails.
+     */
+    void run(@NonNull AbstractBusybootPreparation preparation, boolean journal, @NonNull StagedTask task)
+            throws SetUpException {
+        
+        File original = preparation.getSourceTree();
+        StagingArea staging = createStagingArea(preparation, journal);
+        try {
+            if (staging != null) {
+                preparation.setSourceTree(staging.getStagedFile(original));
+            }
+            task.run();
+            if (staging != null) {
+                staging.writeBack();
+            }
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't write back staged source tree", e);
+        } finally {
+            preparation.setSourceTree(original);
+            if (staging != null) {
+                try {
+                    staging.close();
+                } catch (IOException e) {
+                    LOGGER.logException("Couldn't delete staging area", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Copies the staging root of the given preparation into the staging area. Staging is not used if an earlier run
+     * left a state file, an unchanged copy or an undo journal behind, so that these are resumed or reported as
+     * before.
+     * 
+     * @param preparation The preparation, with its original source tree.
+     * @param journal Whether the preparation keeps an {@link UndoJournal} instead of a full copy of the tree.
+     * 
+     * @return The staging area, or <code>null</code> if the preparation runs on disk.
+     * 
+     * @throws SetUpException If copying the source tree fails.
+     */
+    private @Nullable StagingArea createStagingArea(@NonNull AbstractBusybootPreparation preparation,
+            boolean journal) throws SetUpException {
+        
+        File sourceTree = preparation.getSourceTree();
+        if (PreparationCheckpoint.getStateFile(sourceTree).exists() || preparation.getUnchangedCopyDir().exists()
+                || UndoJournal.getJournalDir(sourceTree).exists()) {
+            LOGGER.logInfo("Not staging " + sourceTree + ", since an earlier preparation left files next to it");
+            return null;
+        }
+        
+        File root = preparation.getStagingRoot();
+        // the backup needs space for a second copy of the tree, or a part of it for the journal
+        double spaceFactor = journal ? 1.25 : 2.25;
+        PathFilter rootFilter = new PathFilter(filter,
+                notNull(root.getAbsoluteFile().toPath().relativize(sourceTree.getAbsoluteFile().toPath())), true);
+        try {
+            return StagingArea.create(stagingDir, root, rootFilter, spaceFactor, numThreads);
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't stage " + root + " in " + stagingDir, e);
+        }
+    }
+    
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * Writes the prepared tree into the {@link ContentAddressedStore} at {@link ContentAddressedStore#STORE_DIR}.
+ *
+ * @author Adam
+ */
+class StoreStage implements OptionalStage {
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File storeDir;
+    
+    private @Nullable String name;
+    
+    /**
+     * Creates a new stage.
+     * 
+     * @param storeDir The directory of the store.
+     * @param name The name to record the tree as; <code>null</code> for the name of the tree.
+     */
+    private StoreStage(@NonNull File storeDir, @Nullable String name) {
+        this.storeDir = storeDir;
+        this.name = name;
+    }
+    
+    /**
+     * Creates the stage, if {@link ContentAddressedStore#STORE_DIR} is configured.
+     * 
+     * @param config The configuration.
+     * 
+     * @return The stage; <code>null</code> if the prepared tree is not stored.
+     * 
+     * @throws SetUpException If the settings are invalid.
+     */
+    static @Nullable StoreStage read(@NonNull Configuration config) throws SetUpException {
+        config.registerSetting(ContentAddressedStore.STORE_DIR);
+        config.registerSetting(ContentAddressedStore.STORE_NAME);
+        File storeDir = config.getValue(ContentAddressedStore.STORE_DIR);
+        return storeDir != null ? new StoreStage(storeDir, config.getValue(ContentAddressedStore.STORE_NAME)) : null;
+    }
+    
+    /**
+     * Writes the prepared tree into the store.
+     */
+    @Override
+    public void after(@NonNull File sourceTree) throws SetUpException {
+        String name = this.name;
+        if (name == null) {
+            name = sourceTree.getName();
+        }
+        
+        LOGGER.logDebug("Writing " + sourceTree + " into content-addressed store " + storeDir + " as " + name);
+        try {
+            new ContentAddressedStore(storeDir).store(sourceTree, name);
+        } catch (IOException e) {
+            throw new SetUpException("Couldn't write prepared tree into store", e);
+        }
+    }
+    
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+import net.ssehub.kernel_haven.util.null_checks.Nullable;
+
+/**
+ * A streaming transformation of source text, line by line, without any access to the file system. This exposes the
+ * rewriting of the preparations to other plugins, e.g. extractors that want to apply the Busybox normalization or
+ * the FLOrIDA translation while they parse, instead of working on a prepared copy of the source tree.
+ * <p>
+ * A transformer receives the input lines one by one, and passes its output lines to a {@link LineSink}, together with
+ * the original line that each output line comes from. It may hold lines back (e.g. to join continued lines), and
+ * emit them in {@link #end(LineSink)}. Transformers keep the state of the text they are working on, so a new
+ * instance is needed for each text. Transformers can be chained with {@link #andThen(TextTransformer)}; the original
+ * lines are passed through the chain.
+ *
+ * @author Adam
+ */
+public interface TextTransformer {
+    
+    /**
+     * Receives the output lines of a {@link TextTransformer}.
+     */
+    public interface LineSink {
+        
+        /**
+         * Receives an output line.
+         * 
+         * @param line The line, without a line terminator.
+         * @param originalLine The line of the original text that this line comes from (1-based).
+         */
+        public void line(@NonNull String line, int originalLine);
+    
+    }
+    
+    /**
+     * Transforms the next input line.
+     * 
+     * @param line The line, without a line terminator.
+     * @param originalLine The line of the original text that this line comes from (1-based).
+     * @param out The sink for the output lines.
+     */
+    public void line(@NonNull String line, int originalLine, @NonNull LineSink out);
+    
+    /**
+     * Called after the last input line. Emits all lines that are still held back. Does nothing by default.
+     * 
+     * @param out The sink for the output lines.
+     */
+    public default void end(@NonNull LineSink out) {
+    }
+    
+    /**
+     * Creates a transformer that passes the output of this transformer into the given transformer.
+     * 
+     * @param next The transformer to run on the output of this one.
+     * 
+     * @return The chained transformer.
+     */
+    public default @NonNull TextTransformer andThen(@NonNull TextTransformer next) {
+        TextTransformer first = this;
+        return new TextTransformer() {
+            
+            @Override
+            public void line(@NonNull String line, int originalLine, @NonNull LineSink out) {
+                first.line(line, originalLine, (output, original) -> next.line(output, original, out));
+            }
+            
+            @Override
+            public void end(@NonNull LineSink out) {
+                first.end((output, original) -> next.line(output, original, out));
+                next.end(out);
+            }
+        
+        };
+    }
+    
+    /**
+     * Transforms the text from the given reader, and writes the result to the given writer. Each output line is
+     * terminated with a '\n'. Neither the reader nor the writer is closed.
+     * 
+     * @param in The input text.
+     * @param out The writer for the output text.
+     * @param lineMap The builder to record the original line of each output line in; <code>null</code> if not
+     *      needed.
+     * 
+     * @throws IOException If reading or writing fails.
+     */
+    public default void transform(@NonNull Reader in, @NonNull Writer out, LineMap.@Nullable Builder lineMap)
+            throws IOException {
+        
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        LineSink sink = (line, originalLine) -> {
+            try {
+                out.write(line);
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (lineMap != null) {
+                lineMap.add(originalLine);
+            }
+        };
+        
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line(line, ++lineNumber, sink);
+            }
+            end(sink);
+        } catch (UncheckedIOException e) {
+            throw notNull(e.getCause());
+        }
+    }
+    
+    /**
+     * Transforms the given text.
+     * 
+     * @param content The input text.
+     * 
+     * @return The output text. Each line is terminated with a '\n'.
+     */
+    public default @NonNull String transform(@NonNull String content) {
+        StringWriter out = new StringWriter(content.length() + 256);
+        try {
+            transform(new StringReader(content), out, null);
+        } catch (IOException e) {
+            // StringReader and StringWriter don't throw
+            throw new UncheckedIOException(e);
+        }
+        return notNull(out.toString());
+    }
+    
+    /**
+     * Creates a transformer that joins lines continued with a trailing backslash (as done by the Busybox
+     * preparation before normalizing).
+     * 
+     * @return A new transformer.
+     */
+    public static @NonNull TextTransformer lineContinuation() {
+        return new PrepareBusybox.LineContinuation();
+    }
+    
+    /**
+     * Creates a transformer that normalizes Busybox source code in the style of Busyfix, like the
+     * {@link PrepareBusybox} does with <code>analysis.busybox.normalize</code>. This includes joining
+     * continued lines.
+     * 
+     * @return A new transformer.
+     */
+    public static @NonNull TextTransformer busyboxNormalization() {
+        return lineContinuation().andThen(PrepareBusybox::normalizeLine);
+    }
+    
+    /**
+     * Creates a transformer that translates FLOrIDA annotations to C preprocessor blocks, like the
+     * {@link FloridaPreparation} does.
+     * 
+     * @param name The name of the text for the log messages, e.g. its path.
+     * @param diagnostics The list to add violations of the FLOrIDA structure to; <code>null</code> to only log them.
+     *      The lines of the violations are original lines.
+     * 
+     * @return A new transformer.
+     */
+    public static @NonNull TextTransformer floridaTranslation(@NonNull String name,
+            @Nullable List<@NonNull FloridaDiagnostic> diagnostics) {
+        return FloridaPreparation.createTranslation(new File(name), diagnostics);
+    }
+    
+    /**
+     * Creates a transformer that converts a Coreboot Makefile.inc into a Kbuild file, like the
+     * {@link PrepareCoreboot} does.
+     * 
+     * @return A new transformer.
+     */
+    public static @NonNull TextTransformer corebootKbuild() {
+        return (line, originalLine, out) -> out.line(PrepareCoreboot.replaceStuff(line), originalLine);
+    }
+
+}
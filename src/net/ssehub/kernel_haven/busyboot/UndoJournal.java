@@ -0,0 +1,340 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.util.null_checks.NullHelpers.notNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.ssehub.kernel_haven.util.Logger;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * An undo journal for the in-place modifications of a source tree. Instead of a full copy of the source tree, only
+ * the files that are replaced or deleted are backed up (before they are changed). Additionally, a listing of all
+ * original files is stored, so that files created during the preparation can be removed again by
+ * {@link #restore(File)}.
+ * <p>
+ * Tools like make rewrite existing files (e.g. <code>.config</code> or generated headers of an earlier build)
+ * without calling {@link #backup(File)}; their known outputs must be backed up with {@link #backupTree(File)} before
+ * they run. The listing records the size and modification time of each original file, so that
+ * {@link #restore(File)} reports files that were modified without a backup anyway.
+ * <p>
+ * The journal is stored in a folder next to the source tree, with the suffix <code>UndoJournal</code>. It contains
+ * the file <code>listing</code> (all original files with size and modification time, and all folders), the file
+ * <code>journal</code> (one line per backed up file) and the folder <code>files</code> with the backed up files.
+ *
+ * @author Adam
+ */
+public class UndoJournal {
+    
+    private static final @NonNull Logger LOGGER = Logger.get();
+    
+    private @NonNull File sourceTree;
+    
+    private @NonNull File journalDir;
+    
+    private @NonNull Set<@NonNull String> backedUp = new HashSet<>();
+    
+    private @NonNull PrintWriter journal;
+    
+    /**
+     * Creates a new, empty {@link UndoJournal} for the given source tree. This records the listing of all files
+     * currently in the source tree.
+     * 
+     * @param sourceTree The source tree that will be modified.
+     * 
+     * @throws IOException If the journal already exists, or writing the listing fails.
+     */
+    public UndoJournal(@NonNull File sourceTree) throws IOException {
+        this(sourceTree, false);
+    }
+    
+    /**
+     * Creates a new {@link UndoJournal} for the given source tree, or continues an existing one.
+     * 
+     * @param sourceTree The source tree that will be modified.
+     * @param resume Whether to continue the existing journal of an interrupted preparation. If <code>false</code>,
+     *      a new journal is created, which records the listing of all files currently in the source tree.
+     * 
+     * @throws IOException If the journal already exists (or doesn't exist, if resuming), or writing it fails.
+     */
+    public UndoJournal(@NonNull File sourceTree, boolean resume) throws IOException {
+        this.sourceTree = sourceTree;
+        this.journalDir = getJournalDir(sourceTree);
+        if (resume) {
+            for (String line : readLines(new File(journalDir, "journal"))) {
+                backedUp.add(notNull(line.substring(2)));
+            }
+            this.journal = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(journalDir, "journal"), true), StandardCharsets.UTF_8));
+        
+        } else {
+            createListing();
+            this.journal = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(journalDir, "journal")), StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Creates the journal folder and writes the listing of all original files and folders.
+     * 
+     * @throws IOException If the journal already exists, or writing the listing fails.
+     */
+    private void createListing() throws IOException {
+        if (journalDir.exists()) {
+            throw new IOException("Undo journal already exists");
+        }
+        journalDir.mkdir();
+        
+        Path root = sourceTree.toPath();
+        try (PrintWriter listing = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(journalDir, "listing")), StandardCharsets.UTF_8))) {
+            
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    listing.print("D\t" + relativize(root, notNull(dir)) + "\n");
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    listing.print("F\t" + getStamp(attrs) + "\t" + relativize(root, notNull(file)) + "\n");
+                    return FileVisitResult.CONTINUE;
+                }
+            
+            });
+        }
+    }
+    
+    /**
+     * Returns the location of the journal for the given source tree.
+     * 
+     * @param sourceTree The source tree.
+     * 
+     * @return The journal directory (may not exist).
+     */
+    public static @NonNull File getJournalDir(@NonNull File sourceTree) {
+        return new File(sourceTree.getParentFile(), sourceTree.getName() + "UndoJournal");
+    }
+    
+    /**
+     * Backs up the original content of the given file, before it is replaced or deleted. Files that don't exist,
+     * or that have already been backed up, are ignored.
+     * 
+     * @param file The file in the source tree that is about to be changed.
+     * 
+     * @throws IOException If writing the backup fails.
+     */
+    public synchronized void backup(@NonNull File file) throws IOException {
+        String path = relativize(sourceTree.toPath(), file.toPath());
+        if (file.isFile() && !backedUp.contains(path)) {
+            File backup = new File(new File(journalDir, "files"), path);
+            backup.getParentFile().mkdirs();
+            Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.COPY_ATTRIBUTES,
+                    StandardCopyOption.REPLACE_EXISTING);
+            
+            journal.print("B\t" + path + "\n");
+            journal.flush();
+            backedUp.add(path);
+        }
+    }
+    
+    /**
+     * Backs up all files in the given directory, e.g. the outputs of make that may be rewritten in place. Files that
+     * have already been backed up are ignored.
+     * 
+     * @param directory The directory in the source tree. Ignored if it doesn't exist.
+     * 
+     * @throws IOException If writing the backups fails.
+     */
+    public synchronized void backupTree(@NonNull File directory) throws IOException {
+        if (directory.isDirectory()) {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    backup(notNull(file.toFile()));
+                    return FileVisitResult.CONTINUE;
+                }
+                
+            });
+        }
+    }
+    
+    /**
+     * Closes the journal file. Further calls to {@link #backup(File)} are not allowed.
+     */
+    public synchronized void close() {
+        journal.close();
+    }
+    
+    /**
+     * Restores the original state of the given source tree from its journal: all files that were created are
+     * deleted, and all backed up files are copied back. Afterwards, the journal is deleted. Original files that were
+     * deleted or modified without a backup can't be restored; a warning is logged for each of them.
+     * 
+     * @param sourceTree The source tree to restore.
+     * 
+     * @return The paths of the original files that could not be restored, relative to the source tree.
+     * 
+     * @throws IOException If there is no journal for the source tree, or restoring fails.
+     */
+    public static @NonNull List<@NonNull String> restore(@NonNull File sourceTree) throws IOException {
+        File journalDir = getJournalDir(sourceTree);
+        // the original files, with their size and modification time (empty in journals without them)
+        Map<@NonNull String, @NonNull String> originalFiles = new HashMap<>();
+        Set<@NonNull String> originalDirs = new HashSet<>();
+        for (String line : readLines(new File(journalDir, "listing"))) {
+            String[] parts = line.split("\t", 4);
+            if (line.startsWith("D")) {
+                originalDirs.add(notNull(line.substring(2)));
+            } else if (parts.length == 4) {
+                originalFiles.put(notNull(parts[3]), parts[1] + "\t" + parts[2]);
+            } else {
+                originalFiles.put(notNull(line.substring(2)), "");
+            }
+        }
+        
+        // delete everything that was created during the preparation (deepest first)
+        Path root = sourceTree.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!originalFiles.containsKey(relativize(root, notNull(file)))) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (!dir.equals(root) && !originalDirs.contains(relativize(root, notNull(dir)))) {
+                    Files.delete(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        
+        });
+        
+        // re-create original folders that were deleted, and copy back the backed up files
+        for (String dir : originalDirs) {
+            new File(sourceTree, dir).mkdirs();
+        }
+        File backupDir = new File(journalDir, "files");
+        Set<@NonNull String> restored = new HashSet<>();
+        for (String path : readLines(new File(journalDir, "journal"))) {
+            path = notNull(path.substring(2));
+            Files.copy(new File(backupDir, path).toPath(), new File(sourceTree, path).toPath(),
+                    StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+            restored.add(path);
+        }
+        
+        List<@NonNull String> result = new ArrayList<>();
+        for (Map.Entry<@NonNull String, @NonNull String> original : originalFiles.entrySet()) {
+            String path = notNull(original.getKey());
+            Path file = new File(sourceTree, path).toPath();
+            if (!Files.exists(file)) {
+                LOGGER.logWarning("Can't restore " + path + ": it was deleted without a backup");
+                result.add(path);
+            } else if (!restored.contains(path) && !original.getValue().isEmpty()
+                    && !original.getValue().equals(getStamp(notNull(Files.readAttributes(file,
+                            BasicFileAttributes.class))))) {
+                LOGGER.logWarning("Can't restore " + path + ": it was modified without a backup");
+                result.add(path);
+            }
+        }
+        
+        Util.deleteFolder(journalDir);
+        return result;
+    }
+    
+    /**
+     * Returns the size and modification time of a file, as recorded in the listing.
+     * 
+     * @param attrs The attributes of the file.
+     * 
+     * @return The size and the modification time in milliseconds, separated by a tab.
+     */
+    private static @NonNull String getStamp(@NonNull BasicFileAttributes attrs) {
+        return attrs.size() + "\t" + attrs.lastModifiedTime().toMillis();
+    }
+    
+    /**
+     * Reads all lines of the given file.
+     * 
+     * @param file The file to read.
+     * 
+     * @return The lines of the file.
+     * 
+     * @throws IOException If the file doesn't exist or reading fails.
+     */
+    private static @NonNull List<@NonNull String> readLines(@NonNull File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Undo journal is missing " + file);
+        }
+        List<@NonNull String> result = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // ignore an incomplete last line, if the preparation was killed while writing it
+                if (line.length() >= 2 && line.charAt(1) == '\t') {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Converts the given path to a relative, '/' separated path.
+     * 
+     * @param root The root of the source tree.
+     * @param path The path inside the source tree.
+     * 
+     * @return The relative path; empty for the root itself.
+     */
+    private static @NonNull String relativize(@NonNull Path root, @NonNull Path path) {
+        return notNull(root.relativize(path).toString().replace(File.separatorChar, '/'));
+    }
+
+}
@@ -17,11 +17,13 @@ package net.ssehub.kernel_haven.busyboot;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -266,6 +268,20 @@ public class AbstractBusybootPreparationTest {
         ))));
     }
     
+    /**
+     * Tests that the {@link AbstractBusybootPreparation#findFilesByName(File, String, PathFilter)} method doesn't
+     * return excluded files.
+     */
+    @Test
+    public void testFindFilesByNameExcluded() {
+        File directory = new File(TESTDATA, "find_files_by_name");
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList("subdir"), false);
+        
+        List<File> result = AbstractBusybootPreparation.findFilesByName(directory, "Makefile", filter);
+        
+        assertThat(result, is(Arrays.asList(new File(directory, "Makefile"))));
+    }
+    
     /**
      * Tests that the {@link AbstractBusybootPreparation#findFilesByName(File, String)} method returns an empty list
      * when a file is passed to it instead of a directory.
@@ -284,4 +300,149 @@ public class AbstractBusybootPreparationTest {
         assertThat(result, is(Arrays.asList()));
     }
     
+    /**
+     * Tests that {@link AbstractBusybootPreparation#transformFiles(String, java.util.Collection, String,
+     * java.util.function.Function)} transforms all files and renames them to the target name.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testTransformFiles() throws IOException, SetUpException {
+        List<@NonNull File> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            File file = new File(TMP_DIR, "dir" + i + "/Config.in");
+            file.getParentFile().mkdir();
+            writeFile(file, "source dir" + i + "/Config.in\n");
+            files.add(file);
+        }
+        
+        AbstractBusybootPreparation prep = new DummyImpl();
+        prep.setSourceTree(TMP_DIR);
+        prep.transformFiles("kconfig", files, "Kconfig",
+            (file) -> AbstractBusybootPreparation.replacing("Config.in", "Kconfig"));
+        
+        for (int i = 0; i < 20; i++) {
+            assertThat(new File(TMP_DIR, "dir" + i + "/Config.in").exists(), is(false));
+            assertThat(readFile(new File(TMP_DIR, "dir" + i + "/Kconfig")), is("source dir" + i + "/Kconfig\n"));
+        }
+    }
+    
+    /**
+     * Tests that {@link AbstractBusybootPreparation#transformFiles(String, java.util.Collection, String,
+     * java.util.function.Function)} transforms all other files if some fail, and reports all failures in one
+     * exception.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTransformFilesFailures() throws IOException {
+        List<@NonNull File> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            File file = new File(TMP_DIR, "file" + i + ".c");
+            writeFile(file, "lib-y\n");
+            files.add(file);
+        }
+        
+        AbstractBusybootPreparation prep = new DummyImpl();
+        prep.setSourceTree(TMP_DIR);
+        try {
+            prep.transformFiles("kbuild", files, null, (file) -> (source, content) -> {
+                if (source.getName().equals("file3.c") || source.getName().equals("file8.c")) {
+                    throw new IOException("broken");
+                }
+                return content;
+            });
+            fail("Expected exception");
+        } catch (SetUpException e) {
+            assertThat(e.getMessage().startsWith("Couldn't transform 2 file(s) in phase kbuild"), is(true));
+            assertThat(e.getMessage().contains("file3.c"), is(true));
+            assertThat(e.getMessage().contains("file8.c"), is(true));
+        }
+        
+        assertThat(new File(TMP_DIR, "file9.c.kh_tmp").exists(), is(false));
+        assertThat(readFile(new File(TMP_DIR, "file3.c")), is("lib-y\n"));
+    }
+    
+    /**
+     * Tests that {@link AbstractBusybootPreparation#replaceInFile(File, File, String, String)} doesn't rewrite a
+     * file that contains nothing to replace, and only moves it for a rename.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testReplaceInFileNoOccurrence() throws IOException {
+        File file = new File(TMP_DIR, "unchanged.txt");
+        writeFile(file, "Hello World\n");
+        file.setLastModified(1000000000L);
+        
+        AbstractBusybootPreparation.replaceInFile(file, file, "Foo", "Bar");
+        assertThat(file.lastModified(), is(1000000000L));
+        
+        File target = new File(TMP_DIR, "renamed.txt");
+        AbstractBusybootPreparation.replaceInFile(file, target, "Foo", "Bar");
+        assertThat(file.exists(), is(false));
+        assertThat(target.lastModified(), is(1000000000L));
+        assertThat(readFile(target), is("Hello World\n"));
+    }
+    
+    /**
+     * Tests that {@link AbstractBusybootPreparation#transformFiles(String, java.util.Collection, String,
+     * java.util.function.Function)} doesn't rewrite files with unchanged content.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testTransformFilesUnchanged() throws IOException, SetUpException {
+        File changed = new File(TMP_DIR, "a/Config.in");
+        File unchanged = new File(TMP_DIR, "b/Config.in");
+        changed.getParentFile().mkdir();
+        unchanged.getParentFile().mkdir();
+        writeFile(changed, "source a/Config.in\n");
+        writeFile(unchanged, "config FOO\n");
+        changed.setLastModified(1000000000L);
+        unchanged.setLastModified(1000000000L);
+        
+        AbstractBusybootPreparation prep = new DummyImpl();
+        prep.setSourceTree(TMP_DIR);
+        prep.transformFiles("kconfig", Arrays.asList(changed, unchanged), "Kconfig",
+            (file) -> AbstractBusybootPreparation.replacing("Config.in", "Kconfig"));
+        
+        assertThat(readFile(new File(TMP_DIR, "a/Kconfig")), is("source a/Kconfig\n"));
+        assertThat(new File(TMP_DIR, "a/Kconfig").lastModified() == 1000000000L, is(false));
+        assertThat(readFile(new File(TMP_DIR, "b/Kconfig")), is("config FOO\n"));
+        assertThat(new File(TMP_DIR, "b/Kconfig").lastModified(), is(1000000000L));
+        assertThat(unchanged.exists(), is(false));
+    }
+    
+    /**
+     * Writes the given content to a file.
+     * 
+     * @param file The file to write.
+     * @param content The content to write.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static void writeFile(@NonNull File file, @NonNull String content) throws IOException {
+        try (FileWriter out = new FileWriter(file)) {
+            out.write(content);
+        }
+    }
+    
+    /**
+     * Reads the content of a file.
+     * 
+     * @param file The file to read.
+     * 
+     * @return The content.
+     * 
+     * @throws IOException If reading fails.
+     */
+    private static @NonNull String readFile(@NonNull File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            return Util.readStream(in);
+        }
+    }
+    
 }
@@ -27,9 +27,30 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
     AbstractBusybootPreparationTest.class,
+    BusyboxFloridaPreparationTest.class,
+    ConcurrencyControllerTest.class,
+    ContentAddressedStoreTest.class,
+    FeatureIndexTest.class,
+    FileNameIndexTest.class,
+    FileTaskSchedulerTest.class,
+    FileTransformPipelineTest.class,
+    FlightRecorderEventsTest.class,
     FloridaPreparationTest.class,
+    IncrementalGitPreparationTest.class,
+    LineMapTest.class,
+    MerkleTreeTest.class,
+    NormalizationCacheTest.class,
+    ParallelTreeCopierTest.class,
+    PathFilterTest.class,
+    PreparationCheckpointTest.class,
+    PreparationDaemonTest.class,
     PrepareBusyboxTest.class,
     PrepareCorebootTest.class,
+    RewriteTelemetryTest.class,
+    SparseClosureTest.class,
+    StagingAreaTest.class,
+    TextTransformerTest.class,
+    UndoJournalTest.class,
     })
 public class AllTests {
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link BusyboxFloridaPreparation}.
+ *
+ * @author Adam
+ */
+public class BusyboxFloridaPreparationTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/busybox_florida");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File SOURCE = new File(TMP_DIR, "source");
+    
+    private static final @NonNull File DESTINATION = new File(TMP_DIR, "destination");
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small Busybox-like source tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createSourceTree() throws IOException {
+        writeTree(TMP_DIR, SOURCE, "Config.in", "source sub/Config.in\n", "Makefile", "all:\n\tgcc *.c\n",
+                "readme.txt", "lib-y\n", "sub/Config.in", "config FOO\n", "sub/Kbuild", "lib-y += a.o\n",
+                "sub/a.c", "#if ENABLE_FOO\nint x = 1 + \\\n    2;\n#endif\n//&Line[BAR]\nint y;\n");
+    }
+    
+    /**
+     * Tests that the Busybox renames and replacements are done in the copy, and that the original tree is not
+     * modified.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testBusyboxReplacements() throws IOException, SetUpException {
+        BusyboxFloridaPreparation prep = new BusyboxFloridaPreparation();
+        prep.setExecuteMake(false);
+        prep.prepare(SOURCE, DESTINATION);
+        
+        assertThat(read(new File(DESTINATION, "Kconfig")), is("source sub/Kconfig\n"));
+        assertThat(read(new File(DESTINATION, "sub/Kconfig")), is("config FOO\n"));
+        assertThat(new File(DESTINATION, "Config.in").exists(), is(false));
+        assertThat(read(new File(DESTINATION, "sub/Kbuild")), is("obj-y += a.o\n"));
+        assertThat(read(new File(DESTINATION, "Makefile")), is(AbstractBusybootPreparation.DUMMY_MAKEFILE));
+        assertThat(read(new File(DESTINATION, "readme.txt")), is("lib-y\n"));
+        
+        // not normalized, only FLOrIDA replacements
+        assertThat(read(new File(DESTINATION, "sub/a.c")),
+                is("#if ENABLE_FOO\nint x = 1 + \\\n    2;\n#endif\n#if defined(BAR)\nint y;\n#endif // BAR\n"));
+        
+        assertThat(read(new File(SOURCE, "Config.in")), is("source sub/Config.in\n"));
+        assertThat(read(new File(SOURCE, "sub/Kbuild")), is("lib-y += a.o\n"));
+    }
+    
+    /**
+     * Tests that source files are normalized and then FLOrIDA-replaced, with line maps and feature references that
+     * refer to the original file and the prepared file respectively.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testNormalizationAndFlorida() throws IOException, SetUpException {
+        File mapDir = new File(TMP_DIR, "maps");
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        
+        BusyboxFloridaPreparation prep = new BusyboxFloridaPreparation();
+        prep.setExecuteMake(false);
+        prep.setNormalizeSources(true);
+        prep.setFeatureIndex(builder);
+        prep.setLineMapDir(mapDir);
+        prep.prepare(SOURCE, DESTINATION);
+        
+        assertThat(read(new File(DESTINATION, "sub/a.c")), is("#if defined CONFIG_FOO\nint x = 1 +     2;\n#endif\n"
+                + "#if defined(BAR)\nint y;\n#endif // BAR\n"));
+        
+        LineMap map = LineMap.read(mapDir, "sub/a.c");
+        assertThat(map, notNullValue());
+        assertThat(map.getNumLines(), is(6));
+        assertThat(map.getOriginalLine(2), is(2));
+        assertThat(map.getOriginalLine(3), is(4));
+        assertThat(map.getOriginalLine(4), is(5));
+        assertThat(map.getOriginalLine(6), is(6));
+        
+        File indexFile = new File(TMP_DIR, "index");
+        builder.write(indexFile);
+        FeatureIndex index = new FeatureIndex(indexFile);
+        List<FeatureIndex.Location> foo = index.getLocations("CONFIG_FOO");
+        assertThat(foo.size(), is(1));
+        assertThat(foo.get(0).toString(), is("sub/a.c:1-3"));
+        List<FeatureIndex.Location> bar = index.getLocations("BAR");
+        assertThat(bar.size(), is(1));
+        assertThat(bar.get(0).toString(), is("sub/a.c:4-6"));
+    }
+    
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ConcurrencyController}.
+ *
+ * @author Adam
+ */
+public class ConcurrencyControllerTest {
+    
+    /**
+     * Tests that the limit climbs to the point where the throughput stops growing, and stays near it.
+     */
+    @Test
+    public void testFindsSaturationPoint() {
+        ConcurrencyController controller = new ConcurrencyController(1, 2, 64);
+        
+        int limit = controller.getLimit();
+        for (int i = 0; i < 100; i++) {
+            // the storage handles up to 12 concurrent requests; more only queue up
+            double throughput = Math.min(limit, 12) * 100.0;
+            double latency = Math.max(1.0, limit / 12.0);
+            limit = controller.update(throughput, latency);
+            assertTrue("Limit " + limit + " in round " + i, i < 20 || limit >= 6 && limit <= 24);
+        }
+    }
+    
+    /**
+     * Tests that the limit is lowered if the latency grows, even though the throughput doesn't drop.
+     */
+    @Test
+    public void testLatencyLowersLimit() {
+        ConcurrencyController controller = new ConcurrencyController(1, 16, 64);
+        controller.update(1000, 1.0);
+        int limit = controller.getLimit();
+        
+        assertTrue(controller.update(2000, 10.0) < limit);
+    }
+    
+    /**
+     * Tests that the limit stays within the bounds.
+     */
+    @Test
+    public void testBounds() {
+        ConcurrencyController controller = new ConcurrencyController(2, 100, 8);
+        assertThat(controller.getLimit(), is(8));
+        
+        for (int i = 0; i < 10; i++) {
+            assertThat(controller.update((i + 1) * 1000, 1.0), is(8));
+        }
+        for (int i = 0; i < 20; i++) {
+            controller.update(1000, 1.0);
+            assertTrue(controller.getLimit() >= 2);
+        }
+        assertThat(controller.getLimit(), is(2));
+    }
+    
+    /**
+     * Tests that equal minimum and maximum limits fix the limit.
+     */
+    @Test
+    public void testFixedLimit() {
+        ConcurrencyController controller = new ConcurrencyController(4, 1, 4);
+        assertThat(controller.getLimit(), is(4));
+        assertThat(controller.update(1000, 1.0), is(4));
+        assertThat(controller.update(10, 100.0), is(4));
+        assertThat(controller.getMaxLimit(), is(4));
+    }
+    
+    /**
+     * Tests that {@link ConcurrencyController#record(long, long)} only updates the limit once a measurement window
+     * is complete.
+     */
+    @Test
+    public void testRecordWindow() {
+        ConcurrencyController controller = new ConcurrencyController(1, 2, 64);
+        for (int i = 0; i < 7; i++) {
+            assertThat(controller.record(1000, 1000), is(2));
+        }
+        assertThat(controller.record(1000, 1000), is(3));
+    }
+    
+    /**
+     * Tests that invalid limits are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        new ConcurrencyController(4, 4, 2);
+    }
+
+}
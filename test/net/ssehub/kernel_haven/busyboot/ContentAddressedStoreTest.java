@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link ContentAddressedStore}.
+ *
+ * @author Adam
+ */
+public class ContentAddressedStoreTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/content_store");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File STORE_DIR = new File(TMP_DIR, "store");
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void createOrClearTmpDir() throws IOException {
+        if (STORE_DIR.exists()) {
+            // blobs are read-only
+            for (File file : Files.walk(STORE_DIR.toPath()).map((path) -> path.toFile()).toArray(File[]::new)) {
+                file.setWritable(true);
+            }
+        }
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that identical files in different trees are only stored once, and that the stored trees stay writable.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIdenticalFilesStoredOnce() throws IOException {
+        File tree1 = new File(TMP_DIR, "tree1");
+        File tree2 = new File(TMP_DIR, "tree2");
+        write(new File(tree1, "same.c"), "int a;\n");
+        write(new File(tree1, "sub/other.c"), "int b;\n");
+        write(new File(tree2, "same.c"), "int a;\n");
+        write(new File(tree2, "sub/other.c"), "int c;\n");
+        
+        ContentAddressedStore store = new ContentAddressedStore(STORE_DIR);
+        store.store(tree1, "tree1");
+        store.store(tree2, "tree2");
+        
+        long numBlobs = Files.walk(new File(STORE_DIR, "blobs").toPath())
+                .filter((path) -> Files.isRegularFile(path))
+                .count();
+        assertThat(numBlobs, is(3L));
+        
+        assertThat(Files.isSameFile(new File(tree1, "same.c").toPath(), new File(tree2, "same.c").toPath()),
+                is(false));
+        assertThat(new File(tree1, "same.c").canWrite(), is(true));
+        assertThat(read(new File(tree2, "sub/other.c")), is("int c;\n"));
+    }
+    
+    /**
+     * Tests that a stored tree can be materialized at other locations, which share the files.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMaterialize() throws IOException {
+        File tree = new File(TMP_DIR, "tree");
+        write(new File(tree, "a.c"), "int a;\n");
+        write(new File(tree, "sub/b.c"), "int b;\n");
+        new File(tree, "empty").mkdir();
+        
+        ContentAddressedStore store = new ContentAddressedStore(STORE_DIR);
+        store.store(tree, "tree");
+        
+        File target = new File(TMP_DIR, "materialized");
+        store.materialize("tree", target);
+        
+        assertThat(read(new File(target, "a.c")), is("int a;\n"));
+        assertThat(read(new File(target, "sub/b.c")), is("int b;\n"));
+        assertThat(new File(target, "empty").isDirectory(), is(true));
+        
+        File other = new File(TMP_DIR, "other");
+        store.materialize("tree", other);
+        assertThat(Files.isSameFile(new File(other, "a.c").toPath(), new File(target, "a.c").toPath()), is(true));
+    }
+    
+    /**
+     * Tests that the mode of the files is kept: files with the same content but a different mode don't share a blob,
+     * and copies get the recorded mode.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testModeKept() throws IOException {
+        File tree = new File(TMP_DIR, "tree");
+        File script = new File(tree, "script.sh");
+        File data = new File(tree, "data.sh");
+        write(script, "echo\n");
+        write(data, "echo\n");
+        script.setExecutable(true);
+        data.setExecutable(false);
+        
+        ContentAddressedStore store = new ContentAddressedStore(STORE_DIR);
+        store.store(tree, "tree");
+        
+        File target = new File(TMP_DIR, "materialized");
+        store.materialize("tree", target);
+        assertThat(Files.isSameFile(new File(target, "script.sh").toPath(), new File(target, "data.sh").toPath()),
+                is(false));
+        assertThat(new File(target, "script.sh").canExecute(), is(true));
+        assertThat(new File(target, "data.sh").canExecute(), is(false));
+    }
+    
+    /**
+     * Tests that symbolic links are recorded and re-created with their targets.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSymbolicLinks() throws IOException {
+        File tree = new File(TMP_DIR, "tree");
+        write(new File(tree, "sub/a.c"), "int a;\n");
+        Files.createSymbolicLink(new File(tree, "link.c").toPath(), Paths.get("sub/a.c"));
+        Files.createSymbolicLink(new File(tree, "linkdir").toPath(), Paths.get("sub"));
+        
+        ContentAddressedStore store = new ContentAddressedStore(STORE_DIR);
+        store.store(tree, "tree");
+        assertThat(Files.isSymbolicLink(new File(tree, "link.c").toPath()), is(true));
+        
+        File target = new File(TMP_DIR, "materialized");
+        store.materialize("tree", target);
+        assertThat(Files.readSymbolicLink(new File(target, "link.c").toPath()), is(Paths.get("sub/a.c")));
+        assertThat(Files.readSymbolicLink(new File(target, "linkdir").toPath()), is(Paths.get("sub")));
+        assertThat(read(new File(target, "linkdir/a.c")), is("int a;\n"));
+    }
+    
+    /**
+     * Tests that materializing an unknown tree throws an exception.
+     * 
+     * @throws IOException wanted.
+     */
+    @Test(expected = FileNotFoundException.class)
+    public void testMaterializeUnknown() throws IOException {
+        new ContentAddressedStore(STORE_DIR).materialize("unknown", new File(TMP_DIR, "materialized"));
+    }
+
+}
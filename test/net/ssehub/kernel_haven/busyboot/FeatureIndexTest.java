@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.busyboot.FeatureIndex.Location;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FeatureIndex}.
+ *
+ * @author Adam
+ */
+@SuppressWarnings("null")
+public class FeatureIndexTest {
+    
+    private static final @NonNull File TMP_DIR = new File("testdata/feature_index/tmp");
+    
+    private static final @NonNull File INDEX_FILE = new File(TMP_DIR, "features.idx");
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void createOrClearTmpDir() throws IOException {
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that written references can be read again, and that unknown features have no locations.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        builder.add("CONFIG_B", "dir/b.c", 3, 7);
+        builder.add("CONFIG_A", "dir/a.c", 1, 1);
+        builder.add("CONFIG_B", "dir/a.c", 10, 12);
+        builder.add("CONFIG_C", "dir/b.c", 5, 5);
+        builder.write(INDEX_FILE);
+        
+        FeatureIndex index = new FeatureIndex(INDEX_FILE);
+        assertThat(index.getFeatures(), is(Arrays.asList("CONFIG_A", "CONFIG_B", "CONFIG_C")));
+        
+        List<Location> locations = index.getLocations("CONFIG_B");
+        assertThat(locations.size(), is(2));
+        assertThat(locations.get(0).toString(), is("dir/b.c:3-7"));
+        assertThat(locations.get(1).getFile(), is("dir/a.c"));
+        assertThat(locations.get(1).getStartLine(), is(10));
+        assertThat(locations.get(1).getEndLine(), is(12));
+        
+        assertThat(index.getLocations("CONFIG_C").get(0).toString(), is("dir/b.c:5-5"));
+        assertThat(index.getLocations("CONFIG_D").isEmpty(), is(true));
+        assertThat(index.getLocations("A").isEmpty(), is(true));
+    }
+    
+    /**
+     * Tests that each distinct string is only stored once.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testStringsInterned() throws IOException {
+        String longPath = "some/rather/long/path/to/a/source/file.c";
+        
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        builder.add("CONFIG_A", longPath, 1, 1);
+        builder.write(INDEX_FILE);
+        long sizeOne = INDEX_FILE.length();
+        
+        for (int i = 2; i < 100; i++) {
+            builder.add("CONFIG_A", longPath, i, i);
+        }
+        builder.write(INDEX_FILE);
+        
+        // only the reference table grows (12 bytes per reference)
+        assertThat(INDEX_FILE.length(), is(sizeOne + 98 * 12));
+        assertThat(new FeatureIndex(INDEX_FILE).getLocations("CONFIG_A").size(), is(99));
+    }
+    
+    /**
+     * Tests that opening a file that is not an index fails.
+     * 
+     * @throws IOException wanted.
+     */
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        try (FileWriter out = new FileWriter(INDEX_FILE)) {
+            out.write("not an index at all");
+        }
+        new FeatureIndex(INDEX_FILE);
+    }
+    
+    /**
+     * Tests that the Busybox preparation records references in conditionals as block ranges.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBusyboxReferences() throws IOException {
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        PrepareBusybox prep = new PrepareBusybox();
+        prep.setSourceTree(TMP_DIR);
+        prep.setFeatureIndex(builder);
+        
+        prep.indexFeatures(new File(TMP_DIR, "sub/test.c"), Arrays.asList(
+                "#if defined CONFIG_A",     // 1
+                "int a;",
+                "#if !defined CONFIG_B",    // 3
+                "int b;",
+                "#elif defined CONFIG_C",   // 5
+                "int c;",
+                "#endif",                   // 7
+                "#else",
+                "int x = CONFIG_D;",        // 9
+                "#endif"));
+        builder.write(INDEX_FILE);
+        
+        FeatureIndex index = new FeatureIndex(INDEX_FILE);
+        assertThat(index.getLocations("CONFIG_A").get(0).toString(), is("sub/test.c:1-8"));
+        assertThat(index.getLocations("CONFIG_B").get(0).toString(), is("sub/test.c:3-5"));
+        assertThat(index.getLocations("CONFIG_C").get(0).toString(), is("sub/test.c:5-7"));
+        assertThat(index.getLocations("CONFIG_D").get(0).toString(), is("sub/test.c:9-9"));
+    }
+    
+    /**
+     * Tests that a file normalized by an earlier run is indexed even if it is not valid UTF-8.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testNormalizedLatin1File() throws IOException {
+        File file = new File(TMP_DIR, "latin1.c");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("// gr\u00fc\u00dfe\n#if defined CONFIG_A\nint a;\n#endif\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+        }
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        PrepareBusybox prep = new PrepareBusybox();
+        prep.setSourceTree(TMP_DIR);
+        prep.setFeatureIndex(builder);
+        
+        prep.indexNormalizedFile(file);
+        builder.write(INDEX_FILE);
+        
+        FeatureIndex index = new FeatureIndex(INDEX_FILE);
+        assertThat(index.getLocations("CONFIG_A").get(0).toString(), is("latin1.c:2-4"));
+    }
+    
+    /**
+     * Tests that the FLOrIDA preparation records begin[] and Line[] blocks with their lines in the output.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testFloridaReferences() throws IOException, SetUpException {
+        FeatureIndex.Builder builder = new FeatureIndex.Builder();
+        FloridaPreparation prep = new FloridaPreparation();
+        prep.setFeatureIndex(builder);
+        
+        prep.prepare(new File("testdata/florida/simpleReplacements"), new File(TMP_DIR, "out"));
+        builder.write(INDEX_FILE);
+        
+        FeatureIndex index = new FeatureIndex(INDEX_FILE);
+        assertThat(index.getFeatures(), is(Arrays.asList("calc", "use_calc")));
+        assertThat(index.getLocations("calc").get(0).toString(), is("test.c:3-9"));
+        assertThat(index.getLocations("use_calc").get(0).toString(), is("test.c:14-16"));
+    }
+
+}
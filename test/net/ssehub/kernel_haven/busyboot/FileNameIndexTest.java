@@ -0,0 +1,272 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FileNameIndex}.
+ *
+ * @author Adam
+ */
+public class FileNameIndexTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/filename_index");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File TREE = new File(TMP_DIR, "tree");
+    
+    private static final @NonNull File INDEX_FILE = new File(TMP_DIR, "index.txt");
+    
+    /**
+     * A modification time that is well before the racy window of any scan in these tests.
+     */
+    private static final long OLD = System.currentTimeMillis() - 3600 * 1000;
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createTree() throws IOException {
+        Util.clearFolder(TMP_DIR);
+        write(new File(TREE, "Kbuild"));
+        write(new File(TREE, "a/Kbuild"));
+        write(new File(TREE, "a/b/Kbuild"));
+        write(new File(TREE, "a/b/file.c"));
+        write(new File(TREE, "c/Makefile"));
+        write(new File(TREE, "docs/Kbuild"));
+        setDirsModified(TREE, OLD);
+    }
+    
+    /**
+     * Tests finding files by name.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFind() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        
+        assertThat(index.find("Kbuild", PathFilter.ALL), is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "docs/Kbuild")));
+        assertThat(index.find("Makefile", PathFilter.ALL), is(files("c/Makefile")));
+        assertThat(index.find("b", PathFilter.ALL), is(files()));
+        assertThat(index.find("missing", PathFilter.ALL), is(files()));
+    }
+    
+    /**
+     * Tests that excluded files and files in excluded directories are not found.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFindExcluded() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList("docs", "a/b/**"), false);
+        
+        assertThat(index.find("Kbuild", filter), is(files("Kbuild", "a/Kbuild")));
+    }
+    
+    /**
+     * Tests that excluded directories are not walked at all.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testExcludedDirectoriesNotWalked() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        index.refresh(new PathFilter(new ArrayList<>(), Arrays.asList("docs", "a"), false));
+        assertThat(index.getRelisted(), is(2));
+        
+        // directories that were pruned are listed once they are included again
+        index.refresh();
+        assertThat(index.getRelisted(), is(3));
+    }
+    
+    /**
+     * Tests that symbolic links to directories are not followed, so that a link to a parent doesn't loop.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSymlinkNotFollowed() throws IOException {
+        Files.createSymbolicLink(new File(TREE, "a/b/loop").toPath(), Paths.get("../.."));
+        new File(TREE, "a/b").setLastModified(OLD);
+        FileNameIndex index = new FileNameIndex(TREE);
+        
+        assertThat(index.find("Kbuild", PathFilter.ALL), is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "docs/Kbuild")));
+        assertThat(index.getRelisted(), is(5));
+    }
+    
+    /**
+     * Tests that only new or changed directories are listed again.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testOnlyChangedDirectoriesListed() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        index.refresh();
+        assertThat(index.getRelisted(), is(5));
+        
+        index.refresh();
+        assertThat(index.getRelisted(), is(0));
+        
+        // a new file in a directory that claims to be unchanged is not seen
+        write(new File(TREE, "a/b/sub/Kbuild"));
+        new File(TREE, "a/b").setLastModified(OLD);
+        new File(TREE, "a/b/sub").setLastModified(OLD);
+        assertThat(index.find("Kbuild", PathFilter.ALL), is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "docs/Kbuild")));
+        assertThat(index.getRelisted(), is(0));
+        
+        // once its modification time changes, the directory and the new sub-directory are listed
+        new File(TREE, "a/b").setLastModified(OLD + 1000);
+        assertThat(index.find("Kbuild", PathFilter.ALL),
+                is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "a/b/sub/Kbuild", "docs/Kbuild")));
+        assertThat(index.getRelisted(), is(2));
+    }
+    
+    /**
+     * Tests that directories modified during the last scan are always listed again.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRacyDirectoryListed() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        new File(TREE, "c").setLastModified(System.currentTimeMillis());
+        index.refresh();
+        
+        write(new File(TREE, "c/Kbuild"));
+        new File(TREE, "c").setLastModified(System.currentTimeMillis());
+        assertThat(index.find("Kbuild", PathFilter.ALL),
+                is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "c/Kbuild", "docs/Kbuild")));
+        assertThat(index.getRelisted(), is(1));
+    }
+    
+    /**
+     * Tests that removed directories are removed from the index.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRemovedDirectory() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        index.refresh();
+        
+        Util.deleteFolder(new File(TREE, "a/b"));
+        new File(TREE, "a").setLastModified(OLD + 1000);
+        assertThat(index.find("Kbuild", PathFilter.ALL), is(files("Kbuild", "a/Kbuild", "docs/Kbuild")));
+        assertThat(index.getRelisted(), is(1));
+    }
+    
+    /**
+     * Tests that a saved index can be loaded again, and only the changed directories are listed afterwards.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        FileNameIndex index = new FileNameIndex(TREE);
+        index.refresh();
+        index.save(INDEX_FILE);
+        
+        write(new File(TREE, "c/Kbuild"));
+        new File(TREE, "c").setLastModified(OLD + 1000);
+        
+        FileNameIndex loaded = FileNameIndex.load(TREE, INDEX_FILE);
+        assertThat(loaded.find("Kbuild", PathFilter.ALL),
+                is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "c/Kbuild", "docs/Kbuild")));
+        assertThat(loaded.getRelisted(), is(1));
+        assertThat(loaded.find("file.c", PathFilter.ALL), is(files("a/b/file.c")));
+    }
+    
+    /**
+     * Tests that an invalid index file results in an empty index.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLoadInvalid() throws IOException {
+        try (FileWriter out = new FileWriter(INDEX_FILE)) {
+            out.write("filename index 1\tnot a number\n");
+        }
+        
+        FileNameIndex loaded = FileNameIndex.load(TREE, INDEX_FILE);
+        assertThat(loaded.find("Kbuild", PathFilter.ALL), is(files("Kbuild", "a/Kbuild", "a/b/Kbuild", "docs/Kbuild")));
+        assertThat(loaded.getRelisted(), is(5));
+    }
+    
+    /**
+     * Creates the list of expected files.
+     * 
+     * @param paths The paths relative to the tree.
+     * 
+     * @return The files.
+     */
+    private static @NonNull List<@NonNull File> files(@NonNull String... paths) {
+        List<@NonNull File> result = new ArrayList<>();
+        for (String path : paths) {
+            result.add(new File(TREE, path));
+        }
+        return result;
+    }
+    
+    /**
+     * Sets the modification time of the given directory and all directories below it.
+     * 
+     * @param dir The directory.
+     * @param lastModified The modification time to set.
+     */
+    private static void setDirsModified(@NonNull File dir, long lastModified) {
+        for (File child : dir.listFiles()) {
+            if (child.isDirectory()) {
+                setDirsModified(child, lastModified);
+            }
+        }
+        dir.setLastModified(lastModified);
+    }
+    
+    /**
+     * Creates an empty file, and its parent directories.
+     * 
+     * @param file The file to create.
+     * 
+     * @throws IOException If creating the file fails.
+     */
+    private static void write(@NonNull File file) throws IOException {
+        TestFiles.write(file, "");
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link FileTaskScheduler}.
+ *
+ * @author Adam
+ */
+public class FileTaskSchedulerTest {
+    
+    /**
+     * Tests that the tasks are started largest file first, and equal sizes in the order they were added.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLargestFirst() throws IOException {
+        FileTaskScheduler scheduler = new FileTaskScheduler(new ConcurrencyController(1, 1, 1), Long.MAX_VALUE);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        scheduler.add(10, () -> order.add("a"));
+        scheduler.add(1000, () -> order.add("b"));
+        scheduler.add(10, () -> order.add("c"));
+        scheduler.add(0, () -> order.add("d"));
+        scheduler.add(500, () -> order.add("e"));
+        
+        scheduler.run();
+        
+        assertThat(order, is(Arrays.asList("b", "e", "a", "c", "d")));
+    }
+    
+    /**
+     * Tests that no more tasks run at the same time than the limit allows.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testConcurrencyLimit() throws IOException {
+        FileTaskScheduler scheduler = new FileTaskScheduler(new ConcurrencyController(3, 3, 3), Long.MAX_VALUE);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < 30; i++) {
+            scheduler.add(i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(2);
+                running.decrementAndGet();
+            });
+        }
+        
+        scheduler.run();
+        
+        assertTrue("Max running: " + maxRunning.get(), maxRunning.get() <= 3 && maxRunning.get() >= 1);
+    }
+    
+    /**
+     * Tests that the total size of the files in flight stays below the memory limit, except for a single file that
+     * is larger than the limit.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMemoryLimit() throws IOException {
+        FileTaskScheduler scheduler = new FileTaskScheduler(new ConcurrencyController(8, 8, 8), 100);
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong maxBytes = new AtomicLong();
+        for (int size : new int[] {150, 60, 50, 40, 30, 30, 20, 10, 10, 10}) {
+            scheduler.add(size, () -> {
+                maxBytes.accumulateAndGet(bytes.addAndGet(size), Math::max);
+                sleep(5);
+                bytes.addAndGet(-size);
+            });
+        }
+        
+        scheduler.run();
+        
+        assertThat(maxBytes.get(), is(150L));
+        assertThat(bytes.get(), is(0L));
+    }
+    
+    /**
+     * Tests that a failing task is reported, and that no further tasks are started after it.
+     */
+    @Test
+    public void testFailure() {
+        FileTaskScheduler scheduler = new FileTaskScheduler(new ConcurrencyController(1, 1, 1), Long.MAX_VALUE);
+        AtomicInteger started = new AtomicInteger();
+        scheduler.add(100, () -> {
+            started.incrementAndGet();
+            throw new IOException("broken");
+        });
+        scheduler.add(10, () -> started.incrementAndGet());
+        
+        try {
+            scheduler.run();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("broken"));
+        }
+        assertThat(started.get(), is(1));
+    }
+    
+    /**
+     * Tests that an adaptive scheduler runs all tasks, and can be reused.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testAdaptive() throws IOException {
+        FileTaskScheduler scheduler = new FileTaskScheduler(0);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 200; i++) {
+            scheduler.add(i * 100, () -> done.incrementAndGet());
+        }
+        scheduler.run();
+        assertThat(done.get(), is(200));
+        
+        scheduler.add(1, () -> done.incrementAndGet());
+        scheduler.run();
+        assertThat(done.get(), is(201));
+    }
+    
+    /**
+     * Sleeps in a task.
+     * 
+     * @param millis The time to sleep.
+     * 
+     * @throws IOException If sleeping is interrupted.
+     */
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
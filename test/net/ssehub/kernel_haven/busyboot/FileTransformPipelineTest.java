@@ -0,0 +1,272 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FileTransformPipeline}.
+ *
+ * @author Adam
+ */
+public class FileTransformPipelineTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/file_pipeline");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates some source files before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createSourceFiles() throws IOException {
+        Util.clearFolder(TMP_DIR);
+        for (int i = 0; i < 50; i++) {
+            Files.write(new File(TMP_DIR, "file" + i + ".txt").toPath(),
+                    ("content " + i + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Tests that all files are transformed in place and that the completion is called for each file, with queues
+     * that are much smaller than the number of files.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTransformInPlace() throws IOException {
+        Set<String> completed = Collections.synchronizedSet(new HashSet<>());
+        
+        try (FileTransformPipeline pipeline
+                = new FileTransformPipeline(new FileTransformPipeline.Settings(2, 3, 2, 1))) {
+            for (int i = 0; i < 50; i++) {
+                File file = new File(TMP_DIR, "file" + i + ".txt");
+                pipeline.submit(file, file, FileTransformPipelineTest::upperCase,
+                    (source, target) -> completed.add(target.getName()));
+            }
+            pipeline.finish();
+        }
+        
+        assertThat(completed.size(), is(50));
+        for (int i = 0; i < 50; i++) {
+            assertThat(read(new File(TMP_DIR, "file" + i + ".txt")), is("CONTENT " + i + "\n"));
+        }
+    }
+    
+    /**
+     * Tests that the transformed content can be written to a different file.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTransformToOtherFile() throws IOException {
+        File source = new File(TMP_DIR, "file1.txt");
+        File target = new File(TMP_DIR, "result.txt");
+        
+        try (FileTransformPipeline pipeline = new FileTransformPipeline()) {
+            pipeline.submit(source, target, FileTransformPipelineTest::upperCase, null);
+            pipeline.finish();
+        }
+        
+        assertThat(read(source), is("content 1\n"));
+        assertThat(read(target), is("CONTENT 1\n"));
+    }
+    
+    /**
+     * Tests that the submitted files are transformed largest file first.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLargestFirst() throws IOException {
+        List<String> transformed = Collections.synchronizedList(new ArrayList<>());
+        
+        try (FileTransformPipeline pipeline
+                = new FileTransformPipeline(new FileTransformPipeline.Settings(1, 1, 1, 1))) {
+            for (int size : new int[] {2, 10, 5, 30, 1}) {
+                File file = new File(TMP_DIR, "size" + size + ".txt");
+                Files.write(file.toPath(), new byte[size]);
+                pipeline.submit(file, file, (source, content) -> {
+                    transformed.add(source.getName());
+                    return content;
+                }, null);
+            }
+            pipeline.finish();
+        }
+        
+        assertThat(transformed, is(Arrays.asList("size30.txt", "size10.txt", "size5.txt", "size2.txt",
+                "size1.txt")));
+    }
+    
+    /**
+     * Tests that the files in flight stay within the memory limit: with a limit smaller than two files, each file
+     * is written before the next one is transformed.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMemoryLimit() throws IOException {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        
+        // the files have 10 or 11 bytes
+        try (FileTransformPipeline pipeline
+                = new FileTransformPipeline(new FileTransformPipeline.Settings(4, 4, 4, 8, 15))) {
+            for (int i = 0; i < 50; i++) {
+                File file = new File(TMP_DIR, "file" + i + ".txt");
+                pipeline.submit(file, file, (source, content) -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    return upperCase(source, content);
+                }, (source, target) -> inFlight.decrementAndGet());
+            }
+            pipeline.finish();
+        }
+        
+        assertThat(maxInFlight.get(), is(1));
+        for (int i = 0; i < 50; i++) {
+            assertThat(read(new File(TMP_DIR, "file" + i + ".txt")), is("CONTENT " + i + "\n"));
+        }
+    }
+    
+    /**
+     * Tests that an adaptive stage doesn't start threads for its maximum limit up front.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testThreadsStartedOnDemand() throws IOException {
+        try (FileTransformPipeline pipeline
+                = new FileTransformPipeline(new FileTransformPipeline.Settings(0, 1, 0, 1))) {
+            long readers = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().startsWith("FileTransformPipeline-reader-"))
+                    .count();
+            assertThat(readers <= Runtime.getRuntime().availableProcessors(), is(true));
+            pipeline.finish();
+        }
+    }
+    
+    /**
+     * Tests that failing files are reported by {@link FileTransformPipeline#finish()}, while all other files are
+     * still transformed.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFailuresDontStopOtherFiles() throws IOException {
+        try (FileTransformPipeline pipeline
+                = new FileTransformPipeline(new FileTransformPipeline.Settings(1, 2, 1, 2))) {
+            for (int i = 0; i < 50; i++) {
+                File file = new File(TMP_DIR, "file" + i + ".txt");
+                pipeline.submit(file, file, (source, content) -> {
+                    if (source.getName().equals("file7.txt") || source.getName().equals("file31.txt")) {
+                        throw new IOException("broken");
+                    }
+                    return upperCase(source, content);
+                }, null);
+            }
+            pipeline.submit(new File(TMP_DIR, "doesnt_exist.txt"), new File(TMP_DIR, "out.txt"),
+                    FileTransformPipelineTest::upperCase, null);
+            
+            try {
+                pipeline.finish();
+                fail("Expected exception");
+            } catch (IOException e) {
+                assertThat(e.getSuppressed().length, is(2));
+            }
+        }
+        
+        assertThat(read(new File(TMP_DIR, "file7.txt")), is("content 7\n"));
+        assertThat(read(new File(TMP_DIR, "file31.txt")), is("content 31\n"));
+        assertThat(read(new File(TMP_DIR, "file49.txt")), is("CONTENT 49\n"));
+        assertThat(new File(TMP_DIR, "out.txt").exists(), is(false));
+    }
+    
+    /**
+     * Tests that unchanged content is not written if the completion handles it, and written otherwise.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testUnchangedContent() throws IOException {
+        Set<String> unchanged = Collections.synchronizedSet(new HashSet<>());
+        Set<String> completed = Collections.synchronizedSet(new HashSet<>());
+        FileTransformPipeline.Completion completion = new FileTransformPipeline.Completion() {
+            
+            @Override
+            public void completed(@NonNull File source, @NonNull File target) {
+                completed.add(source.getName());
+            }
+            
+            @Override
+            public boolean unchanged(@NonNull File source, @NonNull File target) {
+                unchanged.add(source.getName());
+                return true;
+            }
+        };
+        
+        try (FileTransformPipeline pipeline = new FileTransformPipeline()) {
+            pipeline.submit(new File(TMP_DIR, "file1.txt"), new File(TMP_DIR, "out1.txt"),
+                (source, content) -> content, completion);
+            pipeline.submit(new File(TMP_DIR, "file2.txt"), new File(TMP_DIR, "out2.txt"),
+                FileTransformPipelineTest::upperCase, completion);
+            pipeline.submit(new File(TMP_DIR, "file3.txt"), new File(TMP_DIR, "out3.txt"),
+                (source, content) -> content.clone(), (source, target) -> completed.add(source.getName()));
+            pipeline.finish();
+        }
+        
+        assertThat(unchanged, is(new HashSet<>(Arrays.asList("file1.txt"))));
+        assertThat(completed, is(new HashSet<>(Arrays.asList("file2.txt", "file3.txt"))));
+        assertThat(new File(TMP_DIR, "out1.txt").exists(), is(false));
+        assertThat(read(new File(TMP_DIR, "out2.txt")), is("CONTENT 2\n"));
+        assertThat(read(new File(TMP_DIR, "out3.txt")), is("content 3\n"));
+    }
+    
+    /**
+     * Converts the content to upper case.
+     * 
+     * @param source The source file.
+     * @param content The content.
+     * 
+     * @return The content in upper case.
+     */
+    private static byte @NonNull [] upperCase(@NonNull File source, byte @NonNull [] content) {
+        return new String(content, StandardCharsets.UTF_8).toUpperCase().getBytes(StandardCharsets.UTF_8);
+    }
+    
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link FlightRecorderEvents}. The JFR API is accessed via reflection, since the tests are compiled for
+ * Java 8; the tests are skipped if JFR is not available.
+ *
+ * @author Adam
+ */
+public class FlightRecorderEventsTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/flight_recorder");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    /**
+     * Code that emits events during a recording.
+     */
+    private interface Recorded {
+        
+        /**
+         * Emits the events.
+         * 
+         * @throws InterruptedException unwanted.
+         * @throws IOException unwanted.
+         */
+        public void run() throws InterruptedException, IOException;
+    
+    }
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test, and skips the tests if JFR is not available.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(FlightRecorderEvents.isAvailable());
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that only file transformations of the {@link FileTransformPipeline} above the threshold are recorded,
+     * with their sizes and the rule counts reported by the transformation.
+     * 
+     * @throws ReflectiveOperationException unwanted.
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFileTransformThreshold() throws ReflectiveOperationException, IOException {
+        File fast = new File(TMP_DIR, "fast.c");
+        File slow = new File(TMP_DIR, "slow.c");
+        write(fast, "int a;\n");
+        write(slow, "int b;\n");
+        RewriteTelemetry telemetry = new RewriteTelemetry(10);
+        
+        List<Object> events = record(FlightRecorderEvents.FILE_EVENT, () -> {
+            try (FileTransformPipeline pipeline = new FileTransformPipeline()) {
+                pipeline.submit(fast, fast, (source, content) -> content, null);
+                pipeline.submit(slow, slow, new FileTransformPipeline.Transform() {
+                    
+                    private RewriteTelemetry.FileStats stats = telemetry.startFile();
+                    
+                    @Override
+                    public byte[] transform(File source, byte[] content) throws IOException {
+                        stats.record(RewriteTelemetry.Rule.IF_EXPANSION, stats.start(), 2);
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return "int b = 1;\n".getBytes(StandardCharsets.UTF_8);
+                    }
+                    
+                    @Override
+                    public RewriteTelemetry.FileStats getStats() {
+                        return stats;
+                    }
+                    
+                }, null);
+                pipeline.finish();
+            }
+        });
+        
+        assertThat(events.size(), is(1));
+        assertThat(getValue(events.get(0), "path"), is(slow.getPath()));
+        assertThat(getValue(events.get(0), "bytesIn"), is(7L));
+        assertThat(getValue(events.get(0), "bytesOut"), is(11L));
+        assertThat(getValue(events.get(0), "IF_EXPANSION"), is(2L));
+        assertThat(getValue(events.get(0), "ENABLE_INLINE"), is(0L));
+    }
+    
+    /**
+     * Tests that a phase is recorded from the check whether it is done until it is marked as done.
+     * 
+     * @throws ReflectiveOperationException unwanted.
+     */
+    @Test
+    public void testPhase() throws ReflectiveOperationException {
+        List<Object> events = record(FlightRecorderEvents.PHASE_EVENT, () -> {
+            PrepareBusybox prep = new PrepareBusybox();
+            if (!prep.isPhaseDone("kconfig")) {
+                Thread.sleep(10);
+                prep.markPhaseDone("kconfig");
+            }
+        });
+        
+        assertThat(events.size(), is(1));
+        assertThat(getValue(events.get(0), "preparation"), is("PrepareBusybox"));
+        assertThat(getValue(events.get(0), "phase"), is("kconfig"));
+    }
+    
+    /**
+     * Tests that a make invocation is recorded with its command and result.
+     * 
+     * @throws ReflectiveOperationException unwanted.
+     */
+    @Test
+    public void testMake() throws ReflectiveOperationException {
+        List<Object> events = record(FlightRecorderEvents.MAKE_EVENT, () -> {
+            ProcessBuilder make = new ProcessBuilder("make", "allyesconfig");
+            make.directory(TMP_DIR);
+            FlightRecorderEvents.commitMake(FlightRecorderEvents.beginMake(), make, false);
+        });
+        
+        assertThat(events.size(), is(1));
+        assertThat(getValue(events.get(0), "command"), is("make allyesconfig"));
+        assertThat(getValue(events.get(0), "directory"), is(TMP_DIR.getPath()));
+        assertThat(getValue(events.get(0), "success"), is(false));
+    }
+    
+    /**
+     * Records the events of the given type (with their default settings) while the given code runs.
+     * 
+     * @param eventName The name of the event type to record.
+     * @param code The code that emits the events.
+     * 
+     * @return The recorded events of the given type, as <code>jdk.jfr.consumer.RecordedEvent</code>s.
+     * 
+     * @throws ReflectiveOperationException unwanted.
+     */
+    private static @NonNull List<Object> record(@NonNull String eventName, @NonNull Recorded code)
+            throws ReflectiveOperationException {
+        
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, eventName);
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            code.run();
+        } catch (InterruptedException | IOException e) {
+            throw new ReflectiveOperationException(e);
+        }
+        recordingClass.getMethod("stop").invoke(recording);
+        
+        Path dump = new File(TMP_DIR, "recording.jfr").toPath();
+        recordingClass.getMethod("dump", Path.class).invoke(recording, dump);
+        recordingClass.getMethod("close").invoke(recording);
+        
+        List<Object> result = new ArrayList<>();
+        Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+        for (Object event : (List<?>) recordingFile.getMethod("readAllEvents", Path.class).invoke(null, dump)) {
+            Object type = event.getClass().getMethod("getEventType").invoke(event);
+            if (type.getClass().getMethod("getName").invoke(type).equals(eventName)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the value of a field of a recorded event.
+     * 
+     * @param event The <code>jdk.jfr.consumer.RecordedEvent</code>.
+     * @param field The name of the field.
+     * 
+     * @return The value of the field.
+     * 
+     * @throws ReflectiveOperationException unwanted.
+     */
+    private static Object getValue(Object event, @NonNull String field) throws ReflectiveOperationException {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+
+}
@@ -15,8 +15,10 @@
  */
 package net.ssehub.kernel_haven.busyboot;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.endsWith;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -25,6 +27,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -544,4 +549,80 @@ public class FloridaPreparationTest {
         }
     }
     
+    /**
+     * Tests that the lint mode finds no violations in a correct source tree, and writes nothing.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLintNoViolations() throws IOException {
+        FloridaPreparation prep = new FloridaPreparation();
+        
+        File target = new File(TESTDATA, "subfolders");
+        String[] before = target.list();
+        
+        assertThat(prep.lint(target), is(new ArrayList<>()));
+        assertThat(target.list(), is(before));
+        assertThat(OUT_FOLDER.listFiles(), is(new File[0]));
+    }
+    
+    /**
+     * Tests that the lint mode reports the violations of the nesting of C preprocessor and FLOrIDA blocks.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLintNesting() throws IOException {
+        FloridaPreparation prep = new FloridaPreparation();
+        
+        List<FloridaDiagnostic> diagnostics = prep.lint(new File(TESTDATA, "nestingOfCppAndFloridaWrong"));
+        
+        assertThat(diagnostics.size(), is(3));
+        assertThat(diagnostics.get(0).getPath(), is("test.c"));
+        assertThat(diagnostics.get(0).getLine(), is(1));
+        assertThat(diagnostics.get(0).getKind(), is(FloridaDiagnostic.Kind.UNBALANCED_CPP_BLOCK));
+        assertThat(diagnostics.get(1).getLine(), is(5));
+        assertThat(diagnostics.get(1).getKind(), is(FloridaDiagnostic.Kind.CLOSING_BEFORE_OPENING));
+        assertThat(diagnostics.get(2).getLine(), is(5));
+        assertThat(diagnostics.get(2).getKind(), is(FloridaDiagnostic.Kind.UNBALANCED_CPP_BLOCK));
+    }
+    
+    /**
+     * Tests that the lint mode reports mismatched, unclosed and unknown FLOrIDA conditions.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLintConditions() throws IOException {
+        FloridaPreparation prep = new FloridaPreparation();
+        
+        List<FloridaDiagnostic> diagnostics = prep.lint(new File(TESTDATA, "notMatching"));
+        assertThat(diagnostics.size(), is(1));
+        assertThat(diagnostics.get(0).getLine(), is(2));
+        assertThat(diagnostics.get(0).getKind(), is(FloridaDiagnostic.Kind.MISMATCHED_FEATURE));
+        
+        diagnostics = prep.lint(new File(TESTDATA, "unclosedBegin"));
+        assertThat(diagnostics.size(), is(1));
+        assertThat(diagnostics.get(0).getKind(), is(FloridaDiagnostic.Kind.UNCLOSED_BEGIN));
+        assertThat(diagnostics.get(0).getMessage(), containsString("begin[FEATURE_A]"));
+        
+        diagnostics = prep.lint(new File(TESTDATA, "wrongFloridaCondition"));
+        assertThat(diagnostics.size(), is(1));
+        assertThat(diagnostics.get(0).toString(), startsWith("test.c:1: UNKNOWN_CONDITION: Unknown FLOrIDA "));
+    }
+    
+    /**
+     * Tests that the lint mode skips non-source files and excluded files.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testLintSkipped() throws IOException {
+        FloridaPreparation prep = new FloridaPreparation();
+        assertThat(prep.lint(new File(TESTDATA, "nonSourceFile")), is(new ArrayList<>()));
+        
+        prep.setPathFilter(new PathFilter(new ArrayList<>(), Arrays.asList("test.c"), false));
+        assertThat(prep.lint(new File(TESTDATA, "notMatching")), is(new ArrayList<>()));
+    }
+    
 }
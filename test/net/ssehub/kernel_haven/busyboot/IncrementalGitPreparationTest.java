@@ -0,0 +1,434 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.busyboot.IncrementalGitPreparation.Change;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link IncrementalGitPreparation}.
+ *
+ * @author Adam
+ */
+@SuppressWarnings("null")
+public class IncrementalGitPreparationTest {
+    
+    /**
+     * A preparation that records which files it was asked to transform. Package visibility, so that the
+     * {@link IncrementalGitPreparation} can instantiate it.
+     */
+    static class RecordingPreparation extends AbstractBusybootPreparation {
+        
+        private @NonNull List<@NonNull File> transformed = new ArrayList<>();
+        
+        @Override
+        protected void runImpl() throws SetUpException {
+        }
+        
+        @Override
+        protected void transformChangedFile(@NonNull File file) throws IOException {
+            transformed.add(file);
+        }
+    
+    }
+    
+    private static final @NonNull File TESTDATA = new File("testdata/incremental_git");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File REPO = new File(TMP_DIR, "repo");
+    
+    private @NonNull IncrementalGitPreparation prep = new IncrementalGitPreparation();
+    
+    /**
+     * Creates an empty git repository in the temporary directory before each test.
+     * 
+     * @throws IOException If creating the repository fails.
+     */
+    @Before
+    public void createRepository() throws IOException {
+        Util.clearFolder(TMP_DIR);
+        REPO.mkdir();
+        git("init", "-q");
+        git("config", "user.name", "Test");
+        git("config", "user.email", "test@example.com");
+        
+        prep = new IncrementalGitPreparation();
+        prep.setRepository(REPO);
+    }
+    
+    /**
+     * Tests that a range of revisions is resolved in the correct order, including the first revision.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testGetRevisions() throws IOException {
+        String first = commit("a.c", "int a;\n");
+        String second = commit("b.c", "int b;\n");
+        String third = commit("c.c", "int c;\n");
+        
+        assertThat(prep.getRevisions(first + ".." + third), is(Arrays.asList(first, second, third)));
+        assertThat(prep.getRevisions(second), is(Arrays.asList(second)));
+    }
+    
+    /**
+     * Tests that added, modified and deleted files are detected.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testGetChanges() throws IOException {
+        write("modified.c", "int a;\n");
+        write("deleted.c", "int b;\n");
+        String first = commit("unchanged.c", "int c;\n");
+        
+        write("modified.c", "int a = 1;\n");
+        git("rm", "-q", "deleted.c");
+        String second = commit("added.c", "int d;\n");
+        
+        List<Change> changes = prep.getChanges(first, second);
+        
+        assertThat(changes.size(), is(3));
+        for (Change change : changes) {
+            if (change.getPath().equals("added.c")) {
+                assertThat(change.getStatus(), is('A'));
+            } else if (change.getPath().equals("modified.c")) {
+                assertThat(change.getStatus(), is('M'));
+            } else {
+                assertThat(change.getPath(), is("deleted.c"));
+                assertThat(change.getStatus(), is('D'));
+            }
+        }
+    }
+    
+    /**
+     * Tests that renamed files are listed with their old and new path.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testGetChangesRename() throws IOException {
+        String first = commit("old name.c", "int a;\nint b;\nint c;\n");
+        git("mv", "old name.c", "new name.c");
+        String second = commit("other.c", "int d;\n");
+        
+        List<Change> changes = prep.getChanges(first, second);
+        
+        assertThat(changes.size(), is(2));
+        Change rename = changes.get(0).getStatus() == 'R' ? changes.get(0) : changes.get(1);
+        assertThat(rename.getStatus(), is('R'));
+        assertThat(rename.getOldPath(), is("old name.c"));
+        assertThat(rename.getPath(), is("new name.c"));
+    }
+    
+    /**
+     * Tests that applying changes updates the prepared tree and the unchanged copy, and only transforms the changed
+     * files.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testApplyChanges() throws IOException {
+        write("modified.c", "int a;\n");
+        write("deleted.c", "int b;\n");
+        String first = commit("unchanged.c", "int c;\n");
+        
+        write("modified.c", "int a = 1;\n");
+        git("rm", "-q", "deleted.c");
+        String second = commit("added.c", "int d;\n");
+        
+        // simulate the prepared tree of the first revision
+        File root = new File(TMP_DIR, second);
+        File copy = new File(TMP_DIR, second + "UnchangedCopy");
+        for (File dir : new File[] {root, copy}) {
+            dir.mkdir();
+            for (String name : new String[] {"modified.c", "deleted.c", "unchanged.c"}) {
+                try (FileWriter out = new FileWriter(new File(dir, name))) {
+                    out.write("prepared\n");
+                }
+            }
+        }
+        
+        RecordingPreparation busyboot = new RecordingPreparation();
+        busyboot.setSourceTree(root);
+        
+        prep.applyChanges(busyboot, second, root, "", prep.getChanges(first, second));
+        
+        assertThat(read(new File(root, "modified.c")), is("int a = 1;\n"));
+        assertThat(read(new File(root, "added.c")), is("int d;\n"));
+        assertThat(read(new File(root, "unchanged.c")), is("prepared\n"));
+        assertThat(new File(root, "deleted.c").exists(), is(false));
+        
+        assertThat(read(new File(copy, "modified.c")), is("int a = 1;\n"));
+        assertThat(read(new File(copy, "added.c")), is("int d;\n"));
+        assertThat(new File(copy, "deleted.c").exists(), is(false));
+        
+        assertThat(busyboot.transformed.size(), is(2));
+    }
+    
+    /**
+     * Tests that a changed symbolic link is replaced instead of written through, and that an added executable file
+     * keeps its executable bit.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testApplyChangesLinksAndModes() throws IOException {
+        write("a.c", "int a;\n");
+        write("b.c", "int b;\n");
+        Files.createSymbolicLink(new File(REPO, "link.c").toPath(), Paths.get("b.c"));
+        String first = commit("a.c", "int a;\n");
+        
+        Files.delete(new File(REPO, "link.c").toPath());
+        Files.createSymbolicLink(new File(REPO, "link.c").toPath(), Paths.get("a.c"));
+        write("run.sh", "#!/bin/sh\n");
+        new File(REPO, "run.sh").setExecutable(true, false);
+        String second = commit("run.sh", "#!/bin/sh\n");
+        
+        // simulate the prepared tree of the first revision
+        File root = new File(TMP_DIR, second);
+        TestFiles.write(new File(root, "a.c"), "int a;\n");
+        TestFiles.write(new File(root, "b.c"), "int b;\n");
+        Files.createSymbolicLink(new File(root, "link.c").toPath(), Paths.get("b.c"));
+        
+        RecordingPreparation busyboot = new RecordingPreparation();
+        busyboot.setSourceTree(root);
+        
+        prep.applyChanges(busyboot, second, root, "", prep.getChanges(first, second));
+        
+        assertThat(read(new File(root, "b.c")), is("int b;\n"));
+        assertThat(Files.readSymbolicLink(new File(root, "link.c").toPath()), is(Paths.get("a.c")));
+        assertThat(Files.getPosixFilePermissions(new File(root, "run.sh").toPath())
+                .contains(PosixFilePermission.OWNER_EXECUTE), is(true));
+        assertThat(busyboot.transformed, is(Arrays.asList(new File(root, "run.sh"))));
+    }
+    
+    /**
+     * Tests that a submodule bump does not fail: like in <code>git archive</code>, the submodule is an empty
+     * directory.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testApplyChangesSubmodule() throws IOException {
+        String first = commit("a.c", "int a;\n");
+        // a gitlink entry with an empty directory is enough, the submodule commit does not need to exist
+        new File(REPO, "sub").mkdir();
+        git("update-index", "--add", "--cacheinfo", "160000," + first + ",sub");
+        String second = commit("a.c", "int a = 1;\n");
+        git("update-index", "--cacheinfo", "160000," + second + ",sub");
+        String third = commit("a.c", "int a = 2;\n");
+        
+        File root = new File(TMP_DIR, third);
+        TestFiles.write(new File(root, "a.c"), "int a;\n");
+        
+        RecordingPreparation busyboot = new RecordingPreparation();
+        busyboot.setSourceTree(root);
+        
+        prep.applyChanges(busyboot, second, root, "", prep.getChanges(first, second));
+        prep.applyChanges(busyboot, third, root, "", prep.getChanges(second, third));
+        
+        assertThat(read(new File(root, "a.c")), is("int a = 2;\n"));
+        assertThat(new File(root, "sub").isDirectory(), is(true));
+        assertThat(new File(root, "sub").list().length, is(0));
+        assertThat(busyboot.transformed.size(), is(2));
+    }
+    
+    /**
+     * Tests a range of revisions with the {@link ContentAddressedStore}: the files of each revision are hard links
+     * to the files of the previous one, so the changed files must be replaced, not written into, to keep the stored
+     * previous revision intact. Unchanged files are shared with the previous revision.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testIncrementalWithStore() throws IOException, SetUpException {
+        write("b.c", "int b;\n");
+        String first = commit("a.c", "int a;\n");
+        String second = commit("a.c", "int a = 1;\n");
+        String third = commit("a.c", "int a = 2;\n");
+        
+        File destination = new File(TMP_DIR, "prepared");
+        File store = new File(TMP_DIR, "store");
+        destination.mkdir();
+        store.mkdir();
+        Properties props = new Properties();
+        props.setProperty("preparation.git.repository", REPO.getPath());
+        props.setProperty("preparation.git.revisions", first + ".." + third);
+        props.setProperty("preparation.git.preparation", RecordingPreparation.class.getName());
+        props.setProperty("preparation.git.destination", destination.getPath());
+        props.setProperty("preparation.store.directory", store.getPath());
+        props.setProperty("analysis.busybox.normalize", "false");
+        
+        prep.run(new Configuration(props));
+        
+        assertThat(read(new File(destination, first + "/a.c")), is("int a;\n"));
+        assertThat(read(new File(destination, second + "/a.c")), is("int a = 1;\n"));
+        assertThat(read(new File(destination, third + "/a.c")), is("int a = 2;\n"));
+        assertThat(Files.isSameFile(new File(destination, second + "/b.c").toPath(),
+                new File(destination, third + "/b.c").toPath()), is(true));
+        
+        File materialized = new File(TMP_DIR, "materialized");
+        new ContentAddressedStore(store).materialize(second, materialized);
+        assertThat(read(new File(materialized, "a.c")), is("int a = 1;\n"));
+    }
+    
+    /**
+     * Tests that settings that need a full preparation of each revision are rejected before anything is prepared.
+     */
+    @Test
+    public void testUnsupportedSettings() {
+        for (String[] setting : new String[][] {
+            {"preparation.feature_index", new File(TMP_DIR, "features.tsv").getPath()},
+            {"preparation.busyboot.backup", "journal"}}) {
+            
+            Properties props = new Properties();
+            props.setProperty("preparation.git.repository", REPO.getPath());
+            props.setProperty("preparation.git.revisions", "HEAD");
+            props.setProperty("preparation.git.preparation", PrepareBusybox.class.getName());
+            props.setProperty("preparation.git.destination", TMP_DIR.getPath());
+            props.setProperty(setting[0], setting[1]);
+            
+            String message = null;
+            try {
+                prep.run(new Configuration(props));
+            } catch (SetUpException e) {
+                message = e.getMessage();
+            }
+            assertThat(setting[0], message != null && message.startsWith(setting[0]), is(true));
+        }
+    }
+    
+    /**
+     * Tests that changed content lines starting with <code>--</code> or <code>++</code> are not mistaken for file
+     * headers.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testGetChangedLines() throws IOException {
+        write("a.c", "-- removed\nint a;\n");
+        String first = commit("b.c", "int b;\n");
+        write("a.c", "int a;\n++ added\n");
+        String second = commit("b.c", "int b = 1;\n");
+        
+        Map<String, List<String>> lines = prep.getChangedLines(first, second);
+        
+        assertThat(lines.keySet(), is(new HashSet<>(Arrays.asList("a.c", "b.c"))));
+        assertThat(lines.get("a.c"), is(Arrays.asList("-- removed", "++ added")));
+        assertThat(lines.get("b.c"), is(Arrays.asList("int b;", "int b = 1;")));
+    }
+    
+    /**
+     * Tests which changes are considered relevant for the build system by default.
+     */
+    @Test
+    public void testIsBuildRelevant() {
+        RecordingPreparation busyboot = new RecordingPreparation();
+        List<@NonNull String> noLines = Arrays.asList();
+        
+        assertThat(busyboot.isBuildRelevant("Makefile", noLines), is(true));
+        assertThat(busyboot.isBuildRelevant("sub/Config.in", noLines), is(true));
+        assertThat(busyboot.isBuildRelevant("sub/Kbuild", noLines), is(true));
+        assertThat(busyboot.isBuildRelevant("sub/Makefile.inc", noLines), is(true));
+        assertThat(busyboot.isBuildRelevant("sub/file.c", noLines), is(false));
+        
+        PrepareBusybox busybox = new PrepareBusybox();
+        assertThat(busybox.isBuildRelevant("sub/Config.src", noLines), is(true));
+        assertThat(busybox.isBuildRelevant("sub/file.c", Arrays.asList("//config:config FOO")), is(true));
+        assertThat(busybox.isBuildRelevant("sub/file.c", Arrays.asList("int a;")), is(false));
+    }
+    
+    /**
+     * Writes a file in the repository.
+     * 
+     * @param name The name of the file.
+     * @param content The content to write.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static void write(@NonNull String name, @NonNull String content) throws IOException {
+        TestFiles.write(new File(REPO, name), content);
+    }
+    
+    /**
+     * Writes a file, commits all changes, and returns the new commit hash.
+     * 
+     * @param name The name of the file to write.
+     * @param content The content to write.
+     * 
+     * @return The hash of the new commit.
+     * 
+     * @throws IOException If committing fails.
+     */
+    private static @NonNull String commit(@NonNull String name, @NonNull String content) throws IOException {
+        write(name, content);
+        git("add", "-A");
+        git("commit", "-q", "-m", "commit");
+        
+        ProcessBuilder processBuilder = new ProcessBuilder("git", "rev-parse", "HEAD");
+        processBuilder.directory(REPO);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        Util.executeProcess(processBuilder, "git", stdout, new ByteArrayOutputStream(), 0);
+        return stdout.toString().trim();
+    }
+    
+    /**
+     * Runs git in the test repository.
+     * 
+     * @param args The arguments to git.
+     * 
+     * @throws IOException If git fails.
+     */
+    private static void git(@NonNull String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(REPO);
+        if (!Util.executeProcess(processBuilder, "git")) {
+            throw new IOException("git failed");
+        }
+    }
+
+}
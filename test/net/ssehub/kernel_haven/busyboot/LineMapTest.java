@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link LineMap}.
+ *
+ * @author Adam
+ */
+@SuppressWarnings("null")
+public class LineMapTest {
+    
+    private static final @NonNull File TMP_DIR = new File("testdata/line_map/tmp");
+    
+    private static final @NonNull File MAP_DIR = new File(TMP_DIR, "maps");
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void createOrClearTmpDir() throws IOException {
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that a map with inserted and joined lines is run-length encoded and read back correctly.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        LineMap.Builder builder = new LineMap.Builder();
+        // lines 1-3 unchanged, two lines inserted for line 4, lines 5 and 6 joined, then 7-9
+        for (int line : new int[] {1, 2, 3, 4, 4, 4, 5, 7, 8, 9}) {
+            builder.add(line);
+        }
+        assertThat(builder.isIdentity(), is(false));
+        builder.write(MAP_DIR, "sub/file.c");
+        
+        List<String> lines = Files.readAllLines(new File(MAP_DIR, "sub/file.c.linemap").toPath());
+        assertThat(lines, is(Arrays.asList("linemap 1", "4\t1\t1", "2\t4\t0", "1\t5\t1", "3\t7\t1")));
+        
+        LineMap map = LineMap.read(MAP_DIR, "sub/file.c");
+        assertThat(map.getNumLines(), is(10));
+        assertThat(map.getOriginalLine(1), is(1));
+        assertThat(map.getOriginalLine(4), is(4));
+        assertThat(map.getOriginalLine(6), is(4));
+        assertThat(map.getOriginalLine(7), is(5));
+        assertThat(map.getOriginalLine(8), is(7));
+        assertThat(map.getOriginalLine(10), is(9));
+    }
+    
+    /**
+     * Tests that no map is written for files where the line numbers did not change.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIdentity() throws IOException {
+        LineMap.Builder builder = new LineMap.Builder();
+        for (int line = 1; line <= 5; line++) {
+            builder.add(line);
+        }
+        assertThat(builder.isIdentity(), is(true));
+        builder.write(MAP_DIR, "file.c");
+        
+        assertThat(new File(MAP_DIR, "file.c.linemap").exists(), is(false));
+        assertThat(LineMap.read(MAP_DIR, "file.c"), nullValue());
+    }
+    
+    /**
+     * Tests that looking up a line that is not in the prepared file fails.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfRange() {
+        LineMap.Builder builder = new LineMap.Builder();
+        builder.add(1);
+        builder.build().getOriginalLine(2);
+    }
+    
+    /**
+     * Tests that the original line numbers of joined line continuations are recorded.
+     */
+    @Test
+    public void testLineContinuation() {
+        List<@NonNull Integer> originalLines = new ArrayList<>();
+        PrepareBusybox.substituteLineContinuation(Arrays.asList("a", "b \\", "c \\", "d", "e"), originalLines);
+        
+        assertThat(originalLines, is(Arrays.asList(1, 2, 5)));
+    }
+    
+    /**
+     * Tests that the Busybox normalization writes a map for inserted and joined lines.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBusyboxNormalization() throws IOException {
+        File tree = new File(TMP_DIR, "tree");
+        tree.mkdir();
+        File file = new File(tree, "test.c");
+        Files.write(file.toPath(), Arrays.asList(
+                "#define A \\",
+                "    1",
+                "int x;",
+                "if (ENABLE_FOO) {",
+                "}"), StandardCharsets.UTF_8);
+        
+        PrepareBusybox prep = new PrepareBusybox();
+        prep.setSourceTree(tree);
+        prep.setLineMapDir(MAP_DIR);
+        prep.normalizeSources = true;
+        prep.transformChangedFile(file);
+        
+        List<String> output = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        LineMap map = LineMap.read(MAP_DIR, "test.c");
+        assertThat(map.getNumLines(), is(output.size()));
+        assertThat(output.get(0), is("#define A     1"));
+        assertThat(map.getOriginalLine(1), is(1));
+        assertThat(map.getOriginalLine(2), is(3));
+        assertThat(map.getOriginalLine(output.size()), is(5));
+        for (int i = 3; i < output.size(); i++) {
+            assertThat(map.getOriginalLine(i), is(4));
+        }
+    }
+    
+    /**
+     * Tests that the FLOrIDA preparation writes a map for the inserted #endif lines of Line[] directives.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testFloridaReplacements() throws IOException, SetUpException {
+        FloridaPreparation prep = new FloridaPreparation();
+        prep.setLineMapDir(MAP_DIR);
+        prep.prepare(new File("testdata/florida/simpleReplacements"), new File(TMP_DIR, "out"));
+        
+        LineMap map = LineMap.read(MAP_DIR, "test.c");
+        assertThat(map.getNumLines(), is(21));
+        assertThat(map.getOriginalLine(14), is(14));
+        assertThat(map.getOriginalLine(15), is(15));
+        assertThat(map.getOriginalLine(16), is(15));
+        assertThat(map.getOriginalLine(17), is(16));
+        assertThat(map.getOriginalLine(21), is(20));
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link MerkleTree}.
+ *
+ * @author Adam
+ */
+public class MerkleTreeTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/merkle_tree");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File TREE = new File(TMP_DIR, "tree");
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createTree() throws IOException {
+        writeTree(TMP_DIR, TREE, "Makefile", "all:\n");
+        for (int i = 0; i < 10; i++) {
+            write(new File(TREE, "dir" + (i % 3) + "/sub/file" + i + ".c"), "int x" + i + ";\n");
+        }
+        new File(TREE, "empty").mkdir();
+    }
+    
+    /**
+     * Tests that equal trees have the same hashes, and that the diff is empty.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testEqualTrees() throws IOException {
+        MerkleTree first = MerkleTree.compute(TREE, PathFilter.ALL, 4);
+        new ParallelTreeCopier(2).copy(TREE, new File(TMP_DIR, "copy"));
+        MerkleTree second = MerkleTree.compute(new File(TMP_DIR, "copy"), PathFilter.ALL, 1);
+        
+        assertThat(second.getRootHash(), is(first.getRootHash()));
+        assertThat(second.getHash("dir1/sub"), is(first.getHash("dir1/sub")));
+        assertThat(first.getHash("Makefile"), is(ContentAddressedStore.hash(new File(TREE, "Makefile").toPath())));
+        assertThat(first.getHash("missing"), nullValue());
+        assertThat(first.diff(second), is(new ArrayList<>()));
+    }
+    
+    /**
+     * Tests that the diff finds exactly the changed, added and removed entries.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testDiff() throws IOException {
+        MerkleTree before = MerkleTree.compute(TREE, PathFilter.ALL, 2);
+        
+        write(new File(TREE, "dir1/sub/file4.c"), "int changed;\n");
+        write(new File(TREE, "dir2/new/file.c"), "int added;\n");
+        Util.deleteFolder(new File(TREE, "dir0"));
+        MerkleTree after = MerkleTree.compute(TREE, PathFilter.ALL, 2);
+        
+        assertThat(after.getRootHash(), not(before.getRootHash()));
+        assertThat(after.getHash("dir1/sub/file1.c"), is(before.getHash("dir1/sub/file1.c")));
+        assertThat(after.getHash("dir1"), not(before.getHash("dir1")));
+        assertThat(before.diff(after), is(Arrays.asList("dir0", "dir1/sub/file4.c", "dir2/new")));
+    }
+    
+    /**
+     * Tests that a file that is replaced by a directory of the same name is reported.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testDiffTypeChanged() throws IOException {
+        MerkleTree before = MerkleTree.compute(TREE, PathFilter.ALL, 2);
+        
+        new File(TREE, "Makefile").delete();
+        write(new File(TREE, "Makefile/inner"), "all:\n");
+        
+        assertThat(before.verify(TREE, PathFilter.ALL, 2), is(Arrays.asList("Makefile")));
+    }
+    
+    /**
+     * Tests that excluded paths don't affect the hashes, and that links are hashed by their target.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testExcludedAndLinks() throws IOException {
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList(".git"), false);
+        MerkleTree before = MerkleTree.compute(TREE, filter, 2);
+        
+        write(new File(TREE, ".git/HEAD"), "ref: refs/heads/master\n");
+        assertThat(before.verify(TREE, filter, 2), is(new ArrayList<>()));
+        
+        Files.createSymbolicLink(new File(TREE, "link").toPath(), Paths.get("Makefile"));
+        MerkleTree linked = MerkleTree.compute(TREE, filter, 2);
+        assertThat(before.diff(linked), is(Arrays.asList("link")));
+        assertThat(linked.getHash("link"), not(linked.getHash("Makefile")));
+    }
+    
+    /**
+     * Tests that written trees can be read again.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        MerkleTree source = MerkleTree.compute(TREE, PathFilter.ALL, 2);
+        write(new File(TREE, "Makefile"), "all: x\n");
+        MerkleTree prepared = MerkleTree.compute(TREE, PathFilter.ALL, 2);
+        
+        File file = new File(TMP_DIR, "fingerprints");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8))) {
+            out.print("version\t1.0\n");
+            source.write(out, "source");
+            prepared.write(out, "prepared");
+        }
+        assertThat(Files.readAllLines(file.toPath()).get(1), is("source\tD\t" + source.getRootHash() + "\t."));
+        
+        MerkleTree readSource = MerkleTree.read(file, "source");
+        MerkleTree readPrepared = MerkleTree.read(file, "prepared");
+        assertThat(readSource.getRootHash(), is(source.getRootHash()));
+        assertThat(readSource.getHash("dir2/sub/file8.c"), is(source.getHash("dir2/sub/file8.c")));
+        assertThat(readSource.diff(readPrepared), is(Arrays.asList("Makefile")));
+        assertThat(readPrepared.verify(TREE, PathFilter.ALL, 2), is(new ArrayList<>()));
+    }
+    
+    /**
+     * Tests that reading a tree that is not in the file fails.
+     * 
+     * @throws IOException wanted.
+     */
+    @Test(expected = IOException.class)
+    public void testReadMissing() throws IOException {
+        File file = new File(TMP_DIR, "fingerprints");
+        write(file, "version\t1.0\n");
+        MerkleTree.read(file, "source");
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link NormalizationCache}.
+ *
+ * @author Adam
+ */
+public class NormalizationCacheTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/normalization_cache");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void createOrClearTmpDir() throws IOException {
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that a stored result is returned with its line map.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testPutAndGet() throws IOException {
+        NormalizationCache cache = new NormalizationCache(TMP_DIR, 1024 * 1024, "1");
+        String key = cache.getKey(bytes("a \\\nb\nc\n"));
+        assertThat(cache.get(key), nullValue());
+        
+        LineMap.Builder lineMap = new LineMap.Builder();
+        lineMap.add(1);
+        lineMap.add(3);
+        cache.put(key, bytes("a b\nc\n"), lineMap);
+        
+        NormalizationCache.Entry entry = cache.get(key);
+        assertThat(entry, notNullValue());
+        assertThat(new String(entry.getContent(), StandardCharsets.UTF_8), is("a b\nc\n"));
+        LineMap map = entry.getLineMap().build();
+        assertThat(map.getNumLines(), is(2));
+        assertThat(map.getOriginalLine(2), is(3));
+    }
+    
+    /**
+     * Tests that the key depends on the content and the normalizer version.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testKeyDependsOnVersion() throws IOException {
+        NormalizationCache cache1 = new NormalizationCache(TMP_DIR, 1024 * 1024, "1");
+        NormalizationCache cache2 = new NormalizationCache(TMP_DIR, 1024 * 1024, "2");
+        
+        assertThat(cache1.getKey(bytes("x")), is(cache1.getKey(bytes("x"))));
+        assertThat(cache1.getKey(bytes("x")), not(cache1.getKey(bytes("y"))));
+        assertThat(cache1.getKey(bytes("x")), not(cache2.getKey(bytes("x"))));
+        
+        cache1.put(cache1.getKey(bytes("x")), bytes("X"), new LineMap.Builder());
+        assertThat(cache2.get(cache2.getKey(bytes("x"))), nullValue());
+    }
+    
+    /**
+     * Tests that {@link NormalizationCache#trim()} deletes the least recently used entries first.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testTrimDeletesLeastRecentlyUsed() throws IOException {
+        NormalizationCache cache = new NormalizationCache(TMP_DIR, 250, "1");
+        String[] keys = new String[3];
+        for (int i = 0; i < 3; i++) {
+            keys[i] = cache.getKey(bytes("file" + i));
+            cache.put(keys[i], new byte[100], new LineMap.Builder());
+            new File(new File(TMP_DIR, keys[i].substring(0, 2)), keys[i]).setLastModified(1000000000L + i * 1000);
+        }
+        
+        // using the oldest entry makes it the most recently used one
+        assertThat(cache.get(keys[0]), notNullValue());
+        
+        cache.trim();
+        
+        assertThat(cache.get(keys[0]), notNullValue());
+        assertThat(cache.get(keys[1]), nullValue());
+        assertThat(cache.get(keys[2]), notNullValue());
+    }
+    
+    /**
+     * Encodes the given string as UTF-8.
+     * 
+     * @param string The string.
+     * 
+     * @return The UTF-8 bytes.
+     */
+    private static byte @NonNull [] bytes(@NonNull String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+    
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link ParallelTreeCopier}.
+ *
+ * @author Adam
+ */
+public class ParallelTreeCopierTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/parallel_copy");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File SOURCE = new File(TMP_DIR, "source");
+    
+    private static final @NonNull File TARGET = new File(TMP_DIR, "target");
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small source tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createSourceTree() throws IOException {
+        writeTree(TMP_DIR, SOURCE, "script.sh", "#!/bin/sh\n");
+        for (int i = 0; i < 20; i++) {
+            write(new File(SOURCE, "dir" + (i % 3) + "/sub/file" + i + ".txt"), "content " + i + "\n");
+        }
+        new File(SOURCE, "script.sh").setExecutable(true);
+        new File(SOURCE, "empty").mkdir();
+    }
+    
+    /**
+     * Tests that all files are copied with their content, permissions and timestamps.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCopy() throws IOException {
+        File dir = new File(SOURCE, "dir1");
+        dir.setLastModified(1000000000L);
+        File file = new File(SOURCE, "dir2/sub/file5.txt");
+        file.setLastModified(2000000000L);
+        
+        new ParallelTreeCopier(4).copy(SOURCE, TARGET);
+        
+        for (int i = 0; i < 20; i++) {
+            assertThat(read(new File(TARGET, "dir" + (i % 3) + "/sub/file" + i + ".txt")), is("content " + i + "\n"));
+        }
+        assertThat(new File(TARGET, "empty").isDirectory(), is(true));
+        assertThat(new File(TARGET, "script.sh").canExecute(), is(true));
+        assertThat(new File(TARGET, "dir1").lastModified(), is(1000000000L));
+        assertThat(new File(TARGET, "dir2/sub/file5.txt").lastModified(), is(2000000000L));
+    }
+    
+    /**
+     * Tests that matching files are passed to the handler instead of being copied.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testHandledSeparately() throws IOException {
+        List<String> handled = new ArrayList<>();
+        
+        new ParallelTreeCopier(2).copy(SOURCE, TARGET, (file) -> file.getName().endsWith(".sh"), (from, to) -> {
+            handled.add(from.getName());
+            write(to, "handled\n");
+        });
+        
+        assertThat(handled, is(Arrays.asList("script.sh")));
+        assertThat(read(new File(TARGET, "script.sh")), is("handled\n"));
+        assertThat(read(new File(TARGET, "dir0/sub/file0.txt")), is("content 0\n"));
+    }
+    
+    /**
+     * Tests that excluded directories are not walked and left out of the copy.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testExcludedSkipped() throws IOException {
+        List<String> handled = new ArrayList<>();
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList("dir1", "dir2/sub/file5.txt"), false);
+        
+        new ParallelTreeCopier(2, filter).copy(SOURCE, TARGET, (file) -> true, (from, to) -> {
+            handled.add(from.getName());
+            write(to, "handled\n");
+        });
+        
+        assertThat(new File(TARGET, "dir1").exists(), is(false));
+        assertThat(new File(TARGET, "dir2/sub/file5.txt").exists(), is(false));
+        assertThat(read(new File(TARGET, "dir2/sub/file2.txt")), is("handled\n"));
+        assertThat(handled.contains("file1.txt"), is(false));
+        // 20 files, without the 7 in dir1 and file5.txt, plus script.sh
+        assertThat(handled.size(), is(13));
+    }
+    
+    /**
+     * Tests that excluded directories are linked to the original, if configured.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testExcludedLinked() throws IOException {
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList("dir1"), true);
+        
+        new ParallelTreeCopier(2, filter).copy(SOURCE, TARGET);
+        
+        File link = new File(TARGET, "dir1");
+        assertThat(Files.isSymbolicLink(link.toPath()), is(true));
+        assertThat(Files.readSymbolicLink(link.toPath()), is(new File(SOURCE, "dir1").getAbsoluteFile().toPath()));
+        assertThat(Files.isSymbolicLink(new File(TARGET, "dir0").toPath()), is(false));
+        assertThat(read(new File(TARGET, "dir0/sub/file0.txt")), is("content 0\n"));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PathFilter}.
+ *
+ * @author Adam
+ */
+public class PathFilterTest {
+    
+    /**
+     * Tests that globs without a / match names at any depth, and other globs match relative paths.
+     */
+    @Test
+    public void testExclude() {
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList(".git", "docs/**", "*.bin"), false);
+        
+        assertThat(filter.isExcluded(Paths.get(".git"), true), is(true));
+        assertThat(filter.isExcluded(Paths.get("3rdparty/lib/.git"), true), is(true));
+        assertThat(filter.isExcluded(Paths.get("docs/a/b.txt"), false), is(true));
+        assertThat(filter.isExcluded(Paths.get("src/docs/a.txt"), false), is(false));
+        assertThat(filter.isExcluded(Paths.get("src/blob.bin"), false), is(true));
+        assertThat(filter.isExcluded(Paths.get("src/main.c"), false), is(false));
+        assertThat(filter.isExcluded(Paths.get(""), true), is(false));
+    }
+    
+    /**
+     * Tests that includes only apply to files, not to directories.
+     */
+    @Test
+    public void testInclude() {
+        PathFilter filter = new PathFilter(Arrays.asList("*.{c,h}", "Makefile*"), Arrays.asList("test"), false);
+        
+        assertThat(filter.isExcluded(Paths.get("src"), true), is(false));
+        assertThat(filter.isExcluded(Paths.get("src/main.c"), false), is(false));
+        assertThat(filter.isExcluded(Paths.get("src/Makefile.inc"), false), is(false));
+        assertThat(filter.isExcluded(Paths.get("src/README"), false), is(true));
+        assertThat(filter.isExcluded(Paths.get("src/test"), true), is(true));
+    }
+    
+    /**
+     * Tests that files in excluded directories are excluded, if their parents are checked.
+     */
+    @Test
+    public void testExcludedWithParents() {
+        PathFilter filter = new PathFilter(new ArrayList<>(), Arrays.asList("test", "docs/*"), false);
+        
+        assertThat(filter.isExcluded(Paths.get("src/test/main.c"), false), is(false));
+        assertThat(filter.isExcludedWithParents(Paths.get("src/test/main.c"), false), is(true));
+        assertThat(filter.isExcludedWithParents(Paths.get("docs/a/b/c.txt"), false), is(true));
+        assertThat(filter.isExcludedWithParents(Paths.get("src/main.c"), false), is(false));
+    }
+    
+    /**
+     * Tests that the settings are split at commas outside of braces.
+     */
+    @Test
+    public void testSplitGlobs() {
+        assertThat(PathFilter.splitGlobs(null), is(Arrays.asList()));
+        assertThat(PathFilter.splitGlobs(" .git, *.{c,h} ,,docs/** "), 
+                is(Arrays.asList(".git", "*.{c,h}", "docs/**")));
+    }
+
+}
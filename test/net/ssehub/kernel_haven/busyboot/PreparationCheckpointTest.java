@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link PreparationCheckpoint}.
+ *
+ * @author Adam
+ */
+@SuppressWarnings("null")
+public class PreparationCheckpointTest {
+    
+    private static final @NonNull File TMP_DIR = new File("testdata/preparation_checkpoint/tmp");
+    
+    private static final @NonNull File TREE = new File(TMP_DIR, "tree");
+    
+    /**
+     * Creates an empty source tree in the temporary directory before each test.
+     * 
+     * @throws IOException If clearing the temporary directory fails.
+     */
+    @Before
+    public void createTree() throws IOException {
+        writeTree(TMP_DIR, TREE);
+    }
+    
+    /**
+     * Tests that completed phases and files are remembered when the checkpoint is opened again.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testResume() throws IOException {
+        File file = new File(TREE, "a.c");
+        
+        PreparationCheckpoint checkpoint = new PreparationCheckpoint(TREE);
+        assertThat(checkpoint.isResumed(), is(false));
+        checkpoint.markPhaseDone("make");
+        checkpoint.markFileDone("normalize", file);
+        checkpoint.close();
+        
+        checkpoint = new PreparationCheckpoint(TREE);
+        assertThat(checkpoint.isResumed(), is(true));
+        assertThat(checkpoint.isPhaseDone("make"), is(true));
+        assertThat(checkpoint.isPhaseDone("normalize"), is(false));
+        assertThat(checkpoint.isFileDone("normalize", file), is(true));
+        assertThat(checkpoint.isFileDone("normalize", new File(TREE, "b.c")), is(false));
+        checkpoint.complete();
+        
+        assertThat(PreparationCheckpoint.getStateFile(TREE).exists(), is(false));
+    }
+    
+    /**
+     * Tests that an incomplete last line in the state file is ignored.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testIncompleteLine() throws IOException {
+        PreparationCheckpoint checkpoint = new PreparationCheckpoint(TREE);
+        checkpoint.markPhaseDone("make");
+        checkpoint.close();
+        try (FileWriter out = new FileWriter(PreparationCheckpoint.getStateFile(TREE), true)) {
+            out.write("P\tkbuild");
+        }
+        
+        checkpoint = new PreparationCheckpoint(TREE);
+        assertThat(checkpoint.isPhaseDone("make"), is(true));
+        assertThat(checkpoint.isPhaseDone("kbuild"), is(false));
+        checkpoint.close();
+    }
+    
+    /**
+     * Tests that an interrupted commit is finished, and that an uncommitted temporary file is discarded.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testInterruptedCommit() throws IOException {
+        File committed = new File(TREE, "committed.c");
+        File uncommitted = new File(TREE, "uncommitted.c");
+        write(committed, "original\n");
+        write(PreparationCheckpoint.getTempFile(committed), "transformed\n");
+        write(uncommitted, "original\n");
+        write(PreparationCheckpoint.getTempFile(uncommitted), "half");
+        
+        PreparationCheckpoint checkpoint = new PreparationCheckpoint(TREE);
+        // simulate a crash between marking the file and moving the temporary file
+        checkpoint.markFileDone("normalize", committed);
+        checkpoint.close();
+        
+        checkpoint = new PreparationCheckpoint(TREE);
+        assertThat(checkpoint.isFileDone("normalize", committed), is(true));
+        assertThat(checkpoint.isFileDone("normalize", uncommitted), is(false));
+        checkpoint.close();
+        
+        assertThat(read(committed), is("transformed\n"));
+        assertThat(read(uncommitted), is("original\n"));
+        assertThat(PreparationCheckpoint.getTempFile(committed).exists(), is(false));
+        assertThat(PreparationCheckpoint.getTempFile(uncommitted).exists(), is(false));
+    }
+    
+    /**
+     * Tests that committing replaces the file with its temporary file.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCommit() throws IOException {
+        File file = new File(TREE, "a.c");
+        write(file, "original\n");
+        write(PreparationCheckpoint.getTempFile(file), "transformed\n");
+        
+        PreparationCheckpoint checkpoint = new PreparationCheckpoint(TREE);
+        checkpoint.commit("normalize", file);
+        
+        assertThat(read(file), is("transformed\n"));
+        assertThat(PreparationCheckpoint.getTempFile(file).exists(), is(false));
+        assertThat(checkpoint.isFileDone("normalize", file), is(true));
+        checkpoint.close();
+    }
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.IPreparation;
+import net.ssehub.kernel_haven.SetUpException;
+import net.ssehub.kernel_haven.config.Configuration;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link PreparationDaemon}.
+ *
+ * @author Adam
+ */
+public class PreparationDaemonTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/preparation_daemon");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File INFO_FILE = new File(TMP_DIR, "daemon.info");
+    
+    private static final @NonNull File FLORIDA = new File("testdata/florida");
+    
+    private static final @NonNull AtomicInteger RUNS = new AtomicInteger();
+    
+    private static CountDownLatch blockingStarted;
+    
+    private static CountDownLatch blockingRelease;
+    
+    private PreparationDaemon daemon;
+    
+    private Thread serveThread;
+    
+    /**
+     * A preparation that counts its runs, and always crashes with an unchecked exception.
+     */
+    public static class CrashingPreparation implements IPreparation {
+        
+        @Override
+        public void run(@NonNull Configuration config) throws SetUpException {
+            RUNS.incrementAndGet();
+            throw new IllegalStateException("crashed");
+        }
+    
+    }
+    
+    /**
+     * A preparation that blocks its worker until the test case releases it.
+     */
+    public static class BlockingPreparation implements IPreparation {
+        
+        @Override
+        public void run(@NonNull Configuration config) throws SetUpException {
+            blockingStarted.countDown();
+            try {
+                blockingRelease.await();
+            } catch (InterruptedException e) {
+                throw new SetUpException(e);
+            }
+        }
+    
+    }
+    
+    /**
+     * Cleans (or creates) the temporary directory, and starts a daemon in the background.
+     * 
+     * @throws IOException If starting the daemon fails.
+     */
+    @Before
+    public void startDaemon() throws IOException {
+        Util.clearFolder(TMP_DIR);
+        daemon = new PreparationDaemon(0, 2);
+        daemon.writeInfoFile(INFO_FILE);
+        serveThread = new Thread(() -> {
+            try {
+                daemon.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serveThread.start();
+    }
+    
+    /**
+     * Stops the daemon.
+     * 
+     * @throws InterruptedException If waiting for the daemon is interrupted.
+     */
+    @After
+    public void stopDaemon() throws InterruptedException {
+        daemon.close();
+        serveThread.join(10000);
+    }
+    
+    /**
+     * Tests that a successful preparation returns exit code 0, and can be repeated.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testSuccess() throws IOException {
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        
+        for (int i = 0; i < 3; i++) {
+            assertThat(PreparationDaemon.prepare(INFO_FILE, FloridaPreparation.class.getName(), properties),
+                    is(PreparationDaemon.EXIT_SUCCESS));
+        }
+    }
+    
+    /**
+     * Tests that a failing preparation returns exit code 1 and its message.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFailure() throws IOException {
+        File properties = writeProperties("fail.properties", new File(FLORIDA, "notMatching"));
+        
+        String[] reply = PreparationDaemon.send(INFO_FILE, "prepare", FloridaPreparation.class.getName(),
+                properties.getAbsolutePath());
+        assertThat(reply[0], is("exit"));
+        assertThat(reply[1], is("1"));
+        assertTrue(reply[2], reply[2].startsWith("FLOrIDA lint found"));
+        
+        assertThat(PreparationDaemon.prepare(INFO_FILE, FloridaPreparation.class.getName(), properties),
+                is(PreparationDaemon.EXIT_FAILURE));
+    }
+    
+    /**
+     * Tests that an unexpected exception fails the preparation, but not the daemon.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCrashingPreparation() throws IOException {
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        int runs = RUNS.get();
+        
+        assertThat(PreparationDaemon.prepare(INFO_FILE, CrashingPreparation.class.getName(), properties),
+                is(PreparationDaemon.EXIT_FAILURE));
+        assertThat(RUNS.get(), is(runs + 1));
+        
+        assertThat(PreparationDaemon.prepare(INFO_FILE, FloridaPreparation.class.getName(), properties),
+                is(PreparationDaemon.EXIT_SUCCESS));
+    }
+    
+    /**
+     * Tests that classes that are not preparations of this plugin are not run.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testForeignClass() throws IOException {
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        
+        assertThat(PreparationDaemon.prepare(INFO_FILE, "java.lang.Object", properties),
+                is(PreparationDaemon.EXIT_FAILURE));
+        assertThat(PreparationDaemon.prepare(INFO_FILE, PathFilter.class.getName(), properties),
+                is(PreparationDaemon.EXIT_FAILURE));
+        assertThat(PreparationDaemon.prepare(INFO_FILE, "does.not.Exist", properties),
+                is(PreparationDaemon.EXIT_FAILURE));
+    }
+    
+    /**
+     * Tests that requests with a wrong token are rejected, and that the info file is only readable by the owner.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWrongToken() throws IOException {
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(INFO_FILE.toPath())),
+                is("rw-------"));
+        
+        String port = Files.readAllLines(INFO_FILE.toPath()).get(0).split("\t")[0];
+        File wrongInfo = new File(TMP_DIR, "wrong.info");
+        try (FileWriter out = new FileWriter(wrongInfo)) {
+            out.write(port + "\tguessed\n");
+        }
+        int runs = RUNS.get();
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        
+        assertThat(PreparationDaemon.prepare(wrongInfo, CrashingPreparation.class.getName(), properties),
+                is(PreparationDaemon.EXIT_NOT_RUN));
+        assertThat(RUNS.get(), is(runs));
+    }
+    
+    /**
+     * Tests that a shutdown request stops the daemon.
+     * 
+     * @throws IOException unwanted.
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testShutdown() throws IOException, InterruptedException {
+        assertThat(PreparationDaemon.send(INFO_FILE, "shutdown")[0], is("exit"));
+        serveThread.join(10000);
+        assertThat(serveThread.isAlive(), is(false));
+        
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        assertThat(PreparationDaemon.prepare(INFO_FILE, FloridaPreparation.class.getName(), properties),
+                is(PreparationDaemon.EXIT_NOT_RUN));
+    }
+    
+    /**
+     * Tests that relative paths in the configuration are resolved against the directory of the configuration file.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRelativePaths() throws IOException {
+        File properties = new File(TMP_DIR, "relative.properties");
+        try (FileWriter out = new FileWriter(properties)) {
+            out.write("source_tree = ../../florida/notMatching\n");
+            out.write(FloridaPreparation.LINT.getKey() + " = true\n");
+        }
+        
+        String[] reply = PreparationDaemon.send(INFO_FILE, "prepare", FloridaPreparation.class.getName(),
+                properties.getAbsolutePath());
+        assertThat(reply[1], is("1"));
+        assertTrue(reply[2], reply[2].startsWith("FLOrIDA lint found"));
+    }
+    
+    /**
+     * Tests that rejected requests and shutdown requests are answered while all workers are busy, and that the
+     * running preparations still finish.
+     * 
+     * @throws IOException unwanted.
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testNotBlockedByPreparations() throws IOException, InterruptedException {
+        blockingStarted = new CountDownLatch(2);
+        blockingRelease = new CountDownLatch(1);
+        File properties = writeProperties("ok.properties", new File(FLORIDA, "subfolders"));
+        AtomicInteger succeeded = new AtomicInteger();
+        Thread[] clients = new Thread[2];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(() -> {
+                if (PreparationDaemon.prepare(INFO_FILE, BlockingPreparation.class.getName(), properties)
+                        == PreparationDaemon.EXIT_SUCCESS) {
+                    succeeded.incrementAndGet();
+                }
+            });
+            clients[i].start();
+        }
+        
+        try {
+            assertTrue(blockingStarted.await(10, TimeUnit.SECONDS));
+            
+            File wrongInfo = new File(TMP_DIR, "wrong.info");
+            String port = Files.readAllLines(INFO_FILE.toPath()).get(0).split("\t")[0];
+            try (FileWriter out = new FileWriter(wrongInfo)) {
+                out.write(port + "\tguessed\n");
+            }
+            assertThat(PreparationDaemon.prepare(wrongInfo, FloridaPreparation.class.getName(), properties),
+                    is(PreparationDaemon.EXIT_NOT_RUN));
+            assertThat(PreparationDaemon.send(INFO_FILE, "shutdown")[0], is("exit"));
+            
+        } finally {
+            blockingRelease.countDown();
+        }
+        
+        for (Thread client : clients) {
+            client.join(10000);
+        }
+        assertThat(succeeded.get(), is(2));
+        serveThread.join(10000);
+        assertThat(serveThread.isAlive(), is(false));
+    }
+    
+    /**
+     * Writes a configuration for a FLOrIDA lint run.
+     * 
+     * @param name The name of the configuration file.
+     * @param sourceTree The source tree to check.
+     * 
+     * @return The configuration file.
+     * 
+     * @throws IOException If writing the file fails.
+     */
+    private static @NonNull File writeProperties(@NonNull String name, @NonNull File sourceTree) throws IOException {
+        File result = new File(TMP_DIR, name);
+        try (FileWriter out = new FileWriter(result)) {
+            out.write("source_tree = " + sourceTree.getAbsolutePath().replace("\\", "\\\\") + "\n");
+            out.write(FloridaPreparation.LINT.getKey() + " = true\n");
+        }
+        return result;
+    }
+
+}
@@ -21,10 +21,14 @@ import static org.junit.Assert.assertThat;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import net.ssehub.kernel_haven.SetUpException;
 import net.ssehub.kernel_haven.util.Util;
 import net.ssehub.kernel_haven.util.null_checks.NonNull;
 
@@ -73,4 +77,209 @@ public class PrepareCorebootTest {
         }
     }
     
+    /**
+     * Tests that the Kconfig infos are collected as symbolic links, with build/util/kconfig taking precedence, and
+     * that lkc.h is a real file.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCollectKconfigInfosSymlink() throws IOException {
+        File src = createKconfigSources(TMP_DIR);
+        
+        PrepareCoreboot prep = new PrepareCoreboot();
+        prep.setSourceTree(src);
+        prep.setKconfigCollection("symlink");
+        prep.collectKconfigInfos();
+        
+        File dir = new File(src, "scripts/kconfig");
+        assertThat(Files.isSymbolicLink(new File(dir, "conf.c").toPath()), is(true));
+        assertThat(Files.isSymbolicLink(new File(dir, "sub/zconf.y").toPath()), is(true));
+        assertThat(Files.isSymbolicLink(new File(dir, "lkc.h").toPath()), is(false));
+        assertThat(read(new File(dir, "conf.c")), is("build\n"));
+        assertThat(read(new File(dir, "sub/zconf.y")), is("util\n"));
+        assertThat(read(new File(dir, "lkc.h")), is("build\n"));
+        
+        prep.initializeExternInt();
+        assertThat(read(new File(TMP_DIR, "build/util/kconfig/lkc.h")), is("build\n"));
+    }
+    
+    /**
+     * Tests that the symbolic links to the Kconfig infos still work after a staged copy of the tree has been written
+     * back and deleted.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCollectKconfigInfosSymlinkStaged() throws IOException {
+        File root = new File(TMP_DIR, "coreboot");
+        File src = createKconfigSources(root);
+        File location = new File(TMP_DIR, "shm");
+        location.mkdir();
+        
+        try (StagingArea staging = StagingArea.create(location, root, PathFilter.ALL, 1.0, 2)) {
+            assertThat(staging != null, is(true));
+            PrepareCoreboot prep = new PrepareCoreboot();
+            prep.setSourceTree(staging.getStagedFile(src));
+            prep.setKconfigCollection("symlink");
+            prep.collectKconfigInfos();
+            staging.writeBack();
+        }
+        assertThat(location.list().length, is(0));
+        
+        File dir = new File(src, "scripts/kconfig");
+        assertThat(Files.isSymbolicLink(new File(dir, "conf.c").toPath()), is(true));
+        assertThat(Files.readSymbolicLink(new File(dir, "conf.c").toPath()).isAbsolute(), is(false));
+        assertThat(read(new File(dir, "conf.c")), is("build\n"));
+        assertThat(read(new File(dir, "sub/zconf.y")), is("util\n"));
+    }
+    
+    /**
+     * Tests that the Kconfig infos are collected as hard links, with build/util/kconfig taking precedence.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCollectKconfigInfosHardlink() throws IOException {
+        File src = createKconfigSources(TMP_DIR);
+        
+        PrepareCoreboot prep = new PrepareCoreboot();
+        prep.setSourceTree(src);
+        prep.setKconfigCollection("hardlink");
+        prep.collectKconfigInfos();
+        
+        File dir = new File(src, "scripts/kconfig");
+        assertThat(Files.isSameFile(new File(dir, "conf.c").toPath(),
+                new File(TMP_DIR, "build/util/kconfig/conf.c").toPath()), is(true));
+        assertThat(Files.isSameFile(new File(dir, "lkc.h").toPath(),
+                new File(TMP_DIR, "build/util/kconfig/lkc.h").toPath()), is(false));
+        assertThat(read(new File(dir, "conf.c")), is("build\n"));
+        assertThat(read(new File(dir, "sub/zconf.y")), is("util\n"));
+    }
+    
+    /**
+     * Tests that the boards are configured in their own build directories, and that only the files that differ from
+     * the shared build are kept.
+     * 
+     * @throws IOException unwanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test
+    public void testConfigureBoards() throws IOException, SetUpException {
+        File src = createBoardSources();
+        
+        PrepareCoreboot prep = new PrepareCoreboot();
+        prep.setSourceTree(src);
+        prep.setBoards(Arrays.asList("configs/config.board_a", "configs/config.board_b"), 2);
+        prep.configureBoards();
+        
+        File boards = new File(TMP_DIR, "srcBoards");
+        assertThat(read(new File(boards, "board_a/.config")), is("CONFIG_A=y\n"));
+        assertThat(read(new File(boards, "board_b/.config")), is("CONFIG_B=y\n"));
+        assertThat(read(new File(boards, "board_a/build/config.h")), is("CONFIG_A=y\n"));
+        assertThat(new File(boards, "board_a/build/common.h").exists(), is(false));
+        assertThat(new File(boards, "board_b/build/sub").exists(), is(false));
+        assertThat(read(new File(TMP_DIR, "build/common.h")), is("shared\n"));
+    }
+    
+    /**
+     * Tests that configuring a board with a missing defconfig file fails.
+     * 
+     * @throws IOException wanted.
+     * @throws SetUpException unwanted.
+     */
+    @Test(expected = IOException.class)
+    public void testConfigureBoardsMissing() throws IOException, SetUpException {
+        File src = createBoardSources();
+        
+        PrepareCoreboot prep = new PrepareCoreboot();
+        prep.setSourceTree(src);
+        prep.setBoards(Arrays.asList("configs/config.board_a", "configs/config.missing"), 2);
+        prep.configureBoards();
+    }
+    
+    /**
+     * Tests that two defconfig files with the same board name are rejected.
+     * 
+     * @throws SetUpException wanted.
+     */
+    @Test(expected = SetUpException.class)
+    public void testDuplicateBoards() throws SetUpException {
+        assertThat(PrepareCoreboot.getBoardName("configs/config.board_a"), is("board_a"));
+        new PrepareCoreboot().setBoards(Arrays.asList("configs/config.board_a", "other/board_a"), 1);
+    }
+    
+    /**
+     * Creates a Coreboot root with a Makefile that simulates 'make defconfig', two defconfig files, and a shared
+     * build directory in the temporary directory.
+     * 
+     * @return The src folder.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    private static @NonNull File createBoardSources() throws IOException {
+        Files.write(new File(TMP_DIR, "Makefile").toPath(), ("defconfig:\n"
+                + "\tmkdir -p $(obj)/sub\n"
+                + "\tcp $(KBUILD_DEFCONFIG) $(DOTCONFIG)\n"
+                + "\tcp $(KBUILD_DEFCONFIG) $(obj)/config.h\n"
+                + "\techo shared > $(obj)/common.h\n"
+                + "\techo shared > $(obj)/sub/same\n").getBytes(StandardCharsets.UTF_8));
+        new File(TMP_DIR, "configs").mkdir();
+        new File(TMP_DIR, "build/sub").mkdirs();
+        String[][] files = {
+            {"configs/config.board_a", "CONFIG_A=y\n"},
+            {"configs/config.board_b", "CONFIG_B=y\n"},
+            {"build/common.h", "shared\n"},
+            {"build/sub/same", "shared\n"},
+        };
+        for (String[] file : files) {
+            Files.write(new File(TMP_DIR, file[0]).toPath(), file[1].getBytes(StandardCharsets.UTF_8));
+        }
+        
+        File src = new File(TMP_DIR, "src");
+        src.mkdir();
+        return src;
+    }
+    
+    /**
+     * Creates util/kconfig and build/util/kconfig next to a src folder.
+     * 
+     * @param root The directory to create the folders in.
+     * 
+     * @return The src folder.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    private static @NonNull File createKconfigSources(@NonNull File root) throws IOException {
+        File util = new File(root, "util/kconfig");
+        File build = new File(root, "build/util/kconfig");
+        new File(util, "sub").mkdirs();
+        build.mkdirs();
+        for (String name : new String[] {"conf.c", "lkc.h", "sub/zconf.y"}) {
+            Files.write(new File(util, name).toPath(), "util\n".getBytes(StandardCharsets.UTF_8));
+        }
+        for (String name : new String[] {"conf.c", "lkc.h"}) {
+            Files.write(new File(build, name).toPath(), "build\n".getBytes(StandardCharsets.UTF_8));
+        }
+        
+        File src = new File(root, "src");
+        src.mkdir();
+        return src;
+    }
+    
+    /**
+     * Reads the content of a file.
+     * 
+     * @param file The file to read.
+     * 
+     * @return The content.
+     * 
+     * @throws IOException If reading fails.
+     */
+    private static @NonNull String read(@NonNull File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            return Util.readStream(in);
+        }
+    }
+    
 }
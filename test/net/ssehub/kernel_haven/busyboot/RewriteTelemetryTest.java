@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.busyboot.RewriteTelemetry.Rule;
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link RewriteTelemetry}.
+ *
+ * @author Adam
+ */
+public class RewriteTelemetryTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/rewrite_telemetry");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    /**
+     * Cleans (or creates) the temporary directory before each test.
+     * 
+     * @throws IOException If cleaning the directory fails.
+     */
+    @Before
+    public void createOrClearTmpDir() throws IOException {
+        Util.clearFolder(TMP_DIR);
+    }
+    
+    /**
+     * Tests that the stats of the files are summed up for the run.
+     */
+    @Test
+    public void testAggregation() {
+        RewriteTelemetry telemetry = new RewriteTelemetry(10);
+        for (int i = 0; i < 3; i++) {
+            RewriteTelemetry.FileStats stats = telemetry.startFile();
+            long start = stats.start();
+            start = stats.record(Rule.ENABLE_INLINE, start, 1);
+            stats.record(Rule.IF_EXPANSION, start, 0);
+            telemetry.finishFile(stats, "file" + i + ".c", 0, 0);
+        }
+        
+        assertThat(telemetry.getNumFiles(), is(3L));
+        assertThat(telemetry.getCount(Rule.ENABLE_INLINE), is(3L));
+        assertThat(telemetry.getCount(Rule.IF_EXPANSION), is(0L));
+        assertThat(telemetry.getCount(Rule.COMMENT_SPLIT), is(0L));
+        assertThat(telemetry.getNanos(Rule.ENABLE_INLINE) > 0, is(true));
+    }
+    
+    /**
+     * Tests that only the slowest files are kept, the slowest first.
+     * 
+     * @throws InterruptedException unwanted.
+     */
+    @Test
+    public void testSlowestFiles() throws InterruptedException {
+        RewriteTelemetry telemetry = new RewriteTelemetry(2);
+        telemetry.finishFile(telemetry.startFile(), "fast.c", 0, 0);
+        RewriteTelemetry.FileStats slow = telemetry.startFile();
+        Thread.sleep(50);
+        telemetry.finishFile(slow, "slow.c", 0, 0);
+        RewriteTelemetry.FileStats medium = telemetry.startFile();
+        Thread.sleep(10);
+        telemetry.finishFile(medium, "medium.c", 0, 0);
+        telemetry.finishFile(telemetry.startFile(), "fast2.c", 0, 0);
+        
+        List<RewriteTelemetry.SlowFile> slowest = telemetry.getSlowestFiles();
+        assertThat(slowest.size(), is(2));
+        assertThat(slowest.get(0).getPath(), is("slow.c"));
+        assertThat(slowest.get(1).getPath(), is("medium.c"));
+        assertThat(telemetry.getNumFiles(), is(4L));
+    }
+    
+    /**
+     * Tests that stats that measure nothing don't record anything.
+     */
+    @Test
+    public void testNone() {
+        RewriteTelemetry.FileStats stats = RewriteTelemetry.FileStats.NONE;
+        stats.record(Rule.ENABLE_MACRO, stats.start(), 1);
+        assertThat(stats.getCount(Rule.ENABLE_MACRO), is(0L));
+    }
+    
+    /**
+     * Tests that the Busybox normalization records the rules that fire.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBusyboxNormalization() throws IOException {
+        File tree = new File(TMP_DIR, "tree");
+        tree.mkdir();
+        File file = new File(tree, "test.c");
+        Files.write(file.toPath(), Arrays.asList(
+                "int x = 1 + \\",
+                "    2;",
+                "if (ENABLE_FOO) { // comment",
+                "}",
+                "IF_BAR(int y;)",
+                "#if ENABLE_BAZ"), StandardCharsets.UTF_8);
+        
+        PrepareBusybox prep = new PrepareBusybox();
+        prep.setSourceTree(tree);
+        prep.normalizeSources = true;
+        prep.transformChangedFile(file);
+        
+        RewriteTelemetry telemetry = prep.getTelemetry();
+        assertThat(telemetry.getNumFiles(), is(1L));
+        assertThat(telemetry.getCount(Rule.LINE_CONTINUATION), is(1L));
+        assertThat(telemetry.getCount(Rule.COMMENT_SPLIT), is(1L));
+        assertThat(telemetry.getCount(Rule.ENABLE_INLINE), is(1L));
+        assertThat(telemetry.getCount(Rule.IF_EXPANSION), is(1L));
+        assertThat(telemetry.getCount(Rule.ENABLE_MACRO), is(1L));
+        assertThat(telemetry.getSlowestFiles().get(0).getPath(), is("test.c"));
+    }
+    
+    /**
+     * Tests that the metrics file contains the counts of the rules and the slowest files.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testReport() throws IOException {
+        RewriteTelemetry telemetry = new RewriteTelemetry(10);
+        RewriteTelemetry.FileStats stats = telemetry.startFile();
+        stats.record(Rule.COREBOOT_STAGE_PREFIX, stats.start(), 1);
+        telemetry.finishFile(stats, "src/Makefile.inc", 0, 0);
+        
+        File metrics = new File(TMP_DIR, "metrics.tsv");
+        telemetry.report(metrics);
+        
+        List<String> lines = Files.readAllLines(metrics.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(1 + Rule.values().length + 1));
+        assertThat(lines.get(0).startsWith("files\t1\t"), is(true));
+        assertThat(lines.get(Rule.COREBOOT_STAGE_PREFIX.ordinal() + 1).startsWith("rule\tCOREBOOT_STAGE_PREFIX\t1\t"),
+                is(true));
+        assertThat(lines.get(lines.size() - 1).startsWith("file\tsrc/Makefile.inc\t"), is(true));
+        assertThat(lines.get(lines.size() - 1).endsWith("\tCOREBOOT_STAGE_PREFIX=1"), is(true));
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link SparseClosure}.
+ *
+ * @author Adam
+ */
+public class SparseClosureTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/sparse_closure");
+    
+    private static final @NonNull File BUSYBOX = new File(TESTDATA, "busybox");
+    
+    private static final @NonNull File COREBOOT = new File(TESTDATA, "coreboot");
+    
+    /**
+     * Tests the closure of a Busybox applet directory: the parent build files, the sourced Config.in files and the
+     * (transitively) included headers.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBusyboxClosure() throws IOException {
+        SparseClosure closure = SparseClosure.compute(BUSYBOX, Arrays.asList("archival"));
+        
+        assertThat(closure.getFiles(), is(new TreeSet<>(Arrays.asList("Config.in", "Kbuild", "Makefile",
+                "coreutils/Config.in", "include/bb_archive.h", "include/libbb.h", "include/platform.h"))));
+        
+        assertThat(closure.contains(Paths.get("archival/libarchive/unxz.c"), false), is(true));
+        assertThat(closure.contains(Paths.get("archival/libarchive"), true), is(true));
+        assertThat(closure.contains(Paths.get("coreutils"), true), is(true));
+        assertThat(closure.contains(Paths.get("coreutils/Config.in"), false), is(true));
+        assertThat(closure.contains(Paths.get("coreutils/Kbuild"), false), is(false));
+        assertThat(closure.contains(Paths.get("coreutils/cat.c"), false), is(false));
+        assertThat(closure.contains(Paths.get("include/unused.h"), false), is(false));
+        assertThat(closure.contains(Paths.get("libbb"), true), is(false));
+        assertThat(closure.contains(Paths.get("docs"), true), is(false));
+    }
+    
+    /**
+     * Tests the closure of a Coreboot sub-directory, with globs and relative paths in source statements and headers
+     * in a nested include directory.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCorebootClosure() throws IOException {
+        SparseClosure closure = SparseClosure.compute(COREBOOT, Arrays.asList("src/lib/"));
+        
+        assertThat(closure.getFiles(), is(new TreeSet<>(Arrays.asList("Kconfig", "Makefile", "Makefile.inc",
+                "src/Kconfig", "src/include/lib.h", "src/include/string.h", "src/mainboard/a/Kconfig",
+                "src/mainboard/b/Kconfig"))));
+        
+        assertThat(closure.contains(Paths.get("src/mainboard/a"), true), is(true));
+        assertThat(closure.contains(Paths.get("src/mainboard/a/Makefile.inc"), false), is(false));
+        assertThat(closure.contains(Paths.get("src/arch"), true), is(false));
+        assertThat(closure.contains(Paths.get("util"), true), is(false));
+    }
+    
+    /**
+     * Tests the closure of multiple targets.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMultipleTargets() throws IOException {
+        SparseClosure closure = SparseClosure.compute(BUSYBOX, Arrays.asList("archival/libarchive", "libbb"));
+        
+        // the parent build files of archival/libarchive, but nothing that only archival/tar.c needs
+        assertThat(closure.getFiles(), is(new TreeSet<>(Arrays.asList("Config.in", "Kbuild", "Makefile",
+                "archival/Config.in", "archival/Kbuild", "coreutils/Config.in", "include/libbb.h",
+                "include/platform.h"))));
+        assertThat(closure.contains(Paths.get("archival/tar.c"), false), is(false));
+        assertThat(closure.contains(Paths.get("libbb/xfuncs.c"), false), is(true));
+    }
+    
+    /**
+     * Tests that targets that are not sub-directories of the source tree are rejected.
+     */
+    @Test
+    public void testInvalidTargets() {
+        for (String target : Arrays.asList("missing", "archival/tar.c", "..", ".")) {
+            boolean thrown = false;
+            try {
+                SparseClosure.compute(BUSYBOX, Arrays.asList(target));
+            } catch (IOException e) {
+                thrown = true;
+            }
+            assertThat(target, thrown, is(true));
+        }
+    }
+    
+    /**
+     * Tests a {@link PathFilter} that is restricted to a closure: everything outside of it is excluded, and the
+     * excludes of the original filter still apply.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testPathFilter() throws IOException {
+        PathFilter filter = new PathFilter(new PathFilter(new ArrayList<>(), Arrays.asList("unxz.c"), false),
+                SparseClosure.compute(BUSYBOX, Arrays.asList("archival")));
+        
+        assertThat(filter.isExcluded(Paths.get("archival/tar.c"), false), is(false));
+        assertThat(filter.isExcluded(Paths.get("archival/libarchive/unxz.c"), false), is(true));
+        assertThat(filter.isExcluded(Paths.get("coreutils"), true), is(false));
+        assertThat(filter.isExcluded(Paths.get("coreutils/cat.c"), false), is(true));
+        assertThat(filter.isExcluded(Paths.get("libbb"), true), is(true));
+        assertThat(filter.isExcludedWithParents(Paths.get("libbb/xfuncs.c"), false), is(true));
+        
+        assertThat(new TreeSet<>(AbstractBusybootPreparation.findFilesByName(BUSYBOX, "Kbuild", filter)),
+                is(new TreeSet<>(Arrays.asList(new File(BUSYBOX, "Kbuild"), new File(BUSYBOX, "archival/Kbuild"),
+                new File(BUSYBOX, "archival/libarchive/Kbuild")))));
+    }
+
+}
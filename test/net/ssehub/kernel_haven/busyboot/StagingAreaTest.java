@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link StagingArea}.
+ *
+ * @author Adam
+ */
+public class StagingAreaTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/staging");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File SOURCE = new File(TMP_DIR, "source");
+    
+    private static final @NonNull File LOCATION = new File(TMP_DIR, "shm");
+    
+    private static final @NonNull PathFilter FILTER = new PathFilter(new ArrayList<>(), Arrays.asList(".git"), true);
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small source tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createSourceTree() throws IOException {
+        writeTree(TMP_DIR, SOURCE, "unchanged.c", "int a;\n", "modified.c", "int b;\n", "deleted/file.c", "int c;\n",
+                ".git/HEAD", "ref: refs/heads/master\n");
+        LOCATION.mkdir();
+    }
+    
+    /**
+     * Tests that the staged copy contains the files, and links the excluded directories.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testCreate() throws IOException {
+        try (StagingArea staging = StagingArea.create(LOCATION, SOURCE, FILTER, 1.0, 2)) {
+            assertThat(staging, notNullValue());
+            
+            File staged = staging.getStagedFile(SOURCE);
+            assertThat(staged.getParentFile().getParentFile().getAbsoluteFile(), is(LOCATION.getAbsoluteFile()));
+            assertThat(read(staging.getStagedFile(new File(SOURCE, "modified.c"))), is("int b;\n"));
+            assertThat(Files.isSymbolicLink(new File(staged, ".git").toPath()), is(true));
+            assertThat(read(new File(staged, ".git/HEAD")), is("ref: refs/heads/master\n"));
+        }
+        assertThat(LOCATION.list().length, is(0));
+    }
+    
+    /**
+     * Tests that the changes in the staged copy are written back, and that the original is not modified before.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testWriteBack() throws IOException {
+        File unchanged = new File(SOURCE, "unchanged.c");
+        unchanged.setLastModified(1000000000L);
+        
+        try (StagingArea staging = StagingArea.create(LOCATION, SOURCE, FILTER, 1.0, 2)) {
+            File staged = staging.getStagedFile(SOURCE);
+            write(new File(staged, "modified.c"), "int b = 1;\n");
+            Util.deleteFolder(new File(staged, "deleted"));
+            write(new File(staged, "added/file.c"), "int d;\n");
+            write(new File(staged.getParentFile(), "sourceUndoJournal/entry"), "backup\n");
+            
+            assertThat(read(new File(SOURCE, "modified.c")), is("int b;\n"));
+            assertThat(new File(SOURCE, "deleted").exists(), is(true));
+            
+            staging.writeBack();
+        }
+        
+        assertThat(read(new File(SOURCE, "modified.c")), is("int b = 1;\n"));
+        assertThat(new File(SOURCE, "deleted").exists(), is(false));
+        assertThat(read(new File(SOURCE, "added/file.c")), is("int d;\n"));
+        assertThat(read(unchanged), is("int a;\n"));
+        assertThat(unchanged.lastModified(), is(1000000000L));
+        assertThat(Files.isSymbolicLink(new File(SOURCE, ".git").toPath()), is(false));
+        assertThat(read(new File(SOURCE, ".git/HEAD")), is("ref: refs/heads/master\n"));
+        assertThat(read(new File(TMP_DIR, "sourceUndoJournal/entry")), is("backup\n"));
+        assertThat(LOCATION.list().length, is(0));
+    }
+    
+    /**
+     * Tests that an entry next to the staged copy is not written back over an existing one.
+     * 
+     * @throws IOException wanted.
+     */
+    @Test(expected = IOException.class)
+    public void testWriteBackExistingSibling() throws IOException {
+        write(new File(TMP_DIR, "sourceUndoJournal/entry"), "old\n");
+        
+        try (StagingArea staging = StagingArea.create(LOCATION, SOURCE, FILTER, 1.0, 2)) {
+            write(new File(staging.getStagedFile(SOURCE).getParentFile(), "sourceUndoJournal/entry"), "new\n");
+            staging.writeBack();
+        }
+    }
+    
+    /**
+     * Tests that nothing is staged if the tree doesn't fit into the staging location.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testDoesNotFit() throws IOException {
+        assertThat(StagingArea.create(LOCATION, SOURCE, FILTER, 1e18, 2), nullValue());
+        assertThat(LOCATION.list().length, is(0));
+    }
+    
+    /**
+     * Tests that the size of the excluded files is not counted.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testMeasure() throws IOException {
+        assertThat(StagingArea.measure(SOURCE.toPath(), FILTER), is(21L));
+        assertThat(StagingArea.measure(SOURCE.toPath(), PathFilter.ALL), is(44L));
+    }
+
+}
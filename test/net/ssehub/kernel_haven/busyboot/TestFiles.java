@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import net.ssehub.kernel_haven.util.Util;
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Helper methods for the test cases that create and read files in their temporary directories.
+ *
+ * @author Adam
+ */
+final class TestFiles {
+    
+    /**
+     * Don't allow any instances.
+     */
+    private TestFiles() {
+    }
+    
+    /**
+     * Clears (or creates) the given temporary directory and creates a tree with the given files in it.
+     * 
+     * @param tmpDir The temporary directory of the test case.
+     * @param root The root of the tree to create, usually inside the temporary directory. Created even if no files
+     *      are given.
+     * @param pathsAndContents Pairs of the path of a file (relative to the root) and its content.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    static void writeTree(@NonNull File tmpDir, @NonNull File root, @NonNull String... pathsAndContents)
+            throws IOException {
+        
+        Util.clearFolder(tmpDir);
+        root.mkdirs();
+        for (int i = 0; i + 1 < pathsAndContents.length; i += 2) {
+            write(new File(root, pathsAndContents[i]), pathsAndContents[i + 1]);
+        }
+    }
+    
+    /**
+     * Writes a file with the given content. Parent directories are created if needed.
+     * 
+     * @param file The file to write.
+     * @param content The content of the file.
+     * 
+     * @throws IOException If writing fails.
+     */
+    static void write(@NonNull File file, @NonNull String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Reads the content of a file.
+     * 
+     * @param file The file to read.
+     * 
+     * @return The content.
+     * 
+     * @throws IOException If reading fails.
+     */
+    static @NonNull String read(@NonNull File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}
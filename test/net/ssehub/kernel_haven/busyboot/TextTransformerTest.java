@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link TextTransformer}s.
+ *
+ * @author Adam
+ */
+public class TextTransformerTest {
+    
+    private static final @NonNull String BUSYBOX_SOURCE = "#define A \\\n    1\nint x;\nif (ENABLE_FOO) {\n}\n"
+            + "#if ENABLE_BAR \\\n    && ENABLE_BAZ\n#endif\n";
+    
+    /**
+     * Tests joining continued lines, including a continuation in the last line.
+     */
+    @Test
+    public void testLineContinuation() {
+        List<String> lines = new ArrayList<>();
+        List<Integer> originals = new ArrayList<>();
+        TextTransformer transformer = TextTransformer.lineContinuation();
+        String[] input = {"a \\", "b \\", "c", "d", "e \\"};
+        for (int i = 0; i < input.length; i++) {
+            transformer.line(input[i], i + 1, (out, original) -> {
+                lines.add(out);
+                originals.add(original);
+            });
+        }
+        transformer.end((out, original) -> {
+            lines.add(out);
+            originals.add(original);
+        });
+        
+        assertThat(lines.toString(), is("[a b c, d, e ]"));
+        assertThat(originals.toString(), is("[1, 4, 5]"));
+    }
+    
+    /**
+     * Tests that the streaming Busybox normalization produces the same content and line map as the preparation.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testBusyboxNormalization() throws IOException {
+        LineMap.Builder expectedLines = new LineMap.Builder();
+        String expected = PrepareBusybox.normalizeContent(BUSYBOX_SOURCE, expectedLines, new ArrayList<>());
+        
+        LineMap.Builder lines = new LineMap.Builder();
+        StringWriter out = new StringWriter();
+        TextTransformer.busyboxNormalization().transform(new StringReader(BUSYBOX_SOURCE), out, lines);
+        
+        assertThat(out.toString(), is(expected));
+        LineMap expectedMap = expectedLines.build();
+        LineMap map = lines.build();
+        assertThat(map.getNumLines(), is(expectedMap.getNumLines()));
+        for (int i = 1; i <= map.getNumLines(); i++) {
+            assertThat(map.getOriginalLine(i), is(expectedMap.getOriginalLine(i)));
+        }
+    }
+    
+    /**
+     * Tests that the streaming FLOrIDA translation produces the same content as the preparation.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testFloridaTranslation() throws IOException {
+        File file = new File("testdata/florida/simpleReplacements/test.c");
+        String content = new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset());
+        String expected = new FloridaPreparation().new SourceFileReplacement(file, file, null).replace(content);
+        
+        LineMap.Builder lines = new LineMap.Builder();
+        StringWriter out = new StringWriter();
+        TextTransformer.floridaTranslation("test.c", null).transform(new StringReader(content), out, lines);
+        
+        assertThat(out.toString(), is(expected));
+        LineMap map = lines.build();
+        assertThat(map.getNumLines(), is(21));
+        assertThat(map.getOriginalLine(16), is(15));
+        assertThat(map.getOriginalLine(21), is(20));
+    }
+    
+    /**
+     * Tests chaining the normalization and the FLOrIDA translation: the diagnostics and the line map refer to the
+     * original lines.
+     */
+    @Test
+    public void testChained() {
+        String content = "int a; \\\n    int b;\n//&begin[FOO]\nint c;\n//&end[BAR]\n";
+        List<FloridaDiagnostic> diagnostics = new ArrayList<>();
+        TextTransformer transformer = TextTransformer.busyboxNormalization()
+                .andThen(TextTransformer.floridaTranslation("dir/test.c", diagnostics));
+        
+        List<Integer> originals = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        String[] lines = content.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            transformer.line(lines[i], i + 1, (line, original) -> {
+                out.append(line).append('\n');
+                originals.add(original);
+            });
+        }
+        transformer.end((line, original) -> out.append(line).append('\n'));
+        
+        assertThat(out.toString(), is("int a;     int b;\n#if defined(FOO)\nint c;\n#endif // BAR\n"));
+        assertThat(originals.toString(), is("[1, 3, 4, 5]"));
+        assertThat(diagnostics.size(), is(1));
+        assertThat(diagnostics.get(0).getKind(), is(FloridaDiagnostic.Kind.MISMATCHED_FEATURE));
+        assertThat(diagnostics.get(0).getPath(), is("dir/test.c"));
+        assertThat(diagnostics.get(0).getLine(), is(5));
+    }
+    
+    /**
+     * Tests the conversion of Coreboot Makefile.inc files.
+     */
+    @Test
+    public void testCorebootKbuild() {
+        String content = "subdirs-y += a\nramstage-y += b.c\nromstage-$(CONFIG_X) += c.c\ninclude x/Makefile.inc\n";
+        
+        assertThat(TextTransformer.corebootKbuild().transform(content),
+                is("obj-y += a\nobj-y += b.c\nobj-$(CONFIG_X) += c.c\ninclude x/Kbuild\n"));
+        assertThat(TextTransformer.corebootKbuild().transform(content), is(PrepareCoreboot.replaceStuff(content)));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-2019 University of Hildesheim, Software Systems Engineering
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ssehub.kernel_haven.busyboot;
+
+import static net.ssehub.kernel_haven.busyboot.TestFiles.read;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.write;
+import static net.ssehub.kernel_haven.busyboot.TestFiles.writeTree;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ssehub.kernel_haven.util.null_checks.NonNull;
+
+/**
+ * Tests the {@link UndoJournal}.
+ *
+ * @author Adam
+ */
+public class UndoJournalTest {
+    
+    private static final @NonNull File TESTDATA = new File("testdata/undo_journal");
+    
+    private static final @NonNull File TMP_DIR = new File(TESTDATA, "tmp");
+    
+    private static final @NonNull File TREE = new File(TMP_DIR, "tree");
+    
+    /**
+     * Cleans (or creates) the temporary directory and creates a small source tree before each test.
+     * 
+     * @throws IOException If creating the files fails.
+     */
+    @Before
+    public void createSourceTree() throws IOException {
+        writeTree(TMP_DIR, TREE, "Makefile", "all:\n", "sub/Config.in", "source sub/Config.in\n",
+                "sub/unchanged.c", "int a;\n");
+    }
+    
+    /**
+     * Tests that replaced, renamed and created files are restored correctly, and only changed files are backed up.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testRestore() throws IOException {
+        File journalDir = UndoJournal.getJournalDir(TREE);
+        UndoJournal journal = new UndoJournal(TREE);
+        
+        // replace Makefile
+        journal.backup(new File(TREE, "Makefile"));
+        write(new File(TREE, "Makefile"), "allyesconfig:\n");
+        
+        // rename Config.in to Kconfig
+        journal.backup(new File(TREE, "sub/Config.in"));
+        journal.backup(new File(TREE, "sub/Kconfig")); // doesn't exist; ignored
+        AbstractBusybootPreparation.replaceInFile(new File(TREE, "sub/Config.in"), new File(TREE, "sub/Kconfig"),
+                "Config.in", "Kconfig");
+        
+        // create new files, like make does
+        write(new File(TREE, "include/autoconf.h"), "#define CONFIG_A 1\n");
+        journal.close();
+        
+        assertThat(new File(journalDir, "files/Makefile").isFile(), is(true));
+        assertThat(new File(journalDir, "files/sub/Config.in").isFile(), is(true));
+        assertThat(new File(journalDir, "files/sub/unchanged.c").exists(), is(false));
+        
+        assertThat(UndoJournal.restore(TREE), is(Arrays.asList()));
+        
+        assertThat(read(new File(TREE, "Makefile")), is("all:\n"));
+        assertThat(read(new File(TREE, "sub/Config.in")), is("source sub/Config.in\n"));
+        assertThat(read(new File(TREE, "sub/unchanged.c")), is("int a;\n"));
+        assertThat(new File(TREE, "sub/Kconfig").exists(), is(false));
+        assertThat(new File(TREE, "include").exists(), is(false));
+        assertThat(journalDir.exists(), is(false));
+    }
+    
+    /**
+     * Tests that files rewritten in place are restored if their directory was backed up before, and reported
+     * otherwise.
+     * 
+     * @throws IOException unwanted.
+     */
+    @Test
+    public void testModifiedWithoutBackup() throws IOException {
+        write(new File(TREE, "include/autoconf.h"), "#define CONFIG_A 1\n");
+        write(new File(TREE, ".config"), "CONFIG_A=y\n");
+        UndoJournal journal = new UndoJournal(TREE);
+        
+        // like make, which rewrites its outputs of an earlier build
+        journal.backupTree(new File(TREE, "include"));
+        write(new File(TREE, "include/autoconf.h"), "#define CONFIG_A 1\n#define CONFIG_B 1\n");
+        write(new File(TREE, ".config"), "CONFIG_A=y\nCONFIG_B=y\n");
+        journal.close();
+        
+        assertThat(UndoJournal.restore(TREE), is(Arrays.asList(".config")));
+        assertThat(read(new File(TREE, "include/autoconf.h")), is("#define CONFIG_A 1\n"));
+    }
+    
+    /**
+     * Tests that creating a journal fails, if one already exists.
+     * 
+     * @throws IOException wanted.
+     */
+    @Test(expected = IOException.class)
+    public void testAlreadyExisting() throws IOException {
+        UndoJournal.getJournalDir(TREE).mkdir();
+        new UndoJournal(TREE);
+    }
+
+}
@@ -0,0 +1,5 @@
+//&begin[FEATURE_A]
+int a;
+//&begin[FEATURE_B]
+int b;
+//&end[FEATURE_B]
@@ -0,0 +1,3 @@
+#include "platform.h"
+
+void xfunc(void);
@@ -0,0 +1 @@
+#define PLATFORM 1
@@ -0,0 +1,3 @@
+#include "libbb.h"
+
+void xfunc(void) {}
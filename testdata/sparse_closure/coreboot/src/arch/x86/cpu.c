@@ -0,0 +1 @@
+void cpu(void) {}
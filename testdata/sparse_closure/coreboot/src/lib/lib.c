@@ -0,0 +1,5 @@
+#include <string.h>
+#include <lib.h>
+#include <missing.h>
+
+void lib(void) {}
@@ -0,0 +1 @@
+void board(void) {}